@@ -22,6 +22,34 @@ package propasm;
 public class AssemblerConfig {
   private boolean verboseLabelDisplay = false;
   private boolean generateBootloader = true;
+  /** Number of worker threads the assembler may use. */
+  private int threads = Runtime.getRuntime().availableProcessors();
+  /** Whether encoding waits until the whole program has been parsed. */
+  private boolean deferredEncoding = false;
+  /** Whether lexing runs on its own thread, overlapped with parsing. */
+  private boolean pipelined = false;
+  /** Inputs at least this large (in bytes) are lexed in parallel chunks. */
+  private long parallelLexThreshold = 1024 * 1024;
+  /** Whether to keep going after an input error, to report them all. */
+  private boolean recoverErrors = false;
+  /** Whether to write a cycle-annotated listing next to each image. */
+  private boolean generateListing = false;
+  /** Whether to report clocks lost waiting for the hub. */
+  private boolean hubAnalysis = false;
+  /** Whether to reorder instructions around hub accesses. */
+  private boolean scheduleHubAccesses = false;
+  /** Whether to run the peephole optimizer. */
+  private boolean peephole = false;
+  /** Whether to replace short branches with predicated instructions. */
+  private boolean ifConversion = false;
+  /** Whether to inline calls to small subroutines. */
+  private boolean inlining = false;
+  /** Whether to report the execution time of subroutines and loops. */
+  private boolean wcetAnalysis = false;
+  /** Whether to merge duplicate code to save space. */
+  private boolean optimizeSize = false;
+  /** Whether to remove unreachable code and unreferenced data. */
+  private boolean deadCodeElimination = false;
 
   public boolean isVerboseLabelDisplay() {
     return verboseLabelDisplay;
@@ -38,4 +66,119 @@ public class AssemblerConfig {
   public void setGenerateBootloader(boolean generateBootloader) {
     this.generateBootloader = generateBootloader; 
   }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    if(threads < 1) {
+      throw new IllegalArgumentException("Need at least one thread.");
+    }
+    this.threads = threads;
+  }
+
+  public long getParallelLexThreshold() {
+    return parallelLexThreshold;
+  }
+
+  public void setParallelLexThreshold(long parallelLexThreshold) {
+    this.parallelLexThreshold = parallelLexThreshold;
+  }
+
+  public boolean isDeferredEncoding() {
+    return deferredEncoding;
+  }
+
+  public void setDeferredEncoding(boolean deferredEncoding) {
+    this.deferredEncoding = deferredEncoding;
+  }
+
+  public boolean isPipelined() {
+    return pipelined;
+  }
+
+  public void setPipelined(boolean pipelined) {
+    this.pipelined = pipelined;
+  }
+
+  public boolean isRecoverErrors() {
+    return recoverErrors;
+  }
+
+  public void setRecoverErrors(boolean recoverErrors) {
+    this.recoverErrors = recoverErrors;
+  }
+
+  public boolean isGenerateListing() {
+    return generateListing;
+  }
+
+  public void setGenerateListing(boolean generateListing) {
+    this.generateListing = generateListing;
+  }
+
+  public boolean isHubAnalysis() {
+    return hubAnalysis;
+  }
+
+  public void setHubAnalysis(boolean hubAnalysis) {
+    this.hubAnalysis = hubAnalysis;
+  }
+
+  public boolean isScheduleHubAccesses() {
+    return scheduleHubAccesses;
+  }
+
+  public void setScheduleHubAccesses(boolean scheduleHubAccesses) {
+    this.scheduleHubAccesses = scheduleHubAccesses;
+  }
+
+  public boolean isPeephole() {
+    return peephole;
+  }
+
+  public void setPeephole(boolean peephole) {
+    this.peephole = peephole;
+  }
+
+  public boolean isIfConversion() {
+    return ifConversion;
+  }
+
+  public void setIfConversion(boolean ifConversion) {
+    this.ifConversion = ifConversion;
+  }
+
+  public boolean isInlining() {
+    return inlining;
+  }
+
+  public void setInlining(boolean inlining) {
+    this.inlining = inlining;
+  }
+
+  public boolean isWcetAnalysis() {
+    return wcetAnalysis;
+  }
+
+  public void setWcetAnalysis(boolean wcetAnalysis) {
+    this.wcetAnalysis = wcetAnalysis;
+  }
+
+  public boolean isDeadCodeElimination() {
+    return deadCodeElimination;
+  }
+
+  public void setDeadCodeElimination(boolean deadCodeElimination) {
+    this.deadCodeElimination = deadCodeElimination;
+  }
+
+  public boolean isOptimizeSize() {
+    return optimizeSize;
+  }
+
+  public void setOptimizeSize(boolean optimizeSize) {
+    this.optimizeSize = optimizeSize;
+  }
 }
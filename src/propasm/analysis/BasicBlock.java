@@ -0,0 +1,142 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import propasm.model.Element;
+import propasm.model.Instruction;
+
+/**
+ * A straight run of instructions, entered only at the top and left only at
+ * the bottom.  See {@link ControlFlowGraph}.
+ * 
+ * @author cbiffle
+ *
+ */
+public class BasicBlock {
+  private final int index;
+  private final int start;
+  private int end;
+  private final List<String> labels;
+  private final List<Element> instructions = new ArrayList<Element>();
+  BasicBlock fallThrough;
+  BasicBlock target;
+  
+  BasicBlock(int index, int start, List<String> labels) {
+    this.index = index;
+    this.start = start;
+    this.labels = labels;
+  }
+  
+  void add(Element instruction, int position) {
+    instructions.add(instruction);
+    end = position + 1;
+  }
+  
+  /**
+   * @return this block's position in {@link ControlFlowGraph#getBlocks()},
+   *         which is also its order in the program.
+   */
+  public int getIndex() {
+    return index;
+  }
+  
+  /**
+   * @return index in the program of the block's first element, counting any
+   *         labels in front of the first instruction.
+   */
+  public int getStart() {
+    return start;
+  }
+  
+  /**
+   * @return index in the program just past the block's last instruction.
+   */
+  public int getEnd() {
+    return end;
+  }
+  
+  /**
+   * @return the labels attached to the top of the block.
+   */
+  public List<String> getLabels() {
+    return Collections.unmodifiableList(labels);
+  }
+  
+  /**
+   * @return the block's instruction elements, in order.
+   */
+  public List<Element> getInstructions() {
+    return Collections.unmodifiableList(instructions);
+  }
+  
+  /**
+   * @return the instruction that ends the block.
+   */
+  public Instruction getLast() {
+    return instructions.get(instructions.size() - 1).getInstruction();
+  }
+  
+  /**
+   * @return the block control reaches by not branching, or {@code null} if it
+   *         always branches or runs into something other than code.
+   */
+  public BasicBlock getFallThrough() {
+    return fallThrough;
+  }
+  
+  /**
+   * @return the block the final branch jumps to, or {@code null} if it doesn't
+   *         end in a branch to a known label.  For a call, this is the callee.
+   */
+  public BasicBlock getTarget() {
+    return target;
+  }
+  
+  /**
+   * @return {@code true} if the block ends in a call.
+   */
+  public boolean endsInCall() {
+    return Instructions.isCall(getLast());
+  }
+  
+  /**
+   * @return the blocks control can pass to next, not counting calls, which are
+   *         assumed to return to the fall-through block.
+   */
+  public List<BasicBlock> getSuccessors() {
+    List<BasicBlock> successors = new ArrayList<BasicBlock>(2);
+    if(target != null && !endsInCall()) successors.add(target);
+    if(fallThrough != null && fallThrough != target) {
+      successors.add(fallThrough);
+    }
+    return successors;
+  }
+  
+  /**
+   * @return the source line of the block's first instruction.
+   */
+  public int getSourceLine() {
+    return instructions.get(0).getSourceLine();
+  }
+  
+  @Override public String toString() {
+    return "[block " + index + " " + labels + " line " + getSourceLine() + "]";
+  }
+}
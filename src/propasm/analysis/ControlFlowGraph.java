@@ -0,0 +1,131 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import propasm.model.Element;
+import propasm.model.Instruction;
+
+/**
+ * Divides the instructions of a program into {@link BasicBlock}s and links
+ * them by the branches between them.
+ * 
+ * Blocks end at branches, before labels, and wherever the code runs into
+ * anything that isn't an instruction (data, ORG, RES and the like).  Branches
+ * are followed only to labels; computed jumps such as {@code ret} end a block
+ * without a target.  The graph is a snapshot: passes that edit the program
+ * must build a new one.
+ * 
+ * @author cbiffle
+ *
+ */
+public class ControlFlowGraph {
+  private final List<Element> program;
+  private final List<BasicBlock> blocks = new ArrayList<BasicBlock>();
+  private final Map<String, BasicBlock> blocksByLabel =
+    new HashMap<String, BasicBlock>();
+  
+  /**
+   * Builds the graph for a program.
+   * 
+   * @param program  the program's elements; not modified.
+   */
+  public ControlFlowGraph(List<Element> program) {
+    this.program = program;
+    
+    BasicBlock current = null;
+    List<String> labels = new ArrayList<String>();
+    int labelStart = -1;
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      switch(e.getKind()) {
+      case LABEL:
+        current = null;
+        if(labels.isEmpty()) labelStart = i;
+        labels.add(e.getLabel());
+        break;
+      case INSTRUCTION:
+        if(current == null) {
+          int start = labels.isEmpty() ? i : labelStart;
+          current = new BasicBlock(blocks.size(), start, labels);
+          blocks.add(current);
+          for(String label : labels) blocksByLabel.put(label, current);
+          labels = new ArrayList<String>();
+        }
+        current.add(e, i);
+        if(Instructions.isBranch(e.getInstruction())) current = null;
+        break;
+      default:
+        current = null;
+        labels.clear();
+      }
+    }
+    
+    for(BasicBlock block : blocks) {
+      Instruction last = block.getLast();
+      String target = Instructions.branchTarget(last);
+      if(target != null) block.target = blocksByLabel.get(target);
+      int next = block.getIndex() + 1;
+      if(!Instructions.isUnconditionalJump(last) && next < blocks.size() &&
+         blocks.get(next).getStart() == block.getEnd()) {
+        block.fallThrough = blocks.get(next);
+      }
+    }
+  }
+  
+  /**
+   * @return the program the graph was built from.
+   */
+  public List<Element> getProgram() {
+    return program;
+  }
+  
+  /**
+   * @return all blocks, in program order.
+   */
+  public List<BasicBlock> getBlocks() {
+    return Collections.unmodifiableList(blocks);
+  }
+  
+  /**
+   * @return the block starting at a label, or {@code null} if the label
+   *         doesn't mark code.
+   */
+  public BasicBlock getBlock(String label) {
+    return blocksByLabel.get(label);
+  }
+  
+  /**
+   * Finds the block whose final branch jumps back to {@code header}, closing
+   * the loop the two delimit.  Only loops laid out in program order (header
+   * first) are found, which covers every loop written the usual way.
+   * 
+   * @return the latest block at or after {@code header} that branches to it,
+   *         or {@code null} if the header doesn't start a loop.
+   */
+  public BasicBlock getLoopEnd(BasicBlock header) {
+    for(int i = blocks.size() - 1; i >= header.getIndex(); i--) {
+      BasicBlock block = blocks.get(i);
+      if(block.getTarget() == header && !block.endsInCall()) return block;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,110 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import propasm.model.Element;
+import propasm.model.LogicException;
+import propasm.model.ProgramPass;
+
+/**
+ * Checks that loops and subroutines run within their clock budgets, as
+ * declared with {@code .budget}.  The worst case is worked out by
+ * {@link ExecutionTime}; a label over its budget fails the assembly, much as
+ * {@code fit} does for code that outgrows cog memory.  The program itself is
+ * not changed.
+ * 
+ * @author cbiffle
+ *
+ */
+public class CycleBudget implements ProgramPass {
+  private final PrintStream out;
+  private final Map<String, Integer> loopBounds;
+  private final List<Budget> budgets = new ArrayList<Budget>();
+  
+  private static class Budget {
+    final String label;
+    final int clocks;
+    final int line;
+    
+    Budget(String label, int clocks, int line) {
+      this.label = label;
+      this.clocks = clocks;
+      this.line = line;
+    }
+  }
+  
+  /**
+   * @param out  destination for a report of each budget checked, or
+   *        {@code null}.
+   * @param loopBounds  trip counts given for loops, by header label; see
+   *        {@link ExecutionTime#ExecutionTime(List, Map)}.
+   */
+  public CycleBudget(PrintStream out, Map<String, Integer> loopBounds) {
+    this.out = out;
+    this.loopBounds = loopBounds;
+  }
+  
+  /**
+   * Adds a budget to check.
+   * 
+   * @param label  label of a subroutine or loop header.
+   * @param clocks  most clocks the subroutine, or one trip around the loop,
+   *        may take.
+   * @param line  source line of the budget, for errors.
+   */
+  public void addBudget(String label, int clocks, int line) {
+    budgets.add(new Budget(label, clocks, line));
+  }
+  
+  public void apply(List<Element> program) throws LogicException {
+    ExecutionTime time = new ExecutionTime(program, loopBounds);
+    Set<String> labels = new HashSet<String>();
+    for(Element e : program) {
+      if(e.is(Element.Kind.LABEL)) labels.add(e.getLabel());
+    }
+    for(Budget budget : budgets) {
+      // Code removed as unreachable can't go over budget.
+      if(!labels.contains(budget.label)) continue;
+      String what;
+      int worst;
+      if(time.isSubroutine(budget.label)) {
+        what = "Subroutine " + budget.label;
+        worst = time.worstSubroutine(budget.label);
+      } else if(time.isLoop(budget.label)) {
+        what = "Loop " + budget.label;
+        worst = time.worstLoopBody(budget.label);
+      } else {
+        throw new LogicException("Budget label " + budget.label +
+            " is neither a subroutine nor the top of a loop", budget.line, 0);
+      }
+      if(worst > budget.clocks) {
+        throw new LogicException(what + " can take " + worst +
+            " clocks, over its budget of " + budget.clocks, budget.line, 0);
+      }
+      if(out != null) {
+        out.printf("Line %d: %s takes at most %d of its %d clocks\n",
+                   budget.line, what, worst, budget.clocks);
+      }
+    }
+  }
+}
@@ -0,0 +1,504 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.LogicException;
+import propasm.model.Operand;
+import propasm.model.Timing;
+import propasm.p32.DjnzOp;
+import propasm.p32.MovOp;
+import propasm.parallax.pseudo.RetOp;
+
+/**
+ * Works out how long code can take to run, at best and at worst.
+ * 
+ * Two kinds of code can be timed: a subroutine, from its label through the
+ * {@code ret} at its {@code _ret} label, and one trip around a loop, from its
+ * header back to the branch that closes it.  Every path is costed from the
+ * timing of each instruction: a hub access takes anywhere from its best case
+ * to a full hub window, a {@code djnz} or friend costs more when it falls
+ * through, and a predicated instruction may be skipped.  Calls add the time
+ * of the subroutine they call.
+ * 
+ * Loops within the code being timed need a bound on their trips.  A loop
+ * closed by {@code djnz} gets one from a {@code mov} of a constant into its
+ * counter just before the loop, as long as nothing else in the loop writes
+ * the counter; any loop can be given one explicitly, by the label of its
+ * header.  At worst, a loop costs its trip count times the time of one trip,
+ * which is a little pessimistic (the last trip may be shorter), but safe.
+ * A bound is only a maximum, and a loop may branch out early, so at best a
+ * loop costs a single trip; only a {@code djnz} loop with a known count and
+ * no other way out is sure to run every trip.
+ * 
+ * Code whose time can't be bounded is rejected with a
+ * {@link LogicException}: waits, computed jumps other than returns,
+ * recursion, and loops without a bound.
+ * 
+ * @author cbiffle
+ *
+ */
+public class ExecutionTime {
+  /** Suffix of the label on a subroutine's {@code ret}. */
+  public static final String RET_SUFFIX = "_ret";
+  
+  /**
+   * The best- and worst-case clocks for some code.
+   */
+  public static class Bounds {
+    private final int best, worst;
+    
+    public Bounds(int best, int worst) {
+      this.best = best;
+      this.worst = worst;
+    }
+    
+    public int getBest() {
+      return best;
+    }
+    
+    public int getWorst() {
+      return worst;
+    }
+    
+    @Override public String toString() {
+      return (best == worst) ? Integer.toString(best) : best + ".." + worst;
+    }
+  }
+  
+  private final ControlFlowGraph graph;
+  /** Trip counts given for loops, by the label of the header. */
+  private final Map<String, Integer> loopBounds;
+  /** Time of each subroutine timed so far, by label. */
+  private final Map<String, Bounds> subroutines =
+    new HashMap<String, Bounds>();
+  /** Subroutines being timed, to catch recursion. */
+  private final Set<String> active = new HashSet<String>();
+  
+  /**
+   * @param program  the program to analyze; not modified.
+   */
+  public ExecutionTime(List<Element> program) {
+    this(program, Collections.<String, Integer>emptyMap());
+  }
+  
+  /**
+   * @param program  the program to analyze; not modified.
+   * @param loopBounds  most trips each loop may take, by the label of its
+   *        header, for loops whose bound can't be found from the code.
+   */
+  public ExecutionTime(List<Element> program, Map<String, Integer> loopBounds) {
+    this.graph = new ControlFlowGraph(program);
+    this.loopBounds = loopBounds;
+  }
+  
+  /**
+   * @return the graph the analysis works from.
+   */
+  public ControlFlowGraph getGraph() {
+    return graph;
+  }
+  
+  /**
+   * @return {@code true} if {@code label} marks the top of a subroutine with
+   *         a matching {@code _ret} label.
+   */
+  public boolean isSubroutine(String label) {
+    BasicBlock start = graph.getBlock(label);
+    BasicBlock end = graph.getBlock(label + RET_SUFFIX);
+    return start != null && end != null &&
+        end.getIndex() >= start.getIndex();
+  }
+  
+  /**
+   * @return {@code true} if {@code label} marks the top of a loop.
+   */
+  public boolean isLoop(String label) {
+    BasicBlock header = graph.getBlock(label);
+    return header != null && graph.getLoopEnd(header) != null;
+  }
+  
+  /**
+   * Works out how long a subroutine can take, from the call's arrival at its
+   * label to the end of its {@code ret}.
+   * 
+   * @param label  the subroutine's label.
+   * @return best- and worst-case clocks.
+   * @throws LogicException  if the time can't be bounded.
+   */
+  public Bounds subroutine(String label) throws LogicException {
+    Bounds known = subroutines.get(label);
+    if(known != null) return known;
+    BasicBlock start = graph.getBlock(label);
+    if(!isSubroutine(label)) {
+      throw new LogicException("Can't time " + label + ": no " + label +
+          RET_SUFFIX + " label follows it", line(start), 0);
+    }
+    if(!active.add(label)) {
+      throw new LogicException("Can't time recursive subroutine " + label,
+                               line(start), 0);
+    }
+    BasicBlock end = graph.getBlock(label + RET_SUFFIX);
+    Bounds bounds = time(start.getIndex(), end.getIndex(), false);
+    active.remove(label);
+    subroutines.put(label, bounds);
+    return bounds;
+  }
+  
+  /**
+   * Works out how long one trip around a loop can take, from its header to
+   * the end of the branch back.  Paths that leave the loop are included, up
+   * to the point where they leave.
+   * 
+   * @param label  label of the loop header.
+   * @return best- and worst-case clocks.
+   * @throws LogicException  if the time can't be bounded.
+   */
+  public Bounds loopBody(String label) throws LogicException {
+    BasicBlock header = graph.getBlock(label);
+    BasicBlock end = (header == null) ? null : graph.getLoopEnd(header);
+    if(end == null) {
+      throw new LogicException("Can't time " + label + ": nothing branches " +
+                               "back to it", line(header), 0);
+    }
+    return time(header.getIndex(), end.getIndex(), true);
+  }
+  
+  /**
+   * @return the worst case of {@link #subroutine(String)}.
+   */
+  public int worstSubroutine(String label) throws LogicException {
+    return subroutine(label).getWorst();
+  }
+  
+  /**
+   * @return the worst case of {@link #loopBody(String)}.
+   */
+  public int worstLoopBody(String label) throws LogicException {
+    return loopBody(label).getWorst();
+  }
+  
+  /**
+   * Works out the most trips a loop can take.
+   * 
+   * @param header  first block of the loop.
+   * @param end  block that branches back to {@code header}.
+   * @return the trip count.
+   * @throws LogicException  if there's no bound.
+   */
+  public int tripCount(BasicBlock header, BasicBlock end)
+      throws LogicException {
+    for(String label : header.getLabels()) {
+      Integer trips = loopBounds.get(label);
+      if(trips != null) return trips;
+    }
+    int trips = counterBound(header, end);
+    if(trips <= 0) {
+      throw new LogicException("Can't find a bound for the loop at line " +
+          line(header) + "; give it one with .bound", line(header), 0);
+    }
+    return trips;
+  }
+  
+  /**
+   * Finds the trip count of a {@code djnz} loop from the constant its counter
+   * starts with, or returns zero if it can't be found.
+   */
+  private int counterBound(BasicBlock header, BasicBlock end) {
+    Instruction djnz = end.getLast();
+    if(!(djnz.getOperation() instanceof DjnzOp) || djnz.isConditional()) {
+      return 0;
+    }
+    String counter = RegisterUse.key(Instructions.dest(djnz));
+    if(counter == null) return 0;
+    
+    List<BasicBlock> blocks = graph.getBlocks();
+    for(int i = header.getIndex(); i <= end.getIndex(); i++) {
+      for(Element e : blocks.get(i).getInstructions()) {
+        Instruction instr = e.getInstruction();
+        if(instr != djnz && writes(instr, counter)) return 0;
+      }
+    }
+    if(header.getIndex() == 0) return 0;
+    BasicBlock before = blocks.get(header.getIndex() - 1);
+    if(before.getFallThrough() != header) return 0;
+    List<Element> instructions = before.getInstructions();
+    for(int i = instructions.size() - 1; i >= 0; i--) {
+      Instruction instr = instructions.get(i).getInstruction();
+      if(!writes(instr, counter)) continue;
+      Operand source = instr.getSource();
+      if(instr.getOperation().getClass() != MovOp.class ||
+         instr.isConditional() || !instr.isImmediateSource() ||
+         source == null || !source.containsValue()) {
+        return 0;
+      }
+      // A count of zero wraps around, for over four billion trips, which is
+      // no use as a bound; it comes back as zero like any other failure.
+      return source.getValue();
+    }
+    return 0;
+  }
+  
+  private static boolean writes(Instruction instr, String register) {
+    for(String key : new RegisterUse(instr).getWrites()) {
+      if(RegisterUse.mayAlias(key, register)) return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Times the paths through the blocks from {@code first} to {@code last},
+   * inclusive.  Branches out of that range end a path; so does a branch back
+   * to {@code first}, for a loop.  Loops within the range are timed as a
+   * whole, by {@link #tripCount(BasicBlock, BasicBlock)} trips.
+   */
+  private Bounds time(int first, int last, boolean loop)
+      throws LogicException {
+    List<BasicBlock> blocks = graph.getBlocks();
+    // Find the loops within the range, by header and end.
+    TreeMap<Integer, Integer> inner = new TreeMap<Integer, Integer>();
+    for(int j = first; j <= last; j++) {
+      BasicBlock block = blocks.get(j);
+      BasicBlock target = block.getTarget();
+      if(target == null || block.endsInCall()) continue;
+      int header = target.getIndex();
+      if(header > j || header < first || (loop && header == first)) continue;
+      Integer end = inner.get(header);
+      inner.put(header, (end == null) ? j : Math.max(end, j));
+    }
+    int innerEnd = -1;
+    for(Map.Entry<Integer, Integer> entry : inner.entrySet()) {
+      if(entry.getKey() <= innerEnd && entry.getValue() > innerEnd) {
+        throw new LogicException("Can't time overlapping loops",
+                                 line(blocks.get(entry.getKey())), 0);
+      }
+      innerEnd = Math.max(innerEnd, entry.getValue());
+    }
+    
+    Bounds[] times = new Bounds[last - first + 1];
+    for(int i = last; i >= first; i--) {
+      BasicBlock block = blocks.get(i);
+      Integer end = inner.get(i);
+      if(end != null) {
+        times[i - first] = innerLoop(block, blocks.get(end), first, last,
+                                     times, loop);
+      } else if(!isInside(inner, i)) {
+        times[i - first] = block(block, first, last, times, loop);
+      }
+    }
+    return times[0];
+  }
+  
+  /**
+   * Checks whether a block lies within one of the loops found by
+   * {@link #time(int, int, boolean)}, which times it separately.
+   */
+  private static boolean isInside(TreeMap<Integer, Integer> loops, int index) {
+    for(Map.Entry<Integer, Integer> loop : loops.headMap(index).entrySet()) {
+      if(loop.getValue() >= index) return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Times a loop within the range being timed, as its trip count times the
+   * time of one trip, then the longest (or shortest) way out.  The trip count
+   * is only a maximum, so at best the loop runs once, unless it must run
+   * every trip: see {@link #runsEveryTrip(BasicBlock, BasicBlock, boolean)}.
+   */
+  private Bounds innerLoop(BasicBlock header, BasicBlock end, int first,
+                           int last, Bounds[] times, boolean loop)
+      throws LogicException {
+    Bounds trip = time(header.getIndex(), end.getIndex(), true);
+    long trips = tripCount(header, end);
+    List<BasicBlock> blocks = graph.getBlocks();
+    int bestExit = Integer.MAX_VALUE, worstExit = 0;
+    boolean earlyExit = false;
+    for(int j = header.getIndex(); j <= end.getIndex(); j++) {
+      BasicBlock block = blocks.get(j);
+      if(block != end && leaves(block)) earlyExit = true;
+      for(BasicBlock next : block.getSuccessors()) {
+        int index = next.getIndex();
+        if(index >= header.getIndex() && index <= end.getIndex()) continue;
+        if(block != end) earlyExit = true;
+        Bounds exit = after(next, block, first, last, times, loop);
+        bestExit = Math.min(bestExit, exit.getBest());
+        worstExit = Math.max(worstExit, exit.getWorst());
+      }
+    }
+    if(bestExit == Integer.MAX_VALUE) bestExit = 0;
+    long bestTrips = runsEveryTrip(header, end, earlyExit) ? trips : 1;
+    return new Bounds(clamp(bestTrips * trip.getBest() + bestExit),
+                      clamp(trips * trip.getWorst() + worstExit));
+  }
+  
+  /**
+   * Checks whether a loop always runs the number of trips
+   * {@link #tripCount(BasicBlock, BasicBlock)} gives.  That's so when the
+   * count comes from a {@code djnz} counter rather than a given bound, which
+   * is only a maximum, and the {@code djnz} is the only way out.
+   * 
+   * @param earlyExit  whether any other block branches out of the loop.
+   */
+  private boolean runsEveryTrip(BasicBlock header, BasicBlock end,
+                                boolean earlyExit) {
+    if(earlyExit) return false;
+    for(String label : header.getLabels()) {
+      if(loopBounds.containsKey(label)) return false;
+    }
+    return counterBound(header, end) > 0;
+  }
+  
+  /**
+   * @return {@code true} if a block ends in a return or computed jump, which
+   *         leaves whatever loop it's in.
+   */
+  private static boolean leaves(BasicBlock block) {
+    return Instructions.isBranch(block.getLast()) && !block.endsInCall() &&
+        block.getTarget() == null;
+  }
+  
+  private static int clamp(long clocks) {
+    return (int)Math.min(clocks, Integer.MAX_VALUE);
+  }
+  
+  /**
+   * Times a single block and the rest of the paths from it.
+   */
+  private Bounds block(BasicBlock block, int first, int last, Bounds[] times,
+                       boolean loop) throws LogicException {
+    int best = 0, worst = 0;
+    for(Element e : block.getInstructions()) {
+      Instruction instr = e.getInstruction();
+      if(Instructions.isBranch(instr)) break;
+      best += bestClocks(instr);
+      worst += worstClocks(e);
+    }
+    
+    Instruction branch = block.getLast();
+    Timing timing = branch.getTiming();
+    // Time taken by a branch that isn't taken, or is skipped.
+    int bestSkip = branch.isConditional()
+        ? Timing.SKIPPED_CLOCKS : timing.getMaximum();
+    if(!Instructions.isBranch(branch)) {
+      return add(best, worst,
+                 after(block.getFallThrough(), block, first, last, times, loop));
+    } else if(block.endsInCall()) {
+      String callee = Instructions.branchTarget(branch);
+      if(callee == null) {
+        throw new LogicException("Can't time a computed call",
+                                 lastLine(block), 0);
+      }
+      Bounds call = subroutine(callee);
+      int bestCall = timing.getTaken() + call.getBest();
+      if(branch.isConditional()) bestCall = Math.min(bestCall, bestSkip);
+      return add(best + bestCall, worst + timing.getTaken() + call.getWorst(),
+                 after(block.getFallThrough(), block, first, last, times, loop));
+    }
+    
+    Bounds taken;
+    if(Instructions.branchTarget(branch) != null) {
+      taken = add(timing.getTaken(), timing.getTaken(),
+                  after(block.getTarget(), block, first, last, times, loop));
+    } else if(isReturn(block)) {
+      taken = new Bounds(timing.getTaken(), timing.getTaken());
+    } else {
+      throw new LogicException("Can't time a computed jump",
+                               lastLine(block), 0);
+    }
+    if(Instructions.isUnconditionalJump(branch)) {
+      return add(best, worst, taken);
+    }
+    Bounds notTaken = add(bestSkip, timing.getMaximum(),
+        after(block.getFallThrough(), block, first, last, times, loop));
+    return new Bounds(best + Math.min(taken.getBest(), notTaken.getBest()),
+        worst + Math.max(taken.getWorst(), notTaken.getWorst()));
+  }
+  
+  private static Bounds add(int best, int worst, Bounds rest) {
+    return new Bounds(best + rest.getBest(), worst + rest.getWorst());
+  }
+  
+  /**
+   * Works out the time remaining once control passes to {@code next}.
+   */
+  private Bounds after(BasicBlock next, BasicBlock from, int first, int last,
+                       Bounds[] times, boolean loop) throws LogicException {
+    if(next == null) {
+      if(!Instructions.isBranch(from.getLast())) {
+        throw new LogicException("Can't time code that runs into data",
+                                 lastLine(from), 0);
+      }
+      // Leaves for a label that isn't code, so the path ends here.
+      return new Bounds(0, 0);
+    }
+    int index = next.getIndex();
+    if(index < first || index > last || (loop && index == first)) {
+      return new Bounds(0, 0);
+    }
+    Bounds rest = (index > from.getIndex()) ? times[index - first] : null;
+    if(rest == null) {
+      throw new LogicException("Can't time a jump into the middle of a loop",
+                               lastLine(from), 0);
+    }
+    return rest;
+  }
+  
+  private static int bestClocks(Instruction instr) {
+    Timing timing = instr.getTiming();
+    if(Instructions.isNever(instr) || instr.isConditional()) {
+      return Math.min(Timing.SKIPPED_CLOCKS, timing.getMinimum());
+    }
+    return timing.getMinimum();
+  }
+  
+  private static int worstClocks(Element e) throws LogicException {
+    Instruction instr = e.getInstruction();
+    if(Instructions.isNever(instr)) return Timing.SKIPPED_CLOCKS;
+    Timing timing = instr.getTiming();
+    if(timing.isUnbounded()) {
+      throw new LogicException("Can't time " + Instructions.mnemonic(instr) +
+          ", which waits for an unbounded time", e.getSourceLine(), 0);
+    }
+    return timing.getMaximum();
+  }
+  
+  private static boolean isReturn(BasicBlock block) {
+    if(block.getLast().getOperation() instanceof RetOp) return true;
+    for(String label : block.getLabels()) {
+      if(label.endsWith(RET_SUFFIX)) return true;
+    }
+    return false;
+  }
+  
+  private static int lastLine(BasicBlock block) {
+    List<Element> instructions = block.getInstructions();
+    return instructions.get(instructions.size() - 1).getSourceLine();
+  }
+  
+  private static int line(BasicBlock block) {
+    return (block == null) ? 0 : block.getSourceLine();
+  }
+}
@@ -0,0 +1,271 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.ProgramPass;
+import propasm.model.Timing;
+
+/**
+ * Reports the clocks a program loses waiting for the hub.
+ * 
+ * A cog gets a turn at the hub every 16 clocks.  A hub instruction waits for
+ * that turn, then takes seven clocks more, so it always finishes at the same
+ * point in the hub cycle.  The wait before the <em>next</em> hub instruction
+ * therefore depends only on how many clocks have passed since the last one
+ * finished: with eight clocks in between (two ordinary instructions) it
+ * waits a single clock, the least possible, and each access costs eight
+ * clocks in all.  Any other spacing stalls for longer; those extra clocks
+ * could have run instructions instead.
+ * 
+ * This pass works out the spacing between hub accesses within each basic
+ * block, and around each loop, and reports the stalls it finds.  Waits
+ * ({@code waitcnt} and friends) and calls lose track of the hub phase; an
+ * access after one is not reported.  Forward branches inside a loop are
+ * assumed not taken.  The program itself is not changed.
+ * 
+ * @author cbiffle
+ *
+ */
+public class HubPhaseAnalysis implements ProgramPass {
+  /** Clocks between hub accesses that lets each hit its turn. */
+  public static final int SWEET_SPOT = 8;
+  /** Length of the hub cycle, in clocks. */
+  public static final int HUB_CYCLE = 16;
+  /** Clocks a hub access takes after its turn comes around. */
+  private static final int HUB_ACCESS = 7;
+  
+  private final PrintStream out;
+  private int accessCount;
+  private int stallCount;
+  
+  /**
+   * @param out  destination for the report.
+   */
+  public HubPhaseAnalysis(PrintStream out) {
+    this.out = out;
+  }
+  
+  /**
+   * Computes the clocks a hub access stalls beyond the minimum, given the
+   * clocks since the previous access finished.
+   * 
+   * @param gap  clocks since the previous hub access finished.
+   * @return avoidable stall clocks, from 0 to 15.
+   */
+  public static int stall(int gap) {
+    return Math.max(0, cost(gap) - cost(SWEET_SPOT));
+  }
+  
+  /**
+   * Computes the total clocks a hub access takes, given the clocks since the
+   * previous access finished.
+   * 
+   * @param gap  clocks since the previous hub access finished.
+   * @return clocks taken by the access, from 7 to 22.
+   */
+  public static int cost(int gap) {
+    return HUB_ACCESS + mod(HUB_CYCLE - HUB_ACCESS - gap, HUB_CYCLE);
+  }
+  
+  public void apply(List<Element> program) {
+    ControlFlowGraph cfg = new ControlFlowGraph(program);
+    List<BasicBlock> blocks = cfg.getBlocks();
+    Set<BasicBlock> looped = new HashSet<BasicBlock>();
+    accessCount = 0;
+    stallCount = 0;
+    
+    for(BasicBlock header : blocks) {
+      BasicBlock end = cfg.getLoopEnd(header);
+      if(end == null) continue;
+      List<BasicBlock> body = blocks.subList(header.getIndex(), end.getIndex() + 1);
+      if(!isInnermost(body)) continue;
+      looped.addAll(body);
+      analyzeLoop(body);
+    }
+    for(BasicBlock block : blocks) {
+      if(!looped.contains(block)) {
+        List<Access> accesses = new ArrayList<Access>();
+        walk(block.getInstructions(), UNKNOWN, false, accesses);
+        for(Access a : accesses) {
+          if(a.gap != UNKNOWN && stall(a.gap) > 0) reportAccess(a, "");
+        }
+        count(accesses);
+      }
+    }
+    
+    out.printf("Hub analysis: %d hub accesses, %d clocks of avoidable stalls\n",
+               accessCount, stallCount);
+  }
+  
+  /**
+   * Checks that a loop body can be walked straight through, block by block,
+   * without any inner loops.  Blocks of outer loops are treated as straight
+   * line code instead.
+   */
+  private boolean isInnermost(List<BasicBlock> body) {
+    int top = body.get(0).getIndex();
+    for(int i = 0; i < body.size() - 1; i++) {
+      BasicBlock block = body.get(i);
+      if(block.getFallThrough() != body.get(i + 1)) return false;
+      BasicBlock target = block.getTarget();
+      if(target != null && !block.endsInCall() &&
+         target.getIndex() >= top && target.getIndex() <= block.getIndex()) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  private void analyzeLoop(List<BasicBlock> body) {
+    List<Element> instructions = new ArrayList<Element>();
+    for(BasicBlock block : body) {
+      instructions.addAll(block.getInstructions());
+    }
+    
+    // Once around to find the phase at the top, then again for real.
+    List<Access> accesses = new ArrayList<Access>();
+    int gap = walk(instructions, UNKNOWN, true, accesses);
+    if(accesses.isEmpty()) return;
+    accesses.clear();
+    walk(instructions, gap, true, accesses);
+    
+    int stalls = 0;
+    boolean known = true;
+    for(Access a : accesses) {
+      if(a.gap == UNKNOWN) {
+        known = false;
+      } else {
+        stalls += stall(a.gap);
+      }
+    }
+    int clocks = loopClocks(instructions, accesses);
+    
+    int line = body.get(0).getSourceLine();
+    if(!known) {
+      out.printf("Line %d: hub loop timing depends on waits or calls\n", line);
+    } else if(stalls == 0) {
+      out.printf("Line %d: hub loop takes %d clocks per pass, no stalls\n",
+                 line, clocks);
+    } else {
+      out.printf("Line %d: hub loop takes %d clocks per pass; %d clocks are " +
+                 "hub stalls (hub accesses should be %d clocks apart)\n",
+                 line, clocks, stalls, SWEET_SPOT);
+      for(Access a : accesses) {
+        if(a.gap != UNKNOWN && stall(a.gap) > 0) reportAccess(a, "  ");
+      }
+    }
+    count(accesses);
+  }
+  
+  /**
+   * Adds up the clocks of one pass around a loop whose accesses are known.
+   */
+  private int loopClocks(List<Element> instructions, List<Access> accesses) {
+    int clocks = 0;
+    int hub = 0;
+    for(int i = 0; i < instructions.size(); i++) {
+      Instruction instr = instructions.get(i).getInstruction();
+      if(isHubAccess(instr)) {
+        int gap = accesses.get(hub++).gap;
+        clocks += (gap == UNKNOWN) ? HUB_ACCESS : cost(gap);
+      } else {
+        clocks += clocks(instr, i == instructions.size() - 1);
+      }
+    }
+    return clocks;
+  }
+  
+  private void reportAccess(Access a, String indent) {
+    out.printf("Line %d: %s%s comes %d clocks after the previous hub access, " +
+               "stalling %d clocks (want %d)\n",
+               a.element.getSourceLine(), indent,
+               Instructions.mnemonic(a.element.getInstruction()),
+               a.gap, stall(a.gap), SWEET_SPOT);
+  }
+  
+  private void count(List<Access> accesses) {
+    for(Access a : accesses) {
+      accessCount++;
+      if(a.gap != UNKNOWN) stallCount += stall(a.gap);
+    }
+  }
+  
+  private static final int UNKNOWN = -1;
+  
+  /**
+   * Steps through a run of instructions, noting the spacing before each hub
+   * access.
+   * 
+   * @param gap  clocks since the last hub access at the start, or UNKNOWN.
+   * @param loop  whether the final instruction is a loop's taken back edge.
+   * @param accesses  collects the hub accesses found.
+   * @return clocks since the last hub access at the end, or UNKNOWN.
+   */
+  private int walk(List<Element> instructions, int gap, boolean loop,
+                   List<Access> accesses) {
+    for(int i = 0; i < instructions.size(); i++) {
+      Element e = instructions.get(i);
+      Instruction instr = e.getInstruction();
+      if(isHubAccess(instr)) {
+        accesses.add(new Access(e, gap));
+        gap = 0;
+      } else if(instr.getTiming().isUnbounded() || Instructions.isCall(instr)) {
+        gap = UNKNOWN;
+      } else if(gap != UNKNOWN) {
+        gap += clocks(instr, loop && i == instructions.size() - 1);
+      }
+    }
+    return gap;
+  }
+  
+  private static boolean isHubAccess(Instruction instr) {
+    return instr.getTiming().isHubAccess() && !Instructions.isNever(instr);
+  }
+  
+  /**
+   * Clocks taken by an instruction that doesn't touch the hub or wait.
+   */
+  private static int clocks(Instruction instr, boolean taken) {
+    if(Instructions.isNever(instr)) return Timing.SKIPPED_CLOCKS;
+    Timing timing = instr.getTiming();
+    return taken ? timing.getTaken() : timing.getMaximum();
+  }
+  
+  private static int mod(int value, int modulus) {
+    return ((value % modulus) + modulus) % modulus;
+  }
+  
+  /**
+   * A hub access, with the clocks since the previous one finished.
+   */
+  private static class Access {
+    private final Element element;
+    private final int gap;
+    
+    public Access(Element element, int gap) {
+      this.element = element;
+      this.gap = gap;
+    }
+  }
+}
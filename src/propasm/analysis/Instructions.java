@@ -0,0 +1,244 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import propasm.model.Effect;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.Operand;
+import propasm.model.Predicate;
+import propasm.model.Timing;
+import propasm.p32.AddSXOp;
+import propasm.p32.AddXOp;
+import propasm.p32.JmpRetOp;
+import propasm.p32.MuxCOp;
+import propasm.p32.MuxNCOp;
+import propasm.p32.MuxNZOp;
+import propasm.p32.MuxZOp;
+import propasm.p32.NegCOp;
+import propasm.p32.NegNCOp;
+import propasm.p32.NegNZOp;
+import propasm.p32.NegZOp;
+import propasm.p32.RclOp;
+import propasm.p32.RcrOp;
+import propasm.p32.SubSXOp;
+import propasm.p32.SubXOp;
+import propasm.p32.SumCOp;
+import propasm.p32.SumNCOp;
+import propasm.p32.SumNZOp;
+import propasm.p32.SumZOp;
+
+/**
+ * Questions about individual instructions that analyses and optimizations
+ * keep asking: does it branch, and where to; does it write its result; which
+ * flags does it set.
+ * 
+ * @author cbiffle
+ *
+ */
+public final class Instructions {
+  private Instructions() {
+  }
+  
+  /**
+   * Guesses the mnemonic of an instruction for reports, from the class name of
+   * its operation ({@code RdLongOp} becomes {@code rdlong}).
+   */
+  public static String mnemonic(Instruction instr) {
+    String name = instr.getOperation().getClass().getSimpleName();
+    if(name.endsWith("Op")) name = name.substring(0, name.length() - 2);
+    return name.toLowerCase();
+  }
+  
+  /**
+   * @return {@code true} if the instruction is a {@code jmpret}, or one of the
+   *         pseudo-ops built on it ({@code jmp}, {@code call}, {@code ret}).
+   */
+  public static boolean isJump(Instruction instr) {
+    return instr.getOperation() instanceof JmpRetOp;
+  }
+  
+  /**
+   * @return {@code true} for {@code djnz}, {@code tjz} and {@code tjnz}, which
+   *         decide whether to jump based on their destination register.
+   */
+  public static boolean isConditionalBranch(Instruction instr) {
+    return instr.getTiming() == Timing.BRANCH;
+  }
+  
+  /**
+   * @return {@code true} if the instruction may transfer control somewhere
+   *         other than the next instruction.
+   */
+  public static boolean isBranch(Instruction instr) {
+    if(isNever(instr)) return false;
+    return isJump(instr) || isConditionalBranch(instr);
+  }
+  
+  /**
+   * @return {@code true} if the instruction always transfers control, and so
+   *         never falls through to the next instruction.  Calls don't count.
+   */
+  public static boolean isUnconditionalJump(Instruction instr) {
+    return isJump(instr) && !instr.isConditional() && !isCall(instr);
+  }
+  
+  /**
+   * @return {@code true} for a {@code jmpret} that leaves a return address,
+   *         such as {@code call}.
+   */
+  public static boolean isCall(Instruction instr) {
+    return isJump(instr) && writesResult(instr);
+  }
+  
+  /**
+   * Finds the label a branch jumps to.
+   * 
+   * @return the name of the label, or {@code null} if the instruction is not a
+   *         branch or jumps somewhere computed at runtime (like {@code ret}).
+   */
+  public static String branchTarget(Instruction instr) {
+    if(!isBranch(instr)) return null;
+    Operand source = instr.getSource();
+    if(!isImmediate(instr) || !(source instanceof LabelReference)) return null;
+    LabelReference ref = (LabelReference)source;
+    if(ref.getMemoryType() != LabelReference.MemoryType.LOCAL) return null;
+    return ref.getTargetName();
+  }
+  
+  /**
+   * @return the destination operand the instruction will be encoded with,
+   *         whether written in the source or supplied by the operation; may be
+   *         {@code null}.
+   */
+  public static Operand dest(Instruction instr) {
+    if(instr.getDest() != null) return instr.getDest();
+    return instr.getOperation().defaultDest(instr);
+  }
+  
+  /**
+   * @return the source operand the instruction will be encoded with, whether
+   *         written in the source or supplied by the operation; may be
+   *         {@code null}.
+   */
+  public static Operand source(Instruction instr) {
+    if(instr.getSource() != null) return instr.getSource();
+    return instr.getOperation().defaultSource(instr);
+  }
+  
+  /**
+   * @return {@code true} if the source operand is an immediate value rather
+   *         than a register.
+   */
+  public static boolean isImmediate(Instruction instr) {
+    return instr.isImmediateSource() || instr.getOperation().immediateByDefault();
+  }
+  
+  /**
+   * @return {@code true} if the instruction reads the C flag, either to decide
+   *         whether to run or as an input.
+   */
+  public static boolean readsC(Instruction instr) {
+    if(instr.getEffectivePredicate().dependsOnC()) return true;
+    Object op = instr.getOperation();
+    return op instanceof AddXOp || op instanceof SubXOp ||
+        op instanceof AddSXOp || op instanceof SubSXOp ||
+        op instanceof RclOp || op instanceof RcrOp ||
+        op instanceof MuxCOp || op instanceof MuxNCOp ||
+        op instanceof NegCOp || op instanceof NegNCOp ||
+        op instanceof SumCOp || op instanceof SumNCOp;
+  }
+  
+  /**
+   * @return {@code true} if the instruction reads the Z flag, either to decide
+   *         whether to run or as an input.
+   */
+  public static boolean readsZ(Instruction instr) {
+    if(instr.getEffectivePredicate().dependsOnZ()) return true;
+    Object op = instr.getOperation();
+    // The extended arithmetic ops fold the old Z into the new one.
+    return op instanceof AddXOp || op instanceof SubXOp ||
+        op instanceof AddSXOp || op instanceof SubSXOp ||
+        op instanceof MuxZOp || op instanceof MuxNZOp ||
+        op instanceof NegZOp || op instanceof NegNZOp ||
+        op instanceof SumZOp || op instanceof SumNZOp;
+  }
+  
+  /**
+   * @return {@code true} if the instruction writes its result to the
+   *         destination register, taking {@code wr}/{@code nr} into account.
+   */
+  public static boolean writesResult(Instruction instr) {
+    if(instr.getEffects().contains(Effect.WR)) return true;
+    if(instr.getEffects().contains(Effect.NR)) return false;
+    return instr.getOperation().generatesResultByDefault();
+  }
+  
+  /**
+   * @return {@code true} if the instruction writes the C flag.
+   */
+  public static boolean writesC(Instruction instr) {
+    return instr.getEffects().contains(Effect.WC);
+  }
+  
+  /**
+   * @return {@code true} if the instruction writes the Z flag.
+   */
+  public static boolean writesZ(Instruction instr) {
+    return instr.getEffects().contains(Effect.WZ);
+  }
+  
+  /**
+   * @return {@code true} if the instruction never executes.
+   */
+  public static boolean isNever(Instruction instr) {
+    return instr.getEffectivePredicate() == Predicate.IF_NEVER;
+  }
+  
+  /**
+   * Compares two instructions, for optimizations that merge copies of code.
+   * Labels are compared by name, so two instructions that refer to the same
+   * label are the same wherever they are.
+   * 
+   * @param ignorePredicate  if {@code true}, instructions that differ only in
+   *        their predicates count as the same.
+   * @return {@code true} if the two instructions do the same thing.
+   */
+  public static boolean same(Instruction a, Instruction b,
+                             boolean ignorePredicate) {
+    return a.getOperation().getClass() == b.getOperation().getClass() &&
+        (ignorePredicate ||
+         a.getEffectivePredicate().applyToWord(0) ==
+         b.getEffectivePredicate().applyToWord(0)) &&
+        isImmediate(a) == isImmediate(b) &&
+        a.getEffects().equals(b.getEffects()) &&
+        sameOperand(dest(a), dest(b)) && sameOperand(source(a), source(b));
+  }
+  
+  private static boolean sameOperand(Operand a, Operand b) {
+    if(a == null || b == null) return a == b;
+    if(a instanceof LabelReference || b instanceof LabelReference) {
+      if(!(a instanceof LabelReference && b instanceof LabelReference)) {
+        return false;
+      }
+      LabelReference x = (LabelReference)a, y = (LabelReference)b;
+      return x.getMemoryType() == y.getMemoryType() &&
+          x.getTargetName().equals(y.getTargetName());
+    }
+    return a.containsValue() && b.containsValue() &&
+        a.getValue() == b.getValue();
+  }
+}
@@ -0,0 +1,270 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import propasm.model.Element;
+import propasm.model.LayoutListener;
+
+/**
+ * Writes a listing: each source line alongside its cog address, image
+ * address, encoded data, and the P8X32 clock cost of any instruction on it.
+ * <pre>
+ *  LINE  COG  IMAGE  DATA      CLOCKS  SOURCE
+ *     4  000  0020   A0BFEC09  4       start   mov dira, pins
+ * </pre>
+ * Source text is read back from the files as the listing is written, so
+ * neither the source nor the listing is ever held in memory, beyond a short
+ * window of recent lines for code that optimizations have moved about.  Clock costs are
+ * as given in the datasheet; see {@link propasm.model.Timing}.  A conditional
+ * instruction is marked with {@code ?}, since it takes four clocks if skipped.
+ * 
+ * @author cbiffle
+ *
+ */
+public class ListingWriter implements LayoutListener {
+  /** Data bytes shown on each row before wrapping onto another. */
+  private static final int BYTES_PER_ROW = 4;
+  /** Number of recently listed source lines remembered for each file. */
+  private static final int RECENT_LINES = 256;
+  
+  private final PrintWriter out;
+  private final File baseDir;
+  /** Source files being listed, innermost inclusion on top. */
+  private final LinkedList<Source> sources = new LinkedList<Source>();
+  
+  /** The row being built up: all elements from one source line. */
+  private String rowName;
+  private int rowLine;
+  private int rowCog = -1, rowImage = -1;
+  private final StringBuilder rowData = new StringBuilder();
+  private int rowBytes = 0;
+  private String rowClocks = "";
+  /** Whether the current row's source text has been printed yet. */
+  private boolean rowStarted;
+  
+  /**
+   * Creates a listing writer.
+   * 
+   * @param out  destination for the listing.
+   * @param baseDir  directory that source names are relative to, or
+   *        {@code null} for the working directory.
+   * @param mainSource  name of the top-level source file.
+   */
+  public ListingWriter(PrintWriter out, File baseDir, String mainSource) {
+    this.out = out;
+    this.baseDir = baseDir;
+    sources.add(new Source(mainSource));
+    out.printf("%5s  %-3s  %-5s  %-8s  %-6s  %s\n",
+               "LINE", "COG", "IMAGE", "DATA", "CLOCKS", "SOURCE");
+  }
+  
+  public void elementPlaced(Element element, int runtimeAddress,
+                            int imageAddress, int size, byte[] image) {
+    String name = element.getSourceName();
+    int line = element.getSourceLine();
+    if(name == null) return;
+    if(!name.equals(rowName) || line != rowLine) {
+      finishRow();
+      enter(name);
+      rowName = name;
+      rowLine = line;
+    }
+    
+    if(size == 0) {
+      // Labels give the row an address, even if nothing else does.
+      if(element.is(Element.Kind.LABEL) && rowCog < 0) {
+        rowCog = runtimeAddress;
+        rowImage = imageAddress;
+      }
+      return;
+    }
+    
+    if(rowBytes + size > BYTES_PER_ROW) {
+      printRow();
+    }
+    if(rowBytes == 0) {
+      rowCog = runtimeAddress;
+      rowImage = imageAddress;
+    } else {
+      rowData.append(' ');
+    }
+    int value = 0;
+    for(int i = size - 1; i >= 0; i--) {
+      value = (value << 8) | (image[imageAddress + i] & 0xFF);
+    }
+    rowData.append(String.format("%0" + (size * 2) + "X", value));
+    rowBytes += size;
+    
+    if(element.is(Element.Kind.INSTRUCTION)) {
+      rowClocks = element.getInstruction().getTiming().toString();
+      if(element.getInstruction().isConditional()) rowClocks += "?";
+    }
+  }
+  
+  public void layoutFinished() {
+    finishRow();
+    while(!sources.isEmpty()) {
+      sources.removeLast().drain();
+    }
+    out.flush();
+  }
+  
+  /**
+   * Makes {@code name} the current source.  Returning to a file that
+   * included the current one finishes listing the included file first.
+   */
+  private void enter(String name) {
+    if(sources.getLast().name.equals(name)) return;
+    for(Source s : sources) {
+      if(s.name.equals(name)) {
+        while(!sources.getLast().name.equals(name)) {
+          sources.removeLast().drain();
+        }
+        return;
+      }
+    }
+    out.println("---- " + name);
+    sources.add(new Source(name));
+  }
+  
+  /**
+   * Prints whatever is left of the current row.
+   */
+  private void finishRow() {
+    if(rowName == null) return;
+    if(!rowStarted || rowBytes > 0) {
+      printRow();
+    }
+    rowName = null;
+    rowStarted = false;
+    rowCog = -1;
+  }
+  
+  /**
+   * Prints one row of the listing, with the source text if this is the first
+   * row for its line, and resets the row data.
+   */
+  private void printRow() {
+    String text = "";
+    String lineNumber = "";
+    if(!rowStarted) {
+      text = sources.getLast().lineText(rowLine);
+      lineNumber = Integer.toString(rowLine);
+      rowStarted = true;
+    }
+    out.printf("%5s  %-3s  %-5s  %-8s  %-6s  %s\n",
+               lineNumber,
+               (rowCog < 0) ? "" : String.format("%03X", rowCog),
+               (rowCog < 0) ? "" : String.format("%04X", rowImage),
+               rowData, rowClocks, text);
+    rowData.setLength(0);
+    rowBytes = 0;
+    rowClocks = "";
+    rowCog = -1;
+  }
+  
+  /**
+   * A source file, read a line at a time as the listing catches up with it.
+   */
+  private class Source {
+    private final String name;
+    private BufferedReader in;
+    /** Number of the next line {@link #in} will return. */
+    private int nextLine = 1;
+    /** Lines already listed, in case reordered code refers back to them. */
+    private final Map<Integer, String> recent =
+      new LinkedHashMap<Integer, String>() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+          return size() > RECENT_LINES;
+        }
+      };
+    
+    public Source(String name) {
+      this.name = name;
+    }
+    
+    /**
+     * Lists any lines before {@code line} that have not been listed yet, then
+     * returns the text of {@code line}.
+     */
+    public String lineText(int line) {
+      if(line < nextLine) {
+        String text = recent.get(line);
+        if(text != null) return text;
+        // Included again from somewhere else; start over.
+        close();
+        nextLine = 1;
+      }
+      String text;
+      while((text = readLine()) != null && nextLine <= line) {
+        out.printf("%5d  %-3s  %-5s  %-8s  %-6s  %s\n",
+                   nextLine - 1, "", "", "", "", text);
+      }
+      return (text == null) ? "" : text;
+    }
+    
+    /**
+     * Lists the rest of the file.
+     */
+    public void drain() {
+      String text;
+      while((text = readLine()) != null) {
+        out.printf("%5d  %-3s  %-5s  %-8s  %-6s  %s\n",
+                   nextLine - 1, "", "", "", "", text);
+      }
+      close();
+    }
+    
+    private String readLine() {
+      try {
+        if(in == null) {
+          File file = new File(name);
+          if(baseDir != null && !file.isAbsolute()) file = new File(baseDir, name);
+          in = new BufferedReader(
+              new InputStreamReader(new FileInputStream(file), "UTF8"));
+        }
+        String text = in.readLine();
+        if(text != null) recent.put(nextLine++, text);
+        return text;
+      } catch(IOException e) {
+        // The source was readable a moment ago; list it as empty if not.
+        return null;
+      }
+    }
+    
+    private void close() {
+      if(in == null) return;
+      try {
+        in.close();
+      } catch(IOException e) {
+        // ignore
+      }
+      in = null;
+    }
+  }
+}
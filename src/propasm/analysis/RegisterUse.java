@@ -0,0 +1,176 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.Operand;
+
+/**
+ * The registers and flags an instruction reads and writes, for working out
+ * which instructions may be reordered, removed, or share storage.
+ * 
+ * Registers named by label are identified by name, and registers given by
+ * number by address.  Since a labelled register may turn out to have any
+ * address, a numbered register below the special-purpose registers is
+ * assumed to alias every label.
+ * 
+ * The special-purpose registers ({@code $1F0} and up) and hub memory are
+ * lumped together as <em>external</em> state: the rest of the chip can see
+ * them, so any two instructions touching them are kept in order.
+ * 
+ * @author cbiffle
+ *
+ */
+public class RegisterUse {
+  /** First special-purpose register. */
+  public static final int FIRST_SPECIAL_REGISTER = 0x1F0;
+  
+  private final Set<String> reads = new HashSet<String>();
+  private final Set<String> writes = new HashSet<String>();
+  private final boolean readsC, readsZ, writesC, writesZ;
+  private boolean external;
+  
+  /**
+   * Works out the register use of an instruction.
+   * 
+   * @param instr  the instruction.
+   */
+  public RegisterUse(Instruction instr) {
+    Operand dest = Instructions.dest(instr);
+    Operand source = Instructions.source(instr);
+    if(dest != null) {
+      // Nearly every operation reads D, if only to merge bits into it.
+      add(reads, dest);
+      if(Instructions.writesResult(instr)) add(writes, dest);
+    }
+    if(source != null && !Instructions.isImmediate(instr)) {
+      add(reads, source);
+    }
+    if(instr.getTiming().isHubAccess()) external = true;
+    readsC = Instructions.readsC(instr);
+    readsZ = Instructions.readsZ(instr);
+    writesC = Instructions.writesC(instr);
+    writesZ = Instructions.writesZ(instr);
+  }
+  
+  /**
+   * Returns the key used to identify the register an operand names, or
+   * {@code null} for operands (like hub addresses) that don't name one.
+   */
+  public static String key(Operand operand) {
+    if(operand instanceof LabelReference) {
+      LabelReference ref = (LabelReference)operand;
+      if(ref.getMemoryType() != LabelReference.MemoryType.LOCAL) return null;
+      return ref.getTargetName();
+    } else if(operand != null && operand.containsValue()) {
+      return "@" + Integer.toHexString(operand.getValue());
+    }
+    return null;
+  }
+  
+  private void add(Set<String> set, Operand operand) {
+    String key = key(operand);
+    if(key == null) return;
+    set.add(key);
+    if(operand.containsValue() &&
+       operand.getValue() >= FIRST_SPECIAL_REGISTER) {
+      external = true;
+    }
+  }
+  
+  /**
+   * Checks whether two register keys may name the same register.
+   */
+  public static boolean mayAlias(String a, String b) {
+    if(a.equals(b)) return true;
+    return (isLowAddress(a) && !isAddress(b)) ||
+           (isLowAddress(b) && !isAddress(a));
+  }
+  
+  private static boolean isAddress(String key) {
+    return key.startsWith("@");
+  }
+  
+  private static boolean isLowAddress(String key) {
+    return isAddress(key) &&
+        Integer.parseInt(key.substring(1), 16) < FIRST_SPECIAL_REGISTER;
+  }
+  
+  /**
+   * @return the keys of registers read.
+   */
+  public Set<String> getReads() {
+    return reads;
+  }
+  
+  /**
+   * @return the keys of registers written.
+   */
+  public Set<String> getWrites() {
+    return writes;
+  }
+  
+  public boolean readsC() {
+    return readsC;
+  }
+  
+  public boolean readsZ() {
+    return readsZ;
+  }
+  
+  public boolean writesC() {
+    return writesC;
+  }
+  
+  public boolean writesZ() {
+    return writesZ;
+  }
+  
+  /**
+   * @return {@code true} if the instruction touches hub memory or a
+   *         special-purpose register.
+   */
+  public boolean isExternal() {
+    return external;
+  }
+  
+  /**
+   * Checks whether an instruction using {@code later} must stay after one
+   * using this: whether either writes something the other reads or writes.
+   */
+  public boolean conflictsWith(RegisterUse later) {
+    if(external && later.external) return true;
+    if((writesC && (later.readsC || later.writesC)) ||
+       (later.writesC && readsC)) return true;
+    if((writesZ && (later.readsZ || later.writesZ)) ||
+       (later.writesZ && readsZ)) return true;
+    return overlaps(writes, later.reads) || overlaps(writes, later.writes) ||
+           overlaps(reads, later.writes);
+  }
+  
+  private static boolean overlaps(Set<String> a, Set<String> b) {
+    for(String x : a) {
+      for(String y : b) {
+        if(mayAlias(x, y)) return true;
+      }
+    }
+    return false;
+  }
+}
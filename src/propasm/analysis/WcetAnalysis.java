@@ -0,0 +1,204 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import propasm.model.Element;
+import propasm.model.LogicException;
+import propasm.model.ProgramPass;
+
+/**
+ * Reports the best- and worst-case execution time of every subroutine and
+ * loop in a program, as worked out by {@link ExecutionTime}.
+ * 
+ * A subroutine is any label with a matching {@code _ret} label after it; a
+ * loop is any label that a later branch jumps back to, and is timed for one
+ * trip.  Code that can't be timed is listed with the reason, rather than
+ * failing the assembly.  The report can also be written as JSON, for other
+ * tools:
+ * <pre>
+ * {
+ *   "subroutines": [
+ *     {"name": "sub", "line": 6, "best": 12, "worst": 16},
+ *     {"name": "poll", "line": 9, "error": "Can't time waitcnt, ..."}
+ *   ],
+ *   "loops": [ ... ]
+ * }
+ * </pre>
+ * The program itself is not changed.
+ * 
+ * @author cbiffle
+ *
+ */
+public class WcetAnalysis implements ProgramPass {
+  private final PrintStream out;
+  private final Writer json;
+  private final Map<String, Integer> loopBounds;
+  
+  /** One timed subroutine or loop. */
+  private static class Result {
+    final String name;
+    final int line;
+    final ExecutionTime.Bounds bounds;
+    final String error;
+    
+    Result(String name, int line, ExecutionTime.Bounds bounds, String error) {
+      this.name = name;
+      this.line = line;
+      this.bounds = bounds;
+      this.error = error;
+    }
+  }
+  
+  /**
+   * @param out  destination for the report, or {@code null}.
+   * @param json  destination for the JSON form of the report, or
+   *        {@code null}.  Not closed.
+   * @param loopBounds  trip counts given for loops, by header label; see
+   *        {@link ExecutionTime#ExecutionTime(List, Map)}.
+   */
+  public WcetAnalysis(PrintStream out, Writer json,
+                      Map<String, Integer> loopBounds) {
+    this.out = out;
+    this.json = json;
+    this.loopBounds = loopBounds;
+  }
+  
+  public void apply(List<Element> program) throws LogicException {
+    ExecutionTime time = new ExecutionTime(program, loopBounds);
+    List<Result> subroutines = new ArrayList<Result>();
+    List<Result> loops = new ArrayList<Result>();
+    for(BasicBlock block : time.getGraph().getBlocks()) {
+      for(String label : block.getLabels()) {
+        if(isGenerated(label) || !time.isSubroutine(label)) continue;
+        ExecutionTime.Bounds bounds = null;
+        String error = null;
+        try {
+          bounds = time.subroutine(label);
+        } catch(LogicException e) {
+          error = e.getMessage();
+        }
+        subroutines.add(new Result(label, block.getSourceLine(), bounds,
+                                   error));
+      }
+      String name = name(block);
+      if(name != null && time.isLoop(name)) {
+        ExecutionTime.Bounds bounds = null;
+        String error = null;
+        try {
+          bounds = time.loopBody(name);
+        } catch(LogicException e) {
+          error = e.getMessage();
+        }
+        loops.add(new Result(name, block.getSourceLine(), bounds, error));
+      }
+    }
+    
+    if(out != null) {
+      int unbounded = report("subroutine", "", subroutines) +
+          report("loop", " per trip", loops);
+      out.printf("WCET: %d subroutines and %d loops, %d without a bound\n",
+                 subroutines.size(), loops.size(), unbounded);
+    }
+    if(json != null) {
+      PrintWriter writer = new PrintWriter(json);
+      writer.println("{");
+      writeJson(writer, "subroutines", subroutines);
+      writer.println(",");
+      writeJson(writer, "loops", loops);
+      writer.println();
+      writer.println("}");
+      writer.flush();
+    }
+  }
+  
+  /**
+   * Prints the results of one kind.
+   * 
+   * @return the number that couldn't be timed.
+   */
+  private int report(String kind, String suffix, List<Result> results) {
+    int unbounded = 0;
+    for(Result result : results) {
+      if(result.bounds == null) {
+        out.printf("Line %d: %s %s has no bound: %s\n", result.line, kind,
+                   result.name, result.error);
+        unbounded++;
+      } else {
+        out.printf("Line %d: %s %s takes %s clocks%s\n", result.line, kind,
+                   result.name, result.bounds, suffix);
+      }
+    }
+    return unbounded;
+  }
+  
+  private static void writeJson(PrintWriter writer, String key,
+                                List<Result> results) {
+    writer.print("  " + quote(key) + ": [");
+    for(int i = 0; i < results.size(); i++) {
+      Result result = results.get(i);
+      writer.print((i == 0) ? "\n" : ",\n");
+      writer.print("    {\"name\": " + quote(result.name) +
+                   ", \"line\": " + result.line);
+      if(result.bounds == null) {
+        writer.print(", \"error\": " + quote(result.error) + "}");
+      } else {
+        writer.print(", \"best\": " + result.bounds.getBest() +
+                     ", \"worst\": " + result.bounds.getWorst() + "}");
+      }
+    }
+    writer.print(results.isEmpty() ? "]" : "\n  ]");
+  }
+  
+  /**
+   * @return {@code text} as a JSON string literal.
+   */
+  static String quote(String text) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for(int i = 0; i < text.length(); i++) {
+      char ch = text.charAt(i);
+      if(ch == '"' || ch == '\\') {
+        quoted.append('\\').append(ch);
+      } else if(ch < 0x20) {
+        quoted.append(String.format("\\u%04x", (int)ch));
+      } else {
+        quoted.append(ch);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+  
+  /**
+   * @return the first label on a block that came from the source, or
+   *         {@code null} if there is none.
+   */
+  private static String name(BasicBlock block) {
+    for(String label : block.getLabels()) {
+      if(!isGenerated(label)) return label;
+    }
+    return null;
+  }
+  
+  private static boolean isGenerated(String label) {
+    return label.startsWith("##");
+  }
+}
@@ -0,0 +1,293 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.ant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.taskdefs.MatchingTask;
+
+import propasm.AssemblerConfig;
+import propasm.parallax.ParallaxFrontend;
+import propasm.parallax.ParallaxLexer;
+import propasm.parallax.ParseException;
+import propasm.parallax.Token;
+
+/**
+ * Ant task that assembles Parallax-format sources inside the Ant JVM.  Usage:
+ * <pre>
+ *   &lt;taskdef name="propasm" classname="propasm.ant.PropasmTask"
+ *            classpath="propasm.jar"/&gt;
+ *   &lt;propasm srcdir="firmware" destdir="build/images" raw="true"/&gt;
+ * </pre>
+ * 
+ * Each source {@code foo.pa} produces {@code foo.pa.binary} in the destination
+ * directory (which defaults to the source directory), mirroring the command
+ * line frontend.  Sources default to {@code **}{@code /*.pa}, and may be
+ * narrowed with the usual includes/excludes.
+ * 
+ * A source is only assembled if its output is missing or older than the
+ * source, or than any file it pulls in through {@code .include} or
+ * {@code .blob}.  As on the command line, those paths are relative to the
+ * source directory.  Out-of-date sources are assembled in parallel.
+ * 
+ * @author cbiffle
+ *
+ */
+public class PropasmTask extends MatchingTask {
+  private File srcDir;
+  private File destDir;
+  private boolean raw = false;
+  private boolean deferred = false;
+  private boolean recover = false;
+  private boolean listing = false;
+  private boolean failOnError = true;
+  private int threads = Runtime.getRuntime().availableProcessors();
+
+  public void setSrcdir(File srcDir) {
+    this.srcDir = srcDir;
+  }
+
+  public void setDestdir(File destDir) {
+    this.destDir = destDir;
+  }
+
+  /** Generate raw machine code without a bootloader, like {@code -raw}. */
+  public void setRaw(boolean raw) {
+    this.raw = raw;
+  }
+
+  public void setDeferred(boolean deferred) {
+    this.deferred = deferred;
+  }
+
+  /** Report every error in a source, like {@code -recover}. */
+  public void setRecover(boolean recover) {
+    this.recover = recover;
+  }
+
+  /** Write a listing next to each image, like {@code -list}. */
+  public void setListing(boolean listing) {
+    this.listing = listing;
+  }
+
+  public void setFailonerror(boolean failOnError) {
+    this.failOnError = failOnError;
+  }
+
+  public void setThreads(int threads) {
+    if(threads < 1) {
+      throw new BuildException("threads must be at least 1", getLocation());
+    }
+    this.threads = threads;
+  }
+
+  @Override
+  public void execute() throws BuildException {
+    if(srcDir == null) {
+      throw new BuildException("srcdir attribute must be set", getLocation());
+    }
+    if(!srcDir.isDirectory()) {
+      throw new BuildException("srcdir " + srcDir + " is not a directory",
+                               getLocation());
+    }
+    File dest = (destDir == null) ? srcDir : destDir;
+    if(!getImplicitFileSet().hasPatterns()) {
+      setIncludes("**/*.pa");
+    }
+
+    DirectoryScanner scanner = getDirectoryScanner(srcDir);
+    List<String> stale = new ArrayList<String>();
+    for(String name : scanner.getIncludedFiles()) {
+      File output = new File(dest, name + ".binary");
+      if(isUpToDate(new File(srcDir, name), output)) {
+        log(name + " is up to date", Project.MSG_VERBOSE);
+      } else {
+        stale.add(name);
+      }
+    }
+    if(stale.isEmpty()) return;
+
+    log("Assembling " + stale.size() + " source file(s) to " + dest);
+    int failures = assembleAll(stale, dest);
+    if(failures > 0) {
+      String msg = failures + " source file(s) failed to assemble";
+      if(failOnError) throw new BuildException(msg, getLocation());
+      log(msg, Project.MSG_ERR);
+    }
+  }
+
+  /**
+   * Assembles the given sources, several at a time.  Each source's output is
+   * collected separately and logged once it finishes, in the order given.
+   * 
+   * @return the number of sources that failed.
+   */
+  private int assembleAll(List<String> names, File dest) throws BuildException {
+    // With several files in flight, each gets one thread; a lone file may use
+    // them all for its own parallel stages.
+    final int threadsPerFile = (names.size() > 1) ? 1 : threads;
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(threads, names.size()));
+    try {
+      List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+      List<ByteArrayOutputStream> outs = new ArrayList<ByteArrayOutputStream>();
+      List<ByteArrayOutputStream> errs = new ArrayList<ByteArrayOutputStream>();
+      for(final String name : names) {
+        final File output = new File(dest, name + ".binary");
+        // A failed assembly writes nothing, so an old image must not survive
+        // to look up to date next time.
+        output.delete();
+        output.getParentFile().mkdirs();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream err = new ByteArrayOutputStream();
+        outs.add(out);
+        errs.add(err);
+        results.add(executor.submit(new Callable<Boolean>() {
+          public Boolean call() throws IOException {
+            AssemblerConfig config = new AssemblerConfig();
+            config.setGenerateBootloader(!raw);
+            config.setDeferredEncoding(deferred);
+            config.setRecoverErrors(recover);
+            config.setGenerateListing(listing);
+            config.setThreads(threadsPerFile);
+            ParallaxFrontend frontend = new ParallaxFrontend(config, srcDir);
+            PrintStream outStream = new PrintStream(out);
+            PrintStream errStream = new PrintStream(err);
+            frontend.setOutput(outStream, errStream);
+            try {
+              return frontend.assembleFile(name, output.getPath());
+            } finally {
+              outStream.flush();
+              errStream.flush();
+            }
+          }
+        }));
+      }
+
+      int failures = 0;
+      for(int i = 0; i < results.size(); i++) {
+        try {
+          if(!results.get(i).get()) failures++;
+        } finally {
+          logLines(outs.get(i), Project.MSG_INFO);
+          logLines(errs.get(i), Project.MSG_ERR);
+        }
+      }
+      return failures;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BuildException("Interrupted while assembling", getLocation());
+    } catch(ExecutionException e) {
+      throw new BuildException(e.getCause(), getLocation());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Logs buffered frontend output, a line at a time.
+   */
+  private void logLines(ByteArrayOutputStream buffer, int level) {
+    String text = buffer.toString();
+    if(text.length() == 0) return;
+    for(String line : text.split("\r?\n")) {
+      log(line, level);
+    }
+  }
+
+  /**
+   * Checks whether {@code output} is newer than {@code source} and everything
+   * it depends on.
+   */
+  boolean isUpToDate(File source, File output) {
+    if(!output.exists()) return false;
+    return output.lastModified() >= newestInput(source, new HashSet<File>());
+  }
+
+  /**
+   * Finds the latest modification time of a source and its dependencies.
+   * Anything that can't be checked (a missing include, say) counts as infinitely
+   * new, so the assembler gets a chance to report the problem.
+   * 
+   * @param source  file to check.
+   * @param visited  sources already checked, to stop include cycles.
+   */
+  private long newestInput(File source, Set<File> visited) {
+    if(!visited.add(source)) return 0;
+    if(!source.isFile()) return Long.MAX_VALUE;
+
+    long newest = source.lastModified();
+    List<Token> tokens = new ArrayList<Token>();
+    try {
+      Reader in = new InputStreamReader(new FileInputStream(source), "UTF8");
+      try {
+        for(Token t : new ParallaxLexer(in).lex()) {
+          if(!t.is(Token.Type.SPACE)) tokens.add(t);
+        }
+      } finally {
+        in.close();
+      }
+    } catch(IOException e) {
+      return Long.MAX_VALUE;
+    } catch(ParseException e) {
+      return Long.MAX_VALUE;
+    }
+
+    // Dependencies look like: DOT IDENT(include|blob) STRING
+    Iterator<Token> it = tokens.iterator();
+    Token previous = null, directive = null;
+    while(it.hasNext()) {
+      Token t = it.next();
+      if(directive != null && t.is(Token.Type.STRING)) {
+        File dependency = new File(t.getText());
+        if(!dependency.isAbsolute()) {
+          dependency = new File(srcDir, t.getText());
+        }
+        long time = directive.getText().equals("include")
+            ? newestInput(dependency, visited)
+            : (dependency.isFile() ? dependency.lastModified() : Long.MAX_VALUE);
+        newest = Math.max(newest, time);
+      }
+      directive = null;
+      if(previous != null && previous.is(Token.Type.DOT) &&
+         t.is(Token.Type.IDENT) &&
+         (t.getText().equals("include") || t.getText().equals("blob"))) {
+        directive = t;
+      }
+      previous = t;
+    }
+    return newest;
+  }
+}
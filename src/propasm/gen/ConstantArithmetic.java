@@ -0,0 +1,374 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import propasm.model.Effect;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.NumericOperand;
+import propasm.model.Operand;
+import propasm.model.Operation;
+import propasm.model.Predicate;
+import propasm.model.ProgramBuilder;
+import propasm.p32.AddOp;
+import propasm.p32.CmpSubOp;
+import propasm.p32.MovOp;
+import propasm.p32.NegOp;
+import propasm.p32.RclOp;
+import propasm.p32.ShlOp;
+import propasm.p32.ShrOp;
+import propasm.p32.SubOp;
+import propasm.parallax.pseudo.CmpOp;
+import propasm.parallax.pseudo.JmpOp;
+
+/**
+ * Generates code to multiply or divide a register by a constant, since the
+ * P8X32 has no instructions for either.
+ * 
+ * Multiplication uses the canonical signed-digit form of the constant, which
+ * has the fewest nonzero digits of any signed binary form: one shift and one
+ * add or subtract per digit, applied Horner-style to a copy of the
+ * multiplicand.  Division (unsigned) multiplies by the reciprocal, built
+ * from shifted copies of the dividend, then fixes up the estimate, which may
+ * be a little low, by checking the remainder.
+ * 
+ * The generator can aim for the fewest clocks or the fewest longs.  All of
+ * the straight-line code it writes runs in four clocks per long, so the two
+ * differ only where a loop is smaller: when aiming for longs, a shift-and-add
+ * multiply loop or a shift-and-subtract divide loop is used if it's shorter,
+ * though it takes several hundred clocks.
+ * 
+ * Code is written to the {@link ProgramBuilder}; the scratch registers it
+ * needs are given by the caller, and are overwritten.
+ * 
+ * @author cbiffle
+ *
+ */
+public class ConstantArithmetic {
+  /** What the generated code should be smallest in. */
+  public enum Goal { CYCLES, LONGS }
+  
+  /** Longs in the multiply loop, including its setup. */
+  private static final int MULTIPLY_LOOP = 7;
+  /** Longs in the divide loop, including its setup. */
+  private static final int DIVIDE_LOOP = 8;
+  
+  private final ProgramBuilder builder;
+  private Goal goal = Goal.CYCLES;
+  
+  /**
+   * @param builder  destination for generated code.
+   */
+  public ConstantArithmetic(ProgramBuilder builder) {
+    this.builder = builder;
+  }
+  
+  public Goal getGoal() {
+    return goal;
+  }
+  
+  public void setGoal(Goal goal) {
+    this.goal = goal;
+  }
+  
+  /**
+   * Writes code to multiply {@code dest} by a constant, keeping the low 32
+   * bits of the product.  The result is correct whether {@code dest} is taken
+   * as signed or unsigned.
+   * 
+   * @param dest  register to multiply.
+   * @param constant  multiplier.
+   * @param scratch  registers the code may overwrite.  None are needed for
+   *        zero or (plus or minus) a power of two; one for other constants;
+   *        two more allow the smaller loop when aiming for longs.
+   * @return the number of longs written, not counting any literal pool.
+   * @throws IllegalArgumentException  if there aren't enough scratch
+   *         registers.
+   */
+  public int multiply(Operand dest, int constant, Operand... scratch) {
+    List<int[]> digits = canonicalDigits(constant & 0xFFFFFFFFL);
+    if(digits.isEmpty()) {
+      return emit(new MovOp(), dest, new NumericOperand(0), true);
+    }
+    if(digits.size() == 1) {
+      int[] digit = digits.get(0);
+      int longs = 0;
+      if(digit[1] < 0) longs += emit(new NegOp(), dest, dest, false);
+      if(digit[0] > 0) longs += shift(new ShlOp(), dest, digit[0]);
+      return longs;
+    }
+    int horner = 1 + hornerLength(digits);
+    if(goal == Goal.LONGS && scratch.length >= 2 &&
+       MULTIPLY_LOOP < horner) {
+      return multiplyLoop(dest, constant, scratch[0], scratch[1]);
+    }
+    need(scratch, 1, "multiply by " + constant);
+    emit(new MovOp(), scratch[0], dest, false);
+    return 1 + horner(dest, scratch[0], digits);
+  }
+  
+  /**
+   * Writes code to divide {@code dest}, as an unsigned number, by a constant,
+   * leaving the quotient.
+   * 
+   * @param dest  register to divide.
+   * @param divisor  divisor, treated as unsigned; must not be zero.
+   * @param scratch  registers the code may overwrite.  None are needed for
+   *        powers of two or divisors of 2^31 and up; two for others.
+   * @return the number of longs written, not counting any literal pool.
+   * @throws IllegalArgumentException  if the divisor is zero or there aren't
+   *         enough scratch registers.
+   */
+  public int divide(Operand dest, int divisor, Operand... scratch) {
+    if(divisor == 0) {
+      throw new IllegalArgumentException("Division by zero");
+    }
+    if(Integer.bitCount(divisor) == 1) {
+      return shift(new ShrOp(), dest, Integer.numberOfTrailingZeros(divisor));
+    }
+    if(divisor < 0) {
+      // The quotient can only be 0 or 1.
+      Operand d = constant(divisor);
+      emit(new CmpOp(), dest, d, d instanceof NumericOperand, Effect.WC);
+      emit(new MovOp(), dest, new NumericOperand(0), true);
+      emit(Predicate.IF_NC, new MovOp(), dest, new NumericOperand(1), true);
+      return 3;
+    }
+    need(scratch, 2, "divide by " + divisor);
+    Operand x = scratch[0], t = scratch[1];
+    if(goal == Goal.LONGS && DIVIDE_LOOP < reciprocalLength(divisor)) {
+      return divideLoop(dest, divisor, x, t);
+    }
+    return reciprocal(dest, divisor, x, t);
+  }
+  
+  /**
+   * Works out the canonical signed-digit form of a number.
+   * 
+   * @return the nonzero digits below bit 32, each as {position, sign}, most
+   *         significant first.
+   */
+  static List<int[]> canonicalDigits(long value) {
+    List<int[]> digits = new ArrayList<int[]>();
+    for(int position = 0; value != 0; position++, value >>= 1) {
+      if((value & 1) == 0) continue;
+      // A run of ones ends in -1, and carries into the next position.
+      int sign = ((value & 3) == 3) ? -1 : 1;
+      value -= sign;
+      if(position < 32) digits.add(0, new int[] { position, sign });
+    }
+    return digits;
+  }
+  
+  private static int hornerLength(List<int[]> digits) {
+    int longs = (digits.get(0)[1] < 0) ? 1 : 0;
+    longs += 2 * (digits.size() - 1);
+    if(digits.get(digits.size() - 1)[0] > 0) longs++;
+    return longs;
+  }
+  
+  /**
+   * Multiplies {@code acc} by the digits, given a copy of its original value
+   * in {@code original}.
+   */
+  private int horner(Operand acc, Operand original, List<int[]> digits) {
+    int longs = 0;
+    if(digits.get(0)[1] < 0) longs += emit(new NegOp(), acc, acc, false);
+    int previous = digits.get(0)[0];
+    for(int i = 1; i < digits.size(); i++) {
+      int[] digit = digits.get(i);
+      longs += shift(new ShlOp(), acc, previous - digit[0]);
+      longs += emit((digit[1] < 0) ? new SubOp() : new AddOp(), acc, original,
+                    false);
+      previous = digit[0];
+    }
+    return longs + shift(new ShlOp(), acc, previous);
+  }
+  
+  /**
+   * Multiplies by shifting the multiplier out a bit at a time, and adding the
+   * multiplicand for each one, until no ones are left.
+   */
+  private int multiplyLoop(Operand dest, int constant, Operand multiplicand,
+                           Operand multiplier) {
+    emit(new MovOp(), multiplicand, dest, false);
+    Operand c = constant(constant);
+    emit(new MovOp(), multiplier, c, c instanceof NumericOperand);
+    emit(new MovOp(), dest, new NumericOperand(0), true);
+    LabelReference loop = label("mulc");
+    emit(new ShrOp(), multiplier, new NumericOperand(1), true,
+         Effect.WC, Effect.WZ);
+    emit(Predicate.IF_C, new AddOp(), dest, multiplicand, false);
+    emit(new ShlOp(), multiplicand, new NumericOperand(1), true);
+    emit(Predicate.IF_NZ, new JmpOp(), null, loop, true);
+    return MULTIPLY_LOOP;
+  }
+  
+  /**
+   * Divides one bit at a time, shifting the dividend into a remainder and
+   * subtracting the divisor wherever it fits.  The quotient starts as a
+   * single one bit, which is shifted out to end the loop after 32 bits.
+   */
+  private int divideLoop(Operand dest, int divisor, Operand x,
+                         Operand remainder) {
+    emit(new MovOp(), x, dest, false);
+    emit(new MovOp(), dest, new NumericOperand(1), true);
+    emit(new MovOp(), remainder, new NumericOperand(0), true);
+    LabelReference loop = label("divc");
+    emit(new ShlOp(), x, new NumericOperand(1), true, Effect.WC);
+    emit(new RclOp(), remainder, new NumericOperand(1), true);
+    Operand d = constant(divisor);
+    emit(new CmpSubOp(), remainder, d, d instanceof NumericOperand, Effect.WC);
+    emit(new RclOp(), dest, new NumericOperand(1), true, Effect.WC);
+    emit(Predicate.IF_NC, new JmpOp(), null, loop, true);
+    return DIVIDE_LOOP;
+  }
+  
+  /**
+   * Finds the period of the binary fraction for 1/{@code odd}, or zero if it's
+   * too long to be worth repeating.
+   */
+  private static int period(int odd) {
+    long power = 2 % odd;
+    for(int period = 1; period <= 32; period++) {
+      if(power == 1) return period;
+      power = power * 2 % odd;
+    }
+    return 0;
+  }
+  
+  /**
+   * Works out the shifts of the dividend that add up to the first part of
+   * the reciprocal of {@code odd}: one period of it, if it repeats soon
+   * enough, or else all of its bits that matter.
+   */
+  private static List<Integer> reciprocalShifts(int odd) {
+    int period = period(odd);
+    long bits;
+    int width;
+    if(period > 0) {
+      // 1/odd = bits * (2^-period + 2^-2*period + ...).
+      width = period;
+      bits = ((1L << period) - 1) / odd;
+    } else {
+      width = 32;
+      bits = (1L << 32) / odd;
+    }
+    List<Integer> shifts = new ArrayList<Integer>();
+    for(int i = width - 1; i >= 0; i--) {
+      if((bits & (1L << i)) != 0 && width - i < 32) shifts.add(width - i);
+    }
+    return shifts;
+  }
+  
+  private int reciprocalLength(int divisor) {
+    int shift = Integer.numberOfTrailingZeros(divisor);
+    int odd = divisor >>> shift;
+    int period = period(odd);
+    int longs = 1 + 3 * reciprocalShifts(odd).size() - 2;
+    for(int span = period; period > 0 && span < 32; span *= 2) longs += 3;
+    if(shift > 0) longs++;
+    longs += 2 + hornerLength(canonicalDigits(divisor));
+    return longs + 4;
+  }
+  
+  /**
+   * Divides by multiplying by the reciprocal.  The estimate is the sum of
+   * right-shifted copies of the dividend, which can only err low, since every
+   * shift drops bits; the remainder then shows how many to add.
+   */
+  private int reciprocal(Operand dest, int divisor, Operand x, Operand t) {
+    int shift = Integer.numberOfTrailingZeros(divisor);
+    int odd = divisor >>> shift;
+    List<Integer> shifts = reciprocalShifts(odd);
+    int longs = emit(new MovOp(), x, dest, false);
+    longs += shift(new ShrOp(), dest, shifts.get(0));
+    for(int i = 1; i < shifts.size(); i++) {
+      longs += emit(new MovOp(), t, x, false);
+      longs += shift(new ShrOp(), t, shifts.get(i));
+      longs += emit(new AddOp(), dest, t, false);
+    }
+    int period = period(odd);
+    for(int span = period; period > 0 && span < 32; span *= 2) {
+      longs += emit(new MovOp(), t, dest, false);
+      longs += shift(new ShrOp(), t, span);
+      longs += emit(new AddOp(), dest, t, false);
+    }
+    longs += shift(new ShrOp(), dest, shift);
+    
+    // x - quotient * divisor is the remainder, which is fixed up.
+    longs += emit(new MovOp(), t, dest, false);
+    longs += horner(t, dest, canonicalDigits(divisor));
+    longs += emit(new SubOp(), x, t, false);
+    LabelReference fix = label("divc");
+    Operand d = constant(divisor);
+    boolean immediate = d instanceof NumericOperand;
+    longs += emit(new CmpOp(), x, d, immediate, Effect.WC);
+    longs += emit(Predicate.IF_NC, new SubOp(), x, d, immediate);
+    longs += emit(Predicate.IF_NC, new AddOp(), dest, new NumericOperand(1),
+                  true);
+    longs += emit(Predicate.IF_NC, new JmpOp(), null, fix, true);
+    return longs;
+  }
+  
+  private static void need(Operand[] scratch, int count, String what) {
+    if(scratch.length < count) {
+      throw new IllegalArgumentException("Need " + count + " scratch " +
+          "register" + (count == 1 ? "" : "s") + " to " + what);
+    }
+  }
+  
+  /**
+   * @return an operand for a constant: an immediate if it fits, or else a
+   *         register in the literal pool.
+   */
+  private Operand constant(int value) {
+    if(value >= 0 && value < 512) return new NumericOperand(value);
+    return builder.addPoolConstant(value);
+  }
+  
+  private LabelReference label(String hint) {
+    String label = builder.uniqueLabel(hint);
+    builder.defineLabel(label);
+    return new LabelReference(label);
+  }
+  
+  private int shift(Operation op, Operand dest, int bits) {
+    if(bits == 0) return 0;
+    return emit(op, dest, new NumericOperand(bits), true);
+  }
+  
+  private int emit(Operation op, Operand dest, Operand source,
+                   boolean immediate, Effect... effects) {
+    return emit(null, op, dest, source, immediate, effects);
+  }
+  
+  private int emit(Predicate predicate, Operation op, Operand dest,
+                   Operand source, boolean immediate, Effect... effects) {
+    Instruction instr = new Instruction(builder);
+    instr.setOperation(op);
+    instr.setPredicate(predicate);
+    if(dest != null) instr.setDest(dest);
+    instr.setSource(source);
+    instr.setImmediateSource(immediate);
+    for(Effect effect : effects) instr.addEffect(effect);
+    builder.addInstruction(instr);
+    return 1;
+  }
+}
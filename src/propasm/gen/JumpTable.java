@@ -0,0 +1,137 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import java.util.SortedMap;
+
+import propasm.model.Effect;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.NumericOperand;
+import propasm.model.Operand;
+import propasm.model.Operation;
+import propasm.model.Predicate;
+import propasm.model.ProgramBuilder;
+import propasm.p32.AddOp;
+import propasm.p32.MovSOp;
+import propasm.p32.SubOp;
+import propasm.parallax.pseudo.CmpOp;
+import propasm.parallax.pseudo.JmpOp;
+
+/**
+ * Generates a constant-time multiway branch on the value of a register,
+ * through a jump table in cog memory.
+ * 
+ * The generated code checks the index against the size of the table, adds it
+ * to the table's address, and uses {@code movs} to patch that address into
+ * the source field of an indirect {@code jmp}.  The cog has already fetched
+ * the instruction after a {@code movs} by the time the {@code movs} writes,
+ * so one instruction must separate it from the {@code jmp}; the generator
+ * uses that slot to subtract the table address back off, so the cases find
+ * the index unchanged.  The whole dispatch takes six instructions (24 clocks)
+ * whichever case is chosen:<pre>
+ *         cmp   index, #count wc
+ *         add   index, #table
+ *         movs  slot, index
+ *         sub   index, #table
+ * slot    if_c jmp 0-0
+ *         jmp   #otherwise
+ * table   long  case0, case1, ...</pre>
+ * 
+ * Table entries not given a case, and indices past the end of the table, go
+ * to the {@code otherwise} label, or if there is none, to the code following
+ * the table.
+ * 
+ * @author cbiffle
+ *
+ */
+public class JumpTable {
+  /** Longs of code before the table. */
+  public static final int DISPATCH_LONGS = 6;
+  
+  private final ProgramBuilder builder;
+  
+  /**
+   * @param builder  destination for generated code.
+   */
+  public JumpTable(ProgramBuilder builder) {
+    this.builder = builder;
+  }
+  
+  /**
+   * Writes a dispatch on {@code index}, followed by its table.
+   * 
+   * @param index  register holding the case number, treated as unsigned.
+   * @param table  label to give the table.
+   * @param cases  targets of the cases, by case number.
+   * @param otherwise  target for numbers without a case, or {@code null} to
+   *        continue after the table.
+   * @return the number of longs written, including the table.
+   * @throws IllegalArgumentException  if there are no cases, or a case number
+   *         is negative or too large for a table in cog memory.
+   */
+  public int dispatch(Operand index, String table,
+                      SortedMap<Integer, LabelReference> cases,
+                      LabelReference otherwise) {
+    if(cases.isEmpty()) {
+      throw new IllegalArgumentException("Jump table " + table +
+                                         " has no cases");
+    }
+    if(cases.firstKey() < 0) {
+      throw new IllegalArgumentException("Case numbers can't be negative");
+    }
+    int count = cases.lastKey() + 1;
+    if(count + DISPATCH_LONGS > 496) {
+      throw new IllegalArgumentException("Jump table " + table + " needs " +
+          count + " longs, more than fit in a cog");
+    }
+    String slot = builder.uniqueLabel("switch");
+    if(otherwise == null) {
+      otherwise = new LabelReference(slot + ":end");
+    }
+    LabelReference base = new LabelReference(table);
+    
+    emit(null, new CmpOp(), index, new NumericOperand(count), true,
+         Effect.WC);
+    emit(null, new AddOp(), index, base, true);
+    emit(null, new MovSOp(), new LabelReference(slot), index, false);
+    emit(null, new SubOp(), index, base, true);
+    builder.defineLabel(slot);
+    emit(Predicate.IF_C, new JmpOp(), null, new NumericOperand(0), false);
+    emit(null, new JmpOp(), null, otherwise, true);
+    
+    builder.ensureLongAlignment();
+    builder.defineLabel(table);
+    for(int i = 0; i < count; i++) {
+      LabelReference target = cases.get(i);
+      builder.addLongReference((target == null) ? otherwise : target);
+    }
+    builder.defineLabel(slot + ":end");
+    return DISPATCH_LONGS + count;
+  }
+  
+  private void emit(Predicate predicate, Operation op, Operand dest,
+                    Operand source, boolean immediate, Effect... effects) {
+    Instruction instr = new Instruction(builder);
+    instr.setOperation(op);
+    instr.setPredicate(predicate);
+    if(dest != null) instr.setDest(dest);
+    instr.setSource(source);
+    instr.setImmediateSource(immediate);
+    for(Effect effect : effects) instr.addEffect(effect);
+    builder.addInstruction(instr);
+  }
+}
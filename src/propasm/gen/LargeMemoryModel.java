@@ -0,0 +1,547 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import propasm.analysis.Instructions;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.LogicException;
+import propasm.model.NumericOperand;
+import propasm.model.Operand;
+import propasm.model.Operation;
+import propasm.model.ProgramBuilder;
+import propasm.model.ProgramPass;
+import propasm.p32.AddOp;
+import propasm.p32.DjnzOp;
+import propasm.p32.MovDOp;
+import propasm.p32.MovOp;
+import propasm.p32.RdLongOp;
+import propasm.p32.SubOp;
+import propasm.parallax.pseudo.CallOp;
+import propasm.parallax.pseudo.JmpOp;
+import propasm.parallax.pseudo.NopOp;
+import propasm.parallax.pseudo.RetOp;
+
+/**
+ * Runs code from hub memory, for programs too big for a cog, using the
+ * <em>Large Memory Model</em>: a kernel in the cog fetches each instruction
+ * from the hub into a slot in its own loop, and executes it there.
+ *
+ * Sections of LMM code are written as ordinary instructions, assembled and
+ * optimized as if they were cog code, and then translated by this class (as
+ * a pass) into what the kernel understands.  Most instructions are left
+ * alone; they address cog registers just as they would in the cog.  Branches
+ * can't, so each becomes a jump to one of the kernel's primitives, followed by
+ * the hub address of its target:<pre>
+ *         jmp   #label       -&gt;  jmp   #kernel_jump
+ *                                long  @label
+ *   if_z  jmp   #label       -&gt;  if_z jmp #kernel_jump
+ *                                long  @label
+ *         djnz  n, #label    -&gt;  djnz  n, #kernel_jump
+ *                                long  @label
+ *         call  #label       -&gt;  jmp   #kernel_call
+ *                                long  @label
+ *         ret                -&gt;  jmp   #kernel_ret
+ *         jmp   register     -&gt;  mov   kernel_pc, register</pre>
+ * When a branch isn't taken, the kernel goes on to run the address as an
+ * instruction.  Hub addresses are below $8000, so the condition field of the
+ * address is zero -- {@code if_never} -- and it does nothing.  Calls push
+ * their return address on a small stack in the cog, so LMM subroutines may
+ * call each other.  LMM code may only branch to labels in LMM code, and
+ * can't use the literal pool ({@code ##}), which would land in the hub.  Data
+ * in a section is run like any other long, so it belongs where control never
+ * falls into it.
+ *
+ * The kernel's fetch loop is unrolled {@value #UNROLL} times.  Each step --
+ * {@code rdlong}, {@code add}, and the fetched instruction -- takes 16
+ * clocks, exactly the spacing of a cog's hub windows, so only the jump back
+ * to the top of the loop misses one: an instruction that doesn't touch the
+ * hub takes 20 clocks on average, five times its speed in the cog.
+ *
+ * For loops that can't afford that, an <em>FCACHE</em> block is assembled
+ * for an area at the top of the kernel's cog, and stored in the LMM code
+ * behind a jump to the kernel's loader.  The loader copies the block into the
+ * cog and runs it at full speed; falling off the end returns to LMM code
+ * after the block.  The block may only branch within itself (or to ordinary
+ * cog code), since its labels have cog addresses.
+ *
+ * Only one kernel can be generated per program.  A cog starts running at the
+ * first long of its image, so the kernel normally goes there; the rest of the
+ * image, usually registers for the LMM code, follows it and must stay below
+ * the FCACHE area.
+ *
+ * @author cbiffle
+ *
+ */
+public class LargeMemoryModel implements ProgramPass {
+  /** Copies of the fetch-execute step in the kernel's loop. */
+  public static final int UNROLL = 4;
+  /** Longs of kernel code and registers, not counting the stack. */
+  public static final int KERNEL_LONGS = 3 * UNROLL + 26;
+  /** Default size of the FCACHE area, in longs. */
+  public static final int DEFAULT_CACHE = 64;
+  /** Default depth of the call stack. */
+  public static final int DEFAULT_STACK = 8;
+  /** First cog address past general-purpose RAM. */
+  private static final int COG_LIMIT = 0x1F0;
+
+  // Kernel labels.  They can't be written in source, so they can't collide.
+  private static final String LOOP = "##lmm:loop";
+  private static final String JUMP = "##lmm:jump";
+  private static final String CALL = "##lmm:call";
+  private static final String PUSH = "##lmm:push";
+  private static final String RET = "##lmm:ret";
+  private static final String FCACHE = "##lmm:fcache";
+  private static final String LOAD = "##lmm:load";
+  private static final String PC = "##lmm:pc";
+  private static final String TEMP = "##lmm:temp";
+  private static final String D1 = "##lmm:d1";
+  private static final String STACK = "##lmm:stack";
+
+  private final ProgramBuilder builder;
+  /** Cog address of the FCACHE area, or -1 before the kernel is written. */
+  private int cacheBase = -1;
+  private int cacheLongs;
+  /** Labels marking the start of each LMM section. */
+  private final Set<String> sections = new HashSet<String>();
+  /** Labels marking the start of each FCACHE block. */
+  private final Set<String> blocks = new HashSet<String>();
+  private String openSection, openBlock;
+
+  /**
+   * @param builder  destination for generated code.
+   */
+  public LargeMemoryModel(ProgramBuilder builder) {
+    this.builder = builder;
+  }
+
+  /**
+   * @return {@code true} once {@link #kernel(String, int, int)} has been
+   *         called.
+   */
+  public boolean hasKernel() {
+    return cacheBase >= 0;
+  }
+
+  /**
+   * Writes the kernel at the current address.  The cog running it starts on
+   * the LMM code at {@code entry}.
+   *
+   * @param entry  label of the first LMM instruction to run.
+   * @param cache  longs to set aside at the top of the cog for FCACHE blocks.
+   * @param stack  deepest nesting of LMM calls allowed.
+   * @return the number of longs written, including the stack.
+   * @throws IllegalArgumentException  if a kernel has already been written,
+   *         or the sizes don't fit.
+   */
+  public int kernel(String entry, int cache, int stack) {
+    if(hasKernel()) {
+      throw new IllegalArgumentException("Only one LMM kernel is allowed " +
+                                         "per program");
+    }
+    if(cache < 1 || stack < 1) {
+      throw new IllegalArgumentException("LMM cache and stack sizes must be " +
+                                         "positive");
+    }
+    int size = KERNEL_LONGS + stack;
+    if(builder.getRuntimeAddress() + size > COG_LIMIT - cache) {
+      throw new IllegalArgumentException("LMM kernel needs " + size +
+          " longs, plus " + cache + " for FCACHE, and doesn't fit in the cog");
+    }
+    cacheBase = COG_LIMIT - cache;
+    cacheLongs = cache;
+    Operand base = new NumericOperand(cacheBase);
+    Operand four = new NumericOperand(4);
+
+    // Fetch and execute, UNROLL times over.
+    builder.ensureLongAlignment();
+    builder.defineLabel(LOOP);
+    for(int i = 0; i < UNROLL; i++) {
+      String slot = LOOP + ":" + i;
+      emit(new RdLongOp(), ref(slot), ref(PC), false);
+      emit(new AddOp(), ref(PC), four, true);
+      builder.defineLabel(slot);
+      emit(new NopOp(), null, null, false);
+    }
+    emit(new JmpOp(), null, ref(LOOP), true);
+
+    // Jump: the target follows the jump to here.
+    builder.defineLabel(JUMP);
+    emit(new RdLongOp(), ref(PC), ref(PC), false);
+    emit(new JmpOp(), null, ref(LOOP), true);
+
+    // Call: step over the target, and push the return address.  PUSH and
+    // RET keep the top of the stack in their D and S fields.
+    builder.defineLabel(CALL);
+    emit(new RdLongOp(), ref(TEMP), ref(PC), false);
+    emit(new AddOp(), ref(PC), four, true);
+    emit(new AddOp(), ref(PUSH), ref(D1), false);
+    emit(new AddOp(), ref(RET), new NumericOperand(1), true);
+    builder.defineLabel(PUSH);
+    emit(new MovOp(), ref(D1), ref(PC), false);
+    emit(new MovOp(), ref(PC), ref(TEMP), false);
+    emit(new JmpOp(), null, ref(LOOP), true);
+
+    builder.defineLabel(RET);
+    emit(new MovOp(), ref(PC), ref(D1), false);
+    emit(new SubOp(), ref(PUSH), ref(D1), false);
+    emit(new SubOp(), ref(RET), new NumericOperand(1), true);
+    emit(new JmpOp(), null, ref(LOOP), true);
+
+    // FCACHE: the long after the jump to here is the cog address just past
+    // the block, and the block follows.
+    builder.defineLabel(FCACHE);
+    emit(new RdLongOp(), ref(TEMP), ref(PC), false);
+    emit(new MovDOp(), ref(LOAD), base, true);
+    emit(new AddOp(), ref(PC), four, true);
+    emit(new SubOp(), ref(TEMP), base, true);
+    builder.defineLabel(LOAD);
+    emit(new RdLongOp(), new NumericOperand(0), ref(PC), false);
+    emit(new AddOp(), ref(PC), four, true);
+    emit(new AddOp(), ref(LOAD), ref(D1), false);
+    emit(new DjnzOp(), ref(TEMP), ref(LOAD), true);
+    emit(new JmpOp(), null, base, true);
+
+    builder.defineLabel(PC);
+    builder.addLongReference(new LabelReference(entry,
+                                                LabelReference.MemoryType.SHARED));
+    builder.defineLabel(TEMP);
+    builder.addLong(0);
+    // Also the empty stack's top, which is never read or written.
+    builder.defineLabel(D1);
+    builder.addLong(1 << 9);
+    builder.defineLabel(STACK);
+    builder.reserveBytes(stack * 4);
+    // The primitives aren't used until the sections are translated, and the
+    // stack is only reached by arithmetic.
+    String[] keep = { LOOP, JUMP, CALL, RET, FCACHE, STACK };
+    for(String label : keep) {
+      builder.keepLabel(label);
+    }
+    return size;
+  }
+
+  /**
+   * Starts a section of LMM code.  It gets an image of its own, so the
+   * kernel's image ends here.
+   *
+   * @throws IllegalStateException  if there's no kernel yet, or a section is
+   *         already open.
+   */
+  public void beginSection() {
+    if(!hasKernel()) {
+      throw new IllegalStateException("LMM code needs a kernel; write " +
+                                      ".lmmkernel first");
+    }
+    if(openSection != null) {
+      throw new IllegalStateException("LMM sections can't be nested");
+    }
+    builder.setRuntimeAddress(0);
+    builder.ensureLongAlignment();
+    openSection = builder.uniqueLabel("lmm");
+    sections.add(openSection);
+    builder.defineLabel(openSection);
+  }
+
+  /**
+   * Ends the open section of LMM code.
+   *
+   * @throws IllegalStateException  if no section is open, an FCACHE block is,
+   *         or the section used the literal pool.
+   */
+  public void endSection() {
+    if(openSection == null) {
+      throw new IllegalStateException(".endlmm without .lmm");
+    }
+    if(openBlock != null) {
+      throw new IllegalStateException(".fcache block is never closed");
+    }
+    checkPool();
+    String end = openSection + ":end";
+    openSection = null;
+    builder.defineLabel(end);
+    builder.keepLabel(end);
+  }
+
+  /**
+   * @return {@code true} if an LMM section is open.
+   */
+  public boolean inSection() {
+    return openSection != null;
+  }
+
+  /**
+   * Starts an FCACHE block in the open section.  Code up to
+   * {@link #endBlock()} is assembled for the FCACHE area.
+   *
+   * @throws IllegalStateException  if no section is open, or a block already
+   *         is.
+   */
+  public void beginBlock() {
+    if(openSection == null) {
+      throw new IllegalStateException(".fcache outside .lmm");
+    }
+    if(openBlock != null) {
+      throw new IllegalStateException(".fcache blocks can't be nested");
+    }
+    checkPool();
+    openBlock = builder.uniqueLabel("fcache");
+    blocks.add(openBlock);
+    builder.defineLabel(openBlock);
+    builder.keepLabel(openBlock);
+    builder.setRuntimeAddress(cacheBase);
+  }
+
+  /**
+   * Ends the open FCACHE block, with a jump back to the kernel.  Any
+   * constants the block put in the literal pool are placed after it, in the
+   * cache.
+   *
+   * @throws IllegalStateException  if no block is open.
+   */
+  public void endBlock() {
+    if(openBlock == null) {
+      throw new IllegalStateException(".endfcache without .fcache");
+    }
+    emit(new JmpOp(), null, ref(LOOP), true);
+    builder.addPool();
+    String end = openBlock + ":end";
+    openBlock = null;
+    builder.defineLabel(end);
+    builder.keepLabel(end);
+  }
+
+  private void checkPool() {
+    if(builder.getPendingPoolSize() > 0) {
+      throw new IllegalStateException("LMM code can't use the literal pool " +
+                                      "(##), except in .fcache blocks");
+    }
+  }
+
+  public void apply(List<Element> program) throws LogicException {
+    // Sort the labels into LMM code and FCACHE blocks.
+    Set<String> lmmLabels = new HashSet<String>();
+    Map<String, String> blockLabels = new HashMap<String, String>();
+    String section = null, block = null;
+    for(Element e : program) {
+      if(!e.is(Element.Kind.LABEL)) continue;
+      String label = e.getLabel();
+      if(sections.contains(label)) {
+        section = label;
+      } else if(label.equals(section + ":end")) {
+        section = null;
+      } else if(blocks.contains(label)) {
+        block = label;
+        continue;
+      } else if(label.equals(block + ":end")) {
+        block = null;
+      }
+      if(block != null) {
+        blockLabels.put(label, block);
+      } else if(section != null) {
+        lmmLabels.add(label);
+      }
+    }
+
+    checkKernelImage(program);
+    List<Element> result = new ArrayList<Element>(program.size());
+    section = block = null;
+    int blockStart = 0;
+    for(Element e : program) {
+      if(e.is(Element.Kind.LABEL)) {
+        String label = e.getLabel();
+        if(sections.contains(label)) {
+          section = label;
+        } else if(label.equals(section + ":end")) {
+          section = null;
+        } else if(blocks.contains(label)) {
+          block = label;
+          result.add(Element.instruction(instruction(new JmpOp(), null,
+              ref(FCACHE), true)).withSourceOf(e));
+          result.add(Element.reference(Element.Kind.LONG_REFERENCE,
+              ref(label + ":end")).withSourceOf(e));
+          blockStart = result.size() + 1;
+        } else if(label.equals(block + ":end")) {
+          checkBlockSize(result, blockStart, e);
+          block = null;
+        }
+        result.add(e);
+      } else if(!e.is(Element.Kind.INSTRUCTION) || section == null) {
+        result.add(e);
+      } else if(block != null) {
+        String target = Instructions.branchTarget(e.getInstruction());
+        if(target != null && (lmmLabels.contains(target) ||
+            (blockLabels.containsKey(target) &&
+             !blockLabels.get(target).equals(block)))) {
+          throw new LogicException("FCACHE code can only branch within its " +
+              "own block (" + target + " is outside)", e.getSourceLine(), 0);
+        }
+        result.add(e);
+      } else {
+        translate(e, lmmLabels, result);
+      }
+    }
+    program.clear();
+    program.addAll(result);
+  }
+
+  /**
+   * Adds the LMM form of an instruction to {@code result}.
+   */
+  private void translate(Element e, Set<String> lmmLabels,
+                         List<Element> result) throws LogicException {
+    Instruction instr = e.getInstruction();
+    if(!Instructions.isBranch(instr)) {
+      result.add(e);
+      return;
+    }
+    Instruction lmm = instr.copy();
+    if(instr.getOperation() instanceof RetOp) {
+      lmm.setOperation(new JmpOp());
+      lmm.setSource(ref(RET));
+      lmm.setImmediateSource(true);
+      result.add(Element.instruction(lmm).withSourceOf(e));
+      return;
+    }
+    boolean call = instr.getOperation() instanceof CallOp;
+    if(Instructions.isCall(instr) && !call) {
+      throw new LogicException("LMM code can't use jmpret; use call and ret",
+                               e.getSourceLine(), 0);
+    }
+    if(!Instructions.isImmediate(instr)) {
+      if(!Instructions.isJump(instr) || call) {
+        throw new LogicException("LMM code can only branch indirectly " +
+            "with jmp", e.getSourceLine(), 0);
+      }
+      // The register holds a hub address.
+      lmm.setOperation(new MovOp());
+      lmm.setDest(ref(PC));
+      result.add(Element.instruction(lmm).withSourceOf(e));
+      return;
+    }
+    String target = Instructions.branchTarget(instr);
+    if(target == null || !lmmLabels.contains(target)) {
+      throw new LogicException("LMM code can only branch to labels in LMM " +
+          "code" + ((target == null) ? "" : " (" + target + " isn't)"),
+          e.getSourceLine(), 0);
+    }
+    if(call) lmm.setOperation(new JmpOp());
+    lmm.setSource(ref(call ? CALL : JUMP));
+    result.add(Element.instruction(lmm).withSourceOf(e));
+    result.add(Element.reference(Element.Kind.LONG_REFERENCE,
+        new LabelReference(target, LabelReference.MemoryType.SHARED))
+        .withSourceOf(e));
+  }
+
+  /**
+   * Checks that the kernel's image, as the passes left it, stays below the
+   * FCACHE area.
+   */
+  private void checkKernelImage(List<Element> program) throws LogicException {
+    int start = -1;
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(e.is(Element.Kind.ORG)) {
+        start = i;
+      } else if(e.is(Element.Kind.LABEL) && e.getLabel().equals(LOOP)) {
+        break;
+      }
+    }
+    int origin = (start < 0) ? 0 : program.get(start).getValue();
+    int end = start + 1;
+    while(end < program.size() && !program.get(end).is(Element.Kind.ORG)) {
+      end++;
+    }
+    int top = origin + longs(program, start + 1, end);
+    if(top > cacheBase) {
+      throw new LogicException("LMM kernel's cog image runs into the FCACHE " +
+          "area (ends at $" + Integer.toHexString(top) + ", cache starts at $" +
+          Integer.toHexString(cacheBase) + ")",
+          program.get(start + 1).getSourceLine(), 0);
+    }
+  }
+
+  /**
+   * Checks that the FCACHE block starting at {@code start} and ending at
+   * {@code end} fits the cache.
+   */
+  private void checkBlockSize(List<Element> result, int start, Element end)
+      throws LogicException {
+    int size = longs(result, start, result.size());
+    if(size > cacheLongs) {
+      throw new LogicException("FCACHE block needs " + size + " longs, but " +
+          "the cache only has " + cacheLongs, result.get(start).getSourceLine(),
+          0);
+    }
+  }
+
+  /**
+   * @return the longs occupied by elements {@code start} (inclusive) through
+   *         {@code end} (exclusive), rounded up.
+   */
+  static int longs(List<Element> program, int start, int end) {
+    int bytes = 0;
+    for(int i = start; i < end; i++) {
+      Element e = program.get(i);
+      switch(e.getKind()) {
+      case BYTE:
+        bytes++;
+        break;
+      case WORD:
+      case WORD_REFERENCE:
+        bytes = ((bytes + 1) & ~1) + 2;
+        break;
+      case LONG:
+      case LONG_REFERENCE:
+      case INSTRUCTION:
+        bytes = ((bytes + 3) & ~3) + 4;
+        break;
+      case RESERVE:
+        bytes += e.getValue();
+        break;
+      default:
+      }
+    }
+    return (bytes + 3) / 4;
+  }
+
+  private static LabelReference ref(String label) {
+    return new LabelReference(label);
+  }
+
+  private Instruction instruction(Operation op, Operand dest, Operand source,
+                                  boolean immediate) {
+    Instruction instr = new Instruction(builder);
+    instr.setOperation(op);
+    if(dest != null) instr.setDest(dest);
+    if(source != null) instr.setSource(source);
+    instr.setImmediateSource(immediate);
+    return instr;
+  }
+
+  private void emit(Operation op, Operand dest, Operand source,
+                    boolean immediate) {
+    builder.addInstruction(instruction(op, dest, source, immediate));
+  }
+}
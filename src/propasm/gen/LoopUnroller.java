@@ -0,0 +1,125 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import propasm.model.AssemblyInputException;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.NumericOperand;
+import propasm.model.Operand;
+import propasm.model.Operation;
+import propasm.model.ProgramBuilder;
+import propasm.p32.AndOp;
+import propasm.p32.DjnzOp;
+import propasm.p32.MovOp;
+import propasm.p32.ShrOp;
+import propasm.p32.TjzOp;
+
+/**
+ * Unrolls a loop controlled by {@code djnz}, so that the loop's overhead is
+ * paid once every few trips instead of on every trip.
+ * 
+ * The trip count isn't known until the loop runs, so the generated code
+ * splits it in two.  The count modulo the unroll factor, kept in a scratch
+ * register, drives a copy of the original loop; what's left, divided by the
+ * factor, drives the unrolled loop:<pre>
+ *         mov   scratch, counter
+ *         and   scratch, #factor - 1
+ *         shr   counter, #log2(factor)
+ *         tjz   scratch, #main
+ * rem     (body)
+ *         djnz  scratch, #rem
+ * main    tjz   counter, #done
+ * top     (body, factor times)
+ *         djnz  counter, #top
+ * done</pre>
+ * None of this touches the flags, so a body that carries C or Z from one trip
+ * to the next still works.  The body must not use the counter or the scratch
+ * register, and (since it's written more than once) must not define labels.
+ * 
+ * @author cbiffle
+ *
+ */
+public class LoopUnroller {
+  /**
+   * Writes one copy of a loop's body.
+   */
+  public interface Body {
+    void emit() throws AssemblyInputException;
+  }
+  
+  private final ProgramBuilder builder;
+  
+  /**
+   * @param builder  destination for generated code.
+   */
+  public LoopUnroller(ProgramBuilder builder) {
+    this.builder = builder;
+  }
+  
+  /**
+   * Writes the unrolled form of {@code djnz counter} around {@code body}.
+   * 
+   * @param counter  register holding the trip count on entry.  It's zero on
+   *        exit, as it would be after the original loop.
+   * @param scratch  register the code may overwrite.
+   * @param factor  number of copies in the unrolled loop; a power of two,
+   *        at least 2.
+   * @param body  writes one trip's worth of code.
+   * @throws IllegalArgumentException  if the factor isn't usable.
+   * @throws AssemblyInputException  if the body can't be written.
+   */
+  public void unroll(Operand counter, Operand scratch, int factor, Body body)
+      throws AssemblyInputException {
+    if(factor < 2 || (factor & (factor - 1)) != 0) {
+      throw new IllegalArgumentException("Unroll factor must be a power of " +
+                                         "two, at least 2 (found " + factor +
+                                         ")");
+    }
+    String prefix = builder.uniqueLabel("unroll");
+    LabelReference rem = new LabelReference(prefix + ":rem");
+    LabelReference main = new LabelReference(prefix + ":main");
+    LabelReference top = new LabelReference(prefix + ":top");
+    LabelReference done = new LabelReference(prefix + ":done");
+    
+    emit(new MovOp(), scratch, counter, false);
+    emit(new AndOp(), scratch, new NumericOperand(factor - 1), true);
+    emit(new ShrOp(), counter,
+         new NumericOperand(Integer.numberOfTrailingZeros(factor)), true);
+    emit(new TjzOp(), scratch, main, true);
+    builder.defineLabel(rem.getTargetName());
+    body.emit();
+    emit(new DjnzOp(), scratch, rem, true);
+    builder.defineLabel(main.getTargetName());
+    emit(new TjzOp(), counter, done, true);
+    builder.defineLabel(top.getTargetName());
+    for(int i = 0; i < factor; i++) {
+      body.emit();
+    }
+    emit(new DjnzOp(), counter, top, true);
+    builder.defineLabel(done.getTargetName());
+  }
+  
+  private void emit(Operation op, Operand dest, Operand source,
+                    boolean immediate) {
+    Instruction instr = new Instruction(builder);
+    instr.setOperation(op);
+    instr.setDest(dest);
+    instr.setSource(source);
+    instr.setImmediateSource(immediate);
+    builder.addInstruction(instr);
+  }
+}
@@ -0,0 +1,395 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import propasm.analysis.Instructions;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.LogicException;
+import propasm.model.NumericOperand;
+import propasm.model.Operand;
+import propasm.model.Operation;
+import propasm.model.ProgramBuilder;
+import propasm.model.ProgramPass;
+import propasm.p32.AddOp;
+import propasm.p32.DjnzOp;
+import propasm.p32.MovDOp;
+import propasm.p32.MovOp;
+import propasm.p32.MovSOp;
+import propasm.p32.RdLongOp;
+import propasm.p32.ShrOp;
+import propasm.p32.SubOp;
+import propasm.p32.TjzOp;
+import propasm.parallax.pseudo.CallOp;
+import propasm.parallax.pseudo.RetOp;
+
+/**
+ * Lets a cog run more code than it can hold, by keeping pieces of it --
+ * <em>overlays</em> -- in the hub and copying each into a shared window in
+ * the cog when it's needed.
+ *
+ * Each overlay is assembled for the window's cog addresses, but stored in the
+ * image wherever it falls, so its labels have cog addresses in the window and
+ * hub addresses elsewhere.  The cog holding the window also holds a loader,
+ * and a two-long descriptor for each overlay giving its hub address and the
+ * cog address just past its end.  Once every label is known, this class (as a
+ * pass) finds each {@code call} or {@code jmp} from that cog into an overlay
+ * and puts a load in front of it, with the same predicate:<pre>
+ *         mov   select, #descriptor
+ *         call  #load
+ *         call  #routine</pre>
+ * The loader does nothing if the overlay is already in the window.  Otherwise
+ * it copies the overlay in with an {@code rdlong} sequence unrolled
+ * {@value #UNROLL} times, which takes a hub window for each long but one in
+ * {@value #UNROLL}.  Neither it nor the call sequence touches the flags.
+ *
+ * Overlays can call the resident code, and branch within themselves, but
+ * can't reach another overlay: it would replace the caller in the window.
+ * Nor can any cog but the loader's reach them.
+ *
+ * The window is at the top of the cog.  Its size is rounded up to a multiple
+ * of {@value #UNROLL} longs, since the loader copies that many at a time.
+ *
+ * @author cbiffle
+ *
+ */
+public class OverlayManager implements ProgramPass {
+  /** Longs copied by each trip around the loader's loop. */
+  public static final int UNROLL = 4;
+  /** Longs of loader code and registers, not counting descriptors. */
+  public static final int LOADER_LONGS = 4 * UNROLL + 19;
+  /** First cog address past general-purpose RAM. */
+  private static final int COG_LIMIT = 0x1F0;
+
+  // Loader labels.  They can't be written in source, so they can't collide.
+  private static final String LOAD = "##ovl:load";
+  private static final String LOAD_RET = "##ovl:load_ret";
+  private static final String HUB = "##ovl:hub";
+  private static final String END = "##ovl:end";
+  private static final String SLOT = "##ovl:slot";
+  private static final String SELECT = "##ovl:select";
+  private static final String CURRENT = "##ovl:current";
+  private static final String ADDRESS = "##ovl:address";
+  private static final String COUNT = "##ovl:count";
+  private static final String STEP = "##ovl:step";
+  private static final String DESCRIPTORS = "##ovl:descriptors";
+
+  private final ProgramBuilder builder;
+  /** Cog address of the window, or -1 before the loader is written. */
+  private int windowBase = -1;
+  private int windowLongs;
+  /** Overlay names, in the order they were declared. */
+  private final List<String> overlays = new ArrayList<String>();
+  private String open;
+
+  /**
+   * @param builder  destination for generated code.
+   */
+  public OverlayManager(ProgramBuilder builder) {
+    this.builder = builder;
+  }
+
+  /**
+   * Writes the loader at the current address, and sets aside the window.
+   *
+   * @param window  longs in the window, before rounding.
+   * @return the number of longs written, not counting descriptors.
+   * @throws IllegalArgumentException  if a loader has already been written,
+   *         or the window doesn't fit.
+   */
+  public int loader(int window) {
+    if(windowBase >= 0) {
+      throw new IllegalArgumentException("Only one overlay window is " +
+                                         "allowed per program");
+    }
+    if(window < 1) {
+      throw new IllegalArgumentException("Overlay window size must be " +
+                                         "positive");
+    }
+    window = (window + UNROLL - 1) / UNROLL * UNROLL;
+    if(builder.getRuntimeAddress() + LOADER_LONGS > COG_LIMIT - window) {
+      throw new IllegalArgumentException("Overlay loader needs " +
+          LOADER_LONGS + " longs, plus " + window + " for its window, and " +
+          "doesn't fit in the cog");
+    }
+    windowBase = COG_LIMIT - window;
+    windowLongs = window;
+    Operand base = new NumericOperand(windowBase);
+
+    builder.ensureLongAlignment();
+    builder.defineLabel(LOAD);
+    emit(new MovOp(), ref(ADDRESS), ref(SELECT), false);
+    emit(new SubOp(), ref(ADDRESS), ref(CURRENT), false);
+    emit(new TjzOp(), ref(ADDRESS), ref(LOAD_RET), true);
+    // Fetch the descriptor through the S fields of the next two.
+    emit(new MovOp(), ref(CURRENT), ref(SELECT), false);
+    emit(new MovSOp(), ref(HUB), ref(SELECT), false);
+    emit(new AddOp(), ref(SELECT), new NumericOperand(1), true);
+    emit(new MovSOp(), ref(END), ref(SELECT), false);
+    builder.defineLabel(HUB);
+    emit(new MovOp(), ref(ADDRESS), new NumericOperand(0), false);
+    builder.defineLabel(END);
+    emit(new MovOp(), ref(COUNT), new NumericOperand(0), false);
+    emit(new SubOp(), ref(COUNT), base, true);
+    emit(new AddOp(), ref(COUNT), new NumericOperand(UNROLL - 1), true);
+    emit(new ShrOp(), ref(COUNT),
+         new NumericOperand(Integer.numberOfTrailingZeros(UNROLL)), true);
+    for(int i = 0; i < UNROLL; i++) {
+      emit(new MovDOp(), ref(SLOT + i), new NumericOperand(windowBase + i),
+           true);
+    }
+    for(int i = 0; i < UNROLL; i++) {
+      builder.defineLabel(SLOT + i);
+      emit(new RdLongOp(), new NumericOperand(0), ref(ADDRESS), false);
+      emit(new AddOp(), ref(ADDRESS), new NumericOperand(4), true);
+      emit(new AddOp(), ref(SLOT + i), ref(STEP), false);
+    }
+    emit(new DjnzOp(), ref(COUNT), ref(SLOT + 0), true);
+    builder.defineLabel(LOAD_RET);
+    emit(new RetOp(), null, null, false);
+
+    builder.defineLabel(SELECT);
+    builder.addLong(0);
+    // No descriptor lives at 0, so nothing is loaded to begin with.
+    builder.defineLabel(CURRENT);
+    builder.addLong(0);
+    builder.defineLabel(ADDRESS);
+    builder.addLong(0);
+    builder.defineLabel(COUNT);
+    builder.addLong(0);
+    builder.defineLabel(STEP);
+    builder.addLong(UNROLL << 9);
+    builder.defineLabel(DESCRIPTORS);
+    // Nothing uses these until calls are rewritten.
+    builder.keepLabel(LOAD);
+    builder.keepLabel(DESCRIPTORS);
+    return LOADER_LONGS;
+  }
+
+  /**
+   * Starts an overlay, in an image of its own.  {@code name} labels its
+   * first long.
+   *
+   * @throws IllegalStateException  if there's no loader yet, or an overlay is
+   *         already open.
+   */
+  public void begin(String name) {
+    if(windowBase < 0) {
+      throw new IllegalStateException("Overlays need a window; write " +
+                                      ".overlaywindow first");
+    }
+    if(open != null) {
+      throw new IllegalStateException("Overlays can't be nested");
+    }
+    builder.setRuntimeAddress(windowBase);
+    builder.ensureLongAlignment();
+    builder.defineLabel(name);
+    builder.keepLabel(name);
+    open = name;
+    overlays.add(name);
+  }
+
+  /**
+   * Ends the open overlay.  Any constants it put in the literal pool are
+   * placed at its end, in the window.
+   *
+   * @throws IllegalStateException  if no overlay is open.
+   */
+  public void end() {
+    if(open == null) {
+      throw new IllegalStateException(".endoverlay without .overlay");
+    }
+    builder.addPool();
+    String end = endLabel(open);
+    open = null;
+    builder.defineLabel(end);
+    builder.keepLabel(end);
+  }
+
+  /**
+   * @return {@code true} if an overlay is open.
+   */
+  public boolean isOpen() {
+    return open != null;
+  }
+
+  public void apply(List<Element> program) throws LogicException {
+    // Which overlay each label belongs to, and where the loader's image is.
+    Map<String, String> overlayOf = new HashMap<String, String>();
+    String overlay = null;
+    int residentStart = 0, residentEnd = program.size();
+    boolean resident = false;
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(e.is(Element.Kind.ORG)) {
+        if(resident) break;
+        residentStart = i;
+      } else if(e.is(Element.Kind.LABEL) && e.getLabel().equals(LOAD)) {
+        resident = true;
+      }
+    }
+    for(int i = residentStart + 1; i < program.size(); i++) {
+      if(program.get(i).is(Element.Kind.ORG)) {
+        residentEnd = i;
+        break;
+      }
+    }
+    for(Element e : program) {
+      if(!e.is(Element.Kind.LABEL)) continue;
+      String label = e.getLabel();
+      if(overlays.contains(label)) {
+        overlay = label;
+      } else if(overlay != null && label.equals(endLabel(overlay))) {
+        overlay = null;
+      }
+      if(overlay != null) overlayOf.put(label, overlay);
+    }
+
+    List<Element> result = new ArrayList<Element>(program.size());
+    int sizes = 0;
+    overlay = null;
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(e.is(Element.Kind.LABEL)) {
+        String label = e.getLabel();
+        if(overlays.contains(label)) {
+          overlay = label;
+          sizes = i;
+        } else if(overlay != null && label.equals(endLabel(overlay))) {
+          checkOverlaySize(program, sizes, i, overlay);
+          overlay = null;
+        }
+        result.add(e);
+        if(label.equals(DESCRIPTORS)) {
+          for(String name : overlays) {
+            result.add(Element.label(descriptor(name)).withSourceOf(e));
+            result.add(Element.reference(Element.Kind.LONG_REFERENCE,
+                new LabelReference(name, LabelReference.MemoryType.SHARED))
+                .withSourceOf(e));
+            result.add(Element.reference(Element.Kind.LONG_REFERENCE,
+                ref(endLabel(name))).withSourceOf(e));
+          }
+        }
+        continue;
+      }
+      String target = e.is(Element.Kind.INSTRUCTION)
+          ? Instructions.branchTarget(e.getInstruction()) : null;
+      String into = (target == null) ? null : overlayOf.get(target);
+      if(into == null || into.equals(overlay)) {
+        result.add(e);
+        continue;
+      }
+      Instruction instr = e.getInstruction();
+      if(overlay != null) {
+        throw new LogicException("Overlay " + overlay + " can't branch into " +
+            "overlay " + into, e.getSourceLine(), 0);
+      } else if(i < residentStart || i >= residentEnd) {
+        throw new LogicException("Only the cog with the overlay window can " +
+            "branch into an overlay", e.getSourceLine(), 0);
+      } else if(!Instructions.isJump(instr)) {
+        throw new LogicException(Instructions.mnemonic(instr) + " can't " +
+            "branch into an overlay; use call or jmp", e.getSourceLine(), 0);
+      }
+      Instruction select = instruction(new MovOp(), ref(SELECT),
+                                       ref(descriptor(into)), true);
+      select.setPredicate(instr.getPredicate());
+      Instruction load = instruction(new CallOp(), null, ref(LOAD), true);
+      load.setPredicate(instr.getPredicate());
+      result.add(Element.instruction(select).withSourceOf(e));
+      result.add(Element.instruction(load).withSourceOf(e));
+      result.add(e);
+    }
+    program.clear();
+    program.addAll(result);
+    checkResidentImage(program);
+  }
+
+  private static String endLabel(String overlay) {
+    return "##ovl:" + overlay + ":end";
+  }
+
+  private static String descriptor(String overlay) {
+    return "##ovl:" + overlay;
+  }
+
+  /**
+   * Checks that an overlay, from its first label to its end label, fits the
+   * window.
+   */
+  private void checkOverlaySize(List<Element> program, int start, int end,
+                                String overlay) throws LogicException {
+    int size = LargeMemoryModel.longs(program, start, end);
+    if(size == 0 || size > windowLongs) {
+      throw new LogicException("Overlay " + overlay + " has " + size +
+          " longs; it must have at least one, and the window holds " +
+          windowLongs, program.get(start).getSourceLine(), 0);
+    }
+  }
+
+  /**
+   * Checks that the loader's image, descriptors and all, stays below the
+   * window.
+   */
+  private void checkResidentImage(List<Element> program)
+      throws LogicException {
+    int start = -1;
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(e.is(Element.Kind.ORG)) {
+        start = i;
+      } else if(e.is(Element.Kind.LABEL) && e.getLabel().equals(LOAD)) {
+        break;
+      }
+    }
+    int origin = (start < 0) ? 0 : program.get(start).getValue();
+    int end = start + 1;
+    while(end < program.size() && !program.get(end).is(Element.Kind.ORG)) {
+      end++;
+    }
+    int top = origin + LargeMemoryModel.longs(program, start + 1, end);
+    if(top > windowBase) {
+      throw new LogicException("Overlay loader's cog image runs into the " +
+          "window (ends at $" + Integer.toHexString(top) + ", window starts " +
+          "at $" + Integer.toHexString(windowBase) + ")",
+          program.get(start + 1).getSourceLine(), 0);
+    }
+  }
+
+  private static LabelReference ref(String label) {
+    return new LabelReference(label);
+  }
+
+  private Instruction instruction(Operation op, Operand dest, Operand source,
+                                  boolean immediate) {
+    Instruction instr = new Instruction(builder);
+    instr.setOperation(op);
+    if(dest != null) instr.setDest(dest);
+    if(source != null) instr.setSource(source);
+    instr.setImmediateSource(immediate);
+    return instr;
+  }
+
+  private void emit(Operation op, Operand dest, Operand source,
+                    boolean immediate) {
+    builder.addInstruction(instruction(op, dest, source, immediate));
+  }
+}
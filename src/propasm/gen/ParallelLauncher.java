@@ -0,0 +1,328 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import propasm.model.Effect;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.LogicException;
+import propasm.model.NumericOperand;
+import propasm.model.Operand;
+import propasm.model.Operation;
+import propasm.model.Predicate;
+import propasm.model.ProgramBuilder;
+import propasm.model.ProgramPass;
+import propasm.p32.AddOp;
+import propasm.p32.DjnzOp;
+import propasm.p32.MovOp;
+import propasm.p32.OrOp;
+import propasm.p32.RdLongOp;
+import propasm.p32.ShlOp;
+import propasm.p32.SubOp;
+import propasm.p32.TjnzOp;
+import propasm.parallax.pseudo.CogIdOp;
+import propasm.parallax.pseudo.CogInitOp;
+import propasm.parallax.pseudo.CogStopOp;
+import propasm.parallax.pseudo.JmpOp;
+import propasm.parallax.pseudo.LockClrOp;
+import propasm.parallax.pseudo.LockNewOp;
+import propasm.parallax.pseudo.LockRetOp;
+import propasm.parallax.pseudo.LockSetOp;
+import propasm.parallax.pseudo.WrLongOp;
+
+/**
+ * Fans work out across cogs: starts a number of copies of a cog image, each
+ * given its own slice of a hub buffer, and waits for them all to finish.
+ *
+ * Each launch gets a block in hub, placed after the rest of the program:
+ * <pre>
+ * barrier  long  pending     ' workers still running
+ *          long  lock        ' lock guarding pending
+ * par0     long  slice       ' data + 0 * stride
+ *          long  index       ' 0
+ *          long  @barrier
+ * par1     ...</pre>
+ * Worker {@code i} is started with {@code PAR} pointing at its own three
+ * longs, so {@code rdlong ptr, par} finds its slice.  The launching cog fills
+ * the blocks in as it goes, so the launch can run any number of times, and
+ * builds each {@code coginit} word from the block and image addresses.  If
+ * no cog is free it waits for one, so more workers than cogs just take
+ * turns.
+ *
+ * Workers finish with {@link #arrive()}, which takes the lock, counts
+ * itself out, and stops the cog.  The launching cog waits at
+ * {@link #join()} for the count to reach zero, then returns the lock.
+ * Launch and join must be in the same cog image, and the workers' image must
+ * start at {@code org 0}, since that's where {@code coginit} loads it.
+ *
+ * @author cbiffle
+ *
+ */
+public class ParallelLauncher implements ProgramPass {
+  /** Most workers a launch can start. */
+  public static final int MAX_WORKERS = 0x1FF;
+  /** Longs in each worker's block in hub. */
+  private static final int BLOCK_LONGS = 3;
+  private static final int PAR = 0x1F0;
+
+  private final ProgramBuilder builder;
+  private final List<Launch> launches = new ArrayList<Launch>();
+  private Launch open;
+
+  private static class Launch {
+    final String prefix;
+    final int workers;
+    final String entry;
+    final int line;
+
+    Launch(String prefix, int workers, String entry, int line) {
+      this.prefix = prefix;
+      this.workers = workers;
+      this.entry = entry;
+      this.line = line;
+    }
+
+    String label(String name) {
+      return prefix + ":" + name;
+    }
+  }
+
+  /**
+   * @param builder  destination for generated code.
+   */
+  public ParallelLauncher(ProgramBuilder builder) {
+    this.builder = builder;
+  }
+
+  /**
+   * Writes code to start {@code workers} copies of the cog image at
+   * {@code entry}, giving worker {@code i} the slice at
+   * {@code data + i * stride}.  The code takes a lock, fills in the blocks,
+   * and starts the cogs, then carries on; {@link #join()} waits for them.
+   *
+   * @param line  source line of the launch, for errors found later.
+   * @throws IllegalArgumentException  if the number of workers is out of
+   *         range.
+   * @throws IllegalStateException  if a launch is already open.
+   */
+  public void launch(int workers, String entry, String data, int stride,
+                     int line) {
+    if(workers < 1 || workers > MAX_WORKERS) {
+      throw new IllegalArgumentException("Worker count must be between 1 " +
+                                         "and " + MAX_WORKERS);
+    }
+    if(open != null) {
+      throw new IllegalStateException("Parallel launches can't be nested");
+    }
+    Launch l = new Launch(builder.uniqueLabel("par"), workers, entry, line);
+    String lock = l.label("lock"), count = l.label("count");
+    String word = l.label("word"), slice = l.label("slice");
+    String block = l.label("block"), index = l.label("index");
+
+    builder.ensureLongAlignment();
+    builder.defineLabel(l.label("new"));
+    emit(null, new LockNewOp(), ref(lock), null, true, Effect.WC);
+    emit(Predicate.IF_C, new JmpOp(), null, ref(l.label("new")), true);
+    emit(null, new MovOp(), ref(block), hub(l.label("barrier")), false);
+    emit(null, new MovOp(), ref(count), new NumericOperand(workers), true);
+    emit(null, new WrLongOp(), ref(count), ref(block), false);
+    emit(null, new AddOp(), ref(block), new NumericOperand(4), true);
+    emit(null, new WrLongOp(), ref(lock), ref(block), false);
+    emit(null, new AddOp(), ref(block), new NumericOperand(4), true);
+    // coginit: PAR long address << 18, code long address << 4, new cog.
+    emit(null, new MovOp(), ref(word), ref(block), false);
+    emit(null, new ShlOp(), ref(word), new NumericOperand(16), true);
+    emit(null, new MovOp(), ref(index), hub(entry), false);
+    emit(null, new ShlOp(), ref(index), new NumericOperand(2), true);
+    emit(null, new OrOp(), ref(word), ref(index), false);
+    emit(null, new OrOp(), ref(word), new NumericOperand(8), true);
+    emit(null, new MovOp(), ref(slice), hub(data), false);
+    emit(null, new MovOp(), ref(index), new NumericOperand(0), true);
+    builder.defineLabel(l.label("launch"));
+    emit(null, new WrLongOp(), ref(slice), ref(block), false);
+    emit(null, new AddOp(), ref(block), new NumericOperand(4), true);
+    emit(null, new WrLongOp(), ref(index), ref(block), false);
+    emit(null, new AddOp(), ref(block), new NumericOperand(4 * 2), true);
+    if(stride >= 0 && stride <= 0x1FF) {
+      emit(null, new AddOp(), ref(slice), new NumericOperand(stride), true);
+    } else {
+      emit(null, new AddOp(), ref(slice), builder.addPoolConstant(stride),
+           false);
+    }
+    emit(null, new AddOp(), ref(index), new NumericOperand(1), true);
+    builder.defineLabel(l.label("start"));
+    emit(null, new CogInitOp(), ref(word), null, true, Effect.WC);
+    emit(Predicate.IF_C, new JmpOp(), null, ref(l.label("start")), true);
+    emit(null, new AddOp(), ref(word),
+         builder.addPoolConstant((BLOCK_LONGS * 4) << 16), false);
+    emit(null, new DjnzOp(), ref(count), ref(l.label("launch")), true);
+    emit(null, new JmpOp(), null, ref(l.label("go")), true);
+    for(String register : new String[] { lock, count, word, slice, block,
+                                         index }) {
+      builder.defineLabel(register);
+      builder.addLong(0);
+    }
+    builder.defineLabel(l.label("go"));
+    launches.add(l);
+    open = l;
+  }
+
+  /**
+   * Writes code to wait for every worker of the open launch to arrive, and
+   * then return its lock.
+   *
+   * @throws IllegalStateException  if no launch is open.
+   */
+  public void join() {
+    if(open == null) {
+      throw new IllegalStateException(".endparallel without .parallel");
+    }
+    String wait = open.label("wait"), pending = open.label("count");
+    builder.defineLabel(wait);
+    emit(null, new RdLongOp(), ref(pending), hub(open.label("barrier")),
+         false);
+    emit(null, new TjnzOp(), ref(pending), ref(wait), true);
+    emit(null, new LockRetOp(), ref(open.label("lock")), null, true);
+    open = null;
+  }
+
+  /**
+   * @return {@code true} if a launch is waiting for its join.
+   */
+  public boolean isOpen() {
+    return open != null;
+  }
+
+  /**
+   * Writes code for a worker to count itself out of its launch's barrier and
+   * stop its cog.  Its three registers follow it, where they'll never run.
+   */
+  public void arrive() {
+    String prefix = builder.uniqueLabel("arrive");
+    String barrier = prefix + ":barrier", lock = prefix + ":lock";
+    String temp = prefix + ":temp", take = prefix + ":take";
+    builder.ensureLongAlignment();
+    emit(null, new MovOp(), ref(temp), new NumericOperand(PAR), false);
+    emit(null, new AddOp(), ref(temp), new NumericOperand(4 * 2), true);
+    emit(null, new RdLongOp(), ref(barrier), ref(temp), false);
+    emit(null, new MovOp(), ref(temp), ref(barrier), false);
+    emit(null, new AddOp(), ref(temp), new NumericOperand(4), true);
+    emit(null, new RdLongOp(), ref(lock), ref(temp), false);
+    builder.defineLabel(take);
+    emit(null, new LockSetOp(), ref(lock), null, true, Effect.WC);
+    emit(Predicate.IF_C, new JmpOp(), null, ref(take), true);
+    emit(null, new RdLongOp(), ref(temp), ref(barrier), false);
+    emit(null, new SubOp(), ref(temp), new NumericOperand(1), true);
+    emit(null, new WrLongOp(), ref(temp), ref(barrier), false);
+    emit(null, new LockClrOp(), ref(lock), null, true);
+    emit(null, new CogIdOp(), ref(temp), null, true);
+    emit(null, new CogStopOp(), ref(temp), null, true);
+    for(String register : new String[] { barrier, lock, temp }) {
+      builder.defineLabel(register);
+      builder.addLong(0);
+    }
+  }
+
+  /**
+   * Places every launch's hub blocks at the current address, in an image of
+   * their own.  Call once, after the last launch.
+   */
+  public void placeBlocks() {
+    if(launches.isEmpty()) return;
+    builder.setRuntimeAddress(0);
+    builder.ensureLongAlignment();
+    for(Launch l : launches) {
+      builder.defineLabel(l.label("barrier"));
+      builder.addLong(0);
+      builder.addLong(0);
+      for(int i = 0; i < l.workers; i++) {
+        builder.addLong(0);
+        builder.addLong(0);
+        builder.addLongReference(new LabelReference(l.label("barrier"),
+            LabelReference.MemoryType.SHARED));
+      }
+    }
+  }
+
+  public void apply(List<Element> program) throws LogicException {
+    for(Launch l : launches) {
+      int start = indexOf(program, l.label("new"));
+      // Dead code elimination may have taken the whole launch.
+      if(start < 0) continue;
+      int entry = indexOf(program, l.entry);
+      if(entry >= 0 && !startsImage(program, entry)) {
+        throw new LogicException("Parallel entry " + l.entry + " must start " +
+            "a cog image at org 0", l.line, 0);
+      }
+      int end = indexOf(program, l.label("wait"));
+      for(int i = start; i < end; i++) {
+        if(program.get(i).is(Element.Kind.ORG)) {
+          throw new LogicException(".parallel and its .endparallel must be " +
+              "in the same cog image", l.line, 0);
+        }
+      }
+    }
+  }
+
+  private static int indexOf(List<Element> program, String label) {
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(e.is(Element.Kind.LABEL) && e.getLabel().equals(label)) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Checks that nothing but labels and alignment comes between an element and
+   * the {@code org 0} (or start of program) before it.
+   */
+  private static boolean startsImage(List<Element> program, int index) {
+    for(int i = index - 1; i >= 0; i--) {
+      Element e = program.get(i);
+      if(e.is(Element.Kind.ORG)) return e.getValue() == 0;
+      if(!e.is(Element.Kind.LABEL) && !e.is(Element.Kind.ALIGN)) return false;
+    }
+    return true;
+  }
+
+  private static LabelReference ref(String label) {
+    return new LabelReference(label);
+  }
+
+  /**
+   * @return a pool register holding the hub address of {@code label}.
+   */
+  private LabelReference hub(String label) {
+    return builder.addPoolReference(
+        new LabelReference(label, LabelReference.MemoryType.SHARED));
+  }
+
+  private void emit(Predicate predicate, Operation op, Operand dest,
+                    Operand source, boolean immediate, Effect... effects) {
+    Instruction instr = new Instruction(builder);
+    instr.setOperation(op);
+    instr.setPredicate(predicate);
+    if(dest != null) instr.setDest(dest);
+    if(source != null) instr.setSource(source);
+    instr.setImmediateSource(immediate);
+    for(Effect effect : effects) instr.addEffect(effect);
+    builder.addInstruction(instr);
+  }
+}
@@ -0,0 +1,235 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes lookup tables at assembly time, so programs don't have to compute
+ * them at runtime or load them from files made by other tools.
+ * 
+ * Each table is a function evaluated at indices 0 through {@code count - 1},
+ * with a few integer parameters, since the source has no fractions:<ul>
+ * <li>{@code sin}, {@code cos} (amplitude): one full cycle across the
+ *     table, scaled by the amplitude.</li>
+ * <li>{@code gamma} (gamma&times;100, top): the curve from zero to
+ *     {@code top}, raised to the given power; 220 is the usual 2.2.</li>
+ * <li>{@code crc8}, {@code crc16}, {@code crc32} (polynomial, reflected):
+ *     the byte-at-a-time table for the CRC with the given polynomial, in its
+ *     usual most-significant-first form.  If {@code reflected} is 1, the
+ *     table is for the bit-reversed, least-significant-first variant (as
+ *     used by Ethernet's CRC-32).  A 16-entry table works a nibble at a
+ *     time.</li>
+ * <li>{@code recip} (scale, first): {@code scale / x}, rounded, for
+ *     {@code x} counting up from {@code first}, which defaults to 1.</li>
+ * <li>{@code log} (scale): {@code scale * log2(1 + i/count)}, the fraction
+ *     of a base-2 logarithm.</li>
+ * <li>{@code exp} (scale): {@code scale * (2^(i/count) - 1)}, its
+ *     inverse.</li>
+ * </ul>
+ * Values are rounded to the nearest integer, and must fit the table's data
+ * size, either signed or unsigned.  Large tables are computed in parallel.
+ * 
+ * @author cbiffle
+ *
+ */
+public class TableGenerator {
+  /** The functions a table can hold. */
+  public enum Function {
+    SIN(1, 1), COS(1, 1), GAMMA(1, 2), CRC8(1, 2), CRC16(1, 2), CRC32(1, 2),
+    RECIP(1, 2), LOG(1, 1), EXP(1, 1);
+    
+    private final int minArgs, maxArgs;
+    
+    private Function(int minArgs, int maxArgs) {
+      this.minArgs = minArgs;
+      this.maxArgs = maxArgs;
+    }
+  }
+  
+  /** Entries computed by each task, for tables large enough to split. */
+  private static final int GRAIN = 4096;
+  
+  private final int threads;
+  
+  /**
+   * @param threads  most threads to compute large tables on.
+   */
+  public TableGenerator(int threads) {
+    this.threads = threads;
+  }
+  
+  /**
+   * Computes a table.
+   * 
+   * @param function  function to evaluate.
+   * @param count  number of entries.
+   * @param size  bytes per entry: 1, 2, or 4.
+   * @param args  the function's parameters, as described above.
+   * @return the entries.
+   * @throws IllegalArgumentException  if the parameters are wrong, or an
+   *         entry doesn't fit.
+   */
+  public int[] generate(Function function, int count, int size, int... args) {
+    if(count < 1) {
+      throw new IllegalArgumentException("Table must have at least one entry");
+    }
+    if(args.length < function.minArgs || args.length > function.maxArgs) {
+      throw new IllegalArgumentException(function.name().toLowerCase() +
+          " tables take " + function.minArgs +
+          (function.maxArgs > function.minArgs
+              ? " or " + function.maxArgs : "") + " parameter(s)");
+    }
+    if(isCrc(function) && count != 16 && count != 256) {
+      throw new IllegalArgumentException("CRC tables have 16 or 256 entries");
+    }
+    int[] table = new int[count];
+    if(threads > 1 && count > GRAIN) {
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      try {
+        pool.invoke(new Task(table, function, size, args, 0, count));
+      } finally {
+        pool.shutdown();
+      }
+    } else {
+      // Outside a pool, the task would fork into the common pool.
+      for(int i = 0; i < count; i++) {
+        table[i] = entry(value(function, i, count, args), size);
+      }
+    }
+    return table;
+  }
+  
+  private static boolean isCrc(Function function) {
+    return function == Function.CRC8 || function == Function.CRC16 ||
+        function == Function.CRC32;
+  }
+  
+  /**
+   * Computes one entry, before rounding and range checks.
+   */
+  static double value(Function function, int i, int count, int[] args) {
+    double fraction = (double)i / count;
+    switch(function) {
+    case SIN:
+      return args[0] * Math.sin(2 * Math.PI * fraction);
+    case COS:
+      return args[0] * Math.cos(2 * Math.PI * fraction);
+    case GAMMA:
+      double top = (args.length > 1) ? args[1] : 255;
+      double x = (count > 1) ? (double)i / (count - 1) : 1;
+      return top * Math.pow(x, args[0] / 100.0);
+    case CRC8:
+      return crc(i, count, 8, args);
+    case CRC16:
+      return crc(i, count, 16, args);
+    case CRC32:
+      return crc(i, count, 32, args);
+    case RECIP:
+      long x0 = i + ((args.length > 1) ? args[1] : 1L);
+      if(x0 == 0) {
+        throw new IllegalArgumentException("Reciprocal table includes 1/0");
+      }
+      return (double)(args[0] & 0xFFFFFFFFL) / x0;
+    case LOG:
+      return args[0] * Math.log(1 + fraction) / Math.log(2);
+    case EXP:
+      return args[0] * (Math.pow(2, fraction) - 1);
+    }
+    throw new AssertionError(function);
+  }
+  
+  /**
+   * Computes a CRC table entry, shifting in a byte (or a nibble, for a
+   * 16-entry table) at a time.
+   */
+  private static long crc(int i, int count, int width, int[] args) {
+    int bits = (count == 16) ? 4 : 8;
+    long mask = (1L << width) - 1;
+    long poly = args[0] & mask;
+    boolean reflected = args.length > 1 && args[1] != 0;
+    long crc;
+    if(reflected) {
+      long reversed = 0;
+      for(int b = 0; b < width; b++) {
+        if((poly & (1L << b)) != 0) reversed |= 1L << (width - 1 - b);
+      }
+      crc = i;
+      for(int b = 0; b < bits; b++) {
+        crc = ((crc & 1) != 0) ? (crc >>> 1) ^ reversed : crc >>> 1;
+      }
+    } else {
+      long top = 1L << (width - 1);
+      crc = (long)i << (width - bits);
+      for(int b = 0; b < bits; b++) {
+        crc = ((crc & top) != 0) ? ((crc << 1) ^ poly) & mask
+                                 : (crc << 1) & mask;
+      }
+    }
+    return crc;
+  }
+  
+  /**
+   * Rounds an entry, and makes sure it fits.
+   */
+  private static int entry(double value, int size) {
+    long rounded = Math.round(value);
+    long min = (size == 4) ? Integer.MIN_VALUE : -(1L << (8 * size - 1));
+    long max = (1L << (8 * size)) - 1;
+    if(rounded < min || rounded > max) {
+      throw new IllegalArgumentException("Table value " + rounded +
+          " doesn't fit in " + size + " byte(s)");
+    }
+    return (int)rounded;
+  }
+  
+  /**
+   * Fills in part of a table, splitting the work if there's a lot of it.
+   */
+  private static class Task extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    private final int[] table;
+    private final Function function;
+    private final int size;
+    private final int[] args;
+    private final int start, end;
+    
+    Task(int[] table, Function function, int size, int[] args, int start,
+         int end) {
+      this.table = table;
+      this.function = function;
+      this.size = size;
+      this.args = args;
+      this.start = start;
+      this.end = end;
+    }
+    
+    @Override
+    protected void compute() {
+      if(end - start <= GRAIN) {
+        for(int i = start; i < end; i++) {
+          table[i] = entry(value(function, i, table.length, args), size);
+        }
+      } else {
+        int middle = (start + end) >>> 1;
+        invokeAll(new Task(table, function, size, args, start, middle),
+                  new Task(table, function, size, args, middle, end));
+      }
+    }
+  }
+}
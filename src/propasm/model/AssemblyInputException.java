@@ -36,6 +36,14 @@ public abstract class AssemblyInputException extends Exception {
   public int getLine() {
     return line;
   }
+  /**
+   * Input errors are reported by their position in the source, never by stack
+   * trace, so this skips the (comparatively expensive) trace capture.
+   */
+  @Override
+  public Throwable fillInStackTrace() {
+    return this;
+  }
   @Override
   public String toString() {
     StringBuilder buf = new StringBuilder();
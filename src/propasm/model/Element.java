@@ -0,0 +1,214 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.model;
+
+/**
+ * One step in the intermediate form of a program, as recorded by
+ * {@link ProgramBuilder}.  Each element corresponds to a single call on the
+ * builder -- a label definition, a directive, a piece of data, or an
+ * {@link Instruction} -- so replaying the elements in order against a fresh
+ * builder reproduces the program's layout.
+ * 
+ * Whole-program passes (see {@link ProgramPass}) work by editing the list of
+ * elements before it is laid out and encoded.
+ * 
+ * @author cbiffle
+ *
+ */
+public final class Element {
+  /**
+   * Indicates what an element does.
+   */
+  public enum Kind {
+    /** Defines a label at the current address. */
+    LABEL,
+    /** Resets the runtime address, like ORG.  Value is in words. */
+    ORG,
+    /** Reserves space without emitting it, like RES.  Value is in bytes. */
+    RESERVE,
+    /** Pads the image to a multiple of the value, in bytes. */
+    ALIGN,
+    /** A data byte. */
+    BYTE,
+    /** A data shortword. */
+    WORD,
+    /** A data longword. */
+    LONG,
+    /** A data shortword holding the address of a label. */
+    WORD_REFERENCE,
+    /** A data longword holding the address of a label. */
+    LONG_REFERENCE,
+    /** An instruction. */
+    INSTRUCTION
+  }
+  
+  private final Kind kind;
+  private final int value;
+  private final String label;
+  private final LabelReference reference;
+  private final Instruction instruction;
+  /** Source file and line the element came from, if known. */
+  private String sourceName;
+  private int sourceLine;
+  
+  private Element(Kind kind, int value, String label,
+      LabelReference reference, Instruction instruction) {
+    this.kind = kind;
+    this.value = value;
+    this.label = label;
+    this.reference = reference;
+    this.instruction = instruction;
+  }
+  
+  public static Element label(String name) {
+    return new Element(Kind.LABEL, 0, name, null, null);
+  }
+  
+  public static Element org(int address) {
+    return new Element(Kind.ORG, address, null, null, null);
+  }
+  
+  public static Element reserve(int bytes) {
+    return new Element(Kind.RESERVE, bytes, null, null, null);
+  }
+  
+  public static Element align(int unit) {
+    return new Element(Kind.ALIGN, unit, null, null, null);
+  }
+  
+  public static Element data(Kind kind, int value) {
+    if(kind != Kind.BYTE && kind != Kind.WORD && kind != Kind.LONG) {
+      throw new IllegalArgumentException("Not a data kind: " + kind);
+    }
+    return new Element(kind, value, null, null, null);
+  }
+  
+  public static Element reference(Kind kind, LabelReference reference) {
+    if(kind != Kind.WORD_REFERENCE && kind != Kind.LONG_REFERENCE) {
+      throw new IllegalArgumentException("Not a reference kind: " + kind);
+    }
+    return new Element(kind, 0, null, reference, null);
+  }
+  
+  public static Element instruction(Instruction instruction) {
+    return new Element(Kind.INSTRUCTION, 0, null, null, instruction);
+  }
+  
+  public Kind getKind() {
+    return kind;
+  }
+  
+  /**
+   * Shorthand for checking an element's kind.
+   * 
+   * @param otherKind  kind desired
+   * @return {@code true} for a match, {@code false} otherwise.
+   */
+  public boolean is(Kind otherKind) {
+    return kind == otherKind;
+  }
+  
+  /**
+   * Returns the numeric argument of ORG, RESERVE, ALIGN, and data elements.
+   * 
+   * @return the element's value; zero for other kinds.
+   */
+  public int getValue() {
+    return value;
+  }
+  
+  /**
+   * @return the name defined by a LABEL element, or {@code null}.
+   */
+  public String getLabel() {
+    return label;
+  }
+  
+  /**
+   * @return the label referenced by a data reference, or {@code null}.
+   */
+  public LabelReference getReference() {
+    return reference;
+  }
+  
+  /**
+   * @return the instruction in an INSTRUCTION element, or {@code null}.
+   */
+  public Instruction getInstruction() {
+    return instruction;
+  }
+  
+  /**
+   * Records where in the source this element came from.  Passes that replace
+   * elements should carry the position over, so that listings and reports
+   * still point at the right line.
+   * 
+   * @param name  source file name, or {@code null} if unknown.
+   * @param line  line number within the file, or zero if unknown.
+   */
+  public void setSource(String name, int line) {
+    this.sourceName = name;
+    this.sourceLine = line;
+  }
+  
+  /**
+   * Copies the source position of another element onto this one.
+   * 
+   * @param other  element whose position to copy.
+   * @return this element, for convenience.
+   */
+  public Element withSourceOf(Element other) {
+    setSource(other.sourceName, other.sourceLine);
+    return this;
+  }
+  
+  /**
+   * @return the name of the source file this element came from, or
+   *         {@code null} if unknown.
+   */
+  public String getSourceName() {
+    return sourceName;
+  }
+  
+  /**
+   * @return the source line this element came from, or zero if unknown.
+   */
+  public int getSourceLine() {
+    return sourceLine;
+  }
+  
+  @Override public String toString() {
+    StringBuilder buf = new StringBuilder();
+    buf.append("[element ");
+    buf.append(kind);
+    switch(kind) {
+    case LABEL:
+      buf.append(' ').append(label);
+      break;
+    case WORD_REFERENCE:
+    case LONG_REFERENCE:
+      buf.append(' ').append(reference.getTargetName());
+      break;
+    case INSTRUCTION:
+      buf.append(' ').append(instruction.getOperation().getClass().getSimpleName());
+      break;
+    default:
+      buf.append(' ').append(value);
+    }
+    buf.append(']');
+    return buf.toString();
+  }
+}
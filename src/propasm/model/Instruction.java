@@ -15,6 +15,7 @@
 // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package propasm.model;
 
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Set;
 
@@ -46,6 +47,24 @@ public class Instruction {
     this.table = table;
   }
   
+  /**
+   * Makes an independent copy of this instruction, for passes that rewrite
+   * instructions without disturbing the original.
+   *
+   * @return a new instruction with the same operation, operands, predicate,
+   *         and effects.
+   */
+  public Instruction copy() {
+    Instruction copy = new Instruction(table);
+    copy.operation = operation;
+    copy.predicate = predicate;
+    copy.dest = dest;
+    copy.source = source;
+    copy.immediateSource = immediateSource;
+    copy.effects.addAll(effects);
+    return copy;
+  }
+
   public Operation getOperation() {
     return operation;
   }
@@ -63,6 +82,31 @@ public class Instruction {
     this.predicate = predicate;
   }
   
+  /**
+   * Returns the predicate this instruction will actually be encoded with:
+   * either the one given in the source, or the operation's default.
+   * 
+   * @return the effective predicate; never {@code null}.
+   */
+  public Predicate getEffectivePredicate() {
+    return (predicate != null) ? predicate : operation.defaultPredicate();
+  }
+  
+  /**
+   * @return {@code true} if this instruction may be skipped, depending on
+   *         flags.
+   */
+  public boolean isConditional() {
+    return getEffectivePredicate() != Predicate.IF_ALWAYS;
+  }
+  
+  /**
+   * @return the timing class of this instruction's operation.
+   */
+  public Timing getTiming() {
+    return operation.getTiming();
+  }
+  
   public Operand getSource() {
     return source;
   }
@@ -71,6 +115,9 @@ public class Instruction {
     source = operand;
   }
 
+  public Operand getDest() {
+    return dest;
+  }
   public void setDest(Operand operand) {
     if(operand == null) throw new IllegalArgumentException("Null dest");
     if(operand.isReadOnly()) {
@@ -80,10 +127,16 @@ public class Instruction {
     dest = operand;
   }
   
+  public boolean isImmediateSource() {
+    return immediateSource;
+  }
   public void setImmediateSource(boolean immediate) {
     immediateSource = immediate;
   }
 
+  public Set<Effect> getEffects() {
+    return Collections.unmodifiableSet(effects);
+  }
   public void addEffect(Effect effect) {
     effects.add(effect);
   }
@@ -98,6 +151,18 @@ public class Instruction {
    * @return a four-byte binary representation.
    */
   public int binaryRepresentation() {
+    return binaryRepresentation(table);
+  }
+  
+  /**
+   * Variant of {@link #binaryRepresentation()} that converts label references
+   * using the given symbol table, rather than the one provided in the
+   * constructor.
+   * 
+   * @param symbols  symbol table used to resolve labels.
+   * @return a four-byte binary representation.
+   */
+  public int binaryRepresentation(SymbolTable symbols) {
     int word = operation.getTemplate();
     
     for(Effect effect : effects) {
@@ -113,8 +178,8 @@ public class Instruction {
     if(d == null) d = operation.defaultDest(this);
     Operand s = source;
     if(s == null) s = operation.defaultSource(this);
-    word = applyOperand(word, d, 9);
-    word = applyOperand(word, s, 0);
+    word = applyOperand(word, d, 9, symbols);
+    word = applyOperand(word, s, 0, symbols);
     
     return word;
     
@@ -131,9 +196,11 @@ public class Instruction {
    * @param word  original instruction word 
    * @param operand  operand to apply
    * @param offset  offset into the word where the operand should appear
+   * @param symbols  symbol table used to resolve labels
    * @return  a modified instructon word containing the operand.
    */
-  private int applyOperand(int word, Operand operand, int offset) {
+  private int applyOperand(int word, Operand operand, int offset,
+                           SymbolTable symbols) {
     if(operand == null) return word;
     
     int value = 0;
@@ -141,7 +208,7 @@ public class Instruction {
       value = operand.getValue();
     } else {
       LabelReference ref = (LabelReference)operand;
-      value = ref.retrieveAddress(table, offset);
+      value = ref.retrieveAddress(symbols, offset);
     }
     word |= value << offset;
     return word;
@@ -0,0 +1,43 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.model;
+
+/**
+ * Receives the final layout of a program from {@link ProgramBuilder}, one
+ * element at a time, in program order.  Used for listings and similar output.
+ * 
+ * @author cbiffle
+ *
+ */
+public interface LayoutListener {
+  /**
+   * Reports where one element ended up.
+   * 
+   * @param element  the element.
+   * @param runtimeAddress  cog address of the element, in longs.
+   * @param imageAddress  offset of the element within the image, in bytes.
+   * @param size  number of image bytes the element occupies; zero for labels
+   *        and directives.
+   * @param image  the complete encoded image.  Must not be modified.
+   */
+  void elementPlaced(Element element, int runtimeAddress, int imageAddress,
+                     int size, byte[] image);
+  
+  /**
+   * Called after the last element has been reported.
+   */
+  void layoutFinished();
+}
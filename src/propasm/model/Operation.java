@@ -124,6 +124,16 @@ public abstract class Operation {
     return false;
   }
 
+  /**
+   * Returns how long this operation takes to execute.  Most operations take
+   * four clocks; those that branch, touch the hub, or wait must override this.
+   * 
+   * @return the operation's timing class.
+   */
+  public Timing getTiming() {
+    return Timing.ORDINARY;
+  }
+
   /**
    * Generates a template word for instructions using this operation.  Callers
    * can generate the full instruction word by applying predicates, effects,
@@ -76,4 +76,53 @@ public enum Predicate {
     word |= flags << 18;
     return word;
   }
+  
+  /*
+   * The four condition bits select which combinations of C and Z let the
+   * instruction run: bit 0 for !C & !Z, bit 1 for !C & Z, bit 2 for C & !Z,
+   * and bit 3 for C & Z.
+   */
+  
+  /**
+   * @return {@code true} if whether the instruction runs depends on C.
+   */
+  public boolean dependsOnC() {
+    return (flags & 0x3) != ((flags >> 2) & 0x3);
+  }
+  
+  /**
+   * @return {@code true} if whether the instruction runs depends on Z.
+   */
+  public boolean dependsOnZ() {
+    return (flags & 0x5) != ((flags >> 1) & 0x5);
+  }
+
+  /**
+   * @return the predicate that lets an instruction run exactly when this one
+   *         doesn't.
+   */
+  public Predicate invert() {
+    return forFlags(~flags & 0xF);
+  }
+
+  /**
+   * @return the predicate that lets an instruction run only when both this
+   *         one and {@code other} would.
+   */
+  public Predicate and(Predicate other) {
+    return forFlags(flags & other.flags);
+  }
+
+  /**
+   * Finds the predicate with the given condition bits.  Where several names
+   * share an encoding, the first listed is returned.
+   *
+   * @param flags  condition bits, 0 through 15.
+   */
+  public static Predicate forFlags(int flags) {
+    for(Predicate p : values()) {
+      if(p.flags == flags) return p;
+    }
+    throw new IllegalArgumentException("No predicate has flags " + flags);
+  }
 }
@@ -16,9 +16,15 @@
 package propasm.model;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import propasm.util.ByteBuffer;
 import propasm.AssemblerConfig;
@@ -36,6 +42,16 @@ import propasm.AssemblerConfig;
  * Runtime addresses are manipulated in terms of bytes internally, but the
  * external interface is in units of words (to match Cog internal addressing).
  * 
+ * Every call on the builder is also recorded as an {@link Element}, giving an
+ * intermediate form of the program.  By default instructions are encoded as
+ * soon as they arrive, and forward references are patched up by
+ * {@link #finish()}.  In <em>deferred</em> mode (see
+ * {@link AssemblerConfig#setDeferredEncoding(boolean)}), instructions are only
+ * placed during parsing; once every label is known, {@code finish()} runs any
+ * registered {@link ProgramPass}es over the elements, lays them out again if
+ * needed, and encodes all words in parallel straight into the output, with no
+ * fixups.  Registering a pass implies the deferred pipeline.
+ * 
  * Instances of ProgramBuilder are not reusable.  Object creation is cheap;
  * exploit it.
  * 
@@ -73,6 +89,48 @@ public class ProgramBuilder implements SymbolTable {
   private final Map<String, List<UnboundLabel>> pendingReferences =
     new HashMap<String, List<UnboundLabel>>();
   
+  /** Intermediate form of the program: every builder call, in order. */
+  private final List<Element> program = new ArrayList<Element>();
+  /** Passes to run over {@link #program} before final layout. */
+  private final List<ProgramPass> passes = new ArrayList<ProgramPass>();
+  /**
+   * Whether instructions are encoded as they arrive.  If not, they (and data
+   * references) are recorded in {@link #placements} and encoded by
+   * {@link #finish()}.
+   */
+  private boolean encodeEagerly;
+  /** Words awaiting encoding, with their image addresses. */
+  private final List<Placement> placements = new ArrayList<Placement>();
+  /** Observers of the final layout. */
+  private final List<LayoutListener> listeners = new ArrayList<LayoutListener>();
+  /**
+   * Where each element landed in the final layout, in order.  Only kept when
+   * there are {@link #listeners}.
+   */
+  private List<Extent> extents;
+  
+  /** Data waiting to be placed in the next literal pool, by label. */
+  private final Map<String, Element> poolEntries =
+    new LinkedHashMap<String, Element>();
+  /** Labels of the pool entries, by the constant they hold. */
+  private final Map<String, String> poolLabels = new HashMap<String, String>();
+  /** Number of literal pools placed so far, used to keep labels unique. */
+  private int poolCount = 0;
+  /** Trip counts given to loops in the source, by the header's label. */
+  private final Map<String, Integer> loopBounds =
+    new HashMap<String, Integer>();
+  /** Labels the source says must survive dead code elimination. */
+  private final Set<String> keptLabels = new TreeSet<String>();
+  /** Number of labels made up by {@link #uniqueLabel(String)} so far. */
+  private int generatedLabels = 0;
+  
+  /** Source position stamped on elements as they are recorded. */
+  private String sourceName;
+  private int sourceLine;
+  
+  /** Number of placements below which encoding is not split further. */
+  private static final int ENCODING_GRAIN = 4096;
+  
   /** Canned loader preamble. */
   private static final byte[] PREAMBLE = {
     0, 0, 0, 0, // clock speed
@@ -95,6 +153,7 @@ public class ProgramBuilder implements SymbolTable {
   
   public ProgramBuilder(AssemblerConfig config) {
     this.config = config;
+    this.encodeEagerly = !config.isDeferredEncoding();
 	 if (config.isGenerateBootloader()) {
     	for(byte b : PREAMBLE) {
         write(b);
@@ -103,6 +162,45 @@ public class ProgramBuilder implements SymbolTable {
     runtimeAddress = 0;
   }
   
+  /**
+   * @return the configuration this program is being assembled with.
+   */
+  public AssemblerConfig getConfig() {
+    return config;
+  }
+  
+  /**
+   * Registers a pass to run over the whole program during {@link #finish()}.
+   * 
+   * @param pass  the pass to add.
+   */
+  public void addPass(ProgramPass pass) {
+    passes.add(pass);
+  }
+  
+  /**
+   * Registers a listener to be told where each element ended up, once the
+   * program has been encoded.  Like passes, this implies the deferred
+   * pipeline, so that the listener sees final values for forward references.
+   * 
+   * @param listener  the listener to add.
+   */
+  public void addLayoutListener(LayoutListener listener) {
+    listeners.add(listener);
+  }
+  
+  /**
+   * Sets the source position recorded on subsequent elements.  Parsers should
+   * call this at the start of each line.
+   * 
+   * @param name  source file name.
+   * @param line  line number within the file.
+   */
+  public void setSourcePosition(String name, int line) {
+    this.sourceName = name;
+    this.sourceLine = line;
+  }
+  
   public int getInputFrequency() {
     return inputFrequency;
   }
@@ -135,7 +233,9 @@ public class ProgramBuilder implements SymbolTable {
     if(addr < 0 || addr > 512) {
       throw new IllegalArgumentException("Address out of range");
     }
-    runtimeAddress = addr * 4;
+    // A new ORG starts a new cog image; the old one's constants go with it.
+    addPool();
+    emit(Element.org(addr));
   }
   
   /**
@@ -167,7 +267,7 @@ public class ProgramBuilder implements SymbolTable {
    * @param count  number of bytes to reserve.
    */
   public void reserveBytes(int count) {
-    pendingReservation += count;
+    emit(Element.reserve(count));
   }
   
   /**
@@ -176,8 +276,7 @@ public class ProgramBuilder implements SymbolTable {
    * @param value  byte to add.
    */
   public void addByte(byte value) {
-    flushReservation();
-    write(value);
+    emit(Element.data(Element.Kind.BYTE, value));
   }
   
   /**
@@ -186,8 +285,7 @@ public class ProgramBuilder implements SymbolTable {
    * @param value  shortword to add.
    */
   public void addWord(int value) {
-    flushReservation();
-    writeWord(value);
+    emit(Element.data(Element.Kind.WORD, value));
   }
   
   /**
@@ -196,8 +294,27 @@ public class ProgramBuilder implements SymbolTable {
    * @param value  longword to add.
    */
   public void addLong(int value) {
-    flushReservation();
-    writeLong(value);
+    emit(Element.data(Element.Kind.LONG, value));
+  }
+  
+  /**
+   * Adds a data shortword holding the address of a label, which may not have
+   * been defined yet.
+   * 
+   * @param ref  label whose address should be stored.
+   */
+  public void addWordReference(LabelReference ref) {
+    emit(Element.reference(Element.Kind.WORD_REFERENCE, ref));
+  }
+  
+  /**
+   * Adds a data longword holding the address of a label, which may not have
+   * been defined yet.
+   * 
+   * @param ref  label whose address should be stored.
+   */
+  public void addLongReference(LabelReference ref) {
+    emit(Element.reference(Element.Kind.LONG_REFERENCE, ref));
   }
   
   /**
@@ -206,10 +323,120 @@ public class ProgramBuilder implements SymbolTable {
    * @param instr instruction to add.
    */
   public void addInstruction(Instruction instr) {
-    int word = instr.binaryRepresentation();
-    writeLong(word);
+    emit(Element.instruction(instr));
+  }
+  
+  
+  /**
+   * Requests a longword holding a constant in the literal pool, for use as a
+   * register operand.  Requests for the same value share a longword, until
+   * the pool is placed by {@link #addPool()}.
+   * 
+   * @param value  constant needed.
+   * @return a reference to the pool longword.
+   */
+  public LabelReference addPoolConstant(int value) {
+    return poolEntry("$" + Integer.toHexString(value),
+                     Element.data(Element.Kind.LONG, value));
+  }
+  
+  /**
+   * Requests a longword holding the address of a label in the literal pool;
+   * see {@link #addPoolConstant(int)}.
+   * 
+   * @param ref  label whose address is needed.
+   * @return a reference to the pool longword.
+   */
+  public LabelReference addPoolReference(LabelReference ref) {
+    String key = (ref.getMemoryType() == LabelReference.MemoryType.SHARED)
+        ? "@" + ref.getTargetName() : ref.getTargetName();
+    return poolEntry(key,
+                     Element.reference(Element.Kind.LONG_REFERENCE, ref));
+  }
+  
+  private LabelReference poolEntry(String key, Element data) {
+    String label = poolLabels.get(key);
+    if(label == null) {
+      // Not a legal label in any source syntax, so it can't collide.
+      label = "##" + poolCount + ":" + key;
+      poolLabels.put(key, label);
+      poolEntries.put(label, data);
+    }
+    return new LabelReference(label);
+  }
+  
+  /**
+   * @return the number of longwords waiting to be placed in the literal pool.
+   */
+  public int getPendingPoolSize() {
+    return poolEntries.size();
+  }
+  
+  /**
+   * Places the literal pool at the current address, if any constants are
+   * waiting for it.  This happens automatically at each ORG and at the end of
+   * the program, but code that runs on into the end of its image must place
+   * the pool somewhere it won't be executed.
+   */
+  public void addPool() {
+    if(poolEntries.isEmpty()) return;
+    for(Map.Entry<String, Element> entry : poolEntries.entrySet()) {
+      defineLabel(entry.getKey());
+      emit(entry.getValue());
+    }
+    poolEntries.clear();
+    poolLabels.clear();
+    poolCount++;
+  }
+  
+  /**
+   * Makes up a label name for code generated on the source's behalf.  Like
+   * the literal pool's labels, it isn't legal in any source syntax, so it
+   * can't collide with a label the programmer wrote.
+   * 
+   * @param hint  readable part of the name, for listings.
+   * @return a label name not returned before.
+   */
+  public String uniqueLabel(String hint) {
+    return "##" + hint + generatedLabels++;
   }
   
+  /**
+   * Records the most trips a loop can take, for timing analysis of loops
+   * whose bound can't be found from the code.
+   * 
+   * @param label  label of the loop's header.
+   * @param trips  most trips around the loop.
+   */
+  public void setLoopBound(String label, int trips) {
+    loopBounds.put(label, trips);
+  }
+  
+  /**
+   * @return the trip counts given with {@link #setLoopBound(String, int)},
+   *         by label.  The map is read-only, but follows later changes.
+   */
+  public Map<String, Integer> getLoopBounds() {
+    return Collections.unmodifiableMap(loopBounds);
+  }
+  
+  /**
+   * Marks a label as used from outside the program, so that the code or data
+   * there is kept even if nothing in the program refers to it.
+   * 
+   * @param label  label to keep.
+   */
+  public void keepLabel(String label) {
+    keptLabels.add(label);
+  }
+  
+  /**
+   * @return the labels given to {@link #keepLabel(String)}.  The set is
+   *         read-only, but follows later changes.
+   */
+  public Set<String> getKeptLabels() {
+    return Collections.unmodifiableSet(keptLabels);
+  }
   
   /**
    * Defines a label at the current runtime address.  Used to process labelled
@@ -222,9 +449,140 @@ public class ProgramBuilder implements SymbolTable {
     if(definedLabels.containsKey(label)) {
       throw new IllegalStateException("Duplicate definition of label " + label);
     }
-    AddressRecord record = new AddressRecord(getRuntimeAddress(),
-                                             getImageAddress());
-    definedLabels.put(label, record);
+    emit(Element.label(label));
+  }
+  
+  /**
+   * Records an element in the intermediate form, and applies it to the
+   * current layout.
+   */
+  private void emit(Element e) {
+    e.setSource(sourceName, sourceLine);
+    program.add(e);
+    apply(e);
+  }
+  
+  /**
+   * Applies a single element to the current layout, advancing the image and
+   * runtime addresses.
+   */
+  private void apply(Element e) {
+    place(e);
+    if(extents != null) {
+      int size = sizeOf(e);
+      if(size > 0) {
+        extents.add(new Extent(e, (runtimeAddress - size) >> 2,
+                               output.position() - size, size));
+      } else {
+        extents.add(new Extent(e, getRuntimeAddress(), getImageAddress(), 0));
+      }
+    }
+  }
+  
+  /**
+   * Returns the number of image bytes an element occupies, not counting any
+   * alignment padding in front of it.
+   */
+  private static int sizeOf(Element e) {
+    switch(e.getKind()) {
+    case BYTE:
+      return 1;
+    case WORD:
+    case WORD_REFERENCE:
+      return 2;
+    case LONG:
+    case LONG_REFERENCE:
+    case INSTRUCTION:
+      return 4;
+    default:
+      return 0;
+    }
+  }
+  
+  /**
+   * Does the work of {@link #apply(Element)}.
+   */
+  private void place(Element e) {
+    switch(e.getKind()) {
+    case LABEL:
+      definedLabels.put(e.getLabel(),
+          new AddressRecord(getRuntimeAddress(), getImageAddress()));
+      break;
+    case ORG:
+      runtimeAddress = e.getValue() * 4;
+      break;
+    case RESERVE:
+      pendingReservation += e.getValue();
+      break;
+    case ALIGN:
+      pad(e.getValue());
+      break;
+    case BYTE:
+      flushReservation();
+      write(e.getValue());
+      break;
+    case WORD:
+      flushReservation();
+      writeWord(e.getValue());
+      break;
+    case LONG:
+      flushReservation();
+      writeLong(e.getValue());
+      break;
+    case WORD_REFERENCE:
+      flushReservation();
+      pad(2);
+      if(encodeEagerly) {
+        writeWord(e.getReference().retrieveAddress(this, 0));
+      } else {
+        placements.add(new Placement(output.position(), e));
+        writeWord(0);
+      }
+      break;
+    case LONG_REFERENCE:
+      flushReservation();
+      pad(4);
+      if(encodeEagerly) {
+        writeLong(e.getReference().retrieveAddress(this, 0));
+      } else {
+        placements.add(new Placement(output.position(), e));
+        writeLong(0);
+      }
+      break;
+    case INSTRUCTION:
+      pad(4);
+      if(encodeEagerly) {
+        writeLong(e.getInstruction().binaryRepresentation());
+      } else {
+        placements.add(new Placement(output.position(), e));
+        writeLong(0);
+      }
+      break;
+    }
+  }
+  
+  /**
+   * Discards the current layout and rebuilds it from the recorded elements,
+   * placing (rather than encoding) every instruction and data reference.
+   */
+  private void layOut() {
+    output = new ByteBuffer();
+    pendingReservation = 0;
+    runtimeAddress = 0;
+    definedLabels.clear();
+    pendingReferences.clear();
+    placements.clear();
+    extents = listeners.isEmpty() ? null : new ArrayList<Extent>();
+    encodeEagerly = false;
+    if(config.isGenerateBootloader()) {
+      for(byte b : PREAMBLE) {
+        write(b);
+      }
+    }
+    runtimeAddress = 0;
+    for(Element e : program) {
+      apply(e);
+    }
   }
 
   /**
@@ -274,6 +632,10 @@ public class ProgramBuilder implements SymbolTable {
    * @throws LogicException if a label is left unresolved.
    */
   public byte[] finish() throws LogicException {
+    addPool();
+    if(!encodeEagerly || !passes.isEmpty() || !listeners.isEmpty()) {
+      return finishDeferred();
+    }
     StringBuilder msg = new StringBuilder();
     
     for(String label : pendingReferences.keySet()) {
@@ -318,13 +680,67 @@ public class ProgramBuilder implements SymbolTable {
     }
   }
   
+  /**
+   * Second stage of the deferred pipeline: runs passes, lays out the program
+   * if it may have changed, and encodes every placed word in parallel.
+   */
+  private byte[] finishDeferred() throws LogicException {
+    for(ProgramPass pass : passes) {
+      pass.apply(program);
+    }
+    if(encodeEagerly || !passes.isEmpty() || !listeners.isEmpty()) {
+      layOut();
+    }
+    
+    if(config.isGenerateBootloader()) {
+      fillInPreamble();
+    }
+    byte[] bytes = output.toByteArray();
+    ResolvedSymbols symbols = new ResolvedSymbols();
+    if(config.getThreads() > 1 && placements.size() > ENCODING_GRAIN) {
+      ForkJoinPool pool = new ForkJoinPool(config.getThreads());
+      try {
+        pool.invoke(new EncodingTask(bytes, symbols, 0, placements.size()));
+      } finally {
+        pool.shutdown();
+      }
+    } else {
+      // Outside a pool, the task would fork into the common pool.
+      for(Placement placement : placements) {
+        placement.encode(bytes, symbols);
+      }
+    }
+    
+    if(!symbols.missing.isEmpty()) {
+      StringBuilder msg = new StringBuilder("Unresolved labels:\n");
+      for(String label : symbols.missing) {
+        msg.append("  ");
+        msg.append(label);
+        msg.append("\n");
+      }
+      throw new LogicException(msg.toString(), 0, 0);
+    }
+    
+    if(config.isGenerateBootloader()) {
+      bytes[5] = computeChecksum(bytes);
+    }
+    for(LayoutListener listener : listeners) {
+      for(Extent extent : extents) {
+        listener.elementPlaced(extent.element, extent.runtimeAddress,
+                               extent.imageAddress, extent.size, bytes);
+      }
+      listener.layoutFinished();
+    }
+    return bytes;
+  }
+  
   private void write(int value) {
     output.write(value);
     runtimeAddress++;
   }
 
   private void writeLong(int value) {
-    ensureLongAlignment();
+    pad(4);
     write(value & 0xFF);
     write((value >> 8) & 0xFF);
     write((value >> 16) & 0xFF);
@@ -332,7 +748,7 @@ public class ProgramBuilder implements SymbolTable {
   }
 
   private void writeWord(int value) {
-    ensureWordAlignment();
+    pad(2);
     write(value & 0xFF);
     write((value >> 8) & 0xFF);
   }
@@ -344,6 +760,9 @@ public class ProgramBuilder implements SymbolTable {
     align(4);
   }
   public void align(int unit) {
+    emit(Element.align(unit));
+  }
+  private void pad(int unit) {
     int offset = unit - (output.position() & (unit - 1));
     if(offset == unit) return;
     for(int i = 0; i < offset; i++) write(0);
@@ -424,4 +843,123 @@ public class ProgramBuilder implements SymbolTable {
     }
     
   }
+  
+  /**
+   * A word in the image whose encoding has been deferred.
+   */
+  private static class Placement {
+    private final int imageAddress;
+    private final Element element;
+    
+    public Placement(int imageAddress, Element element) {
+      this.imageAddress = imageAddress;
+      this.element = element;
+    }
+    
+    /**
+     * Encodes the element into {@code bytes}, little-endian, at its image
+     * address.
+     */
+    public void encode(byte[] bytes, SymbolTable symbols) {
+      int word;
+      int size = 4;
+      switch(element.getKind()) {
+      case INSTRUCTION:
+        word = element.getInstruction().binaryRepresentation(symbols);
+        break;
+      case WORD_REFERENCE:
+        size = 2;
+        word = element.getReference().retrieveAddress(symbols, 0);
+        break;
+      case LONG_REFERENCE:
+        word = element.getReference().retrieveAddress(symbols, 0);
+        break;
+      default:
+        throw new IllegalStateException("Cannot encode " + element);
+      }
+      for(int i = 0; i < size; i++) {
+        bytes[imageAddress + i] = (byte)word;
+        word >>>= 8;
+      }
+    }
+  }
+  
+  /**
+   * Final position of an element, kept for {@link LayoutListener}s.
+   */
+  private static class Extent {
+    private final Element element;
+    private final int runtimeAddress;
+    private final int imageAddress;
+    private final int size;
+    
+    public Extent(Element element, int runtimeAddress, int imageAddress,
+        int size) {
+      this.element = element;
+      this.runtimeAddress = runtimeAddress;
+      this.imageAddress = imageAddress;
+      this.size = size;
+    }
+  }
+  
+  /**
+   * Symbol table used once layout is final.  Safe for concurrent use, since
+   * the label map is no longer modified; undefined labels are collected rather
+   * than deferred.
+   */
+  private class ResolvedSymbols implements SymbolTable {
+    private final Set<String> missing =
+      Collections.synchronizedSet(new TreeSet<String>());
+    
+    public int localAddressOfSymbol(String symbol,
+        @SuppressWarnings("unused") int offset) {
+      AddressRecord record = definedLabels.get(symbol);
+      if(record == null) {
+        missing.add(symbol);
+        return 0;
+      }
+      return record.getLocalAddress();
+    }
+    
+    public int imageAddressOfSymbol(String symbol,
+        @SuppressWarnings("unused") int offset) {
+      AddressRecord record = definedLabels.get(symbol);
+      if(record == null) {
+        missing.add(symbol);
+        return 0;
+      }
+      return record.getImageAddress();
+    }
+  }
+  
+  /**
+   * Encodes a range of {@link ProgramBuilder#placements}, splitting it across
+   * the fork-join pool when it is large.
+   */
+  private class EncodingTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    
+    private final byte[] bytes;
+    private final SymbolTable symbols;
+    private final int start, end;
+    
+    public EncodingTask(byte[] bytes, SymbolTable symbols, int start, int end) {
+      this.bytes = bytes;
+      this.symbols = symbols;
+      this.start = start;
+      this.end = end;
+    }
+    
+    @Override protected void compute() {
+      if(end - start <= ENCODING_GRAIN) {
+        for(int i = start; i < end; i++) {
+          placements.get(i).encode(bytes, symbols);
+        }
+      } else {
+        int middle = (start + end) >>> 1;
+        invokeAll(new EncodingTask(bytes, symbols, start, middle),
+                  new EncodingTask(bytes, symbols, middle, end));
+      }
+    }
+  }
 }
@@ -0,0 +1,39 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.model;
+
+import java.util.List;
+
+/**
+ * A transformation or check applied to a whole program before it is laid out
+ * and encoded.  Passes are registered with
+ * {@link ProgramBuilder#addPass(ProgramPass)} and run by
+ * {@link ProgramBuilder#finish()}, in registration order, after every label in
+ * the program is known.
+ * 
+ * @author cbiffle
+ *
+ */
+public interface ProgramPass {
+  /**
+   * Applies this pass to the program, editing the element list in place.
+   * 
+   * @param program  the program's elements, in order.
+   * @throws LogicException  if the program violates a constraint checked by
+   *         this pass.
+   */
+  void apply(List<Element> program) throws LogicException;
+}
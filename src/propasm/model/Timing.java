@@ -0,0 +1,108 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.model;
+
+/**
+ * Describes how many system clocks an operation takes to execute on the
+ * P8X32, as given in the datasheet.
+ * 
+ * Every instruction whose predicate is not met takes
+ * {@link #SKIPPED_CLOCKS}, whatever its timing class; see
+ * {@link Instruction#isConditional()}.
+ * 
+ * @author cbiffle
+ *
+ */
+public enum Timing {
+  /** Most instructions: four clocks, always. */
+  ORDINARY(4, 4, 4),
+  /**
+   * Conditional jumps ({@code djnz}, {@code tjz}, {@code tjnz}): four clocks if
+   * the jump is taken, eight if it falls through.
+   */
+  BRANCH(4, 8, 4),
+  /**
+   * Hub accesses: seven clocks once the hub window comes around, which may
+   * take up to fifteen more.
+   */
+  HUB(7, 22, 7),
+  /** {@code waitcnt}, {@code waitpeq} and {@code waitpne}: six clocks or more. */
+  WAIT(6, Integer.MAX_VALUE, 6),
+  /** {@code waitvid}: four clocks or more. */
+  VIDEO_WAIT(4, Integer.MAX_VALUE, 4);
+
+  /** Clocks taken by any instruction whose predicate is not met. */
+  public static final int SKIPPED_CLOCKS = 4;
+
+  private final int minimum;
+  private final int maximum;
+  private final int taken;
+
+  private Timing(int minimum, int maximum, int taken) {
+    this.minimum = minimum;
+    this.maximum = maximum;
+    this.taken = taken;
+  }
+
+  /**
+   * @return the fewest clocks an instruction of this class can take.
+   */
+  public int getMinimum() {
+    return minimum;
+  }
+
+  /**
+   * @return the most clocks an instruction of this class can take, or
+   *         {@link Integer#MAX_VALUE} for waits, which have no bound.
+   */
+  public int getMaximum() {
+    return maximum;
+  }
+
+  /**
+   * @return clocks taken by a {@link #BRANCH} that jumps; for other classes,
+   *         the minimum.
+   */
+  public int getTaken() {
+    return taken;
+  }
+
+  /**
+   * @return {@code true} if the instruction waits on an external event, and so
+   *         has no upper bound.
+   */
+  public boolean isUnbounded() {
+    return maximum == Integer.MAX_VALUE;
+  }
+
+  /**
+   * @return {@code true} if the instruction must synchronize with the hub.
+   */
+  public boolean isHubAccess() {
+    return this == HUB;
+  }
+
+  /**
+   * Describes the timing the way the datasheet does, for listings and reports:
+   * "4", "4/8" (taken/not taken), "7..22", or "6+".
+   */
+  @Override public String toString() {
+    if(this == BRANCH) return taken + "/" + maximum;
+    if(isUnbounded()) return minimum + "+";
+    if(minimum == maximum) return Integer.toString(minimum);
+    return minimum + ".." + maximum;
+  }
+}
@@ -0,0 +1,300 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import propasm.analysis.Instructions;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.Predicate;
+import propasm.model.ProgramBuilder;
+import propasm.model.ProgramPass;
+import propasm.parallax.pseudo.JmpOp;
+
+/**
+ * Shrinks code by sharing instructions that appear twice, at the cost of a
+ * few clocks.
+ * 
+ * <em>Cross-jumping</em> looks for straight runs of code that end in the same
+ * unconditional jump (often a return: {@code jmp foo_ret}).  Where two runs
+ * end in the same few instructions, one copy of those instructions is kept
+ * and the other is replaced with a jump to it, saving all but one long of the
+ * shared tail.  The redirected path takes four clocks longer.
+ * 
+ * <em>Head hoisting</em> looks for the alternatives left by if-conversion:
+ * a run of instructions predicated one way, followed by a run predicated the
+ * opposite way.  An instruction that starts both runs is done either way, so
+ * one unconditional copy replaces the pair.  Instructions that set flags are
+ * left alone, since the later predicates would see the change, and so are
+ * runs where the first changes the flag both are predicated on.
+ * 
+ * Neither change removes a labelled instruction, or shares or alters one
+ * that the program rewrites as it runs, so jumps into the middle of the code
+ * and self-modifying code are unaffected.  The savings in each cog image are
+ * reported.
+ * 
+ * @author cbiffle
+ *
+ */
+public class CrossJumper implements ProgramPass {
+  /** Shortest tail worth merging; a one-long tail saves nothing. */
+  private static final int MIN_TAIL = 2;
+  
+  private final ProgramBuilder builder;
+  private final PrintStream out;
+  
+  /** A change to the program found by {@link #mergeTails}. */
+  private static class Edit {
+    final String label;
+    /** End of the instructions to replace with a jump, or -1 to insert a
+     *  label. */
+    final int end;
+    
+    Edit(String label, int end) {
+      this.label = label;
+      this.end = end;
+    }
+  }
+  
+  /**
+   * @param builder  source of labels for merged tails, and symbol table for
+   *        the jumps to them.
+   * @param out  destination for a report of the savings, or {@code null}.
+   */
+  public CrossJumper(ProgramBuilder builder, PrintStream out) {
+    this.builder = builder;
+    this.out = out;
+  }
+  
+  public void apply(List<Element> program) {
+    int[] saved = new int[cogCount(program)];
+    Set<String> written = Inliner.writtenCodeLabels(new Peephole(program));
+    hoistHeads(program, written, saved);
+    mergeTails(program, written, saved);
+    if(out != null) {
+      for(int cog = 0; cog < saved.length; cog++) {
+        if(saved[cog] == 0) continue;
+        out.printf("Cog image %d: size optimization saved %d longs\n", cog,
+                   saved[cog]);
+      }
+    }
+  }
+  
+  private void hoistHeads(List<Element> program, Set<String> written,
+                          int[] saved) {
+    for(int i = 0; i < program.size(); i++) {
+      Predicate p = runPredicate(program, i);
+      if(p == null) continue;
+      int second = i;
+      while(runPredicate(program, second) == p) second++;
+      int end = second;
+      while(runPredicate(program, end) == p.invert()) end++;
+      if(changesPredicate(program, i, second, p)) {
+        // The second run doesn't see the flags the first one did, so the two
+        // aren't alternatives.
+        i = second - 1;
+        continue;
+      }
+      // Hoist while both runs start with the same instruction.
+      int first = i;
+      while(first < second && second < end) {
+        Instruction a = program.get(first).getInstruction();
+        Instruction b = program.get(second).getInstruction();
+        if(!Instructions.same(a, b, true) || Instructions.writesC(a) ||
+           Instructions.writesZ(a) || Instructions.isBranch(a) ||
+           isWritten(program, first, written)) {
+          break;
+        }
+        Instruction hoisted = a.copy();
+        hoisted.setPredicate(Predicate.IF_ALWAYS);
+        program.set(first, Element.instruction(hoisted)
+                    .withSourceOf(program.get(first)));
+        program.remove(second);
+        saved[cogOf(program, first)]++;
+        first++;
+        end--;
+      }
+      i = Math.max(i, end - 1);
+    }
+  }
+  
+  /**
+   * @return {@code true} if any instruction from {@code start} (inclusive)
+   *         to {@code end} (exclusive) writes a flag that {@code p} reads.
+   */
+  private static boolean changesPredicate(List<Element> program, int start,
+                                          int end, Predicate p) {
+    for(int i = start; i < end; i++) {
+      Instruction instr = program.get(i).getInstruction();
+      if((p.dependsOnC() && Instructions.writesC(instr)) ||
+         (p.dependsOnZ() && Instructions.writesZ(instr))) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * @return the predicate of the instruction at {@code i}, if it is
+   *         conditional, under its first name (so {@code if_z} and
+   *         {@code if_e} match); or {@code null}.
+   */
+  private static Predicate runPredicate(List<Element> program, int i) {
+    if(i >= program.size() || !program.get(i).is(Element.Kind.INSTRUCTION)) {
+      return null;
+    }
+    Instruction instr = program.get(i).getInstruction();
+    if(!instr.isConditional() || Instructions.isNever(instr)) return null;
+    return Predicate.forFlags(
+        instr.getEffectivePredicate().applyToWord(0) >> 18);
+  }
+  
+  private void mergeTails(List<Element> program, Set<String> written,
+                          int[] saved) {
+    // Runs of unlabelled instructions ending in an unconditional jump: the
+    // index of the start, the index just past the end, and the cog image.
+    List<int[]> runs = new ArrayList<int[]>();
+    int start = 0;
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(!e.is(Element.Kind.INSTRUCTION)) {
+        start = i + 1;
+      } else if(Instructions.isUnconditionalJump(e.getInstruction())) {
+        if(i > start) {
+          runs.add(new int[] { start, i + 1, cogOf(program, start) });
+        }
+        start = i + 1;
+      }
+    }
+    
+    // Group runs by their final jump and cog image, by the index of the
+    // first run's jump.  The first run of each group is kept.
+    Map<Integer, List<int[]>> groups =
+      new LinkedHashMap<Integer, List<int[]>>();
+    for(int[] run : runs) {
+      Instruction last = program.get(run[1] - 1).getInstruction();
+      Integer key = null;
+      for(Map.Entry<Integer, List<int[]>> group : groups.entrySet()) {
+        if(group.getValue().get(0)[2] == run[2] && Instructions.same(
+            program.get(group.getKey()).getInstruction(), last, false)) {
+          key = group.getKey();
+          break;
+        }
+      }
+      if(key == null) {
+        key = run[1] - 1;
+        groups.put(key, new ArrayList<int[]>());
+      }
+      groups.get(key).add(run);
+    }
+    
+    TreeMap<Integer, Edit> edits = new TreeMap<Integer, Edit>();
+    for(List<int[]> group : groups.values()) {
+      int[] kept = group.get(0);
+      Map<Integer, String> labels = new TreeMap<Integer, String>();
+      for(int[] run : group.subList(1, group.size())) {
+        // A labelled instruction can't be replaced by the jump, and one the
+        // program rewrites can't be shared.
+        int runLimit = run[1] - run[0];
+        if(isLabelled(program, run[0])) runLimit--;
+        int keptLimit = kept[1] - kept[0];
+        if(isWritten(program, kept[0], written)) keptLimit--;
+        int length = 0;
+        while(length < runLimit && length < keptLimit &&
+              Instructions.same(
+                  program.get(run[1] - 1 - length).getInstruction(),
+                  program.get(kept[1] - 1 - length).getInstruction(), false)) {
+          length++;
+        }
+        if(length < MIN_TAIL) continue;
+        int at = kept[1] - length;
+        String label = labels.get(at);
+        if(label == null) {
+          label = builder.uniqueLabel("tail");
+          labels.put(at, label);
+          edits.put(at, new Edit(label, -1));
+        }
+        edits.put(run[1] - length, new Edit(label, run[1]));
+        saved[run[2]] += length - 1;
+      }
+    }
+    
+    // From the end, so that earlier positions stay put.
+    for(Map.Entry<Integer, Edit> entry : edits.descendingMap().entrySet()) {
+      int at = entry.getKey();
+      Edit edit = entry.getValue();
+      if(edit.end < 0) {
+        program.add(at, Element.label(edit.label)
+                    .withSourceOf(program.get(at)));
+      } else {
+        Element first = program.get(at);
+        program.subList(at, edit.end).clear();
+        Instruction jmp = new Instruction(builder);
+        jmp.setOperation(new JmpOp());
+        jmp.setSource(new LabelReference(edit.label));
+        jmp.setImmediateSource(true);
+        program.add(at, Element.instruction(jmp).withSourceOf(first));
+      }
+    }
+  }
+  
+  private static boolean isLabelled(List<Element> program, int index) {
+    return index > 0 && program.get(index - 1).is(Element.Kind.LABEL);
+  }
+  
+  /**
+   * @return {@code true} if any label on the instruction at {@code index} is
+   *         one the program writes to.
+   */
+  private static boolean isWritten(List<Element> program, int index,
+                                   Set<String> written) {
+    for(int i = index - 1; i >= 0 && program.get(i).is(Element.Kind.LABEL);
+        i--) {
+      if(written.contains(program.get(i).getLabel())) return true;
+    }
+    return false;
+  }
+  
+  private static int cogCount(List<Element> program) {
+    return cogOf(program, program.size()) + 1;
+  }
+  
+  /**
+   * @return the number of the cog image holding element {@code index}: the
+   *         number of ORGs before it, not counting one at the very start.
+   */
+  private static int cogOf(List<Element> program, int index) {
+    int cog = 0;
+    boolean code = false;
+    for(int i = 0; i < index && i < program.size(); i++) {
+      if(program.get(i).is(Element.Kind.ORG)) {
+        if(code) cog++;
+        code = false;
+      } else {
+        code = true;
+      }
+    }
+    return cog;
+  }
+}
@@ -0,0 +1,168 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import propasm.analysis.Instructions;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.Operand;
+import propasm.model.ProgramPass;
+
+/**
+ * Removes code that can't run and data that nothing refers to, so that
+ * libraries of subroutines can be included whole without filling the cog.
+ * 
+ * The program is divided into <em>items</em>: a run of labels and whatever
+ * follows them up to the next label or ORG.  The first item after the start
+ * of the program and after each ORG is where a cog begins running, and is
+ * kept, as are items holding labels kept explicitly.  So is anything a kept
+ * item refers to, in either memory ({@code #label}, {@code label}, or
+ * {@code @label}; in code or in data), and the item after a kept one whose
+ * code can run on into it.  Everything else is removed, and the layout closes
+ * up behind it.
+ * 
+ * Since only references by label are seen, data reached by arithmetic on
+ * another label's address -- the second half of a table with a label in the
+ * middle, say -- must be kept explicitly.
+ * 
+ * @author cbiffle
+ *
+ */
+public class DeadCodeEliminator implements ProgramPass {
+  private final PrintStream out;
+  private final Set<String> keep;
+  
+  /**
+   * @param out  destination for a report of what was removed, or
+   *        {@code null}.
+   * @param keep  labels to keep even if nothing refers to them.  The set is
+   *        read when the pass runs.
+   */
+  public DeadCodeEliminator(PrintStream out, Set<String> keep) {
+    this.out = out;
+    this.keep = keep;
+  }
+  
+  public void apply(List<Element> program) {
+    // Item boundaries, as indices into the program, and the items by label.
+    List<Integer> starts = new ArrayList<Integer>();
+    Map<String, Integer> items = new HashMap<String, Integer>();
+    List<Integer> work = new ArrayList<Integer>();
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      boolean first = (i == 0) || program.get(i - 1).is(Element.Kind.ORG);
+      if(e.is(Element.Kind.ORG)) {
+        starts.add(i);
+        work.add(starts.size() - 1);
+      } else if(first || (e.is(Element.Kind.LABEL) &&
+                          !program.get(i - 1).is(Element.Kind.LABEL))) {
+        starts.add(i);
+        if(first) work.add(starts.size() - 1);
+      }
+      if(e.is(Element.Kind.LABEL)) {
+        items.put(e.getLabel(), starts.size() - 1);
+        if(keep.contains(e.getLabel())) work.add(starts.size() - 1);
+      }
+    }
+    starts.add(program.size());
+    
+    boolean[] live = new boolean[starts.size() - 1];
+    while(!work.isEmpty()) {
+      int item = work.remove(work.size() - 1);
+      if(live[item]) continue;
+      live[item] = true;
+      Element last = null;
+      for(int i = starts.get(item); i < starts.get(item + 1); i++) {
+        Element e = program.get(i);
+        for(LabelReference ref : references(e)) {
+          Integer target = items.get(ref.getTargetName());
+          if(target != null) work.add(target);
+        }
+        if(!e.is(Element.Kind.LABEL) && !e.is(Element.Kind.ALIGN)) last = e;
+      }
+      // An item of nothing but labels and alignment runs on, too.
+      boolean runsOn = (last == null) ||
+          (last.is(Element.Kind.INSTRUCTION) &&
+           !Instructions.isUnconditionalJump(last.getInstruction()));
+      if(runsOn && item + 1 < live.length) {
+        work.add(item + 1);
+      }
+    }
+    
+    int code = 0, data = 0;
+    for(int item = live.length - 1; item >= 0; item--) {
+      if(live[item]) continue;
+      List<Element> dead = program.subList(starts.get(item),
+                                           starts.get(item + 1));
+      for(Element e : dead) {
+        switch(e.getKind()) {
+        case INSTRUCTION:
+          code++;
+          break;
+        case BYTE:
+          data++;
+          break;
+        case WORD:
+        case WORD_REFERENCE:
+          data += 2;
+          break;
+        case LONG:
+        case LONG_REFERENCE:
+          data += 4;
+          break;
+        case RESERVE:
+          data += e.getValue();
+          break;
+        default:
+        }
+      }
+      dead.clear();
+    }
+    if(out != null && (code > 0 || data > 0)) {
+      out.printf("Removed %d unreachable instructions and %d bytes of " +
+                 "unreferenced data\n", code, data);
+    }
+  }
+  
+  private static List<LabelReference> references(Element e) {
+    List<LabelReference> refs = new ArrayList<LabelReference>(2);
+    switch(e.getKind()) {
+    case WORD_REFERENCE:
+    case LONG_REFERENCE:
+      refs.add(e.getReference());
+      break;
+    case INSTRUCTION:
+      Instruction instr = e.getInstruction();
+      for(Operand operand : new Operand[] { Instructions.dest(instr),
+                                            Instructions.source(instr) }) {
+        if(operand instanceof LabelReference) {
+          refs.add((LabelReference)operand);
+        }
+      }
+      break;
+    default:
+    }
+    return refs;
+  }
+}
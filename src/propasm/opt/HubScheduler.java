@@ -0,0 +1,260 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import propasm.analysis.BasicBlock;
+import propasm.analysis.ControlFlowGraph;
+import propasm.analysis.HubPhaseAnalysis;
+import propasm.analysis.Instructions;
+import propasm.analysis.RegisterUse;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.ProgramPass;
+import propasm.model.Timing;
+
+/**
+ * Reorders instructions within basic blocks so that hub accesses hit their
+ * hub windows, by moving independent instructions into the gaps between them.
+ * (See {@link HubPhaseAnalysis} for the timing model: two ordinary
+ * instructions between hub accesses is ideal.)
+ * 
+ * Only instructions that can't affect each other are swapped: register,
+ * C and Z dependencies are respected, and hub accesses and special-register
+ * accesses keep their relative order.  Some instructions never move, and
+ * nothing moves across them:<ul>
+ * <li>the first instruction of a labelled block, which the label names;</li>
+ * <li>branches and calls;</li>
+ * <li>waits, and {@code nop}s, which are usually there for timing;</li>
+ * <li>instructions that write to code, like {@code movs}, whose distance from
+ *     the instruction they modify matters.</li>
+ * </ul>
+ * A block is only rewritten if the estimate of its clocks improves; for a
+ * block that loops to itself, the estimate is per pass in the steady state.
+ * 
+ * @author cbiffle
+ *
+ */
+public class HubScheduler implements ProgramPass {
+  private static final int UNKNOWN = -1;
+  
+  private final PrintStream out;
+  
+  /**
+   * @param out  destination for a summary of the changes, or {@code null}.
+   */
+  public HubScheduler(PrintStream out) {
+    this.out = out;
+  }
+  
+  public void apply(List<Element> program) {
+    ControlFlowGraph cfg = new ControlFlowGraph(program);
+    Set<String> codeLabels = new HashSet<String>();
+    for(BasicBlock block : cfg.getBlocks()) {
+      codeLabels.addAll(block.getLabels());
+    }
+    
+    int changed = 0, saved = 0;
+    for(BasicBlock block : cfg.getBlocks()) {
+      List<Element> original = block.getInstructions();
+      boolean loops = block.getTarget() == block && !block.endsInCall();
+      List<Element> order = schedule(block, codeLabels, loops);
+      int before = clocks(original, loops);
+      int after = clocks(order, loops);
+      if(after < before) {
+        int first = block.getEnd() - original.size();
+        for(int i = 0; i < order.size(); i++) {
+          program.set(first + i, order.get(i));
+        }
+        changed++;
+        saved += before - after;
+      }
+    }
+    if(out != null) {
+      out.printf("Hub scheduling: reordered %d blocks, saving %d clocks " +
+                 "per pass\n", changed, saved);
+    }
+  }
+  
+  /**
+   * Works out a better order for one block, one run of movable instructions
+   * at a time.  The result may not actually be better; the caller checks.
+   */
+  private List<Element> schedule(BasicBlock block, Set<String> codeLabels,
+                                 boolean loops) {
+    List<Element> instructions = block.getInstructions();
+    List<Element> order = new ArrayList<Element>(instructions.size());
+    List<Element> run = new ArrayList<Element>();
+    // In a loop, start from the phase the original order leaves behind.
+    int gap = loops ? walk(instructions, UNKNOWN, true, null) : UNKNOWN;
+    for(int i = 0; i < instructions.size(); i++) {
+      Element e = instructions.get(i);
+      boolean labelled = (i == 0 && !block.getLabels().isEmpty());
+      if(labelled || isPinned(e.getInstruction(), codeLabels)) {
+        gap = scheduleRun(run, gap, order);
+        run.clear();
+        order.add(e);
+        gap = advance(gap, e.getInstruction(), false);
+      } else {
+        run.add(e);
+      }
+    }
+    scheduleRun(run, gap, order);
+    return order;
+  }
+  
+  private boolean isPinned(Instruction instr, Set<String> codeLabels) {
+    if(Instructions.isBranch(instr) || Instructions.isNever(instr)) return true;
+    if(instr.getTiming().isUnbounded()) return true;
+    if(Instructions.writesResult(instr)) {
+      String dest = RegisterUse.key(Instructions.dest(instr));
+      if(dest != null && codeLabels.contains(dest)) return true;
+    }
+    return false;
+  }
+  
+  /**
+   * List-schedules a run of movable instructions, appending them to
+   * {@code order}.  Greedy: issue a hub access once it is ready and
+   * {@link HubPhaseAnalysis#SWEET_SPOT} clocks have passed since the last
+   * one; otherwise issue whatever else is ready, preferring instructions
+   * the next hub access is waiting on.
+   * 
+   * @return clocks since the last hub access at the end of the run.
+   */
+  private int scheduleRun(List<Element> run, int gap, List<Element> order) {
+    int n = run.size();
+    RegisterUse[] uses = new RegisterUse[n];
+    for(int i = 0; i < n; i++) {
+      uses[i] = new RegisterUse(run.get(i).getInstruction());
+    }
+    // predecessors[i][j]: instruction i must follow instruction j.
+    boolean[][] predecessors = new boolean[n][n];
+    for(int i = 0; i < n; i++) {
+      for(int j = 0; j < i; j++) {
+        if(uses[j].conflictsWith(uses[i])) {
+          predecessors[i][j] = true;
+          // Keep the relation transitive, for "waiting on" below.
+          for(int k = 0; k < j; k++) {
+            if(predecessors[j][k]) predecessors[i][k] = true;
+          }
+        }
+      }
+    }
+    
+    boolean[] done = new boolean[n];
+    for(int step = 0; step < n; step++) {
+      int nextHub = -1;
+      for(int i = 0; i < n; i++) {
+        if(!done[i] && isHubAccess(run.get(i))) {
+          nextHub = i;
+          break;
+        }
+      }
+      int pick = -1;
+      if(nextHub >= 0 && isReady(nextHub, predecessors, done) &&
+         (gap == UNKNOWN || gap >= HubPhaseAnalysis.SWEET_SPOT)) {
+        pick = nextHub;
+      }
+      for(int pass = 0; pick < 0 && pass < 2; pass++) {
+        for(int i = 0; i < n; i++) {
+          if(done[i] || i == nextHub || !isReady(i, predecessors, done)) continue;
+          if(isHubAccess(run.get(i))) continue;
+          // First pass: only what the next hub access needs.
+          if(pass == 0 && (nextHub < 0 || !predecessors[nextHub][i])) continue;
+          pick = i;
+          break;
+        }
+      }
+      if(pick < 0) pick = nextHub;
+      
+      done[pick] = true;
+      order.add(run.get(pick));
+      gap = advance(gap, run.get(pick).getInstruction(), false);
+    }
+    return gap;
+  }
+  
+  private static boolean isReady(int i, boolean[][] predecessors,
+                                 boolean[] done) {
+    for(int j = 0; j < i; j++) {
+      if(predecessors[i][j] && !done[j]) return false;
+    }
+    return true;
+  }
+  
+  private static boolean isHubAccess(Element e) {
+    return e.getInstruction().getTiming().isHubAccess();
+  }
+  
+  /**
+   * Updates the clocks since the last hub access, after one instruction.
+   */
+  private static int advance(int gap, Instruction instr, boolean taken) {
+    if(instr.getTiming().isHubAccess() && !Instructions.isNever(instr)) {
+      return 0;
+    }
+    if(instr.getTiming().isUnbounded() || Instructions.isCall(instr)) {
+      return UNKNOWN;
+    }
+    if(gap == UNKNOWN) return UNKNOWN;
+    return gap + clocks(instr, taken);
+  }
+  
+  private static int clocks(Instruction instr, boolean taken) {
+    if(Instructions.isNever(instr)) return Timing.SKIPPED_CLOCKS;
+    Timing timing = instr.getTiming();
+    return taken ? timing.getTaken() : timing.getMaximum();
+  }
+  
+  /**
+   * Estimates the clocks a block takes.  The first hub access, if its phase
+   * is unknown, is counted at its minimum; this is the same whatever the
+   * order.  For a loop, the phase carries over from the previous pass.
+   */
+  private static int clocks(List<Element> instructions, boolean loops) {
+    int gap = UNKNOWN;
+    if(loops) gap = walk(instructions, UNKNOWN, true, null);
+    int[] total = new int[1];
+    walk(instructions, gap, loops, total);
+    return total[0];
+  }
+  
+  private static int walk(List<Element> instructions, int gap, boolean loops,
+                          int[] total) {
+    for(int i = 0; i < instructions.size(); i++) {
+      Instruction instr = instructions.get(i).getInstruction();
+      boolean taken = loops && i == instructions.size() - 1;
+      if(total != null) {
+        if(instr.getTiming().isHubAccess() && !Instructions.isNever(instr)) {
+          total[0] += (gap == UNKNOWN) ? instr.getTiming().getMinimum()
+                                       : HubPhaseAnalysis.cost(gap);
+        } else if(instr.getTiming().isUnbounded()) {
+          total[0] += instr.getTiming().getMinimum();
+        } else {
+          total[0] += clocks(instr, taken);
+        }
+      }
+      gap = advance(gap, instr, taken);
+    }
+    return gap;
+  }
+}
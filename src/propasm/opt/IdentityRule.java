@@ -0,0 +1,70 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import propasm.analysis.Instructions;
+import propasm.model.Instruction;
+import propasm.model.Operand;
+import propasm.p32.AddOp;
+import propasm.p32.OrOp;
+import propasm.p32.RolOp;
+import propasm.p32.RorOp;
+import propasm.p32.SarOp;
+import propasm.p32.ShlOp;
+import propasm.p32.ShrOp;
+import propasm.p32.SubOp;
+import propasm.p32.XorOp;
+
+/**
+ * Removes arithmetic that leaves its destination unchanged, like
+ * {@code add x, #0} or {@code shl x, #0}, as long as it doesn't set flags.
+ * 
+ * @author cbiffle
+ *
+ */
+public class IdentityRule implements PeepholeRule {
+  /** Operations for which an immediate zero source changes nothing. */
+  private static final Set<Class<?>> ZERO_IDENTITIES = new HashSet<Class<?>>(
+      Arrays.<Class<?>>asList(AddOp.class, SubOp.class, OrOp.class,
+          XorOp.class, ShlOp.class, ShrOp.class, SarOp.class, RolOp.class,
+          RorOp.class));
+  
+  public String getDescription() {
+    return "removed operation with no effect";
+  }
+  
+  public boolean apply(Peephole peephole, int index) {
+    Instruction instr = peephole.getInstruction(index);
+    if(!ZERO_IDENTITIES.contains(instr.getOperation().getClass())) {
+      return false;
+    }
+    Operand source = instr.getSource();
+    if(!Instructions.isImmediate(instr) || source == null ||
+       !source.containsValue() || source.getValue() != 0) {
+      return false;
+    }
+    if(peephole.isLabelled(index)) return false;
+    if(Instructions.writesC(instr) || Instructions.writesZ(instr)) return false;
+    if(peephole.isExternal(instr)) return false;
+    
+    peephole.remove(index);
+    return true;
+  }
+}
@@ -0,0 +1,175 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import propasm.analysis.Instructions;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.Predicate;
+
+/**
+ * Replaces a short forward branch with predicated instructions:<pre>
+ *         if_z jmp #skip
+ *         add x, #1               if_nz add x, #1
+ *         mov y, x         =>     if_nz mov y, x
+ * skip    ...              skip   ...
+ * </pre>
+ * and likewise for a branch around an if-then-else:<pre>
+ *         if_z jmp #else
+ *         add x, #1               if_nz add x, #1
+ *         jmp #done        =>     if_z  sub x, #1
+ * else    sub x, #1        done   ...
+ * done    ...
+ * </pre>
+ * The skipped instructions still take four clocks each, so the branching
+ * path gets slower, but every path now takes the same time and the jumps are
+ * gone.  The rule only converts branches over at most a given number of
+ * instructions, and only when none of them branches, is labelled, or changes
+ * the flags the branch tested before the last of them has run.
+ * 
+ * @author cbiffle
+ *
+ */
+public class IfConversionRule implements PeepholeRule {
+  /** Default longest run of instructions converted. */
+  public static final int DEFAULT_LIMIT = 3;
+  
+  private final int limit;
+  
+  public IfConversionRule() {
+    this(DEFAULT_LIMIT);
+  }
+  
+  /**
+   * @param limit  most instructions on either side of a branch to convert.
+   */
+  public IfConversionRule(int limit) {
+    this.limit = limit;
+  }
+  
+  public String getDescription() {
+    return "short branch became predicated instructions";
+  }
+  
+  public boolean apply(Peephole peephole, int index) {
+    Instruction branch = peephole.getInstruction(index);
+    if(!Instructions.isJump(branch) || Instructions.isCall(branch) ||
+       !branch.isConditional() || Instructions.isNever(branch)) {
+      return false;
+    }
+    if(Instructions.writesC(branch) || Instructions.writesZ(branch)) {
+      return false;
+    }
+    String target = Instructions.branchTarget(branch);
+    if(target == null || peephole.isLabelled(index)) return false;
+    Predicate taken = branch.getEffectivePredicate();
+    
+    List<Integer> then = run(peephole, index + 1);
+    if(then == null || then.isEmpty()) return false;
+    int end = then.get(then.size() - 1) + 1;
+    if(!peephole.getLabels(firstAfterLabels(peephole, end)).contains(target)) {
+      return false;
+    }
+    Instruction exit = peephole.getInstruction(then.get(then.size() - 1));
+    String done = Instructions.branchTarget(exit);
+    if(done == null || !Instructions.isUnconditionalJump(exit)) {
+      // Branch over a single run of instructions.
+      if(!canPredicate(peephole, then, taken, true)) return false;
+      predicate(peephole, then, taken.invert());
+      peephole.remove(index);
+      return true;
+    }
+    
+    // Otherwise the run jumps around an else clause at the target.
+    int jump = then.remove(then.size() - 1);
+    if(Instructions.writesC(exit) || Instructions.writesZ(exit)) return false;
+    // Nothing else may jump to the else clause, which now runs only if the
+    // branch condition holds.
+    if(peephole.getReferenceCount(target) != 1) return false;
+    List<Integer> otherwise = run(peephole, firstAfterLabels(peephole, end));
+    if(otherwise == null || otherwise.isEmpty()) return false;
+    int elseEnd = otherwise.get(otherwise.size() - 1) + 1;
+    if(!peephole.getLabels(firstAfterLabels(peephole, elseEnd)).contains(done)) {
+      return false;
+    }
+    if(!canPredicate(peephole, then, taken, false) ||
+       !canPredicate(peephole, otherwise, taken, true)) {
+      return false;
+    }
+    predicate(peephole, then, taken.invert());
+    predicate(peephole, otherwise, taken);
+    peephole.remove(jump);
+    peephole.remove(index);
+    return true;
+  }
+  
+  /**
+   * Collects the unlabelled instructions starting at {@code start}, up to the
+   * next element that isn't one, plus one for the else-clause jump.
+   * 
+   * @return the instructions' indices, or {@code null} if there are too many.
+   */
+  private List<Integer> run(Peephole peephole, int start) {
+    List<Integer> run = new ArrayList<Integer>();
+    for(int i = start; peephole.getInstruction(i) != null; i++) {
+      if(i > start && peephole.isLabelled(i)) break;
+      if(run.size() > limit) return null;
+      run.add(i);
+    }
+    return run;
+  }
+  
+  private static int firstAfterLabels(Peephole peephole, int index) {
+    List<Element> program = peephole.getProgram();
+    while(index < program.size() && program.get(index).is(Element.Kind.LABEL)) {
+      index++;
+    }
+    return index;
+  }
+  
+  /**
+   * Checks that a run of instructions can be predicated on the branch
+   * condition: none branches, and none but possibly the last changes a flag
+   * the condition reads.
+   */
+  private boolean canPredicate(Peephole peephole, List<Integer> run,
+                               Predicate condition, boolean lastMayWrite) {
+    if(run.size() > limit) return false;
+    for(int k = 0; k < run.size(); k++) {
+      Instruction instr = peephole.getInstruction(run.get(k));
+      if(Instructions.isBranch(instr)) return false;
+      if(lastMayWrite && k == run.size() - 1) break;
+      if((condition.dependsOnC() && Instructions.writesC(instr)) ||
+         (condition.dependsOnZ() && Instructions.writesZ(instr))) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  private static void predicate(Peephole peephole, List<Integer> run,
+                                Predicate condition) {
+    for(int i : run) {
+      Instruction instr = peephole.getInstruction(i);
+      Instruction predicated = instr.copy();
+      predicated.setPredicate(condition.and(instr.getEffectivePredicate()));
+      peephole.replace(i, predicated);
+    }
+  }
+}
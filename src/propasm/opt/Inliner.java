@@ -0,0 +1,413 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import propasm.analysis.Instructions;
+import propasm.analysis.RegisterUse;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.Predicate;
+import propasm.model.ProgramPass;
+import propasm.parallax.pseudo.RetOp;
+
+/**
+ * Replaces calls to small leaf subroutines with copies of their bodies,
+ * saving the {@code call} and {@code ret} at each site (eight clocks) at the
+ * cost of a long or so of cog memory per site.
+ * 
+ * A subroutine {@code foo} qualifies if the code from {@code foo} to
+ * {@code foo_ret} is a straight run of instructions -- no branches, calls,
+ * labels or data -- ending in a plain {@code foo_ret ret}, and none of it
+ * writes to code or refers to the subroutine's own labels.  Cheaper
+ * subroutines are inlined first, until the size budget runs out; a cog image
+ * is never grown past the 496 longs of cog RAM.  Once every call to a
+ * subroutine is gone, the original is removed too, if nothing else can reach
+ * it.
+ * 
+ * Each inlined copy keeps the source position of the original instructions,
+ * so listings show the subroutine's lines at every call site.
+ * 
+ * @author cbiffle
+ *
+ */
+public class Inliner implements ProgramPass {
+  /** Default longest subroutine body inlined, in instructions. */
+  public static final int DEFAULT_BODY_LIMIT = 4;
+  /** Default most longs of cog memory to spend on inlining. */
+  public static final int DEFAULT_GROWTH_LIMIT = 16;
+  /** Longs of cog RAM that can hold code and data. */
+  private static final int COG_LONGS = 0x1F0;
+  
+  private final PrintStream out;
+  private final int bodyLimit;
+  private final int growthLimit;
+  private final Set<String> keep;
+  
+  /**
+   * Creates an inliner with the default budget.
+   * 
+   * @param out  destination for a report of the changes, or {@code null}.
+   */
+  public Inliner(PrintStream out) {
+    this(out, Collections.<String>emptySet());
+  }
+  
+  /**
+   * Creates an inliner with the default budget.
+   * 
+   * @param out  destination for a report of the changes, or {@code null}.
+   * @param keep  labels used from outside the program, which are never
+   *        removed along with a subroutine.
+   */
+  public Inliner(PrintStream out, Set<String> keep) {
+    this(out, DEFAULT_BODY_LIMIT, DEFAULT_GROWTH_LIMIT, keep);
+  }
+  
+  /**
+   * @param out  destination for a report of the changes, or {@code null}.
+   * @param bodyLimit  longest subroutine body to inline, in instructions.
+   * @param growthLimit  most longs the program may grow by.
+   */
+  public Inliner(PrintStream out, int bodyLimit, int growthLimit) {
+    this(out, bodyLimit, growthLimit, Collections.<String>emptySet());
+  }
+  
+  /**
+   * @param out  destination for a report of the changes, or {@code null}.
+   * @param bodyLimit  longest subroutine body to inline, in instructions.
+   * @param growthLimit  most longs the program may grow by.
+   * @param keep  labels used from outside the program, which are never
+   *        removed along with a subroutine.
+   */
+  public Inliner(PrintStream out, int bodyLimit, int growthLimit,
+                 Set<String> keep) {
+    this.out = out;
+    this.bodyLimit = bodyLimit;
+    this.growthLimit = growthLimit;
+    this.keep = keep;
+  }
+  
+  /** A leaf subroutine found in the program. */
+  private static class Subroutine {
+    final String name;
+    /** Index of the first label naming the subroutine. */
+    final int start;
+    /** Index of the {@code ret}. */
+    final int ret;
+    final List<Element> body;
+    
+    Subroutine(String name, int start, int ret, List<Element> body) {
+      this.name = name;
+      this.start = start;
+      this.ret = ret;
+      this.body = body;
+    }
+  }
+  
+  public void apply(List<Element> program) {
+    if(PeepholeOptimizer.hasNumberedBranch(program)) {
+      if(out != null) {
+        out.println("Inlining: program branches to numbered addresses; " +
+                    "not optimized");
+      }
+      return;
+    }
+    
+    Set<String> inlined = new HashSet<String>();
+    int calls = 0, growth = 0, clocks = 0;
+    boolean progress = true;
+    while(progress) {
+      progress = false;
+      Peephole peephole = new Peephole(program);
+      for(Subroutine sub : findLeaves(peephole)) {
+        int cost = sub.body.size() - 1;
+        if(growth + cost > growthLimit) continue;
+        int site = findCallSite(peephole, sub);
+        if(site < 0 || cogLongs(program, site) + cost > COG_LONGS) continue;
+        
+        Element call = program.get(site);
+        int saved = clocks(call.getInstruction()) +
+            clocks(program.get(sub.ret).getInstruction());
+        inline(program, site, sub);
+        if(out != null) {
+          out.printf("Line %d: inlined %s (%d long(s)): %+d longs, %d clocks " +
+                     "faster per call\n", call.getSourceLine(), sub.name,
+                     sub.body.size(), cost, saved);
+        }
+        inlined.add(sub.name);
+        calls++;
+        growth += cost;
+        clocks += saved;
+        progress = true;
+        break;
+      }
+    }
+    
+    int reclaimed = 0;
+    Peephole peephole = new Peephole(program);
+    List<Subroutine> leaves = findLeaves(peephole);
+    // Remove from the end, so earlier indices stay valid.  The leaves come
+    // sorted by size, not position.
+    Collections.sort(leaves, new Comparator<Subroutine>() {
+      public int compare(Subroutine a, Subroutine b) {
+        return b.start - a.start;
+      }
+    });
+    for(Subroutine sub : leaves) {
+      if(!inlined.contains(sub.name) || !isUnused(peephole, sub, keep)) {
+        continue;
+      }
+      reclaimed += sub.ret - sub.start + 1 - labelsIn(program, sub);
+      for(int i = sub.ret; i >= sub.start; i--) {
+        program.remove(i);
+      }
+    }
+    
+    if(out != null) {
+      out.printf("Inlining: %d calls inlined, %+d longs, %d clocks saved " +
+                 "per round of calls\n", calls, growth - reclaimed, clocks);
+    }
+  }
+  
+  /**
+   * Finds the subroutines that can be inlined, smallest first.
+   */
+  private List<Subroutine> findLeaves(Peephole peephole) {
+    List<Element> program = peephole.getProgram();
+    Set<String> written = writtenCodeLabels(peephole);
+    List<Subroutine> leaves = new ArrayList<Subroutine>();
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(!e.is(Element.Kind.LABEL)) continue;
+      String name = e.getLabel();
+      int bodyStart = peephole.getNextInstruction(i);
+      if(bodyStart < 0) continue;
+      
+      List<Element> body = new ArrayList<Element>();
+      int j = bodyStart;
+      while(j < program.size() && program.get(j).is(Element.Kind.INSTRUCTION) &&
+            body.size() <= bodyLimit) {
+        body.add(program.get(j++));
+      }
+      // The run must stop at the return label, and nowhere else.
+      if(body.isEmpty() || body.size() > bodyLimit ||
+         j >= program.size() || !program.get(j).is(Element.Kind.LABEL) ||
+         !program.get(j).getLabel().equals(name + "_ret")) {
+        continue;
+      }
+      int ret = peephole.getNextInstruction(j);
+      if(ret != j + 1 || !isPlainReturn(peephole.getInstruction(ret))) continue;
+      if(!isInlinable(body, name, written)) continue;
+      // Code patched from outside would be missed by the copies.
+      if(!Collections.disjoint(peephole.getLabels(bodyStart), written)) {
+        continue;
+      }
+      
+      int start = i;
+      while(start > 0 && program.get(start - 1).is(Element.Kind.LABEL)) {
+        start--;
+      }
+      leaves.add(new Subroutine(name, start, ret, body));
+      i = ret;
+    }
+    Collections.sort(leaves, new Comparator<Subroutine>() {
+      public int compare(Subroutine a, Subroutine b) {
+        return a.body.size() - b.body.size();
+      }
+    });
+    return leaves;
+  }
+  
+  private static boolean isPlainReturn(Instruction instr) {
+    return instr.getOperation() instanceof RetOp && !instr.isConditional() &&
+        instr.getEffects().isEmpty();
+  }
+  
+  private static boolean isInlinable(List<Element> body, String name,
+                                     Set<String> written) {
+    for(Element e : body) {
+      Instruction instr = e.getInstruction();
+      if(Instructions.isBranch(instr)) return false;
+      String dest = RegisterUse.key(Instructions.dest(instr));
+      String source = RegisterUse.key(Instructions.source(instr));
+      if(Instructions.writesResult(instr) && dest != null &&
+         written.contains(dest)) {
+        return false;
+      }
+      if(refersTo(dest, name) || refersTo(source, name)) return false;
+    }
+    return true;
+  }
+  
+  private static boolean refersTo(String key, String name) {
+    return key != null && (key.equals(name) || key.equals(name + "_ret"));
+  }
+  
+  /**
+   * Collects the labels of code that the program rewrites as it runs, not
+   * counting the return addresses that calls leave.
+   */
+  static Set<String> writtenCodeLabels(Peephole peephole) {
+    Set<String> codeLabels = new HashSet<String>();
+    List<Element> program = peephole.getProgram();
+    for(int i = 0; i < program.size(); i++) {
+      if(program.get(i).is(Element.Kind.INSTRUCTION)) {
+        codeLabels.addAll(peephole.getLabels(i));
+      }
+    }
+    Set<String> written = new HashSet<String>();
+    for(Element e : program) {
+      if(!e.is(Element.Kind.INSTRUCTION)) continue;
+      Instruction instr = e.getInstruction();
+      if(!Instructions.writesResult(instr) || Instructions.isCall(instr)) {
+        continue;
+      }
+      String dest = RegisterUse.key(Instructions.dest(instr));
+      if(dest != null && codeLabels.contains(dest)) written.add(dest);
+    }
+    return written;
+  }
+  
+  /**
+   * Finds a call to {@code sub} that can be replaced by its body.
+   * 
+   * @return the call's index, or -1.
+   */
+  private int findCallSite(Peephole peephole, Subroutine sub) {
+    List<Element> program = peephole.getProgram();
+    Set<String> written = writtenCodeLabels(peephole);
+    for(int i = 0; i < program.size(); i++) {
+      Instruction instr = peephole.getInstruction(i);
+      if(instr == null || !Instructions.isCall(instr)) continue;
+      if(!sub.name.equals(Instructions.branchTarget(instr))) continue;
+      if(!(sub.name + "_ret").equals(
+          RegisterUse.key(Instructions.dest(instr)))) {
+        continue;
+      }
+      if(Instructions.writesC(instr) || Instructions.writesZ(instr)) continue;
+      if(!Collections.disjoint(peephole.getLabels(i), written)) continue;
+      if(instr.isConditional() &&
+         !canPredicate(sub.body, instr.getEffectivePredicate())) {
+        continue;
+      }
+      return i;
+    }
+    return -1;
+  }
+  
+  /**
+   * Checks that a conditional call's predicate can be applied to each
+   * instruction of the body: only the last may change the flags it reads.
+   */
+  private static boolean canPredicate(List<Element> body, Predicate condition) {
+    for(int k = 0; k < body.size() - 1; k++) {
+      Instruction instr = body.get(k).getInstruction();
+      if((condition.dependsOnC() && Instructions.writesC(instr)) ||
+         (condition.dependsOnZ() && Instructions.writesZ(instr))) {
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  private static void inline(List<Element> program, int site, Subroutine sub) {
+    Predicate condition = program.get(site).getInstruction()
+        .getEffectivePredicate();
+    List<Element> copies = new ArrayList<Element>();
+    for(Element e : sub.body) {
+      Instruction copy = e.getInstruction().copy();
+      if(condition != Predicate.IF_ALWAYS) {
+        copy.setPredicate(condition.and(copy.getEffectivePredicate()));
+      }
+      copies.add(Element.instruction(copy).withSourceOf(e));
+    }
+    program.remove(site);
+    program.addAll(site, copies);
+  }
+  
+  /**
+   * Checks that nothing calls, jumps to, or runs into a subroutine any more.
+   */
+  private static boolean isUnused(Peephole peephole, Subroutine sub,
+                                  Set<String> keep) {
+    List<Element> program = peephole.getProgram();
+    for(int i = sub.start; i < sub.ret; i++) {
+      Element e = program.get(i);
+      if(e.is(Element.Kind.LABEL) &&
+         (peephole.getReferenceCount(e.getLabel()) > 0 ||
+          keep.contains(e.getLabel()))) {
+        return false;
+      }
+    }
+    if(sub.start == 0) return true;
+    Instruction before = peephole.getInstruction(sub.start - 1);
+    return before == null || Instructions.isUnconditionalJump(before);
+  }
+  
+  private static int labelsIn(List<Element> program, Subroutine sub) {
+    int labels = 0;
+    for(int i = sub.start; i <= sub.ret; i++) {
+      if(program.get(i).is(Element.Kind.LABEL)) labels++;
+    }
+    return labels;
+  }
+  
+  private static int clocks(Instruction instr) {
+    return instr.getTiming().getMinimum();
+  }
+  
+  /**
+   * Counts the longs of cog memory used by the image containing an element:
+   * everything from the ORG before it to the ORG after.
+   */
+  private static int cogLongs(List<Element> program, int index) {
+    int start = index;
+    while(start > 0 && !program.get(start - 1).is(Element.Kind.ORG)) start--;
+    int bytes = 0;
+    for(int i = start; i < program.size(); i++) {
+      Element e = program.get(i);
+      switch(e.getKind()) {
+      case ORG:
+        return (bytes + 3) / 4;
+      case RESERVE:
+        bytes += e.getValue();
+        break;
+      case BYTE:
+        bytes += 1;
+        break;
+      case WORD:
+      case WORD_REFERENCE:
+        bytes += 2;
+        break;
+      case LONG:
+      case LONG_REFERENCE:
+      case INSTRUCTION:
+        bytes += 4;
+        break;
+      default:
+      }
+    }
+    return (bytes + 3) / 4;
+  }
+}
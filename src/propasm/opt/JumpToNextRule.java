@@ -0,0 +1,45 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import propasm.analysis.Instructions;
+import propasm.model.Instruction;
+
+/**
+ * Removes a {@code jmp} to the instruction that follows it anyway.
+ * 
+ * @author cbiffle
+ *
+ */
+public class JumpToNextRule implements PeepholeRule {
+  public String getDescription() {
+    return "removed jmp to the next instruction";
+  }
+  
+  public boolean apply(Peephole peephole, int index) {
+    Instruction instr = peephole.getInstruction(index);
+    if(!Instructions.isJump(instr) || Instructions.isCall(instr)) return false;
+    String target = Instructions.branchTarget(instr);
+    if(target == null) return false;
+    if(peephole.isLabelled(index)) return false;
+    if(Instructions.writesC(instr) || Instructions.writesZ(instr)) return false;
+    int next = peephole.getNextInstruction(index);
+    if(next < 0 || !peephole.getLabels(next).contains(target)) return false;
+    
+    peephole.remove(index);
+    return true;
+  }
+}
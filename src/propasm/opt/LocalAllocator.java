@@ -0,0 +1,389 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import propasm.analysis.BasicBlock;
+import propasm.analysis.ControlFlowGraph;
+import propasm.analysis.Instructions;
+import propasm.model.Element;
+import propasm.model.LabelReference;
+import propasm.model.LogicException;
+import propasm.model.Operand;
+import propasm.model.ProgramPass;
+
+/**
+ * Lets the scratch registers of routines that are never active at the same
+ * time share cog memory.
+ * 
+ * Each local variable belongs to a routine, its <em>owner</em>, and holds
+ * its value only while the owner is running: from its entry label, through
+ * any code it branches to, and any routines it calls, until it returns.  Two
+ * owners can share registers unless one can call the other, directly or
+ * through other routines, so each owner's locals are placed just above those
+ * of every owner that can call it.  This is the usual overlay allocation for
+ * a call graph; recursion among owners makes it impossible, and is an error.
+ * 
+ * Locals are declared where {@code res} would go, and the whole overlay is
+ * put where the first one was declared.  Using a local outside the code its
+ * owner can reach is an error, since the register may be shared with
+ * something else by then.
+ * 
+ * Until this pass runs, every local takes its full size, so a {@code fit}
+ * after one can't be checked while parsing; it's checked here instead, once
+ * the overlay is in place.
+ * 
+ * @author cbiffle
+ *
+ */
+public class LocalAllocator implements ProgramPass {
+  private final PrintStream out;
+  private final List<Local> locals = new ArrayList<Local>();
+  private final List<Fit> fits = new ArrayList<Fit>();
+  
+  private static class Local {
+    final String label, owner;
+    final int longs, line;
+    
+    Local(String label, String owner, int longs, int line) {
+      this.label = label;
+      this.owner = owner;
+      this.longs = longs;
+      this.line = line;
+    }
+  }
+  
+  /** A {@code fit}, to check once the overlay is in place. */
+  private static class Fit {
+    final String marker;
+    final int limit, pool, line;
+    
+    Fit(String marker, int limit, int pool, int line) {
+      this.marker = marker;
+      this.limit = limit;
+      this.pool = pool;
+      this.line = line;
+    }
+  }
+  
+  /**
+   * @param out  destination for a report of the memory saved, or
+   *        {@code null}.
+   */
+  public LocalAllocator(PrintStream out) {
+    this.out = out;
+  }
+  
+  /**
+   * Adds a local variable.  Its label should be followed in the program by
+   * a reservation of its size, which this pass replaces.
+   * 
+   * @param label  the variable's label.
+   * @param owner  entry label of the routine it belongs to.
+   * @param longs  size of the variable.
+   * @param line  source line of the declaration, for errors.
+   */
+  public void addLocal(String label, String owner, int longs, int line) {
+    locals.add(new Local(label, owner, longs, line));
+  }
+  
+  /**
+   * Adds a {@code fit} to check after the locals are overlaid.
+   * 
+   * @param marker  label placed where the {@code fit} was.
+   * @param limit  cog address the code must stay below, in longs.
+   * @param pool  longs of literal pool waiting to be placed in the same
+   *        image when the {@code fit} was reached.
+   * @param line  source line of the {@code fit}, for errors.
+   */
+  public void addFit(String marker, int limit, int pool, int line) {
+    fits.add(new Fit(marker, limit, pool, line));
+  }
+  
+  public void apply(List<Element> program) throws LogicException {
+    overlay(program);
+    for(Fit fit : fits) {
+      int addr = addressOf(program, fit.marker) + fit.pool;
+      if(addr >= fit.limit) {
+        throw new LogicException("Program exceeds bounds!  " +
+            "(Required to fit beneath " + Integer.toHexString(fit.limit) +
+            ", current size is " + Integer.toHexString(addr) + ")",
+            fit.line, 0);
+      }
+      if(out != null) {
+        out.println("Line " + fit.line + ": FIT directive succeeded at " +
+                    "address " + addr);
+      }
+    }
+  }
+  
+  private void overlay(List<Element> program) throws LogicException {
+    // Locals removed as unreferenced need no room.
+    Set<String> labels = new HashSet<String>();
+    for(Element e : program) {
+      if(e.is(Element.Kind.LABEL)) labels.add(e.getLabel());
+    }
+    for(Iterator<Local> it = locals.iterator(); it.hasNext(); ) {
+      if(!labels.contains(it.next().label)) it.remove();
+    }
+    if(locals.isEmpty()) return;
+    ControlFlowGraph graph = new ControlFlowGraph(program);
+    
+    // Each owner's locals, and the code it can reach while they're live.
+    Map<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+    Map<String, Set<BasicBlock>> reach =
+      new HashMap<String, Set<BasicBlock>>();
+    Map<String, Local> byLabel = new HashMap<String, Local>();
+    for(Local local : locals) {
+      byLabel.put(local.label, local);
+      Integer size = sizes.get(local.owner);
+      sizes.put(local.owner, local.longs + (size == null ? 0 : size));
+      if(reach.containsKey(local.owner)) continue;
+      BasicBlock entry = graph.getBlock(local.owner);
+      if(entry == null) {
+        throw new LogicException("Owner " + local.owner + " of local " +
+                                 local.label + " isn't code", local.line, 0);
+      }
+      reach.put(local.owner, reachable(entry));
+    }
+    
+    // The owners each owner can call.
+    Map<String, Set<String>> callees = new HashMap<String, Set<String>>();
+    for(String owner : sizes.keySet()) {
+      Set<String> called = new HashSet<String>();
+      for(String other : sizes.keySet()) {
+        if(!other.equals(owner) &&
+           reach.get(owner).contains(graph.getBlock(other))) {
+          called.add(other);
+        }
+      }
+      callees.put(owner, called);
+    }
+    for(String owner : sizes.keySet()) {
+      for(String callee : callees.get(owner)) {
+        if(callees.get(callee).contains(owner)) {
+          throw new LogicException("Locals of " + owner + " and " + callee +
+              " can't be overlaid, since each can call the other",
+              first(owner).line, 0);
+        }
+      }
+    }
+    
+    checkUses(graph, byLabel, reach);
+    
+    // Callers go below their callees.  Reachability is transitive, so the
+    // longest chain of callers above an owner is found by sorting owners by
+    // how many callers they have.
+    Map<String, Integer> bases = new HashMap<String, Integer>();
+    List<String> order = new ArrayList<String>(sizes.keySet());
+    final Map<String, Integer> callerCounts = new HashMap<String, Integer>();
+    for(String owner : order) {
+      int count = 0;
+      for(String caller : order) {
+        if(callees.get(caller).contains(owner)) count++;
+      }
+      callerCounts.put(owner, count);
+    }
+    Collections.sort(order, new Comparator<String>() {
+      public int compare(String a, String b) {
+        return callerCounts.get(a) - callerCounts.get(b);
+      }
+    });
+    int total = 0, declared = 0;
+    for(String owner : order) {
+      int base = 0;
+      for(String caller : order) {
+        if(callees.get(caller).contains(owner)) {
+          base = Math.max(base, bases.get(caller) + sizes.get(caller));
+        }
+      }
+      bases.put(owner, base);
+      total = Math.max(total, base + sizes.get(owner));
+      declared += sizes.get(owner);
+    }
+    
+    rewrite(program, byLabel, bases, total);
+    if(out != null) {
+      out.printf("Locals: %d longs overlaid into %d, %d reclaimed%n",
+                 declared, total, declared - total);
+    }
+  }
+  
+  /**
+   * Works out the cog address of a label from the elements before it, back
+   * to the start of its image.
+   * 
+   * @return the address, in longs.
+   */
+  private static int addressOf(List<Element> program, String label) {
+    int index = 0;
+    while(!program.get(index).is(Element.Kind.LABEL) ||
+          !program.get(index).getLabel().equals(label)) {
+      index++;
+    }
+    int start = index;
+    while(start > 0 && !program.get(start - 1).is(Element.Kind.ORG)) start--;
+    int bytes = (start > 0) ? program.get(start - 1).getValue() * 4 : 0;
+    for(int i = start; i < index; i++) {
+      Element e = program.get(i);
+      switch(e.getKind()) {
+      case RESERVE:
+        bytes += e.getValue();
+        break;
+      case ALIGN:
+        bytes = align(bytes, e.getValue());
+        break;
+      case BYTE:
+        bytes += 1;
+        break;
+      case WORD:
+      case WORD_REFERENCE:
+        bytes = align(bytes, 2) + 2;
+        break;
+      case LONG:
+      case LONG_REFERENCE:
+      case INSTRUCTION:
+        bytes = align(bytes, 4) + 4;
+        break;
+      default:
+      }
+    }
+    return bytes / 4;
+  }
+  
+  private static int align(int bytes, int unit) {
+    return (bytes + unit - 1) / unit * unit;
+  }
+  
+  /**
+   * @return the blocks control can reach from {@code entry}, following calls.
+   */
+  private static Set<BasicBlock> reachable(BasicBlock entry) {
+    Set<BasicBlock> seen = new HashSet<BasicBlock>();
+    List<BasicBlock> work = new ArrayList<BasicBlock>();
+    work.add(entry);
+    while(!work.isEmpty()) {
+      BasicBlock block = work.remove(work.size() - 1);
+      if(!seen.add(block)) continue;
+      work.addAll(block.getSuccessors());
+      if(block.endsInCall() && block.getTarget() != null) {
+        work.add(block.getTarget());
+      }
+    }
+    return seen;
+  }
+  
+  private Local first(String owner) {
+    for(Local local : locals) {
+      if(local.owner.equals(owner)) return local;
+    }
+    throw new IllegalArgumentException(owner);
+  }
+  
+  /**
+   * Makes sure each local is only used while its owner is active.
+   */
+  private static void checkUses(ControlFlowGraph graph,
+                                Map<String, Local> byLabel,
+                                Map<String, Set<BasicBlock>> reach)
+      throws LogicException {
+    for(BasicBlock block : graph.getBlocks()) {
+      for(Element e : block.getInstructions()) {
+        Operand[] operands = {
+          Instructions.dest(e.getInstruction()),
+          Instructions.source(e.getInstruction())
+        };
+        for(Operand operand : operands) {
+          if(!(operand instanceof LabelReference)) continue;
+          Local local = byLabel.get(((LabelReference)operand).getTargetName());
+          if(local != null && !reach.get(local.owner).contains(block)) {
+            throw new LogicException("Local " + local.label + " is used " +
+                "outside " + local.owner + ", which owns it",
+                e.getSourceLine(), 0);
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Replaces the locals' separate reservations with the overlay, placed
+   * where the first local was.
+   */
+  private void rewrite(List<Element> program, Map<String, Local> byLabel,
+                       Map<String, Integer> bases, int total) {
+    // Offsets within the overlay, in declaration order within each owner.
+    TreeMap<Integer, List<Element>> labels =
+      new TreeMap<Integer, List<Element>>();
+    Map<String, Integer> used = new HashMap<String, Integer>();
+    Element source = null;
+    int at = -1;
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(!e.is(Element.Kind.LABEL)) continue;
+      Local local = byLabel.get(e.getLabel());
+      if(local == null) continue;
+      Integer offset = used.get(local.owner);
+      if(offset == null) offset = 0;
+      used.put(local.owner, offset + local.longs);
+      offset += bases.get(local.owner);
+      if(!labels.containsKey(offset)) {
+        labels.put(offset, new ArrayList<Element>());
+      }
+      labels.get(offset).add(e);
+      if(source == null) {
+        source = e;
+        at = i;
+      }
+      // The label, and the reservation after it.
+      program.remove(i);
+      if(i < program.size() && program.get(i).is(Element.Kind.RESERVE)) {
+        program.remove(i);
+      }
+      i--;
+    }
+    
+    // Each reservation is listed with the label it makes room for.
+    List<Element> overlay = new ArrayList<Element>();
+    int position = 0;
+    for(Map.Entry<Integer, List<Element>> entry : labels.entrySet()) {
+      if(entry.getKey() > position) {
+        overlay.add(Element.reserve((entry.getKey() - position) * 4)
+                    .withSourceOf(source));
+        position = entry.getKey();
+      }
+      overlay.addAll(entry.getValue());
+      source = entry.getValue().get(entry.getValue().size() - 1);
+    }
+    if(total > position) {
+      overlay.add(Element.reserve((total - position) * 4)
+                  .withSourceOf(source));
+    }
+    program.addAll(at, overlay);
+  }
+}
@@ -0,0 +1,46 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import propasm.analysis.Instructions;
+import propasm.model.Instruction;
+import propasm.parallax.pseudo.NopOp;
+
+/**
+ * Removes instructions predicated {@code if_never}, which take four clocks
+ * and do nothing.  Labelled ones are kept, since they are usually slots that
+ * the program rewrites as it runs, and so are {@code nop}s, which are there
+ * for their timing.
+ * 
+ * @author cbiffle
+ *
+ */
+public class NeverExecutedRule implements PeepholeRule {
+  public String getDescription() {
+    return "removed instruction that never runs";
+  }
+  
+  public boolean apply(Peephole peephole, int index) {
+    Instruction instr = peephole.getInstruction(index);
+    if(!Instructions.isNever(instr) || instr.getOperation() instanceof NopOp) {
+      return false;
+    }
+    if(peephole.isLabelled(index)) return false;
+    
+    peephole.remove(index);
+    return true;
+  }
+}
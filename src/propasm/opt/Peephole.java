@@ -0,0 +1,190 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import propasm.analysis.Instructions;
+import propasm.analysis.RegisterUse;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.Operand;
+import propasm.model.Timing;
+
+/**
+ * The view of a program given to {@link PeepholeRule}s: questions about the
+ * instructions around a given one, and edits that keep a tally of the longs
+ * and clocks saved.
+ * 
+ * @author cbiffle
+ *
+ */
+public final class Peephole {
+  private final List<Element> program;
+  /** Number of references to each label; rebuilt after edits. */
+  private Map<String, Integer> references;
+  private int longsSaved, clocksSaved;
+  
+  Peephole(List<Element> program) {
+    this.program = program;
+  }
+  
+  /**
+   * @return the program's elements.  Rules may move labels directly, but
+   *         should add and remove instructions through this class.
+   */
+  public List<Element> getProgram() {
+    return program;
+  }
+  
+  /**
+   * @return the instruction at {@code index}, or {@code null} if the element
+   *         there is something else.
+   */
+  public Instruction getInstruction(int index) {
+    if(index < 0 || index >= program.size()) return null;
+    return program.get(index).getInstruction();
+  }
+  
+  /**
+   * Finds the instruction that runs after the one at {@code index} if it
+   * doesn't branch, looking past labels.
+   * 
+   * @return the index of the next instruction, or -1 if anything else (data,
+   *         ORG and the like) comes first.
+   */
+  public int getNextInstruction(int index) {
+    for(int i = index + 1; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(e.is(Element.Kind.INSTRUCTION)) return i;
+      if(!e.is(Element.Kind.LABEL)) return -1;
+    }
+    return -1;
+  }
+  
+  /**
+   * @return the labels defined directly before the element at {@code index}.
+   */
+  public List<String> getLabels(int index) {
+    List<String> labels = new ArrayList<String>();
+    for(int i = index - 1; i >= 0 && program.get(i).is(Element.Kind.LABEL); i--) {
+      labels.add(0, program.get(i).getLabel());
+    }
+    return labels;
+  }
+  
+  /**
+   * Checks whether the element at {@code index} has a label.  Labelled
+   * instructions may be jumped to, or rewritten at runtime, so most rules
+   * leave them alone.
+   */
+  public boolean isLabelled(int index) {
+    return index > 0 && program.get(index - 1).is(Element.Kind.LABEL);
+  }
+  
+  /**
+   * @return the index of the element defining {@code label}, or -1.
+   */
+  public int indexOfLabel(String label) {
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(e.is(Element.Kind.LABEL) && e.getLabel().equals(label)) return i;
+    }
+    return -1;
+  }
+  
+  /**
+   * Counts the operands and data references that name {@code label},
+   * including those generated by pseudo-ops (like the return label of a
+   * {@code call}).
+   */
+  public int getReferenceCount(String label) {
+    if(references == null) countReferences();
+    Integer count = references.get(label);
+    return (count == null) ? 0 : count;
+  }
+  
+  private void countReferences() {
+    references = new HashMap<String, Integer>();
+    for(Element e : program) {
+      if(e.is(Element.Kind.INSTRUCTION)) {
+        count(Instructions.dest(e.getInstruction()));
+        count(Instructions.source(e.getInstruction()));
+      } else {
+        count(e.getReference());
+      }
+    }
+  }
+  
+  private void count(Operand operand) {
+    if(!(operand instanceof LabelReference)) return;
+    String name = ((LabelReference)operand).getTargetName();
+    Integer count = references.get(name);
+    references.put(name, (count == null) ? 1 : count + 1);
+  }
+  
+  /**
+   * Checks whether an instruction touches a special-purpose register, where
+   * even a read or a rewrite of the same value can have side effects.
+   */
+  public boolean isExternal(Instruction instr) {
+    return new RegisterUse(instr).isExternal();
+  }
+  
+  /**
+   * Removes the instruction at {@code index}.
+   */
+  public void remove(int index) {
+    Instruction removed = program.remove(index).getInstruction();
+    longsSaved++;
+    clocksSaved += clocks(removed);
+    references = null;
+  }
+  
+  /**
+   * Replaces the instruction at {@code index}, keeping its source position.
+   */
+  public void replace(int index, Instruction replacement) {
+    Element old = program.get(index);
+    program.set(index, Element.instruction(replacement).withSourceOf(old));
+    clocksSaved += clocks(old.getInstruction()) - clocks(replacement);
+    references = null;
+  }
+  
+  private static int clocks(Instruction instr) {
+    if(Instructions.isNever(instr)) return Timing.SKIPPED_CLOCKS;
+    return instr.getTiming().getMinimum();
+  }
+  
+  /**
+   * @return the number of longs saved by edits so far.
+   */
+  public int getLongsSaved() {
+    return longsSaved;
+  }
+  
+  /**
+   * @return the number of clocks saved by edits so far, counting each edited
+   *         instruction once.
+   */
+  public int getClocksSaved() {
+    return clocksSaved;
+  }
+}
@@ -0,0 +1,132 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import propasm.analysis.Instructions;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.ProgramPass;
+
+/**
+ * Looks over short runs of instructions for wasteful patterns, like a
+ * {@code call} straight into a {@code ret} or a {@code mov} of a register to
+ * itself, and rewrites them.  The patterns are supplied as
+ * {@link PeepholeRule}s; rules are tried at every instruction until none of
+ * them applies anywhere, since one rewrite often exposes another.
+ * 
+ * Removing an instruction moves everything after it, which is harmless when
+ * code refers to addresses by label.  Programs that branch to numbered
+ * addresses are left alone.
+ * 
+ * @author cbiffle
+ *
+ */
+public class PeepholeOptimizer implements ProgramPass {
+  private final PrintStream out;
+  private final List<PeepholeRule> rules;
+  
+  /**
+   * Creates an optimizer using the {@link #defaultRules()}.
+   * 
+   * @param out  destination for a report of the changes, or {@code null}.
+   */
+  public PeepholeOptimizer(PrintStream out) {
+    this(out, defaultRules());
+  }
+  
+  /**
+   * @param out  destination for a report of the changes, or {@code null}.
+   * @param rules  rules to apply, in order of preference.
+   */
+  public PeepholeOptimizer(PrintStream out, List<PeepholeRule> rules) {
+    this.out = out;
+    this.rules = new ArrayList<PeepholeRule>(rules);
+  }
+  
+  /**
+   * @return the rules used unless others are given: every rule that saves
+   *         time or space.
+   */
+  public static List<PeepholeRule> defaultRules() {
+    return Collections.unmodifiableList(Arrays.<PeepholeRule>asList(
+        new TailCallRule(),
+        new SelfMoveRule(),
+        new NeverExecutedRule(),
+        new IdentityRule(),
+        new JumpToNextRule()));
+  }
+  
+  public void apply(List<Element> program) {
+    if(hasNumberedBranch(program)) {
+      if(out != null) {
+        out.println("Peephole: program branches to numbered addresses; " +
+                    "not optimized");
+      }
+      return;
+    }
+    
+    Peephole peephole = new Peephole(program);
+    int rewrites = 0;
+    boolean progress = true;
+    while(progress) {
+      progress = false;
+      for(int i = 0; i < program.size(); i++) {
+        Element e = program.get(i);
+        if(!e.is(Element.Kind.INSTRUCTION)) continue;
+        for(PeepholeRule rule : rules) {
+          if(rule.apply(peephole, i)) {
+            if(out != null) {
+              out.printf("Line %d: %s\n", e.getSourceLine(),
+                         rule.getDescription());
+            }
+            rewrites++;
+            progress = true;
+            break;
+          }
+        }
+      }
+    }
+    
+    if(out != null) {
+      out.printf("Peephole: %d rewrites, saving %d longs and %d clocks\n",
+                 rewrites, peephole.getLongsSaved(),
+                 peephole.getClocksSaved());
+    }
+  }
+  
+  /**
+   * Checks whether a program branches to addresses given as numbers, rather
+   * than labels.  Passes that add or remove instructions must leave such
+   * programs alone.
+   */
+  static boolean hasNumberedBranch(List<Element> program) {
+    for(Element e : program) {
+      if(!e.is(Element.Kind.INSTRUCTION)) continue;
+      Instruction instr = e.getInstruction();
+      if(Instructions.isBranch(instr) && Instructions.isImmediate(instr) &&
+         instr.getSource() != null && instr.getSource().containsValue()) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,43 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+/**
+ * One rewrite applied by the {@link PeepholeOptimizer}: a pattern over a few
+ * neighbouring instructions, and what to replace it with.
+ * 
+ * Rules edit the program through the {@link Peephole} they are handed, which
+ * keeps count of what they save.  A rule must leave the program doing exactly
+ * what it did before, apart from taking less time or space.
+ * 
+ * @author cbiffle
+ *
+ */
+public interface PeepholeRule {
+  /**
+   * @return a short description of the rewrite, for reports.
+   */
+  String getDescription();
+  
+  /**
+   * Tries the rule on the instruction at {@code index}.
+   * 
+   * @param peephole  the program being optimized.
+   * @param index  index of an instruction element in the program.
+   * @return {@code true} if the rule rewrote the program.
+   */
+  boolean apply(Peephole peephole, int index);
+}
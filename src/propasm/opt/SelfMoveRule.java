@@ -0,0 +1,51 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import propasm.analysis.Instructions;
+import propasm.analysis.RegisterUse;
+import propasm.model.Instruction;
+import propasm.p32.MovOp;
+
+/**
+ * Removes {@code mov x, x}, which does nothing unless it sets flags.  Moves
+ * of special-purpose registers are kept: {@code mov phsa, phsa} is a common
+ * idiom for copying a counter into its shadow register.
+ * 
+ * @author cbiffle
+ *
+ */
+public class SelfMoveRule implements PeepholeRule {
+  public String getDescription() {
+    return "removed mov of a register to itself";
+  }
+  
+  public boolean apply(Peephole peephole, int index) {
+    Instruction instr = peephole.getInstruction(index);
+    if(instr.getOperation().getClass() != MovOp.class) return false;
+    if(peephole.isLabelled(index) || Instructions.isImmediate(instr)) {
+      return false;
+    }
+    if(Instructions.writesC(instr) || Instructions.writesZ(instr)) return false;
+    String dest = RegisterUse.key(Instructions.dest(instr));
+    String source = RegisterUse.key(Instructions.source(instr));
+    if(dest == null || !dest.equals(source)) return false;
+    if(peephole.isExternal(instr)) return false;
+    
+    peephole.remove(index);
+    return true;
+  }
+}
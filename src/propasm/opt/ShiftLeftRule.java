@@ -0,0 +1,59 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import propasm.analysis.Instructions;
+import propasm.model.Instruction;
+import propasm.p32.AddOp;
+import propasm.p32.ShlOp;
+
+/**
+ * Rewrites {@code shl x, #1} as {@code add x, x}.  The two always agree,
+ * flags included: both set C to the bit shifted out of the top, and Z if the
+ * result is zero.
+ * 
+ * On the Propeller both take one long and four clocks, so this rule saves
+ * nothing by itself, and isn't one of the
+ * {@link PeepholeOptimizer#defaultRules()}.  It's here for code generators
+ * that want doubling in one canonical form.
+ * 
+ * @author cbiffle
+ *
+ */
+public class ShiftLeftRule implements PeepholeRule {
+  public String getDescription() {
+    return "shl by one became add";
+  }
+  
+  public boolean apply(Peephole peephole, int index) {
+    Instruction instr = peephole.getInstruction(index);
+    if(instr.getOperation().getClass() != ShlOp.class) return false;
+    if(!Instructions.isImmediate(instr) || instr.getSource() == null ||
+       !instr.getSource().containsValue() ||
+       instr.getSource().getValue() != 1) {
+      return false;
+    }
+    // A labelled shift may have its count rewritten at runtime.
+    if(peephole.isLabelled(index) || peephole.isExternal(instr)) return false;
+    
+    Instruction add = instr.copy();
+    add.setOperation(new AddOp());
+    add.setSource(instr.getDest());
+    add.setImmediateSource(false);
+    peephole.replace(index, add);
+    return true;
+  }
+}
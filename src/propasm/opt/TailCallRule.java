@@ -0,0 +1,101 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import propasm.analysis.Instructions;
+import propasm.analysis.RegisterUse;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.parallax.pseudo.JmpOp;
+import propasm.parallax.pseudo.RetOp;
+
+/**
+ * Turns a {@code call} followed by the caller's own {@code ret} into a
+ * {@code jmp}:<pre>
+ * outer      ...
+ *            call #inner              jmp #inner
+ * outer_ret  ret               =>     ...
+ *            ...               inner  ...
+ * inner      ...               inner_ret
+ * inner_ret  ret               outer_ret  ret
+ * </pre>
+ * Since {@code inner} no longer gets its own return address, the caller's
+ * return label moves onto {@code inner}'s {@code ret}: whoever calls
+ * {@code outer} now leaves the address for {@code inner} to return to.  This
+ * is only safe if nothing else calls, or refers to, {@code inner}.
+ * 
+ * @author cbiffle
+ *
+ */
+public class TailCallRule implements PeepholeRule {
+  public String getDescription() {
+    return "call followed by ret became jmp";
+  }
+  
+  public boolean apply(Peephole peephole, int index) {
+    Instruction call = peephole.getInstruction(index);
+    if(!Instructions.isCall(call) || call.isConditional()) return false;
+    if(Instructions.writesC(call) || Instructions.writesZ(call)) return false;
+    String target = Instructions.branchTarget(call);
+    if(target == null) return false;
+    String targetRet = target + "_ret";
+    if(!targetRet.equals(RegisterUse.key(Instructions.dest(call)))) {
+      return false;
+    }
+    
+    int ret = peephole.getNextInstruction(index);
+    if(ret < 0 || !isPlainReturn(peephole.getInstruction(ret))) return false;
+    List<String> labels = peephole.getLabels(ret);
+    if(labels.isEmpty() || labels.contains(target) ||
+       labels.contains(targetRet)) {
+      return false;
+    }
+    
+    if(peephole.getReferenceCount(target) != 1 ||
+       peephole.getReferenceCount(targetRet) != 1) {
+      return false;
+    }
+    int targetRetLabel = peephole.indexOfLabel(targetRet);
+    if(targetRetLabel < 0) return false;
+    int targetRetInstr = peephole.getNextInstruction(targetRetLabel);
+    if(targetRetInstr < 0 ||
+       !isPlainReturn(peephole.getInstruction(targetRetInstr))) {
+      return false;
+    }
+    
+    Instruction jmp = call.copy();
+    jmp.setOperation(new JmpOp());
+    peephole.replace(index, jmp);
+    
+    List<Element> program = peephole.getProgram();
+    List<Element> moved = new ArrayList<Element>();
+    for(int i = index + 1; i < ret; i++) {
+      moved.add(program.get(index + 1));
+      program.remove(index + 1);
+    }
+    peephole.remove(index + 1);
+    program.addAll(peephole.indexOfLabel(targetRet) + 1, moved);
+    return true;
+  }
+  
+  private static boolean isPlainReturn(Instruction instr) {
+    return instr.getOperation() instanceof RetOp && !instr.isConditional() &&
+        instr.getEffects().isEmpty();
+  }
+}
@@ -0,0 +1,407 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import propasm.analysis.BasicBlock;
+import propasm.analysis.ControlFlowGraph;
+import propasm.analysis.Instructions;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.LogicException;
+import propasm.model.NumericOperand;
+import propasm.model.Operand;
+import propasm.model.Operation;
+import propasm.model.ProgramPass;
+import propasm.model.SymbolTable;
+import propasm.model.Timing;
+import propasm.p32.DjnzOp;
+import propasm.p32.MovOp;
+import propasm.parallax.pseudo.NopOp;
+
+/**
+ * Pads blocks of code so that every path through them takes exactly a given
+ * number of clocks, for bit-banged protocols and the like.
+ * 
+ * A block is marked by a pair of labels, and may contain only instructions
+ * whose timing is fixed: no hub accesses, waits, calls, or loops.  Branches
+ * may only go forward, to code in the block or to its end.  Padding goes on
+ * each path that is faster than the slowest one from the same point, and then
+ * at the top of the block to bring the total up to the goal.  Padding is
+ * {@code nop}s, or, if the block has a scratch register and the padding is
+ * long enough, a {@code djnz} delay loop.
+ * 
+ * Padding for the target of a conditional branch can only go where nothing
+ * else passes; when the target is shared, the block can't be balanced, and
+ * the pass fails with a {@link LogicException}.  So it does if the slowest
+ * path is already too slow.
+ * 
+ * @author cbiffle
+ *
+ */
+public class TimedBlocks implements ProgramPass {
+  /** Marks the end of the block in the graph's successor lists. */
+  private static final int END = -1;
+  /** Shortest padding worth a delay loop; it costs two longs. */
+  private static final int MIN_DELAY_LOOP = 12;
+  /** Longest delay one loop can give, with a 9-bit count. */
+  private static final int MAX_DELAY_LOOP = 511 * 4 + 8;
+  
+  private final SymbolTable symbols;
+  private final PrintStream out;
+  private final List<Block> blocks = new ArrayList<Block>();
+  
+  private static class Block {
+    final String start, end;
+    final int clocks;
+    final Operand scratch;
+    final int line;
+    
+    Block(String start, String end, int clocks, Operand scratch, int line) {
+      this.start = start;
+      this.end = end;
+      this.clocks = clocks;
+      this.scratch = scratch;
+      this.line = line;
+    }
+  }
+  
+  /** An edge leaving a basic block. */
+  private static class Edge {
+    /** Index of the target block, or {@link #END}. */
+    final int target;
+    final int clocks;
+    /** Where padding for this edge alone may go, or -1 if nowhere. */
+    final int padAt;
+    
+    Edge(int target, int clocks, int padAt) {
+      this.target = target;
+      this.clocks = clocks;
+      this.padAt = padAt;
+    }
+  }
+  
+  /**
+   * @param symbols  symbol table for generated instructions.
+   * @param out  destination for a report of the padding added, or
+   *        {@code null}.
+   */
+  public TimedBlocks(SymbolTable symbols, PrintStream out) {
+    this.symbols = symbols;
+    this.out = out;
+  }
+  
+  /**
+   * Adds a block to balance.
+   * 
+   * @param start  label at the top of the block.
+   * @param end  label at the end of the block.
+   * @param clocks  time every path through the block should take.
+   * @param scratch  register the padding may use for delay loops, or
+   *        {@code null}.
+   * @param line  source line of the block, for errors.
+   */
+  public void addBlock(String start, String end, int clocks, Operand scratch,
+                       int line) {
+    blocks.add(new Block(start, end, clocks, scratch, line));
+  }
+  
+  public void apply(List<Element> program) throws LogicException {
+    for(Block block : blocks) {
+      // A block removed as unreachable needs no padding.
+      if(indexOfLabel(program, block.start) < 0) continue;
+      balance(program, block);
+    }
+  }
+  
+  private void balance(List<Element> program, Block block)
+      throws LogicException {
+    int start = indexOfLabel(program, block.start);
+    int end = indexOfLabel(program, block.end);
+    if(end < 0) {
+      throw new LogicException("Timed block never reaches its end",
+                               block.line, 0);
+    }
+    List<Element> region = program.subList(start + 1, end);
+    for(Element e : region) {
+      if(!e.is(Element.Kind.LABEL) && !e.is(Element.Kind.INSTRUCTION)) {
+        throw new LogicException("Timed block may only contain instructions",
+                                 line(e, block), 0);
+      }
+    }
+    
+    List<BasicBlock> nodes = new ControlFlowGraph(region).getBlocks();
+    // Labels after the last instruction, or just past the block, are its end.
+    Set<String> endLabels = new HashSet<String>();
+    for(int i = region.size() - 1; i >= 0 && region.get(i).is(Element.Kind.LABEL);
+        i--) {
+      endLabels.add(region.get(i).getLabel());
+    }
+    for(int i = end + 1; i < program.size() &&
+        program.get(i).is(Element.Kind.LABEL); i++) {
+      endLabels.add(program.get(i).getLabel());
+    }
+    checkEntries(program, start, end, nodes, block);
+    
+    // Work out the slowest time from the top of each basic block to the end.
+    int n = nodes.size();
+    List<List<Edge>> edges = new ArrayList<List<Edge>>();
+    int[] body = new int[n];
+    for(BasicBlock node : nodes) {
+      edges.add(edges(node, nodes, endLabels, body, block));
+    }
+    int[] slowest = new int[n];
+    for(int v = n - 1; v >= 0; v--) {
+      int max = 0;
+      for(Edge edge : edges.get(v)) {
+        max = Math.max(max, edge.clocks + remaining(slowest, edge.target));
+      }
+      slowest[v] = body[v] + max;
+    }
+    
+    // Pad the faster edges out of each basic block.
+    TreeMap<Integer, Integer> padding = new TreeMap<Integer, Integer>();
+    for(int v = 0; v < n; v++) {
+      for(Edge edge : edges.get(v)) {
+        int slack = slowest[v] - body[v] -
+            (edge.clocks + remaining(slowest, edge.target));
+        if(slack == 0) continue;
+        if(edge.padAt < 0) {
+          throw new LogicException("Can't balance timed block: the branch " +
+              "here is " + slack + " clocks faster than the other path, and " +
+              "its target is shared", line(nodes.get(v).getInstructions()
+                  .get(nodes.get(v).getInstructions().size() - 1), block), 0);
+        }
+        add(padding, edge.padAt, slack);
+      }
+    }
+    int longest = (n == 0) ? 0 : slowest[0];
+    if(longest > block.clocks) {
+      throw new LogicException("Timed block needs " + block.clocks +
+          " clocks, but its slowest path takes " + longest, block.line, 0);
+    }
+    if((block.clocks - longest) % Timing.SKIPPED_CLOCKS != 0) {
+      throw new LogicException("Timed block needs " + block.clocks +
+          " clocks, but instructions take multiples of " +
+          Timing.SKIPPED_CLOCKS, block.line, 0);
+    }
+    add(padding, (n == 0) ? region.size() : firstInstruction(nodes.get(0)),
+        block.clocks - longest);
+    
+    // Insert from the bottom up, so the positions stay valid.
+    Element position = program.get(start);
+    int longs = 0, delays = 0;
+    for(int at : padding.descendingKeySet()) {
+      List<Element> pad = pad(padding.get(at), block, delays++);
+      for(Element e : pad) {
+        e.withSourceOf(position);
+        if(e.is(Element.Kind.INSTRUCTION)) longs++;
+      }
+      region.addAll(at, pad);
+    }
+    if(out != null) {
+      out.printf("Line %d: timed block padded to %d clocks with %d longs\n",
+                 block.line, block.clocks, longs);
+    }
+  }
+  
+  private static int remaining(int[] slowest, int target) {
+    return (target == END) ? 0 : slowest[target];
+  }
+  
+  private static void add(TreeMap<Integer, Integer> padding, int at,
+                          int clocks) {
+    if(clocks == 0) return;
+    Integer old = padding.get(at);
+    padding.put(at, (old == null) ? clocks : old + clocks);
+  }
+  
+  private static int firstInstruction(BasicBlock node) {
+    return node.getEnd() - node.getInstructions().size();
+  }
+  
+  /**
+   * Works out the edges out of a basic block, and the clocks it takes before
+   * its final branch (stored in {@code body}).
+   */
+  private List<Edge> edges(BasicBlock node, List<BasicBlock> nodes,
+                           Set<String> endLabels, int[] body, Block block)
+      throws LogicException {
+    List<Element> instructions = node.getInstructions();
+    int time = 0;
+    for(Element e : instructions) {
+      Instruction instr = e.getInstruction();
+      Timing timing = instr.getTiming();
+      if(Instructions.isNever(instr)) {
+        time += Timing.SKIPPED_CLOCKS;
+      } else if(Instructions.isCall(instr)) {
+        throw new LogicException("Timed block can't contain calls",
+                                 line(e, block), 0);
+      } else if(timing.isUnbounded() || timing.isHubAccess()) {
+        throw new LogicException("Timed block can't contain " +
+            Instructions.mnemonic(instr) + ", which takes " + timing +
+            " clocks", line(e, block), 0);
+      } else if(!Instructions.isBranch(instr)) {
+        time += timing.getMinimum();
+      }
+    }
+    body[node.getIndex()] = time;
+    
+    int last = node.getEnd() - 1;
+    int next = (node.getIndex() + 1 < nodes.size()) ? node.getIndex() + 1 : END;
+    List<Edge> edges = new ArrayList<Edge>();
+    Element lastElement = instructions.get(instructions.size() - 1);
+    Instruction branch = lastElement.getInstruction();
+    if(!Instructions.isBranch(branch)) {
+      edges.add(new Edge(next, 0, last + 1));
+      return edges;
+    }
+    
+    String label = Instructions.branchTarget(branch);
+    if(label == null) {
+      throw new LogicException("Timed block can't contain computed jumps",
+                               line(lastElement, block), 0);
+    }
+    int target = END;
+    if(!endLabels.contains(label)) {
+      target = -2;
+      for(BasicBlock other : nodes) {
+        if(other.getLabels().contains(label)) target = other.getIndex();
+      }
+      if(target == -2) {
+        throw new LogicException("Branch leaves timed block",
+                                 line(lastElement, block), 0);
+      }
+      if(target <= node.getIndex()) {
+        throw new LogicException("Timed block can't contain loops",
+                                 line(lastElement, block), 0);
+      }
+    }
+    Timing timing = branch.getTiming();
+    if(Instructions.isUnconditionalJump(branch)) {
+      edges.add(new Edge(target, timing.getTaken(), last));
+      return edges;
+    }
+    if(branch.isConditional() && timing != Timing.ORDINARY) {
+      throw new LogicException("Timing of a predicated " +
+          Instructions.mnemonic(branch) + " depends on the flags and the " +
+          "register", line(lastElement, block), 0);
+    }
+    // Padding for the branch alone can go at the top of its target, if
+    // nothing else gets there.
+    int padAt = -1;
+    if(target != END && predecessors(nodes, target) == 1) {
+      padAt = firstInstruction(nodes.get(target));
+    }
+    edges.add(new Edge(target, timing.getTaken(), padAt));
+    edges.add(new Edge(next, timing.getMaximum(), last + 1));
+    return edges;
+  }
+  
+  private static int predecessors(List<BasicBlock> nodes, int target) {
+    BasicBlock block = nodes.get(target);
+    int count = 0;
+    for(BasicBlock node : nodes) {
+      if(node.getFallThrough() == block) count++;
+      if(node.getTarget() == block) count++;
+    }
+    return count;
+  }
+  
+  /**
+   * Makes sure the only way into the block from outside is at the top.
+   */
+  private static void checkEntries(List<Element> program, int start, int end,
+                                   List<BasicBlock> nodes, Block block)
+      throws LogicException {
+    Set<String> inner = new HashSet<String>();
+    for(int i = 1; i < nodes.size(); i++) {
+      inner.addAll(nodes.get(i).getLabels());
+    }
+    if(inner.isEmpty()) return;
+    for(int i = 0; i < program.size(); i++) {
+      if(i > start && i < end) continue;
+      Element e = program.get(i);
+      if(!e.is(Element.Kind.INSTRUCTION)) continue;
+      String target = Instructions.branchTarget(e.getInstruction());
+      if(target != null && inner.contains(target)) {
+        throw new LogicException("Branch into the middle of the timed block " +
+            "at line " + block.line, e.getSourceLine(), 0);
+      }
+    }
+  }
+  
+  /**
+   * Generates padding that takes the given number of clocks.
+   */
+  private List<Element> pad(int clocks, Block block, int serial) {
+    List<Element> pad = new ArrayList<Element>();
+    int loops = 0;
+    while(block.scratch != null && clocks >= MIN_DELAY_LOOP) {
+      int delay = Math.min(clocks, MAX_DELAY_LOOP);
+      // Keep what's left long enough for another loop, or for nops.
+      if(clocks - delay > 0 && clocks - delay < MIN_DELAY_LOOP) {
+        delay = clocks - MIN_DELAY_LOOP;
+      }
+      // mov takes 4, each pass of djnz 4, and the final, untaken one 8.
+      String label = block.start + ":delay" + serial + "." + loops++;
+      pad.add(Element.instruction(instruction(new MovOp(), block.scratch,
+          new NumericOperand((delay - 8) / 4))));
+      pad.add(Element.label(label));
+      pad.add(Element.instruction(instruction(new DjnzOp(), block.scratch,
+          new LabelReference(label))));
+      clocks -= delay;
+    }
+    for(; clocks > 0; clocks -= Timing.SKIPPED_CLOCKS) {
+      Instruction nop = new Instruction(symbols);
+      nop.setOperation(new NopOp());
+      pad.add(Element.instruction(nop));
+    }
+    return pad;
+  }
+  
+  private Instruction instruction(Operation op, Operand dest,
+                                  Operand source) {
+    Instruction instr = new Instruction(symbols);
+    instr.setOperation(op);
+    instr.setDest(dest);
+    instr.setSource(source);
+    instr.setImmediateSource(true);
+    return instr;
+  }
+  
+  private static int line(Element e, Block block) {
+    return (e.getSourceLine() > 0) ? e.getSourceLine() : block.line;
+  }
+  
+  /**
+   * @return the index of {@code label} in the program, or -1 if it's gone.
+   */
+  private static int indexOfLabel(List<Element> program, String label) {
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(e.is(Element.Kind.LABEL) && e.getLabel().equals(label)) return i;
+    }
+    return -1;
+  }
+}
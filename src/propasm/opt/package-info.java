@@ -0,0 +1,22 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+/**
+ * Passes that rewrite a program: optional ones that make it faster or
+ * smaller, and ones that generate code on behalf of source directives.  Each
+ * is a {@link propasm.model.ProgramPass}, run by
+ * {@link propasm.model.ProgramBuilder} before final layout.
+ */
+package propasm.opt;
\ No newline at end of file
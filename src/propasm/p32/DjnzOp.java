@@ -15,6 +15,8 @@
 // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package propasm.p32;
 
+import propasm.model.Timing;
+
 /**
  * DJNZ - 39
  * Decrement D.
@@ -29,5 +31,9 @@ public class DjnzOp extends AbstractBinaryOp {
   public int getOpcode() {
     return 0x39;
   }
-  
+
+  @Override
+  public Timing getTiming() {
+    return Timing.BRANCH;
+  }
 }
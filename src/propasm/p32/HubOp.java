@@ -15,6 +15,7 @@
 // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package propasm.p32;
 
+import propasm.model.Timing;
 
 /**
  * HUBOP - 03
@@ -46,6 +47,9 @@ public class HubOp extends AbstractBinaryOp {
   public boolean generatesResultByDefault() {
     return false;
   }
-  
 
+  @Override
+  public Timing getTiming() {
+    return Timing.HUB;
+  }
 }
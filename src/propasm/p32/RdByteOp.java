@@ -15,6 +15,8 @@
 // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package propasm.p32;
 
+import propasm.model.Timing;
+
 /**
  * RDBYTE - 00
  * D <- byte[S]
@@ -28,5 +30,9 @@ public class RdByteOp extends AbstractBinaryOp {
   public int getOpcode() {
     return 0x00;
   }
-  
+
+  @Override
+  public Timing getTiming() {
+    return Timing.HUB;
+  }
 }
@@ -15,6 +15,8 @@
 // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package propasm.p32;
 
+import propasm.model.Timing;
+
 /**
  * RDLONG - 02
  * D <- long[S]
@@ -28,5 +30,9 @@ public class RdLongOp extends AbstractBinaryOp {
   public int getOpcode() {
     return 0x02;
   }
-  
+
+  @Override
+  public Timing getTiming() {
+    return Timing.HUB;
+  }
 }
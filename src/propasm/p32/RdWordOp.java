@@ -15,6 +15,8 @@
 // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package propasm.p32;
 
+import propasm.model.Timing;
+
 /**
  * RDWORD - 01
  * D <- word[S]
@@ -28,5 +30,9 @@ public class RdWordOp extends AbstractBinaryOp {
   public int getOpcode() {
     return 0x01;
   }
-  
+
+  @Override
+  public Timing getTiming() {
+    return Timing.HUB;
+  }
 }
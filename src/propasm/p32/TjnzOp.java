@@ -15,6 +15,8 @@
 // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package propasm.p32;
 
+import propasm.model.Timing;
+
 /**
  * TJNZ - 3A
  * If D is not zero, jump to S.
@@ -33,7 +35,9 @@ public class TjnzOp extends AbstractBinaryOp {
   public boolean generatesResultByDefault() {
     return false;
   }
-  
-  
-  
+
+  @Override
+  public Timing getTiming() {
+    return Timing.BRANCH;
+  }
 }
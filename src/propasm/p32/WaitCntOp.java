@@ -15,6 +15,8 @@
 // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package propasm.p32;
 
+import propasm.model.Timing;
+
 /**
  * WAITCNT - 3E
  * Halt until CNT == D
@@ -29,5 +31,9 @@ public class WaitCntOp extends AbstractBinaryOp {
   public int getOpcode() {
     return 0x3E;
   }
-  
+
+  @Override
+  public Timing getTiming() {
+    return Timing.WAIT;
+  }
 }
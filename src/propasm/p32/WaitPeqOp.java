@@ -15,6 +15,8 @@
 // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package propasm.p32;
 
+import propasm.model.Timing;
+
 /**
  * WAITPEQ - 3C
  * Halt until INA & S == D.
@@ -33,4 +35,9 @@ public class WaitPeqOp extends AbstractBinaryOp {
   public boolean generatesResultByDefault() {
     return false;
   }
+
+  @Override
+  public Timing getTiming() {
+    return Timing.WAIT;
+  }
 }
@@ -15,6 +15,8 @@
 // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package propasm.p32;
 
+import propasm.model.Timing;
+
 /**
  * WAITVID - 3F
  * Waits for video signal generator to become available, and then delivers
@@ -34,7 +36,9 @@ public class WaitVidOp extends AbstractBinaryOp {
   public boolean generatesResultByDefault() {
     return false;
   }
-  
-  
-  
+
+  @Override
+  public Timing getTiming() {
+    return Timing.VIDEO_WAIT;
+  }
 }
@@ -0,0 +1,213 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.parallax;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import propasm.model.AssemblyInputException;
+
+/**
+ * Lexes a large in-memory source on several threads at once.
+ *
+ * The Parallax format is strictly line-oriented: no token spans a line ending
+ * (strings and comments both stop at the end of the line).  This class splits
+ * the input into chunks at line boundaries, runs an ordinary
+ * {@link ParallaxLexer} over each chunk, and stitches the results back
+ * together, rebasing line numbers as it goes.  The result is identical to what
+ * {@link ParallaxLexer#lex()} would produce for the same text, including the
+ * choice of error reported if the input is malformed.
+ *
+ * @author cbiffle
+ *
+ */
+public class ChunkedLexer {
+  /** Default target size of each chunk, in characters. */
+  public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+  /** Input. */
+  private final CharSequence text;
+  /** Executor used to lex the chunks. */
+  private final ExecutorService executor;
+  /** Target size of each chunk; actual chunks end at the next line break. */
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+  /** If non-null, errors are collected here and lexing resumes. */
+  private List<AssemblyInputException> diagnostics;
+
+  /**
+   * Creates a new lexer for the given text.
+   *
+   * @param text  complete source text.
+   * @param executor  executor to run the chunk lexers on.
+   */
+  public ChunkedLexer(CharSequence text, ExecutorService executor) {
+    this.text = text;
+    this.executor = executor;
+  }
+
+  /**
+   * Changes the target chunk size.  Mostly useful for testing.
+   *
+   * @param chunkSize  approximate number of characters per chunk.
+   */
+  public void setChunkSize(int chunkSize) {
+    if(chunkSize < 1) {
+      throw new IllegalArgumentException("Chunk size must be positive.");
+    }
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Puts the lexer into error-recovery mode; see
+   * {@link ParallaxLexer#setDiagnostics(List)}.  Errors are reported in input
+   * order, with line numbers relative to the whole input.
+   * 
+   * @param diagnostics  list to collect errors in.
+   */
+  public void setDiagnostics(List<AssemblyInputException> diagnostics) {
+    this.diagnostics = diagnostics;
+  }
+
+  /**
+   * Lexes the input, returning the same tokens as {@link ParallaxLexer#lex()}.
+   *
+   * @return an Iterable of Tokens found in the input, terminated by an EOF
+   *         Token.
+   * @throws IOException  if a chunk cannot be read.
+   * @throws ParseException  if the input cannot be made to fit within our
+   *         grammar.
+   */
+  public Iterable<Token> lex() throws IOException, ParseException {
+    List<Future<List<Token>>> results = new ArrayList<Future<List<Token>>>();
+    List<Integer> firstLines = new ArrayList<Integer>();
+    List<List<AssemblyInputException>> chunkDiagnostics =
+        new ArrayList<List<AssemblyInputException>>();
+
+    int start = 0;
+    int line = 1;
+    do {
+      int end = findChunkEnd(Math.min(start + chunkSize, text.length()));
+      final String chunk = text.subSequence(start, end).toString();
+      final List<AssemblyInputException> errors = (diagnostics == null) ? null
+          : new ArrayList<AssemblyInputException>();
+      chunkDiagnostics.add(errors);
+      results.add(executor.submit(new Callable<List<Token>>() {
+        public List<Token> call() throws IOException, ParseException {
+          List<Token> tokens = new ArrayList<Token>();
+          ParallaxLexer lexer = new ParallaxLexer(new StringReader(chunk));
+          lexer.setDiagnostics(errors);
+          for(Token t : lexer.lex()) {
+            tokens.add(t);
+          }
+          return tokens;
+        }
+      }));
+      firstLines.add(line);
+      line += countLines(start, end);
+      start = end;
+    } while(start < text.length());
+
+    // Chunks are joined in order, so the first failure we see is the same one
+    // the sequential lexer would have reported.
+    List<Token> tokens = new ArrayList<Token>();
+    for(int i = 0; i < results.size(); i++) {
+      int offset = firstLines.get(i) - 1;
+      List<Token> chunkTokens = get(results.get(i), offset);
+      boolean last = (i == results.size() - 1);
+      for(Token t : chunkTokens) {
+        if(!last && t.is(Token.Type.EOF)) break;
+        t.setLine(t.getLine() + offset);
+        tokens.add(t);
+      }
+      if(diagnostics != null) {
+        for(AssemblyInputException e : chunkDiagnostics.get(i)) {
+          diagnostics.add(new ParseException(e.getMessage(),
+                                             e.getLine() + offset,
+                                             e.getColumn()));
+        }
+      }
+    }
+    return tokens;
+  }
+
+  /**
+   * Finds the end of the chunk containing {@code position}: the index just
+   * past the next line ending.  DOS line endings are never split.
+   */
+  private int findChunkEnd(int position) {
+    int length = text.length();
+    for(int i = Math.max(position - 1, 0); i < length; i++) {
+      char ch = text.charAt(i);
+      if(ch == '\n') {
+        return i + 1;
+      } else if(ch == '\r') {
+        if(i + 1 < length && text.charAt(i + 1) == '\n') return i + 2;
+        return i + 1;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Counts the line endings in a range of the input, treating a DOS line
+   * ending as one.
+   */
+  private int countLines(int start, int end) {
+    int lines = 0;
+    for(int i = start; i < end; i++) {
+      char ch = text.charAt(i);
+      if(ch == '\n') {
+        lines++;
+      } else if(ch == '\r') {
+        if(i + 1 < end && text.charAt(i + 1) == '\n') i++;
+        lines++;
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Waits for a chunk result, unwrapping any exception it threw and moving its
+   * position into the coordinates of the whole input.
+   */
+  private List<Token> get(Future<List<Token>> result, int lineOffset)
+      throws IOException, ParseException {
+    try {
+      return result.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while lexing");
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof ParseException) {
+        ParseException pe = (ParseException)cause;
+        throw new ParseException(pe.getMessage(), pe.getLine() + lineOffset,
+                                 pe.getColumn());
+      } else if(cause instanceof IOException) {
+        throw (IOException)cause;
+      } else if(cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+}
@@ -15,20 +15,39 @@
 // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
 package propasm.parallax;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
 import java.io.Reader;
+import java.io.Writer;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import propasm.AssemblerConfig;
+import propasm.analysis.HubPhaseAnalysis;
+import propasm.analysis.ListingWriter;
+import propasm.analysis.WcetAnalysis;
 import propasm.model.AssemblyInputException;
 import propasm.model.LogicException;
 import propasm.model.ProgramBuilder;
+import propasm.opt.CrossJumper;
+import propasm.opt.DeadCodeEliminator;
+import propasm.opt.HubScheduler;
+import propasm.opt.IfConversionRule;
+import propasm.opt.Inliner;
+import propasm.opt.PeepholeOptimizer;
+import propasm.opt.PeepholeRule;
 
 /**
  * Command-line main class for the Parallax-format assembler.
@@ -42,12 +61,55 @@ public class ParallaxFrontend implements InclusionHandler {
   }
   
   private ProgramBuilder builder;
+  private AssemblerConfig config;
+  /** Worker threads for parallel lexing; {@code null} when single-threaded. */
+  private ExecutorService executor;
+  /** Errors reported so far for the current file, in recovery mode. */
+  private int errorCount;
+  /** Directory relative filenames are resolved against; {@code null} for the
+   *  working directory. */
+  private File baseDir;
+  /** Destination for progress and reports. */
+  private PrintStream out = System.out;
+  /** Destination for errors. */
+  private PrintStream err = System.err;
+  
+  public ParallaxFrontend() {
+  }
+  
+  /**
+   * Creates a frontend for use from other Java code, such as build tools.
+   * Each instance assembles one file at a time, but separate instances may be
+   * used concurrently.
+   * 
+   * @param config  assembler settings.
+   * @param baseDir  directory that relative source, include, and blob paths
+   *        are resolved against, or {@code null} for the working directory.
+   */
+  public ParallaxFrontend(AssemblerConfig config, File baseDir) {
+    this.config = config;
+    this.baseDir = baseDir;
+  }
+  
+  /**
+   * Sets where progress, reports, and errors are written.  The defaults are
+   * {@code System.out} and {@code System.err}.  Frontends used concurrently
+   * should each be given their own streams, so that their output doesn't
+   * interleave.
+   * 
+   * @param out  destination for progress and reports.
+   * @param err  destination for errors.
+   */
+  public void setOutput(PrintStream out, PrintStream err) {
+    this.out = out;
+    this.err = err;
+  }
   
   public void assemble(String[] argArray) throws IOException {
     List<String> args = new ArrayList<String>();
 	 for (String arg : argArray) args.add(arg);
 
-	 AssemblerConfig config = new AssemblerConfig();
+	 config = new AssemblerConfig();
 	 boolean commandLineOkay = consumeSwitches(args, config);
 	 if (args.isEmpty()) {
 		 System.err.println("No input files specified.");
@@ -58,36 +120,137 @@ public class ParallaxFrontend implements InclusionHandler {
 		 return;
 	 }
     
+    if(config.getThreads() > 1) {
+      executor = Executors.newFixedThreadPool(config.getThreads());
+    }
+    try {
+      assembleAll(args);
+    } finally {
+      if(executor != null) executor.shutdown();
+    }
+  }
+  
+  private void assembleAll(List<String> args) throws IOException {
     for(String filename : args) {
-      builder = new ProgramBuilder(config);
-      long time = System.currentTimeMillis();
-      try {
-        parse(filename);
-      } catch(Exception e) {
-        if(e instanceof RuntimeException) throw (RuntimeException)e;
-        // abort file
-        continue;
+      assembleFile(filename, filename + ".binary");
+    }
+  }
+  
+  /**
+   * Assembles a single source file, reporting any problems on the error
+   * stream.
+   * 
+   * @param filename  source file to assemble.
+   * @param outputName  file to write the image to.
+   * @return {@code true} if the image was written, {@code false} if the source
+   *         had errors.
+   * @throws IOException  if the output cannot be written.
+   */
+  public boolean assembleFile(String filename, String outputName)
+      throws IOException {
+    builder = new ProgramBuilder(config);
+    errorCount = 0;
+    long time = System.currentTimeMillis();
+    // Optimizations first, so that reports describe the final code.  They're
+    // registered before parsing so that they also run ahead of passes the
+    // source asks for, like .timed padding.
+    if(config.isInlining()) {
+      builder.addPass(new Inliner(out, builder.getKeptLabels()));
+    }
+    List<PeepholeRule> rules = new ArrayList<PeepholeRule>();
+    if(config.isPeephole()) {
+      rules.addAll(PeepholeOptimizer.defaultRules());
+    }
+    if(config.isIfConversion()) {
+      rules.add(new IfConversionRule());
+    }
+    if(!rules.isEmpty()) {
+      builder.addPass(new PeepholeOptimizer(out, rules));
+    }
+    if(config.isOptimizeSize()) {
+      builder.addPass(new CrossJumper(builder, out));
+    }
+    if(config.isScheduleHubAccesses()) {
+      builder.addPass(new HubScheduler(out));
+    }
+    if(config.isDeadCodeElimination()) {
+      builder.addPass(new DeadCodeEliminator(out,
+                                             builder.getKeptLabels()));
+    }
+    try {
+      parse(filename);
+    } catch(Exception e) {
+      if(e instanceof RuntimeException) throw (RuntimeException)e;
+      // abort file
+      return false;
+    }
+    
+    String base = outputName.endsWith(".binary")
+        ? outputName.substring(0, outputName.length() - ".binary".length())
+        : outputName;
+    if(config.isHubAnalysis()) {
+      builder.addPass(new HubPhaseAnalysis(out));
+    }
+    File wcetFile = null;
+    Writer wcet = null;
+    if(config.isWcetAnalysis() && errorCount == 0) {
+      wcetFile = resolve(base + ".wcet.json");
+      wcet = new OutputStreamWriter(new FileOutputStream(wcetFile), "UTF8");
+      builder.addPass(new WcetAnalysis(out, wcet,
+                                       builder.getLoopBounds()));
+    }
+    
+    File listingFile = null;
+    PrintWriter listing = null;
+    if(config.isGenerateListing() && errorCount == 0) {
+      listingFile = resolve(base + ".lst");
+      listing = new PrintWriter(new OutputStreamWriter(
+          new FileOutputStream(listingFile), "UTF8"));
+      builder.addLayoutListener(new ListingWriter(listing, baseDir, filename));
+    }
+    
+    // In recovery mode we get here even if parsing went wrong, so that
+    // errors found while generating code are reported too.
+    byte[] data = null;
+    try {
+      data = builder.finish();
+    } catch(LogicException e) {
+      err.println("Error generating code for " + filename + ":");
+      err.println(e);
+      errorCount++;
+    } finally {
+      if(wcet != null) wcet.close();
+      if(listing != null) {
+        listing.close();
+        if(listing.checkError()) {
+          err.println("Error writing listing " + listingFile);
+        }
       }
-      
-      byte[] data;
-      try {
-        data = builder.finish();
-      } catch(LogicException e) {
-        System.err.println("Error generating code for " + filename + ":");
-        System.err.println(e);
-        continue;
+    }
+    if(listing != null && errorCount > 0) {
+      listingFile.delete();
+    }
+    if(wcet != null && errorCount > 0) {
+      wcetFile.delete();
+    }
+    if(errorCount > 0) {
+      if(config.isRecoverErrors()) {
+        err.printf("%s: %d error(s), no output written\n",
+                   filename, errorCount);
       }
-      
-      OutputStream out = new FileOutputStream(filename + ".binary");
-      out.write(data);
-      out.close();
-      time = System.currentTimeMillis() - time;
-      
-      
-      System.out.printf("%s -> %s, %d bytes (%dms)\n",
-                        filename, filename + ".binary",
-                        data.length, time);
+      return false;
     }
+    
+    OutputStream image = new FileOutputStream(resolve(outputName));
+    image.write(data);
+    image.close();
+    time = System.currentTimeMillis() - time;
+    
+    
+    out.printf("%s -> %s, %d bytes (%dms)\n",
+               filename, outputName,
+               data.length, time);
+    return true;
   }
   
   public void include(String filename)
@@ -96,39 +259,115 @@ public class ParallaxFrontend implements InclusionHandler {
   }
   
   private void parse(String filename) throws IOException, AssemblyInputException {
-    Reader in = new InputStreamReader(new FileInputStream(filename), "UTF8");
-    ParallaxLexer lexer = new ParallaxLexer(in);
+    File file = resolve(filename);
+    Reader in = new InputStreamReader(new FileInputStream(file), "UTF8");
     ParallaxParser parser = new ParallaxParser(builder, this);
-    Iterable<Token> tokens;
+    parser.setSourceName(filename);
+    parser.setReportStream(out);
+    Iterable<Token> tokens = null;
+    TokenPipeline pipeline = null;
+    List<AssemblyInputException> lexErrors = null, parseErrors = null;
+    if(config.isRecoverErrors()) {
+      lexErrors = new ArrayList<AssemblyInputException>();
+      parseErrors = new ArrayList<AssemblyInputException>();
+      parser.setDiagnostics(parseErrors);
+    }
     try {
-      tokens = lexer.lex();
+      if(config.isPipelined()) {
+        pipeline = new TokenPipeline(in);
+        pipeline.setDiagnostics(lexErrors);
+      } else if(executor != null &&
+         file.length() >= config.getParallelLexThreshold()) {
+        ChunkedLexer lexer = new ChunkedLexer(readFully(in), executor);
+        lexer.setDiagnostics(lexErrors);
+        tokens = lexer.lex();
+      } else {
+        ParallaxLexer lexer = new ParallaxLexer(in);
+        lexer.setDiagnostics(lexErrors);
+        tokens = lexer.lex();
+      }
     } catch(ParseException e) {
-      System.err.println(e);
+      err.println(e);
       throw e;
     } catch(IOException e) {
-      System.err.println("Error reading file " + filename);
-      System.err.println(e.getMessage());
+      err.println("Error reading file " + filename);
+      err.println(e.getMessage());
       throw e;
     } finally {
-      in.close();
+      if(pipeline == null) in.close();
     }
     
     try {
-      parser.parse(tokens);
+      if(pipeline != null) {
+        pipeline.parse(parser);
+      } else {
+        parser.parse(tokens);
+      }
     } catch(ParseException e) {
-      System.err.println("Error parsing " + filename + ":");
-      System.err.println(e);
+      err.println("Error parsing " + filename + ":");
+      err.println(e);
       throw e;
     } catch(LogicException e) {
-      System.err.println("Error processing " + filename + ":");
-      System.err.println(e);
+      err.println("Error processing " + filename + ":");
+      err.println(e);
       throw e;
+    } catch(IOException e) {
+      err.println("Error reading file " + filename);
+      err.println(e.getMessage());
+      throw e;
+    } finally {
+      if(pipeline != null) in.close();
     }
-
+    
+    if(lexErrors != null) {
+      reportErrors(filename, lexErrors, parseErrors);
+    }
+  }
+  
+  /**
+   * Prints the errors collected from one file in recovery mode, in line order.
+   * Only the first error on each line is shown: once a line has gone wrong,
+   * anything else found on it is most likely fallout.  Lexical errors win over
+   * parse errors for the same reason.
+   */
+  private void reportErrors(String filename,
+                            List<AssemblyInputException> lexErrors,
+                            List<AssemblyInputException> parseErrors) {
+    Map<Integer, AssemblyInputException> byLine =
+        new TreeMap<Integer, AssemblyInputException>();
+    for(AssemblyInputException e : lexErrors) {
+      if(!byLine.containsKey(e.getLine())) byLine.put(e.getLine(), e);
+    }
+    for(AssemblyInputException e : parseErrors) {
+      if(!byLine.containsKey(e.getLine())) byLine.put(e.getLine(), e);
+    }
+    if(byLine.isEmpty()) return;
+    
+    err.println("Errors in " + filename + ":");
+    for(AssemblyInputException e : byLine.values()) {
+      err.println(e);
+    }
+    errorCount += byLine.size();
+  }
+  
+  private File resolve(String filename) {
+    File file = new File(filename);
+    if(baseDir == null || file.isAbsolute()) return file;
+    return new File(baseDir, filename);
+  }
+  
+  private static CharSequence readFully(Reader in) throws IOException {
+    StringBuilder text = new StringBuilder();
+    char[] buffer = new char[8192];
+    int count;
+    while((count = in.read(buffer)) != -1) {
+      text.append(buffer, 0, count);
+    }
+    return text;
   }
   
   public void includeBlob(String filename) throws IOException {
-    FileInputStream in = new FileInputStream(filename);
+    FileInputStream in = new FileInputStream(resolve(filename));
 	 try {
 		 while (true) {
 		 	int b = in.read();
@@ -151,6 +390,22 @@ public class ParallaxFrontend implements InclusionHandler {
 	     " this is useful for making");
 	 System.err.println("       a \"coglet\" to include in larger assembly " +
 	     "programs.");
+	 System.err.println(" -deferred  Parse the whole program before encoding it, then");
+	 System.err.println("       encode in parallel.");
+	 System.err.println(" -pipeline  Lex on a separate thread, overlapped with parsing.");
+	 System.err.println(" -list  Also write a listing (.lst) showing addresses, encodings,");
+	 System.err.println("       and clock counts for each line.");
+	 System.err.println(" -hubreport  Report clocks lost waiting for hub access windows.");
+	 System.err.println(" -schedule  Reorder instructions so hub accesses hit their windows.");
+	 System.err.println(" -peephole  Remove or simplify wasteful instruction sequences.");
+	 System.err.println(" -ifconvert  Replace short forward branches with predicated instructions.");
+	 System.err.println(" -inline  Inline calls to small leaf subroutines.");
+	 System.err.println(" -size  Share duplicated code, trading a few clocks for cog memory.");
+	 System.err.println(" -strip  Remove unreachable code and unreferenced data.");
+	 System.err.println(" -wcet  Report best and worst-case clocks for each subroutine and loop,");
+	 System.err.println("       and write them as JSON (.wcet.json).");
+	 System.err.println(" -recover  Keep going after an error, and report every error found.");
+	 System.err.println(" -threads <n>  Use up to n worker threads (default: one per CPU).");
   }
 
   private boolean consumeSwitches(List<String> args, AssemblerConfig config) {
@@ -158,6 +413,37 @@ public class ParallaxFrontend implements InclusionHandler {
 		  String flag = args.remove(0);
 		  if (flag.equals("-raw")) {
 			  config.setGenerateBootloader(false);
+		  } else if (flag.equals("-deferred")) {
+			  config.setDeferredEncoding(true);
+		  } else if (flag.equals("-pipeline")) {
+			  config.setPipelined(true);
+		  } else if (flag.equals("-list")) {
+			  config.setGenerateListing(true);
+		  } else if (flag.equals("-hubreport")) {
+			  config.setHubAnalysis(true);
+		  } else if (flag.equals("-schedule")) {
+			  config.setScheduleHubAccesses(true);
+		  } else if (flag.equals("-peephole")) {
+			  config.setPeephole(true);
+		  } else if (flag.equals("-ifconvert")) {
+			  config.setIfConversion(true);
+		  } else if (flag.equals("-inline")) {
+			  config.setInlining(true);
+		  } else if (flag.equals("-size")) {
+			  config.setOptimizeSize(true);
+		  } else if (flag.equals("-strip")) {
+			  config.setDeadCodeElimination(true);
+		  } else if (flag.equals("-wcet")) {
+			  config.setWcetAnalysis(true);
+		  } else if (flag.equals("-recover")) {
+			  config.setRecoverErrors(true);
+		  } else if (flag.equals("-threads") && args.size() > 0) {
+			  try {
+				  config.setThreads(Integer.parseInt(args.remove(0)));
+			  } catch (IllegalArgumentException e) {
+				  System.err.println("Invalid thread count for -threads");
+				  return false;
+			  }
 		  } else {
 			  System.err.println("Unrecognized flag: " + flag);
 			  return false;
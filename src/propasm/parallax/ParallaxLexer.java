@@ -20,6 +20,8 @@ import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 
+import propasm.model.AssemblyInputException;
+
 import static propasm.parallax.Token.Type.*;
 
 /**
@@ -46,8 +48,8 @@ import static propasm.parallax.Token.Type.*;
 public class ParallaxLexer {
   /** Input. */
   private final Reader in;
-  /** List of tokens, built up as scanning progresses. */
-  private final List<Token> tokens = new ArrayList<Token>();
+  /** Destination for tokens, fed as scanning progresses. */
+  private TokenSink sink;
   /** Unicode codepoint of next character in input stream. */
   private int c;
  
@@ -57,6 +59,8 @@ public class ParallaxLexer {
   private final StringBuilder currentText = new StringBuilder();
   /** Whether or not we're currently normalizing case to lowercase. */
   boolean ignoreCase = true;
+  /** If non-null, errors are collected here and lexing resumes. */
+  private List<AssemblyInputException> diagnostics;
 
   /**
    * Creates a new, ready-to-use lexer for the given data source.
@@ -67,6 +71,17 @@ public class ParallaxLexer {
     this.in = in;
   }
 
+  /**
+   * Switches the lexer into error-recovery mode.  Instead of stopping at the
+   * first lexical error, the lexer records it in {@code diagnostics}, skips to
+   * the end of the offending line, and carries on.
+   * 
+   * @param diagnostics  list to collect errors in.
+   */
+  public void setDiagnostics(List<AssemblyInputException> diagnostics) {
+    this.diagnostics = diagnostics;
+  }
+
   /**
    * Kicks off the lexing, and returns the lexed tokens as an Iterable.  This
    * method will exhaust the input.
@@ -78,12 +93,52 @@ public class ParallaxLexer {
    *         grammar.
    */
   public Iterable<Token> lex() throws IOException, ParseException {
+    final List<Token> tokens = new ArrayList<Token>();
+    lex(new TokenSink() {
+      public void add(Token token) {
+        tokens.add(token);
+      }
+    });
+    return tokens;
+  }
+  
+  /**
+   * Lexes the input, handing each token to {@code sink} as soon as it is
+   * complete.  The last token given to the sink is always EOF.  This method will
+   * exhaust the input.
+   * 
+   * @param sink  destination for tokens.
+   * @throws IOException  if the input stream cannot be read.
+   * @throws ParseException  if the input cannot be made to fit within our
+   *         grammar.
+   */
+  void lex(TokenSink sink) throws IOException, ParseException {
+    this.sink = sink;
     readChar();
     while(c != -1) {
-      next();
+      try {
+        next();
+      } catch(ParseException e) {
+        if(diagnostics == null) throw e;
+        diagnostics.add(e);
+        skipRestOfLine();
+      }
     }
     quickToken(EOF, "");
-    return tokens;
+  }
+  
+  /**
+   * Abandons the current token and discards input up to the next line ending,
+   * which is left to be lexed normally.
+   */
+  private void skipRestOfLine() throws IOException {
+    ignoreCase = true;
+    currentText.setLength(0);
+    while(c != -1 && !isNewline()) {
+      readChar();
+    }
+    startLine = lineNumber;
+    startCol = colNumber;
   }
   
   /**
@@ -139,7 +194,12 @@ public class ParallaxLexer {
     }
     finishToken(NL);
     lineNumber++;
-    colNumber = 1;
+    // Restart the position counters exactly as a fresh lexer would see them,
+    // so that token positions never depend on the contents of earlier lines.
+    // (ChunkedLexer relies on this.)
+    colNumber = (c == '\t') ? 9 : 2;
+    startLine = lineNumber;
+    startCol = 1;
   }
 
   private boolean isWhitespace() {
@@ -296,7 +356,7 @@ public class ParallaxLexer {
     token.setLine(lineNumber);
     token.setColumn(colNumber);
     token.setText(text);
-    tokens.add(token);
+    sink.add(token);
     readChar();
   }
 
@@ -324,7 +384,7 @@ public class ParallaxLexer {
     token.setColumn(startCol);
     token.setText(currentText.toString());
     currentText.setLength(0);
-    tokens.add(token);
+    sink.add(token);
     
     startLine = lineNumber;
     startCol = colNumber;
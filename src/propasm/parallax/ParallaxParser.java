@@ -16,9 +16,22 @@
 package propasm.parallax;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import propasm.analysis.CycleBudget;
+import propasm.gen.ConstantArithmetic;
+import propasm.gen.JumpTable;
+import propasm.gen.LargeMemoryModel;
+import propasm.gen.LoopUnroller;
+import propasm.gen.OverlayManager;
+import propasm.gen.ParallelLauncher;
+import propasm.gen.TableGenerator;
 import propasm.model.AssemblyInputException;
 import propasm.model.ClockMode;
 import propasm.model.Effect;
@@ -33,6 +46,8 @@ import propasm.model.PllMode;
 import propasm.model.Predicate;
 import propasm.model.ProgramBuilder;
 import propasm.model.RegisterSet;
+import propasm.opt.LocalAllocator;
+import propasm.opt.TimedBlocks;
 import static propasm.parallax.Token.Type.*;
 
 /**
@@ -67,6 +82,44 @@ public class ParallaxParser {
   private Token current;
   /** Most recent non-local label encountered (for namespacing local labels). */
   private String nonLocalLabel;
+  /** Label defined on the current line, if any. */
+  private String lineLabel;
+  /** If non-null, errors are collected here and parsing resumes. */
+  private List<AssemblyInputException> diagnostics;
+  /** Name of the source being parsed, for listings and reports. */
+  private String sourceName;
+  /** Destination for reports from directives and the passes they add. */
+  private PrintStream out = System.out;
+  /** Pass balancing this source's {@code .timed} blocks, once it has any. */
+  private TimedBlocks timedBlocks;
+  /** Label at the top of the open {@code .timed} block, or {@code null}. */
+  private String timedStart;
+  private int timedLine, timedClocks;
+  private Operand timedScratch;
+  /** Generator for {@code .mulc} and {@code .divc}, once it's needed. */
+  private ConstantArithmetic arithmetic;
+  /** Pass overlaying this source's {@code .local}s, once it has any. */
+  private LocalAllocator localAllocator;
+  /** Pass checking this source's {@code .budget}s, once it has any. */
+  private CycleBudget budgets;
+  /** Cases of the open {@code .switch}, or {@code null}. */
+  private SortedMap<Integer, LabelReference> switchCases;
+  private Operand switchIndex;
+  private String switchTable;
+  private LabelReference switchOtherwise;
+  private int switchLine;
+  /** Kernel and translator for LMM code, once it's needed. */
+  private LargeMemoryModel lmm;
+  /** Line of the open {@code .lmm} section, or 0 if there is none. */
+  private int lmmLine;
+  /** Loader and call rewriter for overlays, once it's needed. */
+  private OverlayManager overlays;
+  /** Line of the open {@code .overlay}, or 0 if there is none. */
+  private int overlayLine;
+  /** Launcher for {@code .parallel} blocks, once there are any. */
+  private ParallelLauncher parallel;
+  /** Line of the open {@code .parallel}, or 0 if there is none. */
+  private int parallelLine;
   
   /**
    * Initializes a new parser, using the given {@link ProgramBuilder} for
@@ -80,6 +133,37 @@ public class ParallaxParser {
     this.builder = builder;
   }
   
+  /**
+   * Sets where reports from directives, and from the passes they add, are
+   * written.  The default is {@code System.out}.
+   * 
+   * @param out  report destination, or {@code null} for no reports.
+   */
+  public void setReportStream(PrintStream out) {
+    this.out = out;
+  }
+  
+  /**
+   * Switches the parser into error-recovery mode.  Instead of stopping at the
+   * first bad line, the parser records the error in {@code diagnostics},
+   * resynchronizes at the next line ending, and carries on.
+   * 
+   * @param diagnostics  list to collect errors in.
+   */
+  public void setDiagnostics(List<AssemblyInputException> diagnostics) {
+    this.diagnostics = diagnostics;
+  }
+  
+  /**
+   * Names the source being parsed.  The name is recorded, with line numbers,
+   * on everything this parser hands to the {@link ProgramBuilder}.
+   * 
+   * @param sourceName  name of the source file.
+   */
+  public void setSourceName(String sourceName) {
+    this.sourceName = sourceName;
+  }
+  
   /**
    * Parses the given stream of tokens.
    * 
@@ -93,6 +177,45 @@ public class ParallaxParser {
     this.tokenStream = tokens.iterator();
     advance();
     program();
+    if(timedStart != null) {
+      LogicException e = new LogicException(".timed block is never closed " +
+          "with .endtimed", timedLine, 0);
+      timedStart = null;
+      if(diagnostics == null) throw e;
+      diagnostics.add(e);
+    }
+    if(switchCases != null) {
+      LogicException e = new LogicException(".switch is never closed " +
+          "with .endswitch", switchLine, 0);
+      switchCases = null;
+      if(diagnostics == null) throw e;
+      diagnostics.add(e);
+    }
+    if(lmmLine != 0) {
+      LogicException e = new LogicException(".lmm section is never closed " +
+          "with .endlmm", lmmLine, 0);
+      lmmLine = 0;
+      if(diagnostics == null) throw e;
+      diagnostics.add(e);
+    }
+    if(overlayLine != 0) {
+      LogicException e = new LogicException(".overlay is never closed " +
+          "with .endoverlay", overlayLine, 0);
+      overlayLine = 0;
+      if(diagnostics == null) throw e;
+      diagnostics.add(e);
+    }
+    if(parallelLine != 0) {
+      LogicException e = new LogicException(".parallel is never closed " +
+          "with .endparallel", parallelLine, 0);
+      parallelLine = 0;
+      if(diagnostics == null) throw e;
+      diagnostics.add(e);
+    }
+    // Worker blocks go in hub, after everything else.
+    if(parallel != null) parallel.placeBlocks();
+    // Budgets go last, so they see the code after any padding is added.
+    if(budgets != null) builder.addPass(budgets);
   }
   
   /*
@@ -101,21 +224,38 @@ public class ParallaxParser {
    */
   private void program() throws AssemblyInputException {
     while(!current.is(EOF)) {
-      if(current.is(COMMENT) || current.is(NL)) {
-        advance(); // skip
-      } else if(current.is(IDENT) || current.is(SPACE) || current.is(COLON)) {
-        line();
-      } else {
-        throw new ParseException("Unexpected start of line: " + current.getText(), current);
+      try {
+        if(current.is(COMMENT) || current.is(NL)) {
+          advance(); // skip
+        } else if(current.is(IDENT) || current.is(SPACE) || current.is(COLON)) {
+          builder.setSourcePosition(sourceName, current.getLine());
+          line();
+        } else {
+          throw new ParseException("Unexpected start of line: " + current.getText(), current);
+        }
+      } catch(AssemblyInputException e) {
+        if(diagnostics == null) throw e;
+        diagnostics.add(e);
+        skipRestOfLine();
       }
     }
   }
   
+  /**
+   * Discards tokens up to (but not including) the next line ending.
+   */
+  private void skipRestOfLine() {
+    while(!current.is(NL) && !current.is(EOF)) {
+      advance();
+    }
+  }
+  
   /*
    * line ::= ( <label> | <local-label> )? SPACE 
    *          ( <predicate> <op-or-directive> (SPACE)? (COMMENT)? )?
    */
   private void line() throws AssemblyInputException {
+    lineLabel = null;
     if(current.is(IDENT)) {
       label();
     } else if(current.is(COLON)) {
@@ -154,12 +294,13 @@ public class ParallaxParser {
                                line, col);
     }
     nonLocalLabel = label;
+    lineLabel = label;
   }
   
   /*
    * local-label ::= COLON IDENT
    */
-  private void localLabel() throws ParseException {
+  private void localLabel() throws AssemblyInputException {
     advance();
     String labelName = current.getText();
     if(!current.is(IDENT)) {
@@ -172,7 +313,13 @@ public class ParallaxParser {
                                current);
     }
     String label = swizzleLocalLabel(labelName);
-    builder.defineLabel(label);
+    try {
+      builder.defineLabel(label);
+    } catch(IllegalStateException e) {
+      throw new LogicException("Label ':" + labelName + "' defined more than " +
+                               "once!", current.getLine(), current.getColumn());
+    }
+    lineLabel = label;
     advance();
   }
 
@@ -184,7 +331,11 @@ public class ParallaxParser {
     String text = current.getText();
     Predicate pred = null;
     if(text.startsWith("if_")) {
-      pred = Predicate.valueOf(text.toUpperCase());
+      try {
+        pred = Predicate.valueOf(text.toUpperCase());
+      } catch(IllegalArgumentException e) {
+        throw new ParseException("Unknown predicate '" + text + "'", current);
+      }
       advance();
       if(current.is(SPACE)) {
         advance();
@@ -263,12 +414,799 @@ public class ParallaxParser {
       xinfreqDirective();
     } else if(text.equals("clkmode")) {
       clkmodeDirective();
+    } else if(text.equals("pool")) {
+      builder.addPool();
+    } else if(text.equals("timed")) {
+      timedDirective(line, col);
+    } else if(text.equals("endtimed")) {
+      endTimedDirective(line, col);
+    } else if(text.equals("budget")) {
+      budgetDirective(line);
+    } else if(text.equals("bound")) {
+      boundDirective();
+    } else if(text.equals("mulc")) {
+      arithmeticDirective(true, line, col);
+    } else if(text.equals("divc")) {
+      arithmeticDirective(false, line, col);
+    } else if(text.equals("table")) {
+      tableDirective(line, col);
+    } else if(text.equals("switch")) {
+      switchDirective(line, col);
+    } else if(text.equals("case")) {
+      caseDirective(line, col);
+    } else if(text.equals("endswitch")) {
+      endSwitchDirective(line, col);
+    } else if(text.equals("rep")) {
+      repDirective(line, col);
+    } else if(text.equals("unroll")) {
+      unrollDirective(line, col);
+    } else if(text.equals("endrep")) {
+      throw new ParseException(".endrep without .rep or .unroll", line, col);
+    } else if(text.equals("keep") || text.equals("export")) {
+      keepDirective();
+    } else if(text.equals("local")) {
+      localDirective(line, col);
+    } else if(text.equals("lmmkernel")) {
+      lmmKernelDirective(line, col);
+    } else if(text.equals("lmm") || text.equals("endlmm") ||
+              text.equals("fcache") || text.equals("endfcache")) {
+      lmmDirective(text, line, col);
+    } else if(text.equals("overlaywindow")) {
+      overlayWindowDirective(line, col);
+    } else if(text.equals("overlay") || text.equals("endoverlay")) {
+      overlayDirective(text, line, col);
+    } else if(text.equals("parallel")) {
+      parallelDirective(line, col);
+    } else if(text.equals("endparallel") || text.equals("arrive")) {
+      joinDirective(text, line, col);
+    } else if(text.equals("synth")) {
+      allowOptionalWhitespace();
+      arithmetic().setGoal(parseEnum(ConstantArithmetic.Goal.class,
+                                     "synthesis goal (cycles or longs)"));
     } else {
       throw new ParseException("Unknown directive: ." + text,
                                line, col);
     }
   }
   
+  /*
+   * timed-directive ::= "timed" SPACE <number> ( COMMA <operand> )?
+   */
+  private void timedDirective(int line, int col)
+      throws AssemblyInputException {
+    if(timedStart != null) {
+      throw new ParseException(".timed blocks can't be nested (the open " +
+                               "block started on line " + timedLine + ")",
+                               line, col);
+    }
+    allowOptionalWhitespace();
+    int clocks = number();
+    allowOptionalWhitespace();
+    Operand scratch = null;
+    if(current.is(COMMA)) {
+      advance();
+      allowOptionalWhitespace();
+      scratch = register();
+    }
+    timedStart = builder.uniqueLabel("timed");
+    timedLine = line;
+    timedClocks = clocks;
+    timedScratch = scratch;
+    builder.defineLabel(timedStart);
+  }
+  
+  /*
+   * endtimed-directive ::= "endtimed"
+   */
+  private void endTimedDirective(int line, int col)
+      throws AssemblyInputException {
+    if(timedStart == null) {
+      throw new ParseException(".endtimed without .timed", line, col);
+    }
+    String end = timedStart + ":end";
+    builder.defineLabel(end);
+    if(timedBlocks == null) {
+      timedBlocks = new TimedBlocks(builder, out);
+      builder.addPass(timedBlocks);
+    }
+    timedBlocks.addBlock(timedStart, end, timedClocks, timedScratch,
+                         timedLine);
+    timedStart = null;
+  }
+  
+  /*
+   * arithmetic-directive ::= ( "mulc" | "divc" ) SPACE <operand> COMMA
+   *                          ( HASH )? <number> ( COMMA <operand> )*
+   */
+  private void arithmeticDirective(boolean multiply, int line, int col)
+      throws AssemblyInputException {
+    allowOptionalWhitespace();
+    Operand dest = register();
+    allowOptionalWhitespace();
+    expect(COMMA, "Expecting comma before constant");
+    advance();
+    allowOptionalWhitespace();
+    if(current.is(HASH)) advance();
+    int constant = number();
+    allowOptionalWhitespace();
+    List<Operand> scratch = new ArrayList<Operand>();
+    while(current.is(COMMA)) {
+      advance();
+      allowOptionalWhitespace();
+      scratch.add(register());
+      allowOptionalWhitespace();
+    }
+    Operand[] registers = scratch.toArray(new Operand[scratch.size()]);
+    try {
+      if(multiply) {
+        arithmetic().multiply(dest, constant, registers);
+      } else {
+        arithmetic().divide(dest, constant, registers);
+      }
+    } catch(IllegalArgumentException e) {
+      throw new LogicException(e.getMessage(), line, col);
+    }
+  }
+  
+  /*
+   * table-directive ::= "table" SPACE ( "byte" | "word" | "long" ) COMMA
+   *                     IDENT COMMA <number> ( COMMA <number> )*
+   */
+  private void tableDirective(int line, int col)
+      throws AssemblyInputException {
+    allowOptionalWhitespace();
+    expect(IDENT, "Expecting table data size");
+    String kind = current.getText();
+    int size;
+    if(kind.equals("byte")) {
+      size = 1;
+    } else if(kind.equals("word")) {
+      size = 2;
+    } else if(kind.equals("long")) {
+      size = 4;
+    } else {
+      throw new ParseException("Invalid table data size: " + kind, current);
+    }
+    advance();
+    allowOptionalWhitespace();
+    expect(COMMA, "Expecting comma before table function");
+    advance();
+    allowOptionalWhitespace();
+    TableGenerator.Function function =
+      parseEnum(TableGenerator.Function.class, "table function");
+    int count = commaNumber("table size");
+    List<Integer> args = new ArrayList<Integer>();
+    allowOptionalWhitespace();
+    while(current.is(COMMA)) {
+      advance();
+      allowOptionalWhitespace();
+      args.add(number());
+      allowOptionalWhitespace();
+    }
+    int[] values = new int[args.size()];
+    for(int i = 0; i < values.length; i++) values[i] = args.get(i);
+    
+    int[] table;
+    try {
+      table = new TableGenerator(builder.getConfig().getThreads())
+          .generate(function, count, size, values);
+    } catch(IllegalArgumentException e) {
+      throw new LogicException(e.getMessage(), line, col);
+    }
+    if(size == 2) builder.ensureWordAlignment();
+    if(size == 4) builder.ensureLongAlignment();
+    for(int value : table) {
+      if(size == 1) {
+        builder.addByte((byte)value);
+      } else if(size == 2) {
+        builder.addWord(value);
+      } else {
+        builder.addLong(value);
+      }
+    }
+  }
+  
+  /*
+   * switch-directive ::= "switch" SPACE <operand> COMMA <operand>
+   *                      ( COMMA <operand> )?
+   */
+  private void switchDirective(int line, int col)
+      throws AssemblyInputException {
+    if(switchCases != null) {
+      throw new ParseException(".switch can't be nested (the open one " +
+                               "started on line " + switchLine + ")",
+                               line, col);
+    }
+    allowOptionalWhitespace();
+    Operand index = register();
+    allowOptionalWhitespace();
+    expect(COMMA, "Expecting comma before jump table label");
+    advance();
+    allowOptionalWhitespace();
+    String table = codeLabel();
+    allowOptionalWhitespace();
+    LabelReference otherwise = null;
+    if(current.is(COMMA)) {
+      advance();
+      allowOptionalWhitespace();
+      otherwise = new LabelReference(codeLabel());
+    }
+    switchCases = new TreeMap<Integer, LabelReference>();
+    switchIndex = index;
+    switchTable = table;
+    switchOtherwise = otherwise;
+    switchLine = line;
+  }
+  
+  /*
+   * case-directive ::= "case" SPACE <number> COMMA <operand>
+   */
+  private void caseDirective(int line, int col)
+      throws AssemblyInputException {
+    if(switchCases == null) {
+      throw new ParseException(".case outside .switch", line, col);
+    }
+    allowOptionalWhitespace();
+    Token start = current;
+    int value = number();
+    if(value < 0) {
+      throw new ParseException("Case numbers can't be negative", start);
+    }
+    if(switchCases.containsKey(value)) {
+      throw new ParseException("Duplicate case " + value, start);
+    }
+    allowOptionalWhitespace();
+    expect(COMMA, "Expecting comma before case label");
+    advance();
+    allowOptionalWhitespace();
+    switchCases.put(value, new LabelReference(codeLabel()));
+  }
+  
+  /*
+   * endswitch-directive ::= "endswitch"
+   */
+  private void endSwitchDirective(int line, int col)
+      throws AssemblyInputException {
+    if(switchCases == null) {
+      throw new ParseException(".endswitch without .switch", line, col);
+    }
+    SortedMap<Integer, LabelReference> cases = switchCases;
+    switchCases = null;
+    try {
+      new JumpTable(builder).dispatch(switchIndex, switchTable, cases,
+                                      switchOtherwise);
+    } catch(IllegalArgumentException e) {
+      throw new LogicException(e.getMessage(), switchLine, 0);
+    }
+  }
+  
+  /*
+   * keep-directive ::= ( "keep" | "export" ) SPACE <operand>
+   *                    ( COMMA <operand> )*
+   */
+  private void keepDirective() throws AssemblyInputException {
+    allowOptionalWhitespace();
+    while(true) {
+      Token start = current;
+      Operand label = operand(32);
+      if(!(label instanceof LabelReference)) {
+        throw new ParseException("Expecting a label to keep", start);
+      }
+      builder.keepLabel(((LabelReference)label).getTargetName());
+      allowOptionalWhitespace();
+      if(!current.is(COMMA)) break;
+      advance();
+      allowOptionalWhitespace();
+    }
+  }
+  
+  /*
+   * local-directive ::= "local" SPACE <operand> ( COMMA <number> )?
+   */
+  private void localDirective(int line, int col)
+      throws AssemblyInputException {
+    if(lineLabel == null) {
+      throw new ParseException(".local needs a label to name the variable",
+                               line, col);
+    }
+    String label = lineLabel;
+    allowOptionalWhitespace();
+    String owner = codeLabel();
+    allowOptionalWhitespace();
+    int longs = 1;
+    if(current.is(COMMA)) {
+      Token start = current;
+      longs = commaNumber("local size");
+      if(longs <= 0) {
+        throw new ParseException("Local size must be positive", start);
+      }
+    }
+    if(localAllocator == null) {
+      localAllocator = new LocalAllocator(out);
+      builder.addPass(localAllocator);
+    }
+    localAllocator.addLocal(label, owner, longs, line);
+    builder.reserveBytes(longs * 4);
+  }
+  
+  /*
+   * lmmkernel-directive ::= "lmmkernel" SPACE <operand>
+   *                         ( COMMA <number> ( COMMA <number> )? )?
+   */
+  private void lmmKernelDirective(int line, int col)
+      throws AssemblyInputException {
+    allowOptionalWhitespace();
+    String entry = codeLabel();
+    allowOptionalWhitespace();
+    int cache = LargeMemoryModel.DEFAULT_CACHE;
+    int stack = LargeMemoryModel.DEFAULT_STACK;
+    if(current.is(COMMA)) {
+      cache = commaNumber("FCACHE size");
+      allowOptionalWhitespace();
+      if(current.is(COMMA)) stack = commaNumber("LMM stack depth");
+    }
+    try {
+      lmm().kernel(entry, cache, stack);
+    } catch(IllegalArgumentException e) {
+      throw new LogicException(e.getMessage(), line, col);
+    }
+  }
+  
+  /*
+   * lmm-directive ::= "lmm" | "endlmm" | "fcache" | "endfcache"
+   */
+  private void lmmDirective(String text, int line, int col)
+      throws AssemblyInputException {
+    try {
+      if(text.equals("lmm")) {
+        lmm().beginSection();
+        lmmLine = line;
+      } else if(text.equals("endlmm")) {
+        lmm().endSection();
+        lmmLine = 0;
+      } else if(text.equals("fcache")) {
+        lmm().beginBlock();
+      } else {
+        lmm().endBlock();
+      }
+    } catch(IllegalStateException e) {
+      throw new LogicException(e.getMessage(), line, col);
+    }
+  }
+  
+  /*
+   * overlaywindow-directive ::= "overlaywindow" SPACE <number>
+   */
+  private void overlayWindowDirective(int line, int col)
+      throws AssemblyInputException {
+    allowOptionalWhitespace();
+    int window = number();
+    try {
+      overlays().loader(window);
+    } catch(IllegalArgumentException e) {
+      throw new LogicException(e.getMessage(), line, col);
+    }
+  }
+  
+  /*
+   * overlay-directive ::= "overlay" SPACE IDENT | "endoverlay"
+   */
+  private void overlayDirective(String text, int line, int col)
+      throws AssemblyInputException {
+    try {
+      if(text.equals("overlay")) {
+        allowOptionalWhitespace();
+        expect(IDENT, "Expecting overlay name");
+        String name = current.getText();
+        advance();
+        overlays().begin(name);
+        nonLocalLabel = name;
+        overlayLine = line;
+      } else {
+        overlays().end();
+        overlayLine = 0;
+      }
+    } catch(IllegalStateException e) {
+      throw new LogicException(e.getMessage(), line, col);
+    }
+  }
+  
+  /*
+   * parallel-directive ::= "parallel" SPACE <number> COMMA <operand>
+   *                        COMMA <operand> COMMA <number>
+   */
+  private void parallelDirective(int line, int col)
+      throws AssemblyInputException {
+    allowOptionalWhitespace();
+    int workers = number();
+    allowOptionalWhitespace();
+    expect(COMMA, "Expecting comma before worker entry");
+    advance();
+    allowOptionalWhitespace();
+    String entry = codeLabel();
+    allowOptionalWhitespace();
+    expect(COMMA, "Expecting comma before worker data");
+    advance();
+    allowOptionalWhitespace();
+    Token start = current;
+    Operand data = operand(32);
+    if(!(data instanceof LabelReference)) {
+      throw new ParseException("Expecting a data label", start);
+    }
+    int stride = commaNumber("data stride");
+    try {
+      parallel().launch(workers, entry,
+                        ((LabelReference)data).getTargetName(), stride, line);
+    } catch(IllegalArgumentException e) {
+      throw new LogicException(e.getMessage(), line, col);
+    } catch(IllegalStateException e) {
+      throw new LogicException(e.getMessage(), line, col);
+    }
+    parallelLine = line;
+  }
+  
+  /*
+   * join-directive ::= "endparallel" | "arrive"
+   */
+  private void joinDirective(String text, int line, int col)
+      throws AssemblyInputException {
+    if(text.equals("arrive")) {
+      parallel().arrive();
+      return;
+    }
+    try {
+      parallel().join();
+      parallelLine = 0;
+    } catch(IllegalStateException e) {
+      throw new LogicException(e.getMessage(), line, col);
+    }
+  }
+  
+  private ParallelLauncher parallel() {
+    if(parallel == null) {
+      parallel = new ParallelLauncher(builder);
+      builder.addPass(parallel);
+    }
+    return parallel;
+  }
+  
+  private OverlayManager overlays() {
+    if(overlays == null) {
+      overlays = new OverlayManager(builder);
+      builder.addPass(overlays);
+    }
+    return overlays;
+  }
+  
+  private LargeMemoryModel lmm() {
+    if(lmm == null) {
+      lmm = new LargeMemoryModel(builder);
+      builder.addPass(lmm);
+    }
+    return lmm;
+  }
+  
+  /*
+   * rep-directive ::= "rep" SPACE <number> ( COMMA IDENT )?
+   */
+  private void repDirective(int line, int col)
+      throws AssemblyInputException {
+    allowOptionalWhitespace();
+    Token start = current;
+    int count = number();
+    if(count < 0) {
+      throw new ParseException("Repeat count can't be negative", start);
+    }
+    allowOptionalWhitespace();
+    String index = null;
+    if(current.is(COMMA)) {
+      advance();
+      allowOptionalWhitespace();
+      expect(IDENT, "Expecting name of the iteration index");
+      index = current.getText();
+      advance();
+    }
+    List<Token> block = new ArrayList<Token>();
+    for(List<Token> l : repeatedBlock(line, col)) block.addAll(l);
+    for(int i = 0; i < count; i++) {
+      List<Token> copy = new ArrayList<Token>(block.size());
+      for(Token t : block) {
+        if(t.is(IDENT) && t.getText().equals(index)) {
+          t = token(DECIMAL_NUMBER, Integer.toString(i), t);
+        }
+        copy.add(t);
+      }
+      replay(copy);
+    }
+  }
+  
+  /*
+   * unroll-directive ::= "unroll" SPACE <number> COMMA <operand>
+   *                      ( COMMA <number> )?
+   */
+  private void unrollDirective(int line, int col)
+      throws AssemblyInputException {
+    allowOptionalWhitespace();
+    int factor = number();
+    allowOptionalWhitespace();
+    expect(COMMA, "Expecting comma before scratch register");
+    advance();
+    allowOptionalWhitespace();
+    Operand scratch = register();
+    allowOptionalWhitespace();
+    int limit = 0x1F0;
+    if(current.is(COMMA)) limit = commaNumber("cog memory limit");
+    
+    List<List<Token>> lines = new ArrayList<List<Token>>();
+    for(List<Token> l : repeatedBlock(line, col)) {
+      if(!isBlank(l)) lines.add(l);
+    }
+    if(lines.size() < 2) {
+      throw new LogicException("Nothing to unroll: expecting a loop body " +
+                               "and a djnz", line, col);
+    }
+    // The loop's label, which must start the first line.
+    List<Token> first = lines.get(0);
+    int labelLength = first.get(0).is(COLON) ? 2 : 1;
+    if(!first.get(0).is(IDENT) && !first.get(0).is(COLON)) {
+      throw new ParseException("Loop to unroll must start with a label",
+                               first.get(0));
+    }
+    List<Token> label = new ArrayList<Token>(first.subList(0, labelLength));
+    List<Token> body = new ArrayList<Token>(
+        first.subList(labelLength, first.size()));
+    for(List<Token> l : lines.subList(1, lines.size() - 1)) {
+      if(!l.get(0).is(SPACE)) {
+        throw new LogicException("Can't unroll a loop with labels inside",
+                                 l.get(0).getLine(), l.get(0).getColumn());
+      }
+      body.addAll(l);
+    }
+    
+    // The loop's djnz, which must be the last line and go back to the label.
+    List<Token> last = lines.get(lines.size() - 1);
+    int i = 0;
+    if(last.get(i).is(SPACE)) i++;
+    if(!last.get(i).is(IDENT) || !last.get(i).getText().equals("djnz")) {
+      throw new LogicException("Loop to unroll must end with an " +
+          "unconditional djnz", last.get(0).getLine(), last.get(0).getColumn());
+    }
+    i++;
+    if(last.get(i).is(SPACE)) i++;
+    int counterStart = i;
+    while(!last.get(i).is(COMMA) && !last.get(i).is(NL)) i++;
+    List<Token> counterTokens = last.subList(counterStart, i);
+    StringBuilder target = new StringBuilder();
+    for(i++; i < last.size() && !last.get(i).is(COMMENT); i++) {
+      if(!last.get(i).is(SPACE) && !last.get(i).is(NL)) {
+        target.append(last.get(i).getText());
+      }
+    }
+    StringBuilder header = new StringBuilder("#");
+    for(Token t : label) header.append(t.getText());
+    if(!target.toString().equals(header.toString())) {
+      throw new LogicException("Loop to unroll must end with djnz back to " +
+          header.substring(1), last.get(0).getLine(),
+          last.get(0).getColumn());
+    }
+    Operand counter = parseOperand(counterTokens);
+    if(counter.isReadOnly()) {
+      throw new LogicException("Read-only register can't be a loop counter",
+                               last.get(0).getLine(), last.get(0).getColumn());
+    }
+    for(Operand register : new Operand[] { counter, scratch }) {
+      if(!(register instanceof LabelReference)) continue;
+      String name = ((LabelReference)register).getTargetName();
+      name = name.substring(name.lastIndexOf(':') + 1);
+      for(Token t : body) {
+        if(t.is(IDENT) && t.getText().equals(name)) {
+          throw new LogicException("Can't unroll a loop whose body uses " +
+              name, t.getLine(), t.getColumn());
+        }
+      }
+    }
+    
+    label.add(token(NL, "\n", first.get(first.size() - 1)));
+    int begin = builder.getRuntimeAddress();
+    replay(label);
+    final List<Token> trip = body;
+    try {
+      new LoopUnroller(builder).unroll(counter, scratch, factor,
+          new LoopUnroller.Body() {
+            public void emit() throws AssemblyInputException {
+              replay(trip);
+            }
+          });
+    } catch(IllegalArgumentException e) {
+      throw new LogicException(e.getMessage(), line, col);
+    }
+    int addr = builder.getRuntimeAddress() + builder.getPendingPoolSize();
+    if(addr >= limit) {
+      throw new LogicException("Unrolled loop exceeds bounds!  " +
+                "(Required to fit beneath " + Integer.toHexString(limit) +
+                ", current size is " + Integer.toHexString(addr) + ")",
+                line, col);
+    }
+    if(out != null) {
+      out.printf("Line %d: loop unrolled %d times in %d longs\n", line, factor,
+                 builder.getRuntimeAddress() - begin);
+    }
+  }
+  
+  /**
+   * Collects the lines following a {@code .rep} or {@code .unroll}
+   * directive, up to the matching {@code .endrep}.  The current token is left
+   * at the end of the {@code .endrep} line.
+   * 
+   * @return the lines, each ending in its NL token.
+   */
+  private List<List<Token>> repeatedBlock(int line, int col)
+      throws ParseException {
+    allowOptionalWhitespace();
+    if(current.is(COMMENT)) advance();
+    expect(NL, "Expecting end of line");
+    advance();
+    
+    List<List<Token>> lines = new ArrayList<List<Token>>();
+    int depth = 1;
+    while(true) {
+      List<Token> l = new ArrayList<Token>();
+      String directive = null;
+      while(!current.is(NL)) {
+        if(current.is(EOF)) {
+          throw new ParseException("Repeated block is never closed with " +
+                                   ".endrep", line, col);
+        }
+        if(directive == null && l.size() > 0 && l.get(l.size() - 1).is(DOT)) {
+          directive = current.getText();
+        }
+        l.add(current);
+        advance();
+      }
+      if("rep".equals(directive) || "unroll".equals(directive)) {
+        depth++;
+      } else if("endrep".equals(directive) && --depth == 0) {
+        return lines;
+      }
+      l.add(current);
+      advance();
+      lines.add(l);
+    }
+  }
+  
+  private static boolean isBlank(List<Token> line) {
+    for(Token t : line) {
+      if(!t.is(SPACE) && !t.is(COMMENT) && !t.is(NL)) return false;
+    }
+    return true;
+  }
+  
+  /**
+   * Parses {@code tokens} as though they appeared here in the source, then
+   * picks up where the source left off.
+   */
+  private void replay(List<Token> tokens) throws AssemblyInputException {
+    Iterator<Token> stream = tokenStream;
+    Token resume = current;
+    switchTo(tokens);
+    try {
+      program();
+    } finally {
+      tokenStream = stream;
+      current = resume;
+    }
+  }
+  
+  /**
+   * Parses {@code tokens} as a single operand.
+   */
+  private Operand parseOperand(List<Token> tokens)
+      throws AssemblyInputException {
+    Iterator<Token> stream = tokenStream;
+    Token resume = current;
+    switchTo(tokens);
+    try {
+      Operand operand = operand(9);
+      allowOptionalWhitespace();
+      expect(EOF, "Unexpected text after operand");
+      return operand;
+    } finally {
+      tokenStream = stream;
+      current = resume;
+    }
+  }
+  
+  private void switchTo(List<Token> tokens) {
+    List<Token> stream = new ArrayList<Token>(tokens);
+    stream.add(token(EOF, "", current));
+    tokenStream = stream.iterator();
+    advance();
+  }
+  
+  /**
+   * Makes a token that appears to come from the same place as {@code at}.
+   */
+  private static Token token(Token.Type type, String text, Token at) {
+    Token token = new Token();
+    token.setType(type);
+    token.setText(text);
+    token.setLine(at.getLine());
+    token.setColumn(at.getColumn());
+    return token;
+  }
+  
+  private ConstantArithmetic arithmetic() {
+    if(arithmetic == null) arithmetic = new ConstantArithmetic(builder);
+    return arithmetic;
+  }
+  
+  /**
+   * Parses an operand naming a register that generated code may write.
+   */
+  private Operand register() throws AssemblyInputException {
+    int line = current.getLine(), col = current.getColumn();
+    Operand operand = operand(9);
+    if(operand.isReadOnly()) {
+      throw new LogicException("Read-only register can't be written",
+                               line, col);
+    }
+    return operand;
+  }
+  
+  /*
+   * budget-directive ::= "budget" SPACE <operand> COMMA <number>
+   */
+  private void budgetDirective(int line) throws AssemblyInputException {
+    allowOptionalWhitespace();
+    String label = codeLabel();
+    int clocks = commaNumber("clock budget");
+    if(budgets == null) {
+      budgets = new CycleBudget(out, builder.getLoopBounds());
+    }
+    budgets.addBudget(label, clocks, line);
+  }
+  
+  /*
+   * bound-directive ::= "bound" SPACE <operand> COMMA <number>
+   */
+  private void boundDirective() throws AssemblyInputException {
+    allowOptionalWhitespace();
+    String label = codeLabel();
+    Token start = current;
+    int trips = commaNumber("loop bound");
+    if(trips <= 0) {
+      throw new ParseException("Loop bound must be positive", start);
+    }
+    builder.setLoopBound(label, trips);
+  }
+  
+  /**
+   * Parses a label in cog memory, such as a loop, subroutine, or case.
+   * 
+   * @return the label name, with any local label swizzled.
+   */
+  private String codeLabel() throws AssemblyInputException {
+    Token start = current;
+    Operand label = operand(9);
+    if(!(label instanceof LabelReference) || ((LabelReference)label)
+        .getMemoryType() != LabelReference.MemoryType.LOCAL) {
+      throw new ParseException("Expecting a code label",
+                               start);
+    }
+    return ((LabelReference)label).getTargetName();
+  }
+  
+  /**
+   * Parses a comma and the number after it.
+   */
+  private int commaNumber(String what) throws ParseException {
+    allowOptionalWhitespace();
+    expect(COMMA, "Expecting comma before " + what);
+    advance();
+    allowOptionalWhitespace();
+    return number();
+  }
+  
   private void alignDirective() throws AssemblyInputException {
     allowOptionalWhitespace();
     expect(IDENT, "Expecting alignment type");
@@ -338,11 +1276,16 @@ public class ParallaxParser {
   /*
    * org-directive ::= "org" SPACE <optional-number>
    */
-  private void orgDirective() throws ParseException {
+  private void orgDirective() throws AssemblyInputException {
+    int line = current.getLine(), col = current.getColumn();
     advance();
     allowOptionalWhitespace();
     int value = number(0);
-    builder.setRuntimeAddress(value);
+    try {
+      builder.setRuntimeAddress(value);
+    } catch(IllegalArgumentException e) {
+      throw new LogicException("ORG address out of range: " + value, line, col);
+    }
   }
   /*
    * res-directive ::= "res" SPACE <number>
@@ -427,8 +1370,7 @@ public class ParallaxParser {
       int constant = value.getValue();
       builder.addWord(constant);
     } else {
-      LabelReference ref = (LabelReference)value;
-      builder.addWord(ref.retrieveAddress(builder, 0));
+      builder.addWordReference((LabelReference)value);
     }
     
     allowOptionalWhitespace();
@@ -441,8 +1383,7 @@ public class ParallaxParser {
         int constant = value.getValue();
         builder.addWord(constant);
       } else {
-        LabelReference ref = (LabelReference)value;
-        builder.addWord(ref.retrieveAddress(builder, 0));
+        builder.addWordReference((LabelReference)value);
       }
       allowOptionalWhitespace();
     }
@@ -464,8 +1405,7 @@ public class ParallaxParser {
       int constant = value.getValue();
       builder.addLong(constant);
     } else {
-      LabelReference ref = (LabelReference)value;
-      builder.addLong(ref.retrieveAddress(builder, 0));
+      builder.addLongReference((LabelReference)value);
     }
     
     allowOptionalWhitespace();
@@ -478,8 +1418,7 @@ public class ParallaxParser {
         int constant = value.getValue();
         builder.addLong(constant);
       } else {
-        LabelReference ref = (LabelReference)value;
-        builder.addLong(ref.retrieveAddress(builder, 0));
+        builder.addLongReference((LabelReference)value);
       }
       allowOptionalWhitespace();
     }
@@ -543,7 +1482,18 @@ public class ParallaxParser {
     int col = current.getColumn();
     advance();
     int reqAddr = number(0x1F0);
-    int addr = builder.getRuntimeAddress();
+    if(localAllocator != null) {
+      // Locals are reserved in full until they're overlaid, so the size isn't
+      // known yet.
+      String marker = builder.uniqueLabel("fit");
+      builder.defineLabel(marker);
+      builder.keepLabel(marker);
+      localAllocator.addFit(marker, reqAddr, builder.getPendingPoolSize(),
+                            line);
+      return;
+    }
+    // Count the literal pool, which will land in this image.
+    int addr = builder.getRuntimeAddress() + builder.getPendingPoolSize();
     
     if(addr >= reqAddr) {
       throw new LogicException("Program exceeds bounds!  " +
@@ -551,7 +1501,10 @@ public class ParallaxParser {
                 ", current size is " + Integer.toHexString(addr) + ")",
                 line, col);
     }
-    System.out.println("Line " + line + ": FIT directive succeeded at address " + addr);
+    if(out != null) {
+      out.println("Line " + line + ": FIT directive succeeded at address " +
+                  addr);
+    }
   }
   
   /*
@@ -560,7 +1513,7 @@ public class ParallaxParser {
    *              | <dest-operand> COMMA ( SPACE )? <source-operand> )?
    *              ( <effect> ( COMMA ( SPACE )? <effect> )* )?
    * dest-operand ::= <operand>
-   * source-operand ::= ( HASH )? <operand>
+   * source-operand ::= ( HASH ( HASH )? )? <operand>
    */
   private void op(Predicate pred) throws AssemblyInputException {
     Instruction instr = new Instruction(builder);
@@ -600,11 +1553,18 @@ public class ParallaxParser {
         }
       }
       if(current.is(HASH)) {
-        instr.setImmediateSource(true);
         advance();
+        if(current.is(HASH)) {
+          advance();
+          instr.setSource(poolOperand(instr));
+        } else {
+          instr.setImmediateSource(true);
+          instr.setSource(operand(9));
+        }
+      } else {
+        instr.setSource(operand(9));
       }
-      instr.setSource(operand(9));
-      
+
     }
     allowOptionalWhitespace();
     if(current.is(IDENT)) {
@@ -623,6 +1583,26 @@ public class ParallaxParser {
     
     builder.addInstruction(instr);
   }
+  
+  /**
+   * Handles a source operand written with {@code ##}, which may be any 32-bit
+   * value.  Values small enough for the S field become ordinary immediates;
+   * anything else is placed in the literal pool.
+   */
+  private Operand poolOperand(Instruction instr)
+      throws AssemblyInputException {
+    Operand value = operand(32);
+    if(value.containsValue()) {
+      int constant = value.getValue();
+      if(constant >= 0 && constant < 512) {
+        instr.setImmediateSource(true);
+        return new NumericOperand(constant, 9);
+      }
+      return builder.addPoolConstant(constant);
+    }
+    return builder.addPoolReference((LabelReference)value);
+  }
+  
   /*
    * operand ::= <number> | <label> | <local-label>
    */
@@ -0,0 +1,253 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.parallax;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+
+import propasm.model.AssemblyInputException;
+
+/**
+ * Runs a {@link ParallaxLexer} on a producer thread, feeding its tokens to a
+ * {@link ParallaxParser} on the calling thread, so that reading and lexing the
+ * input overlaps with parsing and code generation.
+ * 
+ * Tokens travel in fixed-size batches through a small ring: full batches go to
+ * the parser, and emptied batches come back to the lexer for reuse.  The ring
+ * is bounded, so a lexer that gets too far ahead simply waits.
+ * 
+ * Errors on either side stop the other promptly.  A lexical error follows the
+ * tokens lexed before it down the ring, and is reported when the parser
+ * reaches it, so an earlier parse error is always the one seen, however the
+ * threads are scheduled.  An error from the parser cancels the lexer.
+ * 
+ * @author cbiffle
+ *
+ */
+public class TokenPipeline implements Iterable<Token> {
+  /** Tokens per batch. */
+  private static final int BATCH_SIZE = 512;
+  /** Batches in the ring. */
+  private static final int BATCH_COUNT = 8;
+  
+  private final ParallaxLexer lexer;
+  /** Batches filled by the lexer, awaiting the parser. */
+  private final BlockingQueue<Batch> full =
+    new ArrayBlockingQueue<Batch>(BATCH_COUNT + 1);
+  /** Batches consumed by the parser, awaiting reuse. */
+  private final BlockingQueue<Batch> empty =
+    new ArrayBlockingQueue<Batch>(BATCH_COUNT);
+  
+  /** First exception thrown by the lexer, if any. */
+  private volatile Exception failure;
+  /** Set when the parser gives up, to stop the lexer. */
+  private volatile boolean cancelled;
+  
+  /**
+   * Creates a pipeline reading from the given source.
+   * 
+   * @param in  character data source.
+   */
+  public TokenPipeline(Reader in) {
+    this.lexer = new ParallaxLexer(in);
+    for(int i = 0; i < BATCH_COUNT; i++) {
+      empty.add(new Batch());
+    }
+  }
+  
+  /**
+   * Puts the lexer into error-recovery mode; see
+   * {@link ParallaxLexer#setDiagnostics(List)}.  The list is filled in on the
+   * lexer thread, and is complete once {@link #parse(ParallaxParser)} returns.
+   * 
+   * @param diagnostics  list to collect lexical errors in.
+   */
+  public void setDiagnostics(List<AssemblyInputException> diagnostics) {
+    lexer.setDiagnostics(diagnostics);
+  }
+  
+  /**
+   * Lexes the input on a new thread while {@code parser} consumes it on this
+   * one.  Returns once the parser is done and the lexer thread has stopped.
+   * 
+   * @param parser  parser to feed.
+   * @throws IOException  if the input cannot be read.
+   * @throws AssemblyInputException  if either the lexer or the parser rejects
+   *         the input.
+   */
+  public void parse(ParallaxParser parser)
+      throws IOException, AssemblyInputException {
+    Thread producer = start();
+    try {
+      parser.parse(this);
+    } catch(LexerFailure e) {
+      if(failure instanceof ParseException) throw (ParseException)failure;
+      if(failure instanceof IOException) throw (IOException)failure;
+      throw (RuntimeException)failure;
+    } finally {
+      stop(producer);
+    }
+  }
+  
+  /**
+   * Starts the lexer thread.  {@link #parse(ParallaxParser)} does this for
+   * itself; tests that read the tokens directly call it, and then
+   * {@link #stop(Thread)}.
+   */
+  Thread start() {
+    Thread producer = new Thread(new Runnable() {
+      public void run() {
+        produce();
+      }
+    }, "propasm lexer");
+    producer.setDaemon(true);
+    producer.start();
+    return producer;
+  }
+  
+  /**
+   * Stops the lexer thread, if it's still running, and waits for it.
+   */
+  void stop(Thread producer) {
+    cancelled = true;
+    producer.interrupt();
+    try {
+      producer.join();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  /**
+   * @return the first exception thrown by the lexer, or {@code null}.
+   */
+  Exception getFailure() {
+    return failure;
+  }
+  
+  /**
+   * Body of the producer thread.
+   */
+  private void produce() {
+    final Batch[] current = new Batch[1];
+    try {
+      current[0] = empty.take();
+      lexer.lex(new TokenSink() {
+        public void add(Token token) {
+          Batch batch = current[0];
+          batch.tokens[batch.size++] = token;
+          if(token.is(Token.Type.EOF)) {
+            handOff(batch, false);
+          } else if(batch.size == BATCH_SIZE) {
+            current[0] = handOff(batch, true);
+          }
+        }
+      });
+    } catch(CancellationException e) {
+      // The parser stopped listening; nothing to report.
+    } catch(InterruptedException e) {
+      // Likewise.
+    } catch(Exception e) {
+      failure = e;
+      // The tokens before the error still go to the parser, in order.
+      if(current[0] != null && current[0].size > 0) full.offer(current[0]);
+      full.offer(Batch.FAILED);
+    }
+  }
+  
+  /**
+   * Passes a full batch to the parser and, if requested, obtains an empty one.
+   * Throws {@link CancellationException} if the parser has stopped, to unwind
+   * the lexer.
+   */
+  private Batch handOff(Batch batch, boolean needAnother) {
+    try {
+      if(cancelled) throw new CancellationException();
+      full.put(batch);
+      if(!needAnother) return null;
+      Batch next = empty.take();
+      next.size = 0;
+      return next;
+    } catch(InterruptedException e) {
+      throw new CancellationException();
+    }
+  }
+  
+  /**
+   * Returns an iterator over the tokens, blocking as needed for the lexer.
+   * Can only be used once.  Lexer failures surface as {@link LexerFailure}.
+   */
+  public Iterator<Token> iterator() {
+    return new Iterator<Token>() {
+      private Batch batch;
+      private int index;
+      private boolean done;
+      
+      public boolean hasNext() {
+        return !done;
+      }
+      
+      public Token next() {
+        if(done) throw new NoSuchElementException();
+        if(batch == null || index == batch.size) {
+          if(batch != null) empty.offer(batch);
+          batch = take();
+          index = 0;
+        }
+        Token token = batch.tokens[index];
+        batch.tokens[index++] = null;
+        if(token.is(Token.Type.EOF)) done = true;
+        return token;
+      }
+    };
+  }
+  
+  private Batch take() {
+    try {
+      Batch batch = full.take();
+      if(batch == Batch.FAILED) throw new LexerFailure();
+      return batch;
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException();
+    }
+  }
+  
+  /**
+   * A reusable group of tokens.
+   */
+  private static class Batch {
+    /** Marker sent when the lexer fails. */
+    static final Batch FAILED = new Batch();
+    
+    final Token[] tokens = new Token[BATCH_SIZE];
+    int size;
+  }
+  
+  /**
+   * Thrown through the parser when the lexer has failed; the real exception is
+   * in {@link TokenPipeline#failure}.
+   */
+  static class LexerFailure extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
+}
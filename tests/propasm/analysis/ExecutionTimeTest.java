@@ -0,0 +1,133 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import propasm.model.LogicException;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class ExecutionTimeTest {
+  private static final String PROGRAM =
+    "loop rdlong x, ptr\n" +
+    " test x, #1 wz\n" +
+    " if_nz call #sub\n" +
+    " djnz n, #loop\n" +
+    " mov x, #0\n" +
+    "sub add x, #1\n" +
+    " if_c jmp #sub_ret\n" +
+    " add x, #2\n" +
+    "sub_ret ret\n" +
+    "x long 0\n" +
+    "n long 0\n" +
+    "ptr long 0\n";
+  
+  @Test public void testWorstCase() throws Exception {
+    ExecutionTime time = new ExecutionTime(Programs.parse(PROGRAM));
+    assertTrue(time.isSubroutine("sub"));
+    assertFalse(time.isLoop("sub"));
+    assertTrue(time.isLoop("loop"));
+    // add, untaken jmp, add, ret; or add, jmp, ret.
+    assertEquals(16, time.worstSubroutine("sub"));
+    assertEquals(12, time.subroutine("sub").getBest());
+    // A full hub window, test, call and sub, and an untaken djnz.
+    assertEquals(22 + 4 + 4 + 16 + 8, time.worstLoopBody("loop"));
+  }
+  
+  @Test public void testBudget() throws Exception {
+    Programs.parse(" .budget loop, 54\n .budget sub, 16\n" + PROGRAM);
+    try {
+      Programs.parse(PROGRAM + " .budget loop, 50\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(13, e.getLine());
+    }
+  }
+  
+  @Test public void testRejectsWaits() throws Exception {
+    ExecutionTime time = new ExecutionTime(Programs.parse(
+        "loop waitcnt t, #10\n" +
+        " jmp #loop\n" +
+        "t long 0\n"));
+    try {
+      time.worstLoopBody("loop");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+  }
+  
+  @Test public void testNestedLoops() throws Exception {
+    String source =
+        "loop mov i, #10\n" +
+        "inner add x, #1\n" +
+        " djnz i, #inner\n" +
+        " jmp #loop\n" +
+        "x long 0\n" +
+        "i long 0\n";
+    ExecutionTime time = new ExecutionTime(Programs.parse(source));
+    // mov, then ten trips of add and djnz (counted at its slower 8), and jmp.
+    assertEquals(4 + 10 * 12 + 4, time.worstLoopBody("loop"));
+    assertEquals(4 + 10 * 8 + 4, time.loopBody("loop").getBest());
+  }
+  
+  @Test public void testLoopBounds() throws Exception {
+    String source =
+        "loop rdlong x, ptr wz\n" +
+        "inner if_nz sub x, #1 wz\n" +
+        " if_nz jmp #inner\n" +
+        " jmp #loop\n" +
+        "x long 0\n" +
+        "ptr long 0\n";
+    try {
+      new ExecutionTime(Programs.parse(source)).worstLoopBody("loop");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(2, e.getLine());
+    }
+    Map<String, Integer> bounds = new HashMap<String, Integer>();
+    bounds.put("inner", 5);
+    ExecutionTime time = new ExecutionTime(Programs.parse(source), bounds);
+    assertEquals(22 + 5 * 8 + 4, time.worstLoopBody("loop"));
+    // The .bound directive does the same.
+    Programs.parse(source + " .bound inner, 5\n .budget loop, 66\n");
+  }
+  
+  @Test public void testEarlyExit() throws Exception {
+    String source =
+        "loop mov i, #10\n" +
+        "inner add x, #1 wz\n" +
+        " if_z jmp #done\n" +
+        " djnz i, #inner\n" +
+        "done jmp #loop\n" +
+        "x long 0\n" +
+        "i long 0\n";
+    ExecutionTime time = new ExecutionTime(Programs.parse(source));
+    // Ten trips of add, skipped jmp, and djnz at its slower 8, at worst...
+    assertEquals(4 + 10 * 16 + 4, time.worstLoopBody("loop"));
+    // ...but the jmp may leave on the first.
+    assertEquals(4 + 8 + 4, time.loopBody("loop").getBest());
+  }
+}
@@ -0,0 +1,144 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class HubPhaseAnalysisTest {
+  @Test public void testSweetSpotCostsEightClocks() {
+    assertEquals(8, HubPhaseAnalysis.cost(8));
+    assertEquals(0, HubPhaseAnalysis.stall(8));
+    assertEquals(0, HubPhaseAnalysis.stall(24));
+  }
+  
+  @Test public void testBackToBackAccessesStall() {
+    assertEquals(16, HubPhaseAnalysis.cost(0));
+    assertEquals(8, HubPhaseAnalysis.stall(0));
+  }
+  
+  @Test public void testJustMissingTheWindowCostsAlmostACycle() {
+    assertEquals(20, HubPhaseAnalysis.cost(12));
+    assertEquals(12, HubPhaseAnalysis.stall(12));
+    assertEquals(4, HubPhaseAnalysis.stall(4));
+  }
+  
+  @Test public void testStraightLineReport() throws Exception {
+    assertEquals(
+        "Line 2: rdlong comes 0 clocks after the previous hub access, " +
+            "stalling 8 clocks (want 8)\n" +
+        "Hub analysis: 3 hub accesses, 8 clocks of avoidable stalls\n",
+        report(
+            " rdlong a, p\n" +
+            " rdlong b, p\n" +
+            " nop\n" +
+            " nop\n" +
+            " wrlong a, p\n" +
+            "a long 0\n" +
+            "b long 0\n" +
+            "p long 0\n"));
+  }
+  
+  @Test public void testLoopReport() throws Exception {
+    // The back edge carries the phase from the wrlong round to the rdlong.
+    assertEquals(
+        "Line 1: hub loop takes 32 clocks per pass; 8 clocks are hub " +
+            "stalls (hub accesses should be 8 clocks apart)\n" +
+        "Line 1:   rdlong comes 4 clocks after the previous hub access, " +
+            "stalling 4 clocks (want 8)\n" +
+        "Line 3:   wrlong comes 4 clocks after the previous hub access, " +
+            "stalling 4 clocks (want 8)\n" +
+        "Hub analysis: 2 hub accesses, 8 clocks of avoidable stalls\n",
+        report(
+            "loop rdlong a, p\n" +
+            " add a, #1\n" +
+            " wrlong a, p\n" +
+            " djnz n, #loop\n" +
+            "a long 0\n" +
+            "n long 0\n" +
+            "p long 0\n"));
+  }
+  
+  @Test public void testForwardBranchInLoop() throws Exception {
+    // The tjz is taken as falling through, at 8 clocks, and the phase
+    // carries on past the label it targets.
+    assertEquals(
+        "Line 1: hub loop takes 48 clocks per pass; 16 clocks are hub " +
+            "stalls (hub accesses should be 8 clocks apart)\n" +
+        "Line 1:   rdlong comes 4 clocks after the previous hub access, " +
+            "stalling 4 clocks (want 8)\n" +
+        "Line 4:   wrlong comes 12 clocks after the previous hub access, " +
+            "stalling 12 clocks (want 8)\n" +
+        "Hub analysis: 2 hub accesses, 16 clocks of avoidable stalls\n",
+        report(
+            "loop rdlong a, p\n" +
+            " tjz a, #skip\n" +
+            " add b, a\n" +
+            "skip wrlong b, p\n" +
+            " djnz n, #loop\n" +
+            "a long 0\n" +
+            "b long 0\n" +
+            "n long 0\n" +
+            "p long 0\n"));
+  }
+  
+  @Test public void testBranchesLosePhaseOutsideLoops() throws Exception {
+    // Each access starts a new block, which could be reached either way.
+    assertEquals(
+        "Hub analysis: 3 hub accesses, 0 clocks of avoidable stalls\n",
+        report(
+            " rdlong a, p\n" +
+            " tjz a, #skip\n" +
+            " rdlong b, p\n" +
+            "skip wrlong b, p\n" +
+            "a long 0\n" +
+            "b long 0\n" +
+            "p long 0\n"));
+  }
+  
+  @Test public void testCallsLosePhase() throws Exception {
+    // Only the rdlong, just after the back edge, has a known spacing.
+    assertEquals(
+        "Line 1: hub loop timing depends on waits or calls\n" +
+        "Hub analysis: 2 hub accesses, 4 clocks of avoidable stalls\n",
+        report(
+            "loop rdlong a, p\n" +
+            " call #sub\n" +
+            " wrlong a, p\n" +
+            " djnz n, #loop\n" +
+            "sub nop\n" +
+            "sub_ret ret\n" +
+            "a long 0\n" +
+            "n long 0\n" +
+            "p long 0\n"));
+  }
+  
+  private static String report(String source) throws Exception {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    Programs.parse(source, new HubPhaseAnalysis(new PrintStream(buf, true)));
+    return buf.toString();
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import propasm.AssemblerConfig;
+import propasm.parallax.ParallaxFrontend;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class ListingWriterTest {
+  private File dir;
+  
+  @Before public void setUp() throws IOException {
+    dir = File.createTempFile("propasm", "");
+    dir.delete();
+    dir.mkdir();
+  }
+  
+  @After public void tearDown() {
+    for(File f : dir.listFiles()) f.delete();
+    dir.delete();
+  }
+  
+  @Test public void testListsIncludedSource() throws IOException {
+    write("main.pa",
+          "start mov x, #1\n" +
+          " .include \"inc.pa\"\n" +
+          " if_c add x, #2\n" +
+          " jmp #start\n");
+    write("inc.pa",
+          "\n" +
+          " sub x, #1\n" +
+          "x long 0\n");
+    List<String> lines = list("main.pa");
+    assertEquals(" LINE  COG  IMAGE  DATA      CLOCKS  SOURCE", lines.get(0));
+    assertEquals("    1  000  0000   A0FC0401  4       start mov x, #1",
+                 lines.get(1));
+    // The included file is listed where its code lands...
+    assertEquals("---- inc.pa", lines.get(2));
+    assertEquals("    1                                ", lines.get(3));
+    assertEquals("    2  001  0004   84FC0401  4        sub x, #1",
+                 lines.get(4));
+    assertEquals("    3  002  0008   00000000          x long 0",
+                 lines.get(5));
+    // ...and then the listing picks up the including file where it left off.
+    assertEquals("    2                                 .include \"inc.pa\"",
+                 lines.get(6));
+    // Skipped conditionals take fewer clocks, so the count is marked.
+    assertEquals("    3  003  000C   80F00402  4?       if_c add x, #2",
+                 lines.get(7));
+    assertEquals("    4  004  0010   5C7C0000  4        jmp #start",
+                 lines.get(8));
+    assertEquals(9, lines.size());
+  }
+  
+  @Test public void testWrapsLongData() throws IOException {
+    write("main.pa",
+          "start jmp #start\n" +
+          "data long 1, 2\n" +
+          " byte 3\n");
+    List<String> lines = list("main.pa");
+    assertEquals("    2  001  0004   00000001          data long 1, 2",
+                 lines.get(2));
+    // The second long goes on a row of its own, with no line number.
+    assertEquals("       002  0008   00000002          ", lines.get(3));
+    assertEquals("    3  003  000C   03                 byte 3",
+                 lines.get(4));
+    assertEquals(5, lines.size());
+  }
+  
+  private void write(String name, String source) throws IOException {
+    Writer w = new OutputStreamWriter(
+        new FileOutputStream(new File(dir, name)), "UTF8");
+    w.write(source);
+    w.close();
+  }
+  
+  /**
+   * Assembles {@code name} with a listing.
+   * 
+   * @return the lines of the listing.
+   */
+  private List<String> list(String name) throws IOException {
+    AssemblerConfig config = new AssemblerConfig();
+    config.setGenerateBootloader(false);
+    config.setGenerateListing(true);
+    ParallaxFrontend frontend = new ParallaxFrontend(config, dir);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    frontend.setOutput(new PrintStream(out, true), new PrintStream(out, true));
+    assertTrue(out.toString(), frontend.assembleFile(name, "out.binary"));
+    
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+        new FileInputStream(new File(dir, "out.lst")), "UTF8"));
+    try {
+      String line;
+      while((line = in.readLine()) != null) lines.add(line);
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+}
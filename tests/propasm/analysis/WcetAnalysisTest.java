@@ -0,0 +1,107 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.analysis;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class WcetAnalysisTest {
+  private static final String PROGRAM =
+    "loop rdlong x, ptr\n" +
+    " test x, #1 wz\n" +
+    " if_nz call #sub\n" +
+    " djnz n, #loop\n" +
+    " call #poll\n" +
+    "sub add x, #1\n" +
+    " if_c jmp #sub_ret\n" +
+    " add x, #2\n" +
+    "sub_ret ret\n" +
+    "poll waitcnt x, #10\n" +
+    "poll_ret ret\n" +
+    "x long 0\n" +
+    "n long 0\n" +
+    "ptr long 0\n";
+  
+  @Test public void testReport() throws Exception {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    Programs.parse(PROGRAM, new WcetAnalysis(new PrintStream(buf, true), null,
+                                             noBounds()));
+    assertEquals(
+        "Line 6: subroutine sub takes 12..16 clocks\n" +
+        "Line 10: subroutine poll has no bound: Can't time waitcnt, which " +
+            "waits for an unbounded time\n" +
+        // A hub window, test, call and sub, and djnz; or a skipped call.
+        "Line 1: loop loop takes 19..54 clocks per trip\n" +
+        "WCET: 2 subroutines and 1 loops, 1 without a bound\n",
+        buf.toString());
+  }
+  
+  @Test public void testJson() throws Exception {
+    assertEquals(
+        "{\n" +
+        "  \"subroutines\": [\n" +
+        "    {\"name\": \"sub\", \"line\": 6, \"best\": 12, \"worst\": 16},\n" +
+        "    {\"name\": \"poll\", \"line\": 10, \"error\": \"Can't time " +
+            "waitcnt, which waits for an unbounded time\"}\n" +
+        "  ],\n" +
+        "  \"loops\": [\n" +
+        "    {\"name\": \"loop\", \"line\": 1, \"best\": 19, \"worst\": 54}\n" +
+        "  ]\n" +
+        "}\n",
+        json(PROGRAM));
+    assertEquals(
+        "{\n" +
+        "  \"subroutines\": [],\n" +
+        "  \"loops\": []\n" +
+        "}\n",
+        json("x long 0\n"));
+  }
+  
+  @Test public void testQuote() {
+    assertEquals("\"plain\"", WcetAnalysis.quote("plain"));
+    assertEquals("\"say \\\"hi\\\" \\\\ bye\"",
+                 WcetAnalysis.quote("say \"hi\" \\ bye"));
+    assertEquals("\"a\\u000ab\\u0009\"", WcetAnalysis.quote("a\nb\t"));
+    assertEquals("\"\u00e9\"", WcetAnalysis.quote("\u00e9"));
+  }
+  
+  /**
+   * @return the JSON report for {@code source}, with Unix line endings.
+   */
+  private static String json(String source) throws Exception {
+    StringWriter json = new StringWriter();
+    Programs.parse(source, new WcetAnalysis(null, json, noBounds()));
+    return json.toString().replace(System.getProperty("line.separator"),
+                                   "\n");
+  }
+  
+  private static Map<String, Integer> noBounds() {
+    return new HashMap<String, Integer>();
+  }
+}
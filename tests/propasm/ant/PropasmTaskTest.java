@@ -0,0 +1,166 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.ant;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.Project;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class PropasmTaskTest {
+  private File dir;
+  private PropasmTask task;
+  
+  @Before public void setUp() throws IOException {
+    dir = File.createTempFile("propasm", "");
+    dir.delete();
+    dir.mkdir();
+    Project project = new Project();
+    project.init();
+    task = new PropasmTask();
+    task.setProject(project);
+    task.setSrcdir(dir);
+  }
+  
+  @After public void tearDown() {
+    for(File f : dir.listFiles()) f.delete();
+    dir.delete();
+  }
+  
+  @Test public void testFollowsIncludes() throws IOException {
+    File source = write("main.pa", 1000, ".include \"a.inc\"\n");
+    write("a.inc", 1000, "  nop\n  .include \"b.inc\"\n");
+    File b = write("b.inc", 3000, "  .blob \"data.bin\"\n");
+    File data = write("data.bin", 1000, "");
+    File output = write("main.pa.binary", 2000, "");
+    
+    // b.inc is newer than the output, two includes down.
+    assertFalse(task.isUpToDate(source, output));
+    b.setLastModified(1000 * 1000);
+    assertTrue(task.isUpToDate(source, output));
+    // So are blobs.
+    data.setLastModified(3000 * 1000);
+    assertFalse(task.isUpToDate(source, output));
+  }
+  
+  @Test public void testIncludeCycle() throws IOException {
+    File source = write("main.pa", 1000, ".include \"a.inc\"\n");
+    write("a.inc", 1000, ".include \"b.inc\"\n");
+    write("b.inc", 1000, ".include \"a.inc\"\n.include \"main.pa\"\n");
+    File output = write("main.pa.binary", 2000, "");
+    
+    assertTrue(task.isUpToDate(source, output));
+  }
+  
+  @Test public void testMissingFilesAreStale() throws IOException {
+    File source = write("main.pa", 1000, "  nop\n");
+    assertFalse(task.isUpToDate(source, new File(dir, "main.pa.binary")));
+    
+    write("main.pa", 1000, ".include \"missing.inc\"\n");
+    File output = write("main.pa.binary", 2000, "");
+    assertFalse(task.isUpToDate(source, output));
+  }
+  
+  @Test public void testSkipsUpToDateSources() throws IOException {
+    write("main.pa", 1000, "  bogus\n");
+    write("main.pa.binary", 2000, "");
+    
+    final List<String> messages = new ArrayList<String>();
+    task.getProject().addBuildListener(new Listener(messages));
+    task.execute();
+    assertTrue(messages.isEmpty());
+  }
+  
+  @Test public void testLogsEachFile() throws IOException {
+    write("bad1.pa", 1000, "start jmp #start\n  bogus\n");
+    write("bad2.pa", 1000, "start jmp #start\n  bogus\n");
+    write("good.pa", 1000, "start jmp #start\n");
+    
+    final List<String> messages = new ArrayList<String>();
+    task.getProject().addBuildListener(new Listener(messages));
+    task.setRaw(true);
+    task.setFailonerror(false);
+    task.setThreads(3);
+    task.execute();
+    
+    assertTrue(new File(dir, "good.pa.binary").isFile());
+    assertFalse(new File(dir, "bad1.pa.binary").exists());
+    // Each file's output arrives whole, through the task's log.
+    assertEquals("2:Assembling 3 source file(s) to " + dir, messages.get(0));
+    assertEquals("0:Error parsing bad1.pa:", messages.get(1));
+    assertTrue(messages.get(2).startsWith("0:"));
+    assertEquals("0:Error parsing bad2.pa:", messages.get(3));
+    assertTrue(messages.get(4).startsWith("0:"));
+    assertTrue(messages.get(5).startsWith("2:good.pa -> "));
+    assertEquals("0:2 source file(s) failed to assemble", messages.get(6));
+    assertEquals(7, messages.size());
+  }
+  
+  /**
+   * Creates a file in the source directory.
+   * 
+   * @param seconds  modification time, in seconds since the epoch.
+   */
+  private File write(String name, long seconds, String text)
+      throws IOException {
+    File file = new File(dir, name);
+    Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF8");
+    out.write(text);
+    out.close();
+    file.setLastModified(seconds * 1000);
+    return file;
+  }
+  
+  /**
+   * Records messages logged by the task as "priority:message".
+   */
+  private static class Listener implements BuildListener {
+    private final List<String> messages;
+    
+    Listener(List<String> messages) {
+      this.messages = messages;
+    }
+    
+    public void messageLogged(BuildEvent event) {
+      if(event.getPriority() <= Project.MSG_INFO) {
+        messages.add(event.getPriority() + ":" + event.getMessage());
+      }
+    }
+    
+    public void buildStarted(BuildEvent event) {}
+    public void buildFinished(BuildEvent event) {}
+    public void targetStarted(BuildEvent event) {}
+    public void targetFinished(BuildEvent event) {}
+    public void taskStarted(BuildEvent event) {}
+    public void taskFinished(BuildEvent event) {}
+  }
+}
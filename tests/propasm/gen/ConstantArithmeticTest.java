@@ -0,0 +1,112 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import propasm.model.Element;
+import propasm.model.LogicException;
+import propasm.testutil.CogSimulator;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class ConstantArithmeticTest {
+  private static final int[] VALUES = {
+    0, 1, 2, 3, 7, 9, 10, 99, 100, 1000, 65535, 123456789, 0x7FFFFFFF,
+    0x80000000, 0xDEADBEEF, 0xFFFFFFFE, 0xFFFFFFFF
+  };
+  private static final int[] CONSTANTS = {
+    0, 1, 2, 3, 5, 6, 7, 10, 12, 100, 255, 641, 1000, 0x55555555, 0x7FFFFFFF,
+    0x80000001, -1, -3, -16
+  };
+  
+  private static List<Element> generate(String directive, String goal,
+                                        int constant) throws Exception {
+    return Programs.parse(
+        " .synth " + goal + "\n" +
+        " ." + directive + " x, " + constant + ", t, u\n" +
+        "x long 0\n" +
+        "t long 0\n" +
+        "u long 0\n");
+  }
+  
+  private static int run(List<Element> program, int x) {
+    CogSimulator cog = new CogSimulator(program);
+    cog.set("x", x);
+    cog.run();
+    return cog.get("x");
+  }
+  
+  @Test public void testMultiply() throws Exception {
+    for(String goal : new String[] { "cycles", "longs" }) {
+      for(int constant : CONSTANTS) {
+        List<Element> program = generate("mulc", goal, constant);
+        for(int x : VALUES) {
+          assertEquals(goal + " " + x + " * " + constant, x * constant,
+                       run(program, x));
+        }
+      }
+    }
+  }
+  
+  @Test public void testDivide() throws Exception {
+    for(String goal : new String[] { "cycles", "longs" }) {
+      for(int divisor : CONSTANTS) {
+        if(divisor == 0) continue;
+        List<Element> program = generate("divc", goal, divisor);
+        for(int x : VALUES) {
+          assertEquals(goal + " " + x + " / " + divisor,
+                       (int)((x & 0xFFFFFFFFL) / (divisor & 0xFFFFFFFFL)),
+                       run(program, x));
+        }
+      }
+    }
+  }
+  
+  @Test public void testCanonicalDigits() {
+    // 7 = 8 - 1, and 0x55555555 has no runs to shorten.
+    assertEquals(2, ConstantArithmetic.canonicalDigits(7).size());
+    assertEquals(16, ConstantArithmetic.canonicalDigits(0x55555555).size());
+    // 1000 is 1111101000 in binary, or 10000 (-1) 01000 in signed digits.
+    assertEquals(3, ConstantArithmetic.canonicalDigits(1000).size());
+  }
+  
+  @Test public void testSizes() throws Exception {
+    // Multiplying by 10: copy, shift, add, shift.
+    assertEquals("mov shl add shl",
+                 Programs.mnemonics(generate("mulc", "cycles", 10)));
+    // A dense constant is smaller as a loop.
+    assertEquals(7, Programs.mnemonics(generate("mulc", "longs", 0x55555555))
+                 .split(" ").length);
+  }
+  
+  @Test public void testNeedsScratch() throws Exception {
+    Programs.parse(" .mulc x, 8\n .divc x, 16\nx long 0\n");
+    try {
+      Programs.parse(" .mulc x, 10\nx long 0\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+  }
+}
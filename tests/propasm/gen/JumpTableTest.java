@@ -0,0 +1,112 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import propasm.model.LogicException;
+import propasm.parallax.ParseException;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class JumpTableTest {
+  private static int[] longs(String source) throws Exception {
+    byte[] image = Programs.assemble(source);
+    int[] words = new int[image.length / 4];
+    for(int i = 0; i < words.length; i++) {
+      for(int b = 3; b >= 0; b--) {
+        words[i] = (words[i] << 8) | (image[i * 4 + b] & 0xFF);
+      }
+    }
+    return words;
+  }
+  
+  @Test public void testDispatch() throws Exception {
+    int[] words = longs(
+        " .switch x, table, bad\n" +
+        " .case 0, zero\n" +
+        " .case 2, two\n" +
+        " .endswitch\n" +
+        "zero nop\n" +
+        "two nop\n" +
+        "bad nop\n" +
+        "x long 0\n");
+    assertEquals(13, words.length);
+    // cmp x, #3 wc
+    assertEquals(3, words[0] & 0x1FF);
+    assertEquals(12, (words[0] >> 9) & 0x1FF);
+    // add x, #table / movs slot, x / sub x, #table
+    assertEquals(6, words[1] & 0x1FF);
+    assertEquals(4, (words[2] >> 9) & 0x1FF);
+    assertEquals(12, words[2] & 0x1FF);
+    assertEquals(0, words[2] & (1 << 22));
+    assertEquals(6, words[3] & 0x1FF);
+    // The slot is an indirect jump, only taken when the index is in range.
+    assertEquals(0, words[4] & 0x1FF);
+    assertEquals(0, words[4] & (1 << 22));
+    assertEquals(0xC, (words[4] >> 18) & 0xF);
+    assertEquals(11, words[5] & 0x1FF);
+    // The missing case goes to the default.
+    assertEquals(9, words[6]);
+    assertEquals(11, words[7]);
+    assertEquals(10, words[8]);
+  }
+  
+  @Test public void testNoDefault() throws Exception {
+    int[] words = longs(
+        " .switch x, table\n" +
+        " .case 1, one\n" +
+        " .endswitch\n" +
+        "one nop\n" +
+        "x long 0\n");
+    // Out of range continues after the table.
+    assertEquals(8, words[5] & 0x1FF);
+    assertEquals(8, words[6]);
+    assertEquals(8, words[7]);
+  }
+  
+  @Test public void testErrors() throws Exception {
+    try {
+      Programs.parse(" .switch x, t\n .endswitch\nx long 0\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+    try {
+      Programs.parse(" .switch x, t\n .case 1, a\n .case 1, b\n");
+      fail();
+    } catch(ParseException e) {
+      assertEquals(3, e.getLine());
+    }
+    try {
+      Programs.parse(" .case 1, a\n");
+      fail();
+    } catch(ParseException e) {
+      assertEquals(1, e.getLine());
+    }
+    try {
+      Programs.parse(" .switch x, t\n .case 1, a\na nop\nx long 0\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+  }
+}
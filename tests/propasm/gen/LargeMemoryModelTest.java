@@ -0,0 +1,185 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import propasm.model.Element;
+import propasm.model.LogicException;
+import propasm.testutil.HubSimulator;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class LargeMemoryModelTest {
+  private static final int RESULT = 0x7000;
+
+  private static final String KERNEL =
+      "        org 0\n" +
+      "        .lmmkernel main\n" +
+      "n       long 0\n" +
+      "sum     long 0\n" +
+      "t       long 0\n" +
+      "        .lmm\n";
+  private static final String STOP =
+      "        wrlong sum, par\n" +
+      "        cogid t\n" +
+      "        cogstop t\n";
+
+  private static HubSimulator run(String source) throws Exception {
+    HubSimulator hub = new HubSimulator(Programs.assemble(source));
+    hub.start(0, RESULT);
+    hub.run();
+    return hub;
+  }
+
+  @Test public void testBranches() throws Exception {
+    HubSimulator hub = run(KERNEL +
+        "main    mov n, #10\n" +
+        "loop    add sum, n\n" +
+        "        djnz n, #loop\n" +
+        "        call #twice\n" +
+        "        cmp sum, #110 wz\n" +
+        "  if_z  jmp #good\n" +
+        "        mov sum, #0\n" +
+        "good\n" + STOP +
+        "twice   call #double\n" +
+        "        ret\n" +
+        "double  shl sum, #1\n" +
+        "        ret\n" +
+        "        .endlmm\n");
+    assertEquals(110, hub.readLong(RESULT));
+  }
+
+  @Test public void testIndirectJump() throws Exception {
+    HubSimulator hub = run(
+        "        org 0\n" +
+        "        .lmmkernel main\n" +
+        "sum     long 0\n" +
+        "t       long 0\n" +
+        "to      long @there\n" +
+        "        .lmm\n" +
+        "main    mov sum, #1\n" +
+        "        jmp to\n" +
+        "        mov sum, #2\n" +
+        "there\n" + STOP +
+        "        .endlmm\n");
+    assertEquals(1, hub.readLong(RESULT));
+  }
+
+  @Test public void testTranslation() throws Exception {
+    List<Element> program = Programs.parse(KERNEL +
+        "main    add sum, #1\n" +
+        "  if_z  jmp #main\n" +
+        "        call #main\n" +
+        "        ret\n" +
+        "        .endlmm\n");
+    String code = Programs.mnemonics(program);
+    assertTrue(code, code.endsWith(" add jmp jmp jmp"));
+    int longs = 0;
+    for(int i = program.size() - 1; i >= 0; i--) {
+      Element e = program.get(i);
+      if(e.is(Element.Kind.LONG_REFERENCE)) {
+        assertEquals("main", e.getReference().getTargetName());
+        longs++;
+      }
+      if(e.is(Element.Kind.LABEL) && e.getLabel().equals("main")) break;
+    }
+    // One hub address for each jump and call.
+    assertEquals(2, longs);
+  }
+
+  @Test public void testFcache() throws Exception {
+    String loop =
+        "main    mov n, #100\n" +
+        "        .fcache\n" +
+        "floop   add sum, n\n" +
+        "        djnz n, #floop\n" +
+        "        .endfcache\n" +
+        STOP +
+        "        .endlmm\n";
+    HubSimulator cached = run(KERNEL + loop);
+    assertEquals(5050, cached.readLong(RESULT));
+    HubSimulator slow =
+        run(KERNEL + loop.replaceAll(" *\\.(end)?fcache\n", ""));
+    assertEquals(5050, slow.readLong(RESULT));
+    assertTrue(cached.getSteps() * 2 < slow.getSteps());
+  }
+
+  @Test public void testFcacheUsesPool() throws Exception {
+    HubSimulator hub = run(KERNEL +
+        "main    .fcache\n" +
+        "        mov sum, ##$12345\n" +
+        "        .endfcache\n" +
+        STOP +
+        "        .endlmm\n");
+    assertEquals(0x12345, hub.readLong(RESULT));
+  }
+
+  @Test public void testErrors() throws Exception {
+    try {
+      Programs.parse(" .lmm\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+    try {
+      Programs.parse(KERNEL + "main nop\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(6, e.getLine());
+    }
+    try {
+      Programs.parse(KERNEL + "main jmp #n\n .endlmm\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(7, e.getLine());
+    }
+    try {
+      Programs.parse(KERNEL + "main mov sum, ##$12345\n .endlmm\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(8, e.getLine());
+    }
+    try {
+      Programs.parse(KERNEL + "main .fcache\n" +
+                     "inner jmp #main\n" +
+                     " .endfcache\n .endlmm\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(8, e.getLine());
+    }
+    try {
+      Programs.parse(" org 0\n .lmmkernel main, 2\n .lmm\n" +
+                     "main .fcache\n nop\n nop\n .endfcache\n .endlmm\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(4, e.getLine());
+    }
+    try {
+      Programs.parse(" org 0\n .lmmkernel main, 460\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(2, e.getLine());
+    }
+  }
+}
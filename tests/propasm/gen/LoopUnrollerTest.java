@@ -0,0 +1,108 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import org.junit.Test;
+
+import propasm.model.Element;
+import propasm.model.LogicException;
+import propasm.parallax.ParseException;
+import propasm.testutil.CogSimulator;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class LoopUnrollerTest {
+  @Test public void testRep() throws Exception {
+    List<Element> program = Programs.parse(
+        " .rep 3, i\n" +
+        " shl x, #i\n" +
+        " .rep 2\n" +
+        " add x, #1\n" +
+        " .endrep\n" +
+        " .endrep\n" +
+        "x long 1\n");
+    assertEquals("shl add add shl add add shl add add",
+                 Programs.mnemonics(program));
+    CogSimulator cog = new CogSimulator(program);
+    cog.run();
+    // ((1 << 0) + 2 << 1) + 2 << 2) + 2
+    assertEquals(34, cog.get("x"));
+  }
+  
+  @Test public void testUnroll() throws Exception {
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    List<Element> program = Programs.parse(
+        " jmp #start\n" +
+        "start\n" +
+        " .unroll 4, t\n" +
+        "loop add sum, #3\n" +
+        " djnz n, #loop\n" +
+        " .endrep\n" +
+        "sum long 0\n" +
+        "n long 0\n" +
+        "t long 0\n",
+        new PrintStream(report, true));
+    assertEquals("Line 3: loop unrolled 4 times in 12 longs",
+                 report.toString().trim());
+    for(int trips = 1; trips < 20; trips++) {
+      CogSimulator cog = new CogSimulator(program);
+      cog.set("n", trips);
+      cog.run();
+      assertEquals(3 * trips, cog.get("sum"));
+      assertEquals(0, cog.get("n"));
+    }
+  }
+  
+  @Test public void testUnrollErrors() throws Exception {
+    String[] bad = {
+      // Not a power of two.
+      " .unroll 3, t\nloop add s, #1\n djnz n, #loop\n .endrep\n",
+      // Wrong branch target.
+      " .unroll 2, t\nloop add s, #1\n djnz n, #s\n .endrep\n",
+      // Body uses the counter.
+      " .unroll 2, t\nloop add s, n\n djnz n, #loop\n .endrep\n",
+      // Label inside.
+      " .unroll 2, t\nloop add s, #1\nin add s, #1\n djnz n, #loop\n" +
+          " .endrep\n",
+      // Too big for the cog.
+      " .unroll 4, t, 16\nloop add s, #1\n add s, #1\n djnz n, #loop\n" +
+          " .endrep\n",
+    };
+    for(String source : bad) {
+      try {
+        Programs.parse(source + "s long 0\nn long 0\nt long 0\n");
+        fail(source);
+      } catch(LogicException e) {
+        // expected
+      }
+    }
+    try {
+      Programs.parse(" .rep 2\n nop\n");
+      fail();
+    } catch(ParseException e) {
+      assertEquals(1, e.getLine());
+    }
+  }
+}
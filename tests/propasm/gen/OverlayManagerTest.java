@@ -0,0 +1,127 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import propasm.model.LogicException;
+import propasm.testutil.HubSimulator;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class OverlayManagerTest {
+  private static final int RESULT = 0x7000;
+
+  private static final String RESIDENT =
+      "        org 0\n" +
+      "start   call #inc\n" +
+      "        call #dbl\n" +
+      "        call #inc\n" +
+      "        call #inc\n" +
+      "        cmp v, #6 wz\n" +
+      "  if_z  call #dbl\n" +
+      "  if_nz call #inc\n" +
+      "        wrlong v, par\n" +
+      "        cogid t\n" +
+      "        cogstop t\n" +
+      "twice   shl v, #1\n" +
+      "twice_ret ret\n" +
+      "v       long 1\n" +
+      "t       long 0\n" +
+      "        .overlaywindow 6\n";
+  private static final String OVERLAYS =
+      "        .overlay a\n" +
+      "inc     add v, #1\n" +
+      "inc_ret ret\n" +
+      "        .endoverlay\n" +
+      "        .overlay b\n" +
+      "        long 0\n" +
+      "dbl     call #twice\n" +
+      "dbl_ret ret\n" +
+      "        .endoverlay\n";
+
+  @Test public void testCallsLoadOverlays() throws Exception {
+    HubSimulator hub = new HubSimulator(Programs.assemble(RESIDENT + OVERLAYS));
+    hub.start(0, RESULT);
+    hub.run();
+    // 1, 2, 4, 5, 6, then 12, and the flags survive the load.
+    assertEquals(12, hub.readLong(RESULT));
+  }
+
+  @Test public void testJumpLoads() throws Exception {
+    HubSimulator hub = new HubSimulator(Programs.assemble(
+        "        org 0\n" +
+        "        jmp #far\n" +
+        "done    wrlong v, par\n" +
+        "        cogid v\n" +
+        "        cogstop v\n" +
+        "v       long 0\n" +
+        "        .overlaywindow 4\n" +
+        "        .overlay a\n" +
+        "far     mov v, #42\n" +
+        "        jmp #done\n" +
+        "        .endoverlay\n"));
+    hub.start(0, RESULT);
+    hub.run();
+    assertEquals(42, hub.readLong(RESULT));
+  }
+
+  @Test public void testErrors() throws Exception {
+    try {
+      Programs.parse(" .overlay a\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+    try {
+      Programs.parse(RESIDENT + " .overlay a\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(17, e.getLine());
+    }
+    try {
+      Programs.parse(RESIDENT + OVERLAYS +
+                     " .overlay c\n" +
+                     "x call #inc\n" +
+                     " .endoverlay\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(27, e.getLine());
+    }
+    try {
+      Programs.parse(RESIDENT + OVERLAYS +
+                     " org 0\n" +
+                     " djnz v, #inc\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(27, e.getLine());
+    }
+    try {
+      Programs.parse(RESIDENT + OVERLAYS +
+                     " .overlay c\n" +
+                     " long 0, 0, 0, 0, 0, 0, 0, 0, 0\n" +
+                     " .endoverlay\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(26, e.getLine());
+    }
+  }
+}
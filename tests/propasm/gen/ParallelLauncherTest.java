@@ -0,0 +1,134 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import propasm.model.LogicException;
+import propasm.testutil.HubSimulator;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class ParallelLauncherTest {
+  private static final int RESULT = 0x7000;
+
+  private static final String LAUNCHER =
+      "        org 0\n" +
+      "        .parallel 9, worker, buffer, 8\n" +
+      "        .endparallel\n" +
+      "        mov n, #9\n" +
+      "sum     rdlong t, ptr\n" +
+      "        add total, t\n" +
+      "        add ptr, #8\n" +
+      "        djnz n, #sum\n" +
+      "        wrlong total, par\n" +
+      "        cogid t\n" +
+      "        cogstop t\n" +
+      "ptr     long @buffer\n" +
+      "n       long 0\n" +
+      "t       long 0\n" +
+      "total   long 0\n";
+  // Each worker adds its pair of longs and its index, in place.
+  private static final String WORKER =
+      "        org 0\n" +
+      "worker  rdlong p, par\n" +
+      "        rdlong a, p\n" +
+      "        add p, #4\n" +
+      "        rdlong b, p\n" +
+      "        add a, b\n" +
+      "        mov b, par\n" +
+      "        add b, #4\n" +
+      "        rdlong b, b\n" +
+      "        add a, b\n" +
+      "        sub p, #4\n" +
+      "        wrlong a, p\n" +
+      "        .arrive\n" +
+      "p       long 0\n" +
+      "a       long 0\n" +
+      "b       long 0\n";
+  private static final String BUFFER =
+      "buffer  long 1, 2, 3, 4, 5, 6, 7, 8, 9\n" +
+      "        long 10, 11, 12, 13, 14, 15, 16, 17, 18\n";
+
+  @Test public void testLaunchAndJoin() throws Exception {
+    HubSimulator hub = new HubSimulator(
+        Programs.assemble(LAUNCHER + WORKER + BUFFER));
+    hub.start(0, RESULT);
+    hub.run();
+    // 1 + ... + 18, plus indices 0 + ... + 8.
+    assertEquals(171 + 36, hub.readLong(RESULT));
+    assertTrue(hub.getCogsUsed() > 1);
+  }
+
+  @Test public void testLargeStride() throws Exception {
+    HubSimulator hub = new HubSimulator(Programs.assemble(
+        "        org 0\n" +
+        "        .parallel 2, worker, buffer, 1024\n" +
+        "        .endparallel\n" +
+        "        rdlong t, to\n" +
+        "        wrlong t, par\n" +
+        "        cogid t\n" +
+        "        cogstop t\n" +
+        "to      long @far\n" +
+        "t       long 0\n" +
+        WORKER + BUFFER + "        res 238\n" +
+        "far     long 100, 200\n"));
+    hub.start(0, RESULT);
+    hub.run();
+    // 100 + 200, plus index 1.
+    assertEquals(301, hub.readLong(RESULT));
+  }
+
+  @Test public void testErrors() throws Exception {
+    try {
+      Programs.parse(" .endparallel\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+    try {
+      Programs.parse(" .parallel 0, w, w, 4\nw nop\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+    try {
+      Programs.parse(" .parallel 2, w, w, 4\nw nop\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+    try {
+      Programs.parse(" .parallel 2, w, w, 4\n .endparallel\n" +
+                     " nop\nw nop\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+    try {
+      Programs.parse(" .parallel 2, w, w, 4\n org 0\n .endparallel\n" +
+                     " org 0\nw nop\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+  }
+}
@@ -0,0 +1,95 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.gen;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import propasm.gen.TableGenerator.Function;
+import propasm.model.LogicException;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class TableGeneratorTest {
+  private final TableGenerator generator = new TableGenerator(1);
+  
+  @Test public void testCrc() {
+    // The Ethernet CRC-32 table, reflected.
+    int[] crc32 = generator.generate(Function.CRC32, 256, 4, 0x04C11DB7, 1);
+    assertEquals(0x00000000, crc32[0]);
+    assertEquals(0x77073096, crc32[1]);
+    assertEquals(0x2D02EF8D, crc32[255]);
+    // CRC-16/CCITT, most significant bit first.
+    int[] crc16 = generator.generate(Function.CRC16, 256, 2, 0x1021);
+    assertEquals(0x1021, crc16[1]);
+    assertEquals(0x1EF0, crc16[255]);
+    // Dallas/Maxim 1-Wire CRC-8, a nibble at a time.
+    int[] crc8 = generator.generate(Function.CRC8, 16, 1, 0x31, 1);
+    assertEquals(0x9D, crc8[1]);
+  }
+  
+  @Test public void testFunctions() {
+    assertTrue(Arrays.equals(new int[] { 0, 1000, 0, -1000 },
+        generator.generate(Function.SIN, 4, 2, 1000)));
+    int[] gamma = generator.generate(Function.GAMMA, 256, 1, 220);
+    assertEquals(0, gamma[0]);
+    assertEquals(255, gamma[255]);
+    assertEquals(56, gamma[128]);
+    assertTrue(Arrays.equals(new int[] { 60, 30, 20, 15 },
+        generator.generate(Function.RECIP, 4, 1, 60)));
+    int[] log = generator.generate(Function.LOG, 2048, 2, 65536);
+    int[] exp = generator.generate(Function.EXP, 2048, 2, 65536);
+    assertEquals(0, log[0]);
+    assertEquals(38336, log[1024]);
+    assertEquals(27146, exp[1024]);
+  }
+  
+  @Test public void testRange() {
+    try {
+      generator.generate(Function.SIN, 4, 1, 1000);
+      fail();
+    } catch(IllegalArgumentException e) {
+      // expected
+    }
+  }
+  
+  @Test public void testParallel() {
+    int[] sequential = generator.generate(Function.SIN, 100000, 4, 1 << 30);
+    int[] parallel = new TableGenerator(4)
+        .generate(Function.SIN, 100000, 4, 1 << 30);
+    assertTrue(Arrays.equals(sequential, parallel));
+  }
+  
+  @Test public void testDirective() throws Exception {
+    byte[] image = Programs.assemble(" .table byte, recip, 3, 60\n" +
+                                     " .table word, sin, 2, 1000\n");
+    // Bytes, then a pad to align the words.
+    assertTrue(Arrays.equals(new byte[] { 60, 30, 20, 0, 0, 0, 0, 0 },
+                             image));
+    try {
+      Programs.parse(" .table long, crc32, 100, 1\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+  }
+}
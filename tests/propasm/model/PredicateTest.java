@@ -36,4 +36,28 @@ public class PredicateTest {
     word = Predicate.IF_C_EQ_Z.applyToWord(word);
     assertEquals(0xA5A5A5A5, word);
   }
+  
+  @Test public void testFlagDependencies() {
+    assertFalse(Predicate.IF_ALWAYS.dependsOnC());
+    assertFalse(Predicate.IF_ALWAYS.dependsOnZ());
+    assertTrue(Predicate.IF_C.dependsOnC());
+    assertFalse(Predicate.IF_C.dependsOnZ());
+    assertFalse(Predicate.IF_NZ.dependsOnC());
+    assertTrue(Predicate.IF_NZ.dependsOnZ());
+    assertTrue(Predicate.IF_C_NE_Z.dependsOnC());
+    assertTrue(Predicate.IF_C_NE_Z.dependsOnZ());
+  }
+  
+  @Test public void testLogic() {
+    assertEncoding(Predicate.IF_NZ, Predicate.IF_Z.invert());
+    assertEncoding(Predicate.IF_NEVER, Predicate.IF_ALWAYS.invert());
+    assertEncoding(Predicate.IF_C_AND_NZ, Predicate.IF_C.and(Predicate.IF_NZ));
+    assertEncoding(Predicate.IF_C, Predicate.IF_ALWAYS.and(Predicate.IF_C));
+    assertEncoding(Predicate.IF_NEVER, Predicate.IF_Z.and(Predicate.IF_NZ));
+  }
+  
+  /** Several predicates share each encoding; any of them will do. */
+  private static void assertEncoding(Predicate expected, Predicate actual) {
+    assertEquals(expected.applyToWord(0), actual.applyToWord(0));
+  }
 }
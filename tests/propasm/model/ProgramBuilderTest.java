@@ -17,10 +17,13 @@ package propasm.model;
 
 import static org.junit.Assert.*;
 
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import propasm.AssemblerConfig;
+import propasm.p32.JmpRetOp;
 
 
 /**
@@ -87,6 +90,87 @@ public class ProgramBuilderTest {
   }
   
   
+  @Test public void testDeferredEncodingMatchesEager() throws LogicException {
+    AssemblerConfig config = new AssemblerConfig();
+    config.setDeferredEncoding(true);
+    ProgramBuilder deferred = new ProgramBuilder(config);
+    
+    buildForwardReferences(builder);
+    buildForwardReferences(deferred);
+    assertBytesEqual(builder.finish(), deferred.finish());
+  }
+  
+  @Test public void testPassesTriggerRelayout() throws LogicException {
+    buildForwardReferences(builder);
+    builder.addPass(new ProgramPass() {
+      public void apply(List<Element> program) {
+        // Drop the first instruction; everything after it moves up a word.
+        for(int i = 0; i < program.size(); i++) {
+          if(program.get(i).is(Element.Kind.INSTRUCTION)) {
+            program.remove(i);
+            return;
+          }
+        }
+      }
+    });
+    byte[] data = builder.finish();
+    
+    assertEquals(EMPTY_PROGRAM.length + 8, data.length);
+    // jmpret 0, #target, with target now at runtime address 1.
+    assertEquals((byte)0x01, data[EMPTY_PROGRAM.length]);
+    // long target, also moved.
+    assertEquals((byte)0x01, data[EMPTY_PROGRAM.length + 4]);
+  }
+  
+  @Test(expected=LogicException.class)
+  public void testDeferredEncodingReportsUnresolvedLabels()
+      throws LogicException {
+    AssemblerConfig config = new AssemblerConfig();
+    config.setDeferredEncoding(true);
+    ProgramBuilder deferred = new ProgramBuilder(config);
+    deferred.addLongReference(new LabelReference("nowhere"));
+    deferred.finish();
+  }
+  
+  @Test public void testLayoutListenerSeesFinalLayout() throws LogicException {
+    builder.setSourcePosition("test.pa", 7);
+    buildForwardReferences(builder);
+    final StringBuilder seen = new StringBuilder();
+    builder.addLayoutListener(new LayoutListener() {
+      public void elementPlaced(Element element, int runtimeAddress,
+          int imageAddress, int size, byte[] image) {
+        assertEquals("test.pa", element.getSourceName());
+        assertEquals(7, element.getSourceLine());
+        seen.append(element.getKind()).append('@').append(runtimeAddress);
+        if(size > 0) seen.append('=').append(image[imageAddress]);
+        seen.append(' ');
+      }
+      public void layoutFinished() {
+        seen.append("done");
+      }
+    });
+    builder.finish();
+    // Forward references show their final values, not placeholders.
+    assertEquals("INSTRUCTION@0=2 INSTRUCTION@1=2 LABEL@2 LONG_REFERENCE@2=2 done",
+                 seen.toString());
+  }
+  
+  /**
+   * Emits two instructions and a data word that refer forward to a label.
+   */
+  private void buildForwardReferences(ProgramBuilder b) {
+    for(int i = 0; i < 2; i++) {
+      Instruction instr = new Instruction(b);
+      instr.setOperation(new JmpRetOp());
+      instr.setDest(new NumericOperand(0));
+      instr.setImmediateSource(true);
+      instr.setSource(new LabelReference("target"));
+      b.addInstruction(instr);
+    }
+    b.defineLabel("target");
+    b.addLongReference(new LabelReference("target"));
+  }
+  
   private void assertBytesEqual(byte[] fixture, byte[] data) {
     assertEquals(fixture.length, data.length);
     for(int i = 0; i < fixture.length; i++) {
@@ -0,0 +1,158 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import propasm.AssemblerConfig;
+import propasm.model.Element;
+import propasm.model.ProgramBuilder;
+import propasm.testutil.CogSimulator;
+import propasm.testutil.HubSimulator;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class CrossJumperTest {
+  private static List<Element> optimize(String source) throws Exception {
+    return Programs.parse(source, new CrossJumper(
+        new ProgramBuilder(new AssemblerConfig()), null));
+  }
+  
+  @Test public void testMergesTails() throws Exception {
+    List<Element> program = optimize(
+        " cmp x, #1 wz\n" +
+        " if_z jmp #one\n" +
+        " mov y, #2\n" +
+        " add y, x\n" +
+        " shl y, #1\n" +
+        " jmp #done\n" +
+        "one mov y, #3\n" +
+        " add y, x\n" +
+        " shl y, #1\n" +
+        " jmp #done\n" +
+        "done\n" +
+        "x long 0\n" +
+        "y long 0\n");
+    // The second copy of "add shl jmp" becomes a jump to the first.
+    assertEquals("cmp jmp mov add shl jmp mov jmp",
+                 Programs.mnemonics(program));
+    for(int x = 0; x < 3; x++) {
+      CogSimulator cog = new CogSimulator(program);
+      cog.set("x", x);
+      cog.run();
+      assertEquals(((x == 1 ? 3 : 2) + x) << 1, cog.get("y"));
+    }
+  }
+  
+  @Test public void testShortTailsLeftAlone() throws Exception {
+    List<Element> program = optimize(
+        "a mov y, #1\n" +
+        " jmp #a\n" +
+        "b mov y, #2\n" +
+        " jmp #a\n" +
+        "y long 0\n");
+    assertEquals("mov jmp mov jmp", Programs.mnemonics(program));
+  }
+  
+  @Test public void testHoistsHeads() throws Exception {
+    List<Element> program = optimize(
+        " cmp x, #1 wz\n" +
+        " if_z mov y, x\n" +
+        " if_z add y, #1\n" +
+        " if_nz mov y, x\n" +
+        " if_nz sub y, #1\n" +
+        "x long 0\n" +
+        "y long 0\n");
+    assertEquals("cmp mov add sub", Programs.mnemonics(program));
+    for(int x = 0; x < 3; x++) {
+      CogSimulator cog = new CogSimulator(program);
+      cog.set("x", x);
+      cog.run();
+      assertEquals(x == 1 ? 2 : x - 1, cog.get("y"));
+    }
+  }
+  
+  @Test public void testFlagSettingHeadsStay() throws Exception {
+    List<Element> program = optimize(
+        " cmp x, #1 wz\n" +
+        " if_z cmp y, #0 wz\n" +
+        " if_nz cmp y, #0 wz\n" +
+        "x long 0\n" +
+        "y long 0\n");
+    assertEquals("cmp cmp cmp", Programs.mnemonics(program));
+  }
+  
+  @Test public void testFlagChangingRunsStay() throws Exception {
+    // The first run changes Z, so both runs can add.
+    String source =
+        " cmp x, #1 wz\n" +
+        " if_z add y, #1\n" +
+        " if_z cmp x, #5 wz\n" +
+        " if_nz add y, #1\n" +
+        "x long 0\n" +
+        "y long 0\n";
+    List<Element> program = optimize(source);
+    assertEquals("cmp add cmp add", Programs.mnemonics(program));
+    for(int x = 0; x < 3; x++) {
+      CogSimulator cog = new CogSimulator(program);
+      cog.set("x", x);
+      cog.run();
+      assertEquals(x == 1 ? 2 : 1, cog.get("y"));
+    }
+  }
+  
+  @Test public void testKeepsSelfModifyingCode() throws Exception {
+    // The movs patches the first instruction of a run that could otherwise
+    // be replaced by a jump, or shared.
+    String[] patched = { "two", "one" };
+    for(String label : patched) {
+      String source =
+          " movs " + label + ", #7\n" +
+          " cmp x, #1 wz\n" +
+          " if_z jmp #two\n" +
+          "one mov y, #0\n" +
+          " add y, x\n" +
+          " jmp #done\n" +
+          "two mov y, #0\n" +
+          " add y, x\n" +
+          " jmp #done\n" +
+          "done wrlong y, par\n" +
+          " cogid t\n" +
+          " cogstop t\n" +
+          "x long 1\n" +
+          "y long 0\n" +
+          "t long 0\n";
+      assertEquals("movs cmp jmp mov add jmp mov jmp wrlong cogid cogstop",
+                   Programs.mnemonics(optimize(source)));
+      for(int x = 0; x < 2; x++) {
+        HubSimulator hub = new HubSimulator(Programs.assemble(
+            source.replace("x long 1", "x long " + x),
+            new CrossJumper(new ProgramBuilder(new AssemblerConfig()), null)));
+        hub.start(0, 0x7000);
+        hub.run();
+        int expected = (label.equals("two") == (x == 1) ? 7 : 0) + x;
+        assertEquals(label, expected, hub.readLong(0x7000));
+      }
+    }
+  }
+}
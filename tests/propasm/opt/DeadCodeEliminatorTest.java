@@ -0,0 +1,107 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import propasm.model.Element;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class DeadCodeEliminatorTest {
+  private static final String LIBRARY =
+    "used mov x, #1\n" +
+    "used_ret ret\n" +
+    "unused mov y, #2\n" +
+    " call #helper\n" +
+    "unused_ret ret\n" +
+    "helper nop\n" +
+    "helper_ret ret\n" +
+    "x long 0\n" +
+    "y long 0\n" +
+    "table long used, 0\n" +
+    "z res 4\n";
+  
+  private static List<Element> strip(String source, String... keep)
+      throws Exception {
+    Set<String> labels = new HashSet<String>();
+    Collections.addAll(labels, keep);
+    return Programs.parse(source, new DeadCodeEliminator(null, labels));
+  }
+  
+  private static boolean hasLabel(List<Element> program, String label) {
+    for(Element e : program) {
+      if(e.is(Element.Kind.LABEL) && e.getLabel().equals(label)) return true;
+    }
+    return false;
+  }
+  
+  @Test public void testRemovesUnreachable() throws Exception {
+    List<Element> program = strip(
+        "main call #used\n" +
+        " jmp #main\n" + LIBRARY);
+    assertEquals("call jmp mov ret", Programs.mnemonics(program));
+    assertTrue(hasLabel(program, "x"));
+    assertFalse(hasLabel(program, "y"));
+    assertFalse(hasLabel(program, "table"));
+    assertFalse(hasLabel(program, "z"));
+  }
+  
+  @Test public void testFollowsReferences() throws Exception {
+    // The table is reached through data, and helper only through unused.
+    List<Element> program = strip(
+        "main mov t, table\n" +
+        " jmp #main\n" + 
+        "t long 0\n" + LIBRARY, "unused");
+    assertEquals("mov jmp mov ret mov call ret nop ret",
+                 Programs.mnemonics(program));
+    assertTrue(hasLabel(program, "y"));
+    assertFalse(hasLabel(program, "z"));
+  }
+  
+  @Test public void testFallThroughAndSections() throws Exception {
+    List<Element> program = strip(
+        " mov a, #1\n" +
+        "next mov a, #2\n" +
+        "stop jmp #stop\n" +
+        "dead nop\n" +
+        "a long 0\n" +
+        " org\n" +
+        "cog2 jmp #cog2\n" +
+        "dead2 nop\n");
+    assertEquals("mov mov jmp jmp", Programs.mnemonics(program));
+  }
+  
+  @Test public void testAlignmentRunsOn() throws Exception {
+    List<Element> program = strip(
+        " org 0\n" +
+        " .align long\n" +
+        "main mov a, #1\n" +
+        "stop jmp #stop\n" +
+        "a long 0\n");
+    assertEquals("mov jmp", Programs.mnemonics(program));
+  }
+}
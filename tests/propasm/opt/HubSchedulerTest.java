@@ -0,0 +1,124 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import propasm.model.Element;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class HubSchedulerTest {
+  private static final String DATA =
+    "ptr long 0\n" +
+    "ptr2 long 0\n" +
+    "x long 0\n" +
+    "y long 0\n" +
+    "n long 0\n" +
+    "a long 0\n" +
+    "b long 0\n";
+  
+  @Test public void testFillsGapBetweenHubAccesses() throws Exception {
+    List<Element> program = Programs.parse(
+        "loop rdlong x, ptr\n" +
+        " rdlong y, ptr2\n" +
+        " add ptr, #4\n" +
+        " add ptr2, #4\n" +
+        " add a, #1\n" +
+        " djnz n, #loop\n" + DATA,
+        new HubScheduler(null));
+    // Two instructions between the reads hit the sweet spot, and the loop
+    // fits in two hub windows instead of three.
+    assertEquals("rdlong add add rdlong add djnz",
+                 Programs.mnemonics(program));
+  }
+  
+  @Test public void testRespectsDependencies() throws Exception {
+    assertUnchanged(
+        "loop rdlong x, ptr\n" +
+        " add x, #1 wz\n" +
+        " if_z add ptr, #4\n" +
+        " rdlong y, ptr\n" +
+        " djnz n, #loop\n" + DATA);
+  }
+  
+  @Test public void testKeepsCodeWritesInPlace() throws Exception {
+    // Moving these would change how far they are from the code they patch.
+    for(String op : new String[] { "movs", "movd", "movi" }) {
+      assertUnchanged(
+          "loop rdlong x, ptr\n" +
+          " rdlong y, ptr2\n" +
+          " " + op + " patch, #4\n" +
+          " add ptr, #4\n" +
+          " add ptr2, #4\n" +
+          " djnz n, #loop\n" +
+          "patch jmp #0\n" + DATA);
+    }
+  }
+  
+  @Test public void testKeepsLabelledInstructionsInPlace() throws Exception {
+    // Moving the sub would fill the gap, but it's the one the label names.
+    assertUnchanged(
+        "loop sub a, #1\n" +
+        " add ptr, #4\n" +
+        " rdlong x, ptr\n" +
+        " rdlong y, ptr2\n" +
+        " djnz n, #loop\n" + DATA);
+  }
+  
+  @Test public void testKeepsBranchesInPlace() throws Exception {
+    assertUnchanged(
+        "loop rdlong x, ptr\n" +
+        " rdlong y, ptr2\n" +
+        " djnz n, #loop\n" + DATA);
+  }
+  
+  @Test public void testRespectsFlagDependencies() throws Exception {
+    assertUnchanged(
+        "loop rdlong x, ptr\n" +
+        " rdlong y, ptr2 wc\n" +
+        " add a, #1 wc\n" +
+        " addx b, #0\n" +
+        " djnz n, #loop\n" + DATA);
+  }
+  
+  @Test public void testRespectsPredicates() throws Exception {
+    assertUnchanged(
+        "loop rdlong x, ptr\n" +
+        " rdlong y, ptr2 wz\n" +
+        " if_z add a, #1\n" +
+        " if_z sub b, #1\n" +
+        " djnz n, #loop\n" + DATA);
+  }
+  
+  /**
+   * Checks that the scheduler leaves the instructions of {@code source} in
+   * their original order.
+   */
+  private static void assertUnchanged(String source) throws Exception {
+    assertEquals(source,
+                 Programs.mnemonics(Programs.parse(source)),
+                 Programs.mnemonics(Programs.parse(source,
+                                                   new HubScheduler(null))));
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import propasm.model.Element;
+import propasm.model.Predicate;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class IfConversionRuleTest {
+  private static List<Element> convert(String source) throws Exception {
+    List<PeepholeRule> rules =
+      Arrays.<PeepholeRule>asList(new IfConversionRule());
+    return Programs.parse(source, new PeepholeOptimizer(null, rules));
+  }
+  
+  private static Predicate predicateOf(List<Element> program, int n) {
+    for(Element e : program) {
+      if(e.is(Element.Kind.INSTRUCTION) && n-- == 0) {
+        return e.getInstruction().getEffectivePredicate();
+      }
+    }
+    throw new IndexOutOfBoundsException();
+  }
+  
+  @Test public void testBranchOverInstructions() throws Exception {
+    List<Element> program = convert(
+        " if_z jmp #skip\n" +
+        " add x, #1\n" +
+        " if_c mov y, x wz\n" +
+        "skip sub x, #1\n" +
+        "x long 0\n" +
+        "y long 0\n");
+    assertEquals("add mov sub", Programs.mnemonics(program));
+    assertEncoding(Predicate.IF_NZ, predicateOf(program, 0));
+    assertEncoding(Predicate.IF_C_AND_NZ, predicateOf(program, 1));
+    assertEncoding(Predicate.IF_ALWAYS, predicateOf(program, 2));
+  }
+  
+  @Test public void testIfThenElse() throws Exception {
+    List<Element> program = convert(
+        " if_c jmp #other\n" +
+        " add x, #1\n" +
+        " jmp #done\n" +
+        "other sub x, #1\n" +
+        "done mov y, x\n" +
+        "x long 0\n" +
+        "y long 0\n");
+    assertEquals("add sub mov", Programs.mnemonics(program));
+    assertEncoding(Predicate.IF_NC, predicateOf(program, 0));
+    assertEncoding(Predicate.IF_C, predicateOf(program, 1));
+  }
+  
+  @Test public void testKeepsUnsafeBranches() throws Exception {
+    // Too long.
+    assertEquals("jmp add add add add sub", Programs.mnemonics(convert(
+        " if_z jmp #skip\n" +
+        " add x, #1\n add x, #1\n add x, #1\n add x, #1\n" +
+        "skip sub x, #1\n" +
+        "x long 0\n")));
+    // Changes the flag tested before the end.
+    assertEquals("jmp add add sub", Programs.mnemonics(convert(
+        " if_z jmp #skip\n" +
+        " add x, #1 wz\n" +
+        " add x, #1\n" +
+        "skip sub x, #1\n" +
+        "x long 0\n")));
+    // Something else jumps into the middle.
+    assertEquals("jmp add add sub jmp", Programs.mnemonics(convert(
+        " if_z jmp #skip\n" +
+        " add x, #1\n" +
+        "mid add x, #1\n" +
+        "skip sub x, #1\n" +
+        " jmp #mid\n" +
+        "x long 0\n")));
+  }
+  
+  /** Several predicates share each encoding; any of them will do. */
+  private static void assertEncoding(Predicate expected, Predicate actual) {
+    assertEquals(expected.applyToWord(0), actual.applyToWord(0));
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import propasm.model.Element;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class InlinerTest {
+  private static final String SUBROUTINES =
+    "double add x, x\n" +
+    "double_ret ret\n" +
+    "bump add x, #1\n" +
+    " and x, #$FF\n" +
+    "bump_ret ret\n" +
+    "x long 0\n";
+  
+  @Test public void testInlinesAndRemovesOriginals() throws Exception {
+    List<Element> program = Programs.parse(
+        "loop call #double\n" +
+        " call #bump\n" +
+        " if_c call #double\n" +
+        " jmp #loop\n" + SUBROUTINES,
+        new Inliner(null));
+    assertEquals("add add and add jmp", Programs.mnemonics(program));
+    assertTrue(program.get(4).getInstruction().isConditional());
+  }
+  
+  @Test public void testRemovesSubroutinesOutOfSizeOrder() throws Exception {
+    // bump comes first in the program, but last by size.
+    String source =
+        "loop call #bump\n" +
+        " call #double\n" +
+        " jmp #loop\n" +
+        "bump add x, #1\n" +
+        " and x, #$FF\n" +
+        "bump_ret ret\n" +
+        "double add x, x\n" +
+        "double_ret ret\n" +
+        "x long 1\n" +
+        "pad2 long 2\n" +
+        "pad3 long 3\n";
+    assertTrue(Arrays.equals(Programs.assemble(
+        "loop add x, #1\n" +
+        " and x, #$FF\n" +
+        " add x, x\n" +
+        " jmp #loop\n" +
+        "x long 1\n" +
+        "pad2 long 2\n" +
+        "pad3 long 3\n"),
+        Programs.assemble(source, new Inliner(null))));
+  }
+  
+  @Test public void testRespectsBudget() throws Exception {
+    List<Element> program = Programs.parse(
+        "loop call #bump\n" +
+        " call #bump\n" +
+        " call #double\n" +
+        " jmp #loop\n" + SUBROUTINES,
+        new Inliner(null, 4, 1));
+    // Only room for one extra long: double is free, one bump fits.
+    assertEquals("add and call add jmp add and ret",
+                 Programs.mnemonics(program));
+  }
+  
+  @Test public void testKeepsKeptLabels() throws Exception {
+    List<Element> program = Programs.parse(
+        "loop call #double\n" +
+        " jmp #loop\n" + SUBROUTINES,
+        new Inliner(null, Collections.singleton("double")));
+    assertEquals("add jmp add ret add and ret",
+                 Programs.mnemonics(program));
+  }
+  
+  @Test public void testKeepsSelfModifyingCode() throws Exception {
+    String source =
+        "loop call #patch\n" +
+        " jmp #loop\n" +
+        "patch movs slot, #5\n" +
+        "slot mov x, #0\n" +
+        "patch_ret ret\n" +
+        "x long 0\n";
+    assertEquals(Programs.mnemonics(Programs.parse(source)),
+                 Programs.mnemonics(Programs.parse(source, new Inliner(null))));
+  }
+  
+  @Test public void testKeepsPatchedSubroutines() throws Exception {
+    String source =
+        "loop movd store, #x\n" +
+        " call #store\n" +
+        " jmp #loop\n" +
+        "store mov 0, #5\n" +
+        "store_ret ret\n" +
+        "x long 0\n";
+    assertEquals("movd call jmp mov ret",
+                 Programs.mnemonics(Programs.parse(source, new Inliner(null))));
+  }
+}
@@ -0,0 +1,128 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.Test;
+
+import propasm.model.LogicException;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class LocalAllocatorTest {
+  private static final String ROUTINES =
+    "a mov ta, #1\n" +
+    " call #c\n" +
+    "a_ret ret\n" +
+    "b mov tb, #2\n" +
+    "b_ret ret\n" +
+    "c mov tc, #3\n" +
+    "c_ret ret\n" +
+    "ta .local a\n" +
+    "tb .local b, 2\n" +
+    "tc .local c\n";
+  
+  private static int dest(byte[] image, int index) {
+    int word = (image[index * 4] & 0xFF) | (image[index * 4 + 1] & 0xFF) << 8;
+    return (word >> 9) & 0x1FF;
+  }
+  
+  @Test public void testOverlay() throws Exception {
+    byte[] image = Programs.assemble(
+        "main call #a\n" +
+        " call #b\n" +
+        " jmp #main\n" +
+        ROUTINES);
+    assertEquals(40, image.length);
+    // a and b never run together, so ta and tb share address 10; c is
+    // called by a, so tc goes above ta.
+    assertEquals(10, dest(image, 3));
+    assertEquals(10, dest(image, 6));
+    assertEquals(11, dest(image, 8));
+  }
+  
+  @Test public void testReport() throws Exception {
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    Programs.parse("main call #a\n call #b\n jmp #main\n" + ROUTINES,
+                   new PrintStream(report, true));
+    assertEquals("Locals: 4 longs overlaid into 2, 2 reclaimed",
+                 report.toString().trim());
+  }
+  
+  @Test public void testUseOutsideOwner() throws Exception {
+    try {
+      Programs.parse("main mov ta, #0\n call #a\n jmp #main\n" + ROUTINES);
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+  }
+  
+  @Test public void testRecursion() throws Exception {
+    try {
+      Programs.parse(
+          "a call #b\n" +
+          "a_ret ret\n" +
+          "b call #a\n" +
+          "b_ret ret\n" +
+          "ta .local a\n" +
+          "tb .local b\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(5, e.getLine());
+    }
+  }
+  
+  @Test public void testFitAfterOverlay() throws Exception {
+    // 600 longs as declared, but only 307 once overlaid.
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    Programs.parse(fitSource(300), new PrintStream(report, true));
+    assertTrue(report.toString(), report.toString().contains(
+        "Line 10: FIT directive succeeded at address 307"));
+    try {
+      // 7 + 489 is one long too many.
+      Programs.parse(fitSource(489));
+      fail();
+    } catch(LogicException e) {
+      assertEquals(10, e.getLine());
+    }
+  }
+  
+  /**
+   * @return a program with two overlaid locals of the given size, and a
+   *         {@code fit} after them.
+   */
+  private static String fitSource(int longs) {
+    return
+        "main call #a\n" +
+        " call #b\n" +
+        " jmp #main\n" +
+        "a mov abuf, #1\n" +
+        "a_ret ret\n" +
+        "b mov bbuf, #2\n" +
+        "b_ret ret\n" +
+        "abuf .local a, " + longs + "\n" +
+        "bbuf .local b, " + longs + "\n" +
+        " fit\n";
+  }
+}
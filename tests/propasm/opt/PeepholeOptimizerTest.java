@@ -0,0 +1,95 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import propasm.model.Element;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class PeepholeOptimizerTest {
+  private static String optimize(String source) throws Exception {
+    List<Element> program = Programs.parse(source, new PeepholeOptimizer(null));
+    return Programs.mnemonics(program);
+  }
+  
+  @Test public void testRemovesUselessInstructions() throws Exception {
+    assertEquals("add sub", optimize(
+        " mov x, x\n" +
+        " add x, #0\n" +
+        " if_never add x, #1\n" +
+        " add x, #1\n" +
+        " jmp #done\n" +
+        "done sub x, #1\n" +
+        "x long 0\n"));
+  }
+  
+  @Test public void testKeepsInstructionsWithEffects() throws Exception {
+    String source =
+        " mov x, x wz\n" +
+        " add x, #0 wc\n" +
+        "slot if_never add x, #1\n" +
+        " nop\n" +
+        " mov phsa, phsa\n" +
+        " jmp #slot\n" +
+        "x long 0\n";
+    assertEquals("mov add add nop mov jmp", optimize(source));
+  }
+  
+  @Test public void testTailCall() throws Exception {
+    String source =
+        "inner add x, #2\n" +
+        "inner_ret ret\n" +
+        "outer add x, #1\n" +
+        " call #inner\n" +
+        "outer_ret ret\n" +
+        "x long 0\n";
+    List<Element> program = Programs.parse(source, new PeepholeOptimizer(null));
+    assertEquals("add ret add jmp", Programs.mnemonics(program));
+    // outer's callers now leave their return address in inner's ret.
+    assertEquals("inner_ret", program.get(2).getLabel());
+    assertEquals("outer_ret", program.get(3).getLabel());
+    assertTrue(program.get(4).is(Element.Kind.INSTRUCTION));
+  }
+  
+  @Test public void testTailCallNeedsSoleCaller() throws Exception {
+    String source =
+        " call #inner\n" +
+        "outer call #inner\n" +
+        "outer_ret ret\n" +
+        "inner add x, #2\n" +
+        "inner_ret ret\n" +
+        "x long 0\n";
+    assertEquals("call call ret add ret", optimize(source));
+  }
+  
+  @Test public void testShiftLeftRule() throws Exception {
+    List<PeepholeRule> rules = Arrays.<PeepholeRule>asList(new ShiftLeftRule());
+    byte[] shifted = Programs.assemble(" shl x, #1 wc\nx long 0\n",
+                                       new PeepholeOptimizer(null, rules));
+    byte[] added = Programs.assemble(" add x, x wc\nx long 0\n");
+    assertTrue(Arrays.equals(added, shifted));
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.opt;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+
+import org.junit.Test;
+
+import propasm.model.Element;
+import propasm.model.LogicException;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class TimedBlocksTest {
+  private static final String BIT =
+    " test x, #1 wz\n" +
+    " if_z jmp #zero\n" +
+    " or outa, #1\n" +
+    " shl x, #1\n" +
+    " jmp #done\n" +
+    "zero andn outa, #1\n" +
+    "done\n";
+  
+  @Test public void testBalancesPaths() throws Exception {
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    List<Element> program = Programs.parse(
+        "loop .timed 40\n" + BIT + " .endtimed\n" +
+        " jmp #loop\n" +
+        "x long 0\n",
+        new PrintStream(report, true));
+    // The slow path takes 20 clocks; the fast one is padded by 8 at 'zero',
+    // and both by 20 at the top.
+    assertEquals("nop nop nop nop nop test jmp or shl jmp nop nop andn jmp",
+                 Programs.mnemonics(program));
+    assertEquals("Line 1: timed block padded to 40 clocks with 7 longs",
+                 report.toString().trim());
+  }
+  
+  @Test public void testDelayLoop() throws Exception {
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    List<Element> program = Programs.parse(
+        " .timed 120, t\n" +
+        " mov outa, #1\n" +
+        " .endtimed\n" +
+        "t long 0\n",
+        new PrintStream(report, true));
+    // 116 clocks of padding: 4 for the mov, then 26 taken djnz and a last 8.
+    assertEquals("mov djnz mov", Programs.mnemonics(program));
+    assertEquals(27, program.get(1).getInstruction().getSource().getValue());
+    assertEquals("Line 1: timed block padded to 120 clocks with 2 longs",
+                 report.toString().trim());
+  }
+  
+  @Test public void testTooSlow() throws Exception {
+    try {
+      Programs.parse(" .timed 8\n" + BIT + " .endtimed\nx long 0\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(1, e.getLine());
+    }
+  }
+  
+  @Test public void testRejectsHubAccess() throws Exception {
+    try {
+      Programs.parse(" .timed 40\n rdlong x, x\n .endtimed\nx long 0\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(2, e.getLine());
+    }
+  }
+  
+  @Test public void testRejectsSharedTarget() throws Exception {
+    try {
+      Programs.parse(
+          " .timed 40\n" +
+          " if_z jmp #done\n" +
+          " add x, #1\n" +
+          "done\n" +
+          " .endtimed\n" +
+          "x long 0\n");
+      fail();
+    } catch(LogicException e) {
+      assertEquals(2, e.getLine());
+    }
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.parallax;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * @author cbiffle
+ *
+ */
+public class ChunkedLexerTest {
+  private static final String SOURCE =
+    "' header comment\n" +
+    "start\tmov DIRA, mask\t' pins\r\n" +
+    "\t\tadd time, #$1F\r\n" +
+    "\n" +
+    "loop  or OUTA, mask\r" +
+    "  if_z jmp #:inner\n" +
+    ":inner byte \"hi\\n\", %1010\n" +
+    "mask  long 80_000_000";
+  
+  private ExecutorService executor;
+  
+  @Before public void setUp() {
+    executor = Executors.newFixedThreadPool(3);
+  }
+  
+  @After public void tearDown() {
+    executor.shutdown();
+  }
+  
+  @Test public void testMatchesSequentialLexer()
+      throws ParseException, IOException {
+    for(int size = 1; size <= SOURCE.length(); size++) {
+      assertSameTokens(sequential(SOURCE), chunked(SOURCE, size));
+    }
+  }
+  
+  @Test public void testEmptyInput() throws ParseException, IOException {
+    assertSameTokens(sequential(""), chunked("", 4));
+  }
+  
+  @Test public void testReportsFirstErrorWithRebasedLine() throws IOException {
+    String text = "a\nb\nc ~\nd\ne ~\n";
+    try {
+      chunked(text, 2);
+      fail("Expected a ParseException");
+    } catch(ParseException e) {
+      assertEquals(3, e.getLine());
+    }
+  }
+
+  private Iterable<Token> sequential(String text)
+      throws ParseException, IOException {
+    return new ParallaxLexer(new StringReader(text)).lex();
+  }
+  
+  private Iterable<Token> chunked(String text, int chunkSize)
+      throws ParseException, IOException {
+    ChunkedLexer lexer = new ChunkedLexer(text, executor);
+    lexer.setChunkSize(chunkSize);
+    return lexer.lex();
+  }
+  
+  private void assertSameTokens(Iterable<Token> expected,
+      Iterable<Token> actual) {
+    Iterator<Token> a = actual.iterator();
+    for(Token e : expected) {
+      assertTrue("Missing token " + e, a.hasNext());
+      Token t = a.next();
+      assertEquals(e.getType(), t.getType());
+      assertEquals(e.getText(), t.getText());
+      assertEquals("Line of " + e, e.getLine(), t.getLine());
+      assertEquals("Column of " + e, e.getColumn(), t.getColumn());
+    }
+    assertFalse(a.hasNext());
+  }
+}
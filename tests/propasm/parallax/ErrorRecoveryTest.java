@@ -0,0 +1,158 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.parallax;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import propasm.AssemblerConfig;
+import propasm.model.AssemblyInputException;
+import propasm.model.ProgramBuilder;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class ErrorRecoveryTest {
+  private static final String SOURCE =
+    "start mov x, #1\n" +
+    " bogus x, #2\n" +
+    " add x, #3\n" +
+    " mov x, ~\n" +
+    " mov x, #\n" +
+    " sub x, #4\n" +
+    "x long 0\n";
+  
+  private File dir;
+  
+  @Before public void setUp() throws IOException {
+    dir = File.createTempFile("propasm", "");
+    dir.delete();
+    dir.mkdir();
+  }
+  
+  @After public void tearDown() {
+    for(File f : dir.listFiles()) f.delete();
+    dir.delete();
+  }
+  
+  @Test public void testParserResumesAtNextLine() throws Exception {
+    ProgramBuilder builder = builder();
+    List<AssemblyInputException> errors =
+        new ArrayList<AssemblyInputException>();
+    ParallaxParser parser = new ParallaxParser(builder, null);
+    parser.setDiagnostics(errors);
+    parser.parse(lex(
+        "start mov x, #1\n" +
+        " bogus x, #2\n" +
+        " add x, #3\n" +
+        " mov x, #\n" +
+        " sub x, #4\n" +
+        "x long 0\n"));
+    
+    // Every bad line is reported...
+    assertEquals(2, errors.size());
+    assertEquals(2, errors.get(0).getLine());
+    assertEquals(4, errors.get(1).getLine());
+    // ...and everything around them is still parsed.
+    ProgramBuilder expected = builder();
+    new ParallaxParser(expected, null).parse(lex(
+        "start mov x, #1\n" +
+        " add x, #3\n" +
+        " sub x, #4\n" +
+        "x long 0\n"));
+    assertTrue(Arrays.equals(expected.finish(), builder.finish()));
+  }
+  
+  @Test public void testParserStopsWithoutDiagnostics() throws Exception {
+    try {
+      new ParallaxParser(builder(), null).parse(lex(
+          " bogus x, #2\n" +
+          " mov x, #\n"));
+      fail("Expected a ParseException");
+    } catch(ParseException e) {
+      assertEquals(1, e.getLine());
+    }
+  }
+  
+  @Test public void testReportsEveryError() throws IOException {
+    AssemblerConfig config = new AssemblerConfig();
+    config.setRecoverErrors(true);
+    config.setGenerateListing(true);
+    String[] lines = assemble(config);
+    assertEquals("Errors in bad.pa:", lines[0]);
+    assertTrue(lines[1], lines[1].startsWith("Line 2:"));
+    assertTrue(lines[2], lines[2].startsWith("Line 4:"));
+    assertTrue(lines[3], lines[3].startsWith("Line 5:"));
+    assertEquals("bad.pa: 3 error(s), no output written", lines[4]);
+    assertEquals(5, lines.length);
+    // Neither the image nor the listing is written.
+    assertEquals(1, dir.listFiles().length);
+  }
+  
+  @Test public void testStopsAtFirstError() throws IOException {
+    // The lexer goes first, and stops at the stray character.
+    String[] lines = assemble(new AssemblerConfig());
+    assertTrue(lines[0], lines[0].startsWith("Line 4:"));
+    assertEquals(1, lines.length);
+    assertEquals(1, dir.listFiles().length);
+  }
+  
+  /**
+   * Runs the frontend on {@link #SOURCE}.
+   * 
+   * @return the lines of the error stream, without blank lines.
+   */
+  private String[] assemble(AssemblerConfig config) throws IOException {
+    Writer w = new OutputStreamWriter(
+        new FileOutputStream(new File(dir, "bad.pa")), "UTF8");
+    w.write(SOURCE);
+    w.close();
+    
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    ParallaxFrontend frontend = new ParallaxFrontend(config, dir);
+    frontend.setOutput(new PrintStream(out, true), new PrintStream(err, true));
+    assertFalse(frontend.assembleFile("bad.pa", "bad.pa.binary"));
+    assertEquals("", out.toString());
+    return err.toString().split("(\r?\n)+");
+  }
+  
+  private static ProgramBuilder builder() {
+    AssemblerConfig config = new AssemblerConfig();
+    config.setGenerateBootloader(false);
+    return new ProgramBuilder(config);
+  }
+  
+  private static Iterable<Token> lex(String source) throws Exception {
+    return new ParallaxLexer(new StringReader(source)).lex();
+  }
+}
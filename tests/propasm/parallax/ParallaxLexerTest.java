@@ -20,10 +20,14 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import org.junit.Test;
 
+import propasm.model.AssemblyInputException;
+
 import static propasm.parallax.Token.Type.*;
 
 
@@ -45,6 +49,17 @@ public class ParallaxLexerTest {
                 HEX_NUMBER, SPACE, AT, COLON, IDENT, HASH, COMMENT, NL, NL, EOF);
   }
   
+  @Test public void testRecoversAtNextLine() throws ParseException, IOException {
+    List<AssemblyInputException> errors = new ArrayList<AssemblyInputException>();
+    makeLexer(new StringReader("a ~ b\n\"oops\nc $x\nd"));
+    lexer.setDiagnostics(errors);
+    assertTypes(lexer.lex(), IDENT, SPACE, NL, NL, IDENT, SPACE, NL, IDENT, EOF);
+    assertEquals(3, errors.size());
+    assertEquals(1, errors.get(0).getLine());
+    assertEquals(2, errors.get(1).getLine());
+    assertEquals(3, errors.get(2).getLine());
+  }
+  
 
   protected void makeLexer(Reader in) {
     lexer = new ParallaxLexer(in);
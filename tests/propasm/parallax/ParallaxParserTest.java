@@ -0,0 +1,118 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.parallax;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import propasm.AssemblerConfig;
+import propasm.model.ProgramBuilder;
+import propasm.testutil.Programs;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class ParallaxParserTest {
+  private static void assertSameImage(String expected, String actual)
+      throws Exception {
+    assertTrue(Arrays.equals(Programs.assemble(expected),
+                             Programs.assemble(actual)));
+  }
+  
+  private static ParallaxParser parser() {
+    AssemblerConfig config = new AssemblerConfig();
+    config.setGenerateBootloader(false);
+    ParallaxParser parser = new ParallaxParser(new ProgramBuilder(config),
+                                               new InclusionHandler() {
+      public void include(String path) throws IOException {
+        throw new IOException("No includes in tests");
+      }
+      public void includeBlob(String path) throws IOException {
+        throw new IOException("No includes in tests");
+      }
+    });
+    parser.setSourceName("test");
+    return parser;
+  }
+  
+  private static Iterable<Token> lex(String source) throws Exception {
+    return new ParallaxLexer(new StringReader(source)).lex();
+  }
+  
+  @Test public void testLiteralPool() throws Exception {
+    assertSameImage(
+        " mov x, k\n" +
+        " and x, k\n" +
+        " or x, #5\n" +
+        " add x, a\n" +
+        "x long 0\n" +
+        "k long $1234_5678\n" +
+        "a long x\n",
+        " mov x, ##$1234_5678\n" +
+        " and x, ##$1234_5678\n" +
+        " or x, ##5\n" +
+        " add x, ##x\n" +
+        "x long 0\n");
+  }
+  
+  @Test public void testPoolPlacement() throws Exception {
+    assertSameImage(
+        " mov x, k\n" +
+        " jmp #x\n" +
+        "k long $10000\n" +
+        "x long 0\n" +
+        " org\n" +
+        " mov y, k2\n" +
+        "y long 0\n" +
+        "k2 long $10000\n",
+        " mov x, ##$10000\n" +
+        " jmp #x\n" +
+        " .pool\n" +
+        "x long 0\n" +
+        " org\n" +
+        " mov y, ##$10000\n" +
+        "y long 0\n");
+  }
+  
+  @Test public void testReportStream() throws Exception {
+    String source =
+        " .unroll 2, t\n" +
+        "loop add s, #1\n" +
+        " djnz n, #loop\n" +
+        " .endrep\n" +
+        "s long 0\n" +
+        "n long 0\n" +
+        "t long 0\n";
+    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    ParallaxParser parser = parser();
+    parser.setReportStream(new PrintStream(buf, true));
+    parser.parse(lex(source));
+    assertTrue(buf.toString(), buf.toString().startsWith(
+        "Line 1: loop unrolled 2 times"));
+    // No stream, no report, and no trouble.
+    parser = parser();
+    parser.setReportStream(null);
+    parser.parse(lex(source));
+  }
+}
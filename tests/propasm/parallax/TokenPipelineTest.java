@@ -0,0 +1,144 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.parallax;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Iterator;
+
+import org.junit.Test;
+
+import propasm.AssemblerConfig;
+import propasm.model.AssemblyInputException;
+import propasm.model.ProgramBuilder;
+
+/**
+ * @author cbiffle
+ *
+ */
+public class TokenPipelineTest {
+  private static final String SOURCE =
+    "' header comment\n" +
+    "start\tmov DIRA, mask\t' pins\r\n" +
+    "\t\tadd time, #$1F\r\n" +
+    "\n" +
+    "loop  or OUTA, mask\r" +
+    "  if_z jmp #:inner\n" +
+    ":inner byte \"hi\\n\", %1010\n" +
+    "mask  long 80_000_000\n";
+  
+  @Test public void testMatchesSequentialLexer() throws Exception {
+    assertSameTokens(sequential(SOURCE), SOURCE);
+    assertSameTokens(sequential(""), "");
+  }
+  
+  @Test public void testReusesBatches() throws Exception {
+    // Many times the tokens the ring holds at once.
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < 2000; i++) text.append(SOURCE);
+    assertSameTokens(sequential(text.toString()), text.toString());
+  }
+  
+  @Test public void testLexerFailureFollowsEarlierTokens() throws Exception {
+    TokenPipeline pipeline = new TokenPipeline(new StringReader("a\nb\nc ~\n"));
+    Thread producer = pipeline.start();
+    try {
+      // Even once the lexer has failed, the tokens before the error come
+      // first.
+      while(pipeline.getFailure() == null) Thread.sleep(1);
+      Iterator<Token> actual = pipeline.iterator();
+      for(Token e : sequential("a\nb\nc ")) {
+        if(e.is(Token.Type.EOF)) break;
+        assertEquals(e.getText(), actual.next().getText());
+      }
+      try {
+        actual.next();
+        fail("Expected a LexerFailure");
+      } catch(TokenPipeline.LexerFailure e) {
+        assertEquals(3, ((ParseException)pipeline.getFailure()).getLine());
+      }
+    } finally {
+      pipeline.stop(producer);
+    }
+  }
+  
+  @Test public void testEarlierParseErrorWins() throws Exception {
+    // However the threads run, the parser sees line 1 before the lexer's
+    // error on line 3.
+    for(int i = 0; i < 50; i++) {
+      TokenPipeline pipeline =
+        new TokenPipeline(new StringReader(" mov\n nop\n nop ~\n"));
+      try {
+        pipeline.parse(parser());
+        fail("Expected an error");
+      } catch(AssemblyInputException e) {
+        assertEquals(1, e.getLine());
+      }
+    }
+  }
+  
+  @Test public void testReportsLexerError() throws Exception {
+    TokenPipeline pipeline =
+      new TokenPipeline(new StringReader(" nop\n nop ~\n"));
+    try {
+      pipeline.parse(parser());
+      fail("Expected a ParseException");
+    } catch(ParseException e) {
+      assertEquals(2, e.getLine());
+    }
+  }
+  
+  private static ParallaxParser parser() {
+    AssemblerConfig config = new AssemblerConfig();
+    config.setGenerateBootloader(false);
+    return new ParallaxParser(new ProgramBuilder(config),
+                              new InclusionHandler() {
+      public void include(String path) throws IOException {
+        throw new IOException("No includes in tests");
+      }
+      public void includeBlob(String path) throws IOException {
+        throw new IOException("No includes in tests");
+      }
+    });
+  }
+  
+  private static Iterable<Token> sequential(String text)
+      throws ParseException, IOException {
+    return new ParallaxLexer(new StringReader(text)).lex();
+  }
+  
+  private static void assertSameTokens(Iterable<Token> expected,
+                                       String text) {
+    TokenPipeline pipeline = new TokenPipeline(new StringReader(text));
+    Thread producer = pipeline.start();
+    try {
+      Iterator<Token> a = pipeline.iterator();
+      for(Token e : expected) {
+        assertTrue("Missing token " + e, a.hasNext());
+        Token t = a.next();
+        assertEquals(e.getType(), t.getType());
+        assertEquals(e.getText(), t.getText());
+        assertEquals("Line of " + e, e.getLine(), t.getLine());
+        assertEquals("Column of " + e, e.getColumn(), t.getColumn());
+      }
+      assertFalse(a.hasNext());
+    } finally {
+      pipeline.stop(producer);
+    }
+  }
+}
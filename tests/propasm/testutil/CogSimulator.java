@@ -0,0 +1,168 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.testutil;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import propasm.analysis.Instructions;
+import propasm.model.Effect;
+import propasm.model.Element;
+import propasm.model.Instruction;
+import propasm.model.LabelReference;
+import propasm.model.Operand;
+
+/**
+ * Runs straight-line and looping cog code from {@link Programs#parse}, for
+ * tests of generated code.  Only the handful of operations the generators
+ * use are understood.  Registers are named by label, and start out holding
+ * whatever data follows the label.
+ * 
+ * @author cbiffle
+ *
+ */
+public class CogSimulator {
+  private final List<Element> program;
+  private final Map<String, Integer> labels = new HashMap<String, Integer>();
+  private final Map<String, Integer> registers = new HashMap<String, Integer>();
+  private boolean c, z;
+  private int steps;
+  
+  public CogSimulator(List<Element> program) {
+    this.program = program;
+    for(int i = 0; i < program.size(); i++) {
+      Element e = program.get(i);
+      if(!e.is(Element.Kind.LABEL)) continue;
+      labels.put(e.getLabel(), i);
+      for(int j = i + 1; j < program.size(); j++) {
+        Element data = program.get(j);
+        if(data.is(Element.Kind.LONG)) {
+          registers.put(e.getLabel(), data.getValue());
+        }
+        if(!data.is(Element.Kind.LABEL) && !data.is(Element.Kind.ALIGN)) break;
+      }
+    }
+  }
+  
+  public void set(String register, int value) {
+    registers.put(register, value);
+  }
+  
+  public int get(String register) {
+    Integer value = registers.get(register);
+    return (value == null) ? 0 : value;
+  }
+  
+  /**
+   * @return the number of instructions run by the last {@link #run()}.
+   */
+  public int getSteps() {
+    return steps;
+  }
+  
+  /**
+   * Runs from the first instruction until control reaches something other
+   * than an instruction.
+   */
+  public void run() {
+    int pc = 0;
+    steps = 0;
+    while(pc < program.size() && !program.get(pc).is(Element.Kind.INSTRUCTION)) {
+      pc++;
+    }
+    while(pc < program.size()) {
+      Element e = program.get(pc);
+      if(e.is(Element.Kind.LABEL)) {
+        pc++;
+        continue;
+      }
+      if(!e.is(Element.Kind.INSTRUCTION)) return;
+      if(++steps > 1000000) throw new IllegalStateException("Runaway code");
+      pc = step(e.getInstruction(), pc);
+    }
+  }
+  
+  private int step(Instruction instr, int pc) {
+    int flags = (instr.getEffectivePredicate().applyToWord(0) >> 18) & 0xF;
+    if((flags & (1 << ((c ? 2 : 0) + (z ? 1 : 0)))) == 0) return pc + 1;
+    String op = Instructions.mnemonic(instr);
+    if(op.equals("jmp")) {
+      return labels.get(Instructions.branchTarget(instr));
+    }
+    Operand destOperand = Instructions.dest(instr);
+    String dest = (destOperand == null) ? null : name(destOperand);
+    int d = (dest == null) ? 0 : get(dest);
+    if(op.equals("djnz")) {
+      registers.put(dest, --d);
+      if(d != 0) return labels.get(Instructions.branchTarget(instr));
+      return pc + 1;
+    } else if(op.equals("tjz") || op.equals("tjnz")) {
+      if((d == 0) == op.equals("tjz")) {
+        return labels.get(Instructions.branchTarget(instr));
+      }
+      return pc + 1;
+    }
+    Operand sourceOperand = Instructions.source(instr);
+    int s = Instructions.isImmediate(instr) ? value(sourceOperand)
+                                            : get(name(sourceOperand));
+    long result;
+    boolean carry;
+    if(op.equals("mov")) {
+      result = s;
+      carry = s < 0;
+    } else if(op.equals("and")) {
+      result = d & s;
+      carry = Integer.bitCount((int)result) % 2 != 0;
+    } else if(op.equals("neg")) {
+      result = -s;
+      carry = s < 0;
+    } else if(op.equals("add")) {
+      result = (d & 0xFFFFFFFFL) + (s & 0xFFFFFFFFL);
+      carry = (result >> 32) != 0;
+    } else if(op.equals("sub") || op.equals("cmp")) {
+      result = (d & 0xFFFFFFFFL) - (s & 0xFFFFFFFFL);
+      carry = result < 0;
+    } else if(op.equals("cmpsub")) {
+      carry = (d & 0xFFFFFFFFL) >= (s & 0xFFFFFFFFL);
+      result = carry ? d - s : d;
+    } else if(op.equals("shl")) {
+      result = d << (s & 31);
+      carry = d < 0;
+    } else if(op.equals("shr")) {
+      result = d >>> (s & 31);
+      carry = (d & 1) != 0;
+    } else if(op.equals("rcl")) {
+      int bits = s & 31;
+      result = (d << bits) | (c ? (1 << bits) - 1 : 0);
+      carry = d < 0;
+    } else {
+      throw new UnsupportedOperationException("Can't simulate " + op);
+    }
+    if(Instructions.writesResult(instr)) registers.put(dest, (int)result);
+    if(instr.getEffects().contains(Effect.WC)) c = carry;
+    if(instr.getEffects().contains(Effect.WZ)) z = (int)result == 0;
+    return pc + 1;
+  }
+  
+  private static String name(Operand operand) {
+    return ((LabelReference)operand).getTargetName();
+  }
+  
+  private static int value(Operand operand) {
+    return operand.getValue();
+  }
+}
@@ -0,0 +1,282 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.testutil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs assembled images a word at a time, for tests of generated code that
+ * rewrites itself or reaches into hub memory, which {@link CogSimulator}
+ * can't follow.  Only the handful of operations the generators use are
+ * understood.
+ *
+ * Cogs take turns one instruction at a time; timing isn't modelled.  Like
+ * the real thing, a cog has already fetched the next instruction by the time
+ * the current one writes its result, so code that modifies the instruction
+ * right after itself sees the old version run.
+ *
+ * @author cbiffle
+ *
+ */
+public class HubSimulator {
+  private static final int PAR = 0x1F0;
+
+  private final byte[] hub = new byte[32768];
+  private final List<Cog> cogs = new ArrayList<Cog>();
+  private final boolean[] locks = new boolean[8];
+  private int locksTaken;
+  private int steps;
+
+  /**
+   * @param image  assembled image, without a bootloader, loaded at address 0.
+   */
+  public HubSimulator(byte[] image) {
+    System.arraycopy(image, 0, hub, 0, image.length);
+    for(int i = 0; i < 8; i++) cogs.add(new Cog(i));
+  }
+
+  /**
+   * Starts a cog on the cog image at {@code address}.
+   *
+   * @return the cog's number.
+   */
+  public int start(int address, int par) {
+    for(Cog cog : cogs) {
+      if(!cog.running) {
+        cog.load(address, par);
+        return cog.id;
+      }
+    }
+    throw new IllegalStateException("No free cog");
+  }
+
+  /**
+   * Runs until every cog has stopped.
+   */
+  public void run() {
+    steps = 0;
+    boolean any = true;
+    while(any) {
+      any = false;
+      for(Cog cog : cogs) {
+        if(!cog.running) continue;
+        any = true;
+        if(++steps > 1000000) throw new IllegalStateException("Runaway code");
+        cog.step();
+      }
+    }
+  }
+
+  /**
+   * @return the number of instructions run by the last {@link #run()}, on all
+   *         cogs together.
+   */
+  public int getSteps() {
+    return steps;
+  }
+
+  /**
+   * @return the number of cogs that have been started.
+   */
+  public int getCogsUsed() {
+    int used = 0;
+    for(Cog cog : cogs) {
+      if(cog.started) used++;
+    }
+    return used;
+  }
+
+  public int readLong(int address) {
+    address &= 0x7FFC;
+    int value = 0;
+    for(int i = 3; i >= 0; i--) {
+      value = (value << 8) | (hub[address + i] & 0xFF);
+    }
+    return value;
+  }
+
+  public void writeLong(int address, int value) {
+    address &= 0x7FFC;
+    for(int i = 0; i < 4; i++) {
+      hub[address + i] = (byte)value;
+      value >>>= 8;
+    }
+  }
+
+  private class Cog {
+    private final int id;
+    private final int[] ram = new int[512];
+    private int pc, fetched;
+    private boolean c, z, running, started;
+
+    public Cog(int id) {
+      this.id = id;
+    }
+
+    public void load(int address, int par) {
+      for(int i = 0; i < PAR; i++) {
+        ram[i] = readLong(address + i * 4);
+      }
+      ram[PAR] = par;
+      pc = 0;
+      fetched = ram[0];
+      c = z = false;
+      running = started = true;
+    }
+
+    public void step() {
+      int instr = fetched;
+      // The next instruction is fetched before this one writes.
+      int prefetch = ram[(pc + 1) & 0x1FF];
+      int next = (pc + 1) & 0x1FF;
+      int flags = (instr >> 18) & 0xF;
+      if((flags & (1 << ((c ? 2 : 0) + (z ? 1 : 0)))) == 0) {
+        pc = next;
+        fetched = prefetch;
+        return;
+      }
+      int opcode = instr >>> 26;
+      boolean writeZ = (instr & (1 << 25)) != 0;
+      boolean writeC = (instr & (1 << 24)) != 0;
+      boolean writeResult = (instr & (1 << 23)) != 0;
+      boolean immediate = (instr & (1 << 22)) != 0;
+      int dest = (instr >> 9) & 0x1FF;
+      int d = ram[dest];
+      int s = immediate ? (instr & 0x1FF) : ram[instr & 0x1FF];
+      long result = d;
+      boolean carry = c;
+      switch(opcode) {
+      case 0x02: // rdlong / wrlong
+        if(writeResult) {
+          result = readLong(s);
+        } else {
+          writeLong(s, d);
+        }
+        break;
+      case 0x03:
+        result = hubOp(d, s & 7);
+        carry = hubCarry;
+        break;
+      case 0x0A: // shr
+        result = d >>> (s & 31);
+        carry = (d & 1) != 0;
+        break;
+      case 0x0B: // shl
+        result = d << (s & 31);
+        carry = d < 0;
+        break;
+      case 0x14: // movs
+        result = (d & ~0x1FF) | (s & 0x1FF);
+        break;
+      case 0x15: // movd
+        result = (d & ~(0x1FF << 9)) | ((s & 0x1FF) << 9);
+        break;
+      case 0x17: // jmpret
+        result = (d & ~0x1FF) | next;
+        next = s & 0x1FF;
+        break;
+      case 0x18: // and
+        result = d & s;
+        carry = Integer.bitCount((int)result) % 2 != 0;
+        break;
+      case 0x1A: // or
+        result = d | s;
+        carry = Integer.bitCount((int)result) % 2 != 0;
+        break;
+      case 0x20: // add
+        result = (d & 0xFFFFFFFFL) + (s & 0xFFFFFFFFL);
+        carry = (result >> 32) != 0;
+        break;
+      case 0x21: // sub / cmp
+        result = (d & 0xFFFFFFFFL) - (s & 0xFFFFFFFFL);
+        carry = result < 0;
+        break;
+      case 0x28: // mov
+        result = s;
+        carry = s < 0;
+        break;
+      case 0x39: // djnz
+        result = d - 1;
+        if((int)result != 0) next = s & 0x1FF;
+        break;
+      case 0x3A: // tjnz
+        if(d != 0) next = s & 0x1FF;
+        writeResult = false;
+        break;
+      case 0x3B: // tjz
+        if(d == 0) next = s & 0x1FF;
+        writeResult = false;
+        break;
+      default:
+        throw new UnsupportedOperationException("Can't simulate opcode $" +
+            Integer.toHexString(opcode) + " at " + pc);
+      }
+      if(writeResult) ram[dest] = (int)result;
+      if(writeC) c = carry;
+      if(writeZ) z = (int)result == 0;
+      fetched = (next == ((pc + 1) & 0x1FF)) ? prefetch : ram[next];
+      pc = next;
+    }
+
+    private boolean hubCarry;
+
+    private int hubOp(int d, int op) {
+      hubCarry = false;
+      switch(op) {
+      case 1: // cogid
+        return id;
+      case 2: // coginit
+        int par = (d >>> 18) << 2;
+        int code = ((d >> 4) & 0x3FFF) << 2;
+        if((d & 8) == 0) {
+          cogs.get(d & 7).load(code, par);
+          return d & 7;
+        }
+        for(Cog cog : cogs) {
+          if(!cog.running) {
+            cog.load(code, par);
+            return cog.id;
+          }
+        }
+        hubCarry = true;
+        return 7;
+      case 3: // cogstop
+        cogs.get(d & 7).running = false;
+        return d;
+      case 4: // locknew
+        for(int i = 0; i < 8; i++) {
+          if((locksTaken & (1 << i)) == 0) {
+            locksTaken |= 1 << i;
+            return i;
+          }
+        }
+        hubCarry = true;
+        return 7;
+      case 5: // lockret
+        locksTaken &= ~(1 << (d & 7));
+        return d;
+      case 6: // lockset
+      case 7: // lockclr
+        hubCarry = locks[d & 7];
+        locks[d & 7] = (op == 6);
+        return d;
+      default:
+        throw new UnsupportedOperationException("Can't simulate hub op " + op);
+      }
+    }
+  }
+}
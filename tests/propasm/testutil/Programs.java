@@ -0,0 +1,122 @@
+// Copyright (C) 2006 Cliff L. Biffle.
+// 
+// This program is free software; you can redistribute it and/or
+// modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2
+// of the License, or (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program; if not, write to the Free Software
+// Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+package propasm.testutil;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import propasm.AssemblerConfig;
+import propasm.analysis.Instructions;
+import propasm.model.AssemblyInputException;
+import propasm.model.Element;
+import propasm.model.ProgramBuilder;
+import propasm.model.ProgramPass;
+import propasm.parallax.InclusionHandler;
+import propasm.parallax.ParallaxLexer;
+import propasm.parallax.ParallaxParser;
+
+/**
+ * Assembles small Parallax-format programs for tests of whole-program passes.
+ * 
+ * @author cbiffle
+ *
+ */
+public class Programs {
+  private Programs() {
+  }
+  
+  /**
+   * Assembles {@code source} with no bootloader, running the given passes.
+   * Reports from directives are discarded.
+   * 
+   * @return the program's elements, as the passes left them.
+   */
+  public static List<Element> parse(String source, ProgramPass... passes)
+      throws AssemblyInputException, IOException {
+    return parse(source, null, passes);
+  }
+  
+  /**
+   * Assembles {@code source} with no bootloader, running the given passes.
+   * 
+   * @param report  destination for reports from directives, or {@code null}.
+   * @return the program's elements, as the passes left them.
+   */
+  public static List<Element> parse(String source, PrintStream report,
+                                    ProgramPass... passes)
+      throws AssemblyInputException, IOException {
+    final List<Element> result = new ArrayList<Element>();
+    ProgramBuilder builder = builder(source, report, passes);
+    builder.addPass(new ProgramPass() {
+      public void apply(List<Element> program) {
+        result.addAll(program);
+      }
+    });
+    builder.finish();
+    return result;
+  }
+  
+  /**
+   * Assembles {@code source} with no bootloader, running the given passes.
+   * Reports from directives are discarded.
+   * 
+   * @return the image.
+   */
+  public static byte[] assemble(String source, ProgramPass... passes)
+      throws AssemblyInputException, IOException {
+    return builder(source, null, passes).finish();
+  }
+  
+  /**
+   * @return the mnemonics of the instructions in {@code program}, separated
+   *         by spaces.
+   */
+  public static String mnemonics(List<Element> program) {
+    StringBuilder buf = new StringBuilder();
+    for(Element e : program) {
+      if(!e.is(Element.Kind.INSTRUCTION)) continue;
+      if(buf.length() > 0) buf.append(' ');
+      buf.append(Instructions.mnemonic(e.getInstruction()));
+    }
+    return buf.toString();
+  }
+  
+  private static ProgramBuilder builder(String source, PrintStream report,
+                                        ProgramPass... passes)
+      throws AssemblyInputException, IOException {
+    AssemblerConfig config = new AssemblerConfig();
+    config.setGenerateBootloader(false);
+    ProgramBuilder builder = new ProgramBuilder(config);
+    ParallaxParser parser = new ParallaxParser(builder, new InclusionHandler() {
+      public void include(String path) throws IOException {
+        throw new IOException("No includes in tests");
+      }
+      public void includeBlob(String path) throws IOException {
+        throw new IOException("No includes in tests");
+      }
+    });
+    parser.setSourceName("test");
+    parser.setReportStream(report);
+    parser.parse(new ParallaxLexer(new StringReader(source)).lex());
+    for(ProgramPass pass : passes) {
+      builder.addPass(pass);
+    }
+    return builder;
+  }
+}